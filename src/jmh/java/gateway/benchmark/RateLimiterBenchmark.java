@@ -0,0 +1,90 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import gateway.controller.util.RateLimiter;
+import gateway.controller.util.RateLimiter.RouteClass;
+
+/**
+ * Measures the throughput of rate limit checks, which are made on every request and should sustain well over one
+ * million checks per second. Checks are spread over a number of users and classes of route from several threads, so
+ * that contention on the buckets is included.
+ * <p>
+ * Run with: mvn -P benchmark test-compile exec:exec
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RateLimiterBenchmark {
+	private static final int USERS = 1024;
+
+	private RateLimiter rateLimiter;
+	private String[] keys;
+	private RouteClass[] routeClasses;
+
+	@Setup
+	public void setup() {
+		rateLimiter = new RateLimiter();
+		ReflectionTestUtils.setField(rateLimiter, "ENABLED", false);
+		for (RouteClass routeClass : RouteClass.values()) {
+			ReflectionTestUtils.setField(rateLimiter, routeClass.name() + "_RATE", 1000.0);
+			ReflectionTestUtils.setField(rateLimiter, routeClass.name() + "_BURST", 100);
+		}
+		ReflectionTestUtils.setField(rateLimiter, "IDLE_SECONDS", 600L);
+		rateLimiter.init();
+		keys = new String[USERS];
+		for (int index = 0; index < USERS; index++) {
+			keys[index] = "user" + index;
+			// Create every user's buckets up front, so that only steady-state checks are measured
+			rateLimiter.tryAcquire(keys[index], RouteClass.READ);
+		}
+		routeClasses = RouteClass.values();
+	}
+
+	@Benchmark
+	public long tryAcquire() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		return rateLimiter.tryAcquire(keys[random.nextInt(USERS)], routeClasses[random.nextInt(routeClasses.length)]);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(RateLimiterBenchmark.class.getSimpleName()).build()).run();
+	}
+}
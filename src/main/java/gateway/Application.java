@@ -16,6 +16,9 @@
 package gateway;
 
 import java.security.Principal;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -33,6 +36,7 @@ import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.security.authentication.AuthenticationDetailsSource;
@@ -41,6 +45,7 @@ import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.builders.WebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
 import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
@@ -49,6 +54,11 @@ import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
 import gateway.auth.ExtendedRequestDetails;
 import gateway.auth.PiazzaBasicAuthenticationEntryPoint;
 import gateway.auth.PiazzaBasicAuthenticationProvider;
+import gateway.controller.util.FileIdempotencyStore;
+import gateway.controller.util.IdempotencyStore;
+import gateway.controller.util.InMemoryIdempotencyStore;
+import gateway.controller.util.RateLimitInterceptor;
+import gateway.controller.util.UpstreamScheduler;
 import io.swagger.annotations.Api;
 import springfox.documentation.builders.ApiInfoBuilder;
 import springfox.documentation.builders.PathSelectors;
@@ -73,6 +83,18 @@ public class Application extends SpringBootServletInitializer {
 	private int httpMaxTotal;
 	@Value("${http.max.route}")
 	private int httpMaxRoute;
+	@Value("${upstream.threads}")
+	private int upstreamThreads;
+	@Value("${s3.upload.threads}")
+	private int s3UploadThreads;
+	@Value("${batch.threads}")
+	private int batchThreads;
+	@Value("${idempotency.store}")
+	private String idempotencyStoreType;
+	@Value("${idempotency.size}")
+	private int idempotencySize;
+	@Value("${idempotency.file}")
+	private String idempotencyFile;
 
 	@Override
 	protected SpringApplicationBuilder configure(SpringApplicationBuilder builder) {
@@ -91,13 +113,53 @@ public class Application extends SpringBootServletInitializer {
 	}
 
 	@Bean
-	public RestTemplate restTemplate() {
+	public RestTemplate restTemplate(UpstreamScheduler upstreamScheduler) {
 		RestTemplate restTemplate = new RestTemplate();
 		HttpClient httpClient = HttpClientBuilder.create().setMaxConnTotal(httpMaxTotal).setMaxConnPerRoute(httpMaxRoute).build();
 		restTemplate.setRequestFactory(new HttpComponentsClientHttpRequestFactory(httpClient));
+		restTemplate.setInterceptors(Arrays.<ClientHttpRequestInterceptor> asList(upstreamScheduler));
 		return restTemplate;
 	}
 
+	/**
+	 * Shared pool used to fan requests out to internal Piazza components in parallel, such as batched Job submissions.
+	 * Tasks run with the Security Context of the submitting request thread, so that auditing remains accurate.
+	 */
+	@Bean(destroyMethod = "shutdown")
+	public ExecutorService upstreamExecutor() {
+		return new DelegatingSecurityContextExecutorService(Executors.newFixedThreadPool(upstreamThreads));
+	}
+
+	/**
+	 * Pool used to send the parts of S3 multipart uploads in parallel. This is shared by all uploads, and bounds the
+	 * total number of parts in flight to S3.
+	 */
+	@Bean(destroyMethod = "shutdown")
+	public ExecutorService s3UploadExecutor() {
+		return Executors.newFixedThreadPool(s3UploadThreads);
+	}
+
+	/**
+	 * Pool used to handle the requests within a batch concurrently. This is separate from the upstream pool, since the
+	 * handlers of those requests may themselves wait on the upstream pool.
+	 */
+	@Bean(destroyMethod = "shutdown")
+	public ExecutorService batchExecutor() {
+		return new DelegatingSecurityContextExecutorService(Executors.newFixedThreadPool(batchThreads));
+	}
+
+	/**
+	 * Store for the responses to submissions made with an Idempotency-Key. Responses are held in memory, unless the
+	 * store is configured as "file", in which case they are also written to disk so that they survive a restart.
+	 */
+	@Bean
+	public IdempotencyStore idempotencyStore() {
+		if ("file".equals(idempotencyStoreType)) {
+			return new FileIdempotencyStore(idempotencySize, idempotencyFile);
+		}
+		return new InMemoryIdempotencyStore(idempotencySize);
+	}
+
 	@Bean
 	public Docket gatewayApi() {
 		return new Docket(DocumentationType.SWAGGER_2).useDefaultResponseMessages(false).ignoredParameterTypes(Principal.class)
@@ -124,6 +186,17 @@ public class Application extends SpringBootServletInitializer {
 		}
 	}
 
+	@Configuration
+	protected static class AddRateLimits extends WebMvcConfigurerAdapter {
+		@Autowired
+		private RateLimitInterceptor rateLimitInterceptor;
+
+		@Override
+		public void addInterceptors(InterceptorRegistry registry) {
+			registry.addInterceptor(rateLimitInterceptor);
+		}
+	}
+
 	@Configuration
 	@Profile({ "secure" })
 	protected static class ApplicationSecurity extends WebSecurityConfigurerAdapter {
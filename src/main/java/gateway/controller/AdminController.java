@@ -43,8 +43,18 @@ import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
 import org.springframework.web.client.RestTemplate;
 
+import gateway.controller.util.ContentIndex;
 import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.IdempotencyFilter;
+import gateway.controller.util.IngestStagingArea;
+import gateway.controller.util.JobOutbox;
+import gateway.controller.util.MetadataCache;
 import gateway.controller.util.PiazzaRestController;
+import gateway.controller.util.RateLimiter;
+import gateway.controller.util.TransferBudget;
+import gateway.controller.util.UploadSessionManager;
+import gateway.controller.util.UpstreamScheduler;
+import gateway.controller.util.UuidPool;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
@@ -74,6 +84,26 @@ public class AdminController extends PiazzaRestController {
 	private HttpServletRequest request;
 	@Autowired
 	private GatewayUtil gatewayUtil;
+	@Autowired
+	private UuidPool uuidPool;
+	@Autowired
+	private JobOutbox jobOutbox;
+	@Autowired
+	private UploadSessionManager uploadSessionManager;
+	@Autowired
+	private ContentIndex contentIndex;
+	@Autowired
+	private IngestStagingArea ingestStagingArea;
+	@Autowired
+	private TransferBudget transferBudget;
+	@Autowired
+	private MetadataCache metadataCache;
+	@Autowired
+	private IdempotencyFilter idempotencyFilter;
+	@Autowired
+	private RateLimiter rateLimiter;
+	@Autowired
+	private UpstreamScheduler upstreamScheduler;
 	@Value("${vcap.services.pz-kafka.credentials.host}")
 	private String KAFKA_ADDRESS;
 	@Value("${SPACE}")
@@ -174,6 +204,18 @@ public class AdminController extends PiazzaRestController {
 		stats.put("Logger", LOGGER_URL);
 		stats.put("Security", SECURITY_URL);
 		stats.put("Release", RELEASE_URL);
+		// Write the runtime statistics
+		stats.put("UUID Pool", uuidPool.getStatistics());
+		stats.put("Kafka Producer", gatewayUtil.getKafkaStatistics());
+		stats.put("Job Outbox", jobOutbox.getStatistics());
+		stats.put("Upload Sessions", uploadSessionManager.getStatistics());
+		stats.put("Content Index", contentIndex.getStatistics());
+		stats.put("Ingest Staging", ingestStagingArea.getStatistics());
+		stats.put("Transfer Budget", transferBudget.getStatistics());
+		stats.put("Metadata Cache", metadataCache.getStatistics());
+		stats.put("Idempotency", idempotencyFilter.getStatistics());
+		stats.put("Rate Limits", rateLimiter.getStatistics());
+		stats.put("Upstream Queues", upstreamScheduler.getStatistics());
 		// Return
 		return new ResponseEntity<Map<String, Object>>(stats, HttpStatus.OK);
 	}
@@ -0,0 +1,349 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.util.UriUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import gateway.controller.util.BatchServletRequest;
+import gateway.controller.util.BatchServletResponse;
+import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.IdempotencyFilter;
+import gateway.controller.util.PiazzaRestController;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+import model.logger.AuditElement;
+import model.logger.Severity;
+import model.response.ErrorResponse;
+import model.response.PiazzaResponse;
+import util.PiazzaLogger;
+
+/**
+ * REST Controller that handles a batch of requests to any of the Gateway's other endpoints in a single call, such as
+ * when a client needs many resources to render a single view. The requests of a batch are authenticated once, and are
+ * dispatched in-process to the Gateway's own controllers concurrently.
+ * <p>
+ * Requests within a batch do not pass through the Gateway's servlet filters, so submissions that may be made idempotent
+ * with an Idempotency-Key must be made on their own. Endpoints that stream files are also not available within a
+ * batch, and the response to each request is limited in size.
+ * </p>
+ */
+@CrossOrigin(origins = "*", maxAge = 3600)
+@RestController
+@Api
+public class BatchController extends PiazzaRestController {
+	@Autowired
+	private PiazzaLogger logger;
+	@Autowired
+	private GatewayUtil gatewayUtil;
+	@Autowired
+	private ObjectMapper objectMapper;
+	@Autowired
+	private DispatcherServlet dispatcherServlet;
+	@Autowired
+	private ExecutorService batchExecutor;
+
+	@Value("${batch.max}")
+	private int BATCH_MAX;
+	@Value("${batch.response.max}")
+	private int RESPONSE_MAX;
+
+	private static final List<String> METHODS = Arrays.asList("GET", "POST", "PUT", "DELETE");
+	private static final String BATCH_PATH = "/batch";
+	// Endpoints that stream files, which must be requested on their own
+	private static final List<String> STREAMING_PATHS = Arrays.asList("/file", "/data/file", "/data/archive", "/data/upload");
+	private final static Logger LOGGER = LoggerFactory.getLogger(BatchController.class);
+
+	/**
+	 * Handles a batch of requests to the Gateway's other endpoints. Each request is handled exactly as if it had been
+	 * made on its own by the same user, and its response is returned in the same position as the request.
+	 * 
+	 * @param requests
+	 *            The requests to handle
+	 * @param user
+	 *            The user submitting the batch
+	 * @param request
+	 *            The batch request, which the requests within the batch are based on
+	 * @param response
+	 *            The batch response
+	 * @return The response to each request, in the order requested; or an ErrorResponse if the batch is invalid.
+	 */
+	@RequestMapping(value = "/batch", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ApiOperation(value = "Send a batch of requests", notes = "Sends a number of requests to other Gateway endpoints in a single call. Each request is handled as if it had been made on its own, and the responses are returned in the order of the requests.", tags = "Batch")
+	@ApiResponses(value = {
+			@ApiResponse(code = 200, message = "The response to each request, in the order requested.", response = SubResponse.class, responseContainer = "List"),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity<?> executeBatch(
+			@ApiParam(value = "The list of requests, each with a method, a path relative to the Gateway, and an optional JSON body.", required = true, name = "body") @RequestBody List<SubRequest> requests,
+			Principal user, HttpServletRequest request, HttpServletResponse response) {
+		try {
+			// Log the request
+			String userName = gatewayUtil.getPrincipalName(user);
+			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			if ((requests == null) || (requests.isEmpty()) || (requests.size() > BATCH_MAX)) {
+				return new ResponseEntity<PiazzaResponse>(
+						new ErrorResponse(String.format("A batch must contain between 1 and %s requests.", BATCH_MAX), "Gateway"),
+						HttpStatus.BAD_REQUEST);
+			}
+			logger.log(String.format("User %s requested a batch of %s requests.", userName, requests.size()), Severity.INFORMATIONAL,
+					new AuditElement(dn, "requestBatch", ""));
+
+			// Dispatch all requests before waiting on any of them
+			List<String> rejections = new ArrayList<String>();
+			List<Future<SubResponse>> dispatches = new ArrayList<Future<SubResponse>>();
+			for (final SubRequest subRequest : requests) {
+				String path = (subRequest == null) ? null : normalizePath(subRequest.path);
+				String rejection = getRejection(subRequest, path);
+				rejections.add(rejection);
+				if (rejection != null) {
+					dispatches.add(null);
+					continue;
+				}
+				final BatchServletRequest servletRequest = createServletRequest(subRequest, path, request, user);
+				final BatchServletResponse servletResponse = new BatchServletResponse(response, RESPONSE_MAX);
+				dispatches.add(batchExecutor.submit(new Callable<SubResponse>() {
+					@Override
+					public SubResponse call() throws Exception {
+						try {
+							dispatcherServlet.service((ServletRequest) servletRequest, (ServletResponse) servletResponse);
+						} catch (IOException exception) {
+							if (!servletResponse.isTooLarge()) {
+								throw exception;
+							}
+						}
+						return getSubResponse(servletResponse);
+					}
+				}));
+			}
+
+			List<SubResponse> results = new ArrayList<SubResponse>();
+			for (int i = 0; i < requests.size(); i++) {
+				SubRequest subRequest = requests.get(i) == null ? new SubRequest() : requests.get(i);
+				SubResponse result = rejections.get(i) != null
+						? new SubResponse(HttpStatus.BAD_REQUEST.value(), new ErrorResponse(rejections.get(i), "Gateway"))
+						: getDispatchResult(subRequest, dispatches.get(i));
+				logger.log(String.format("User %s batch request %s %s completed with status %s.", userName, subRequest.method,
+						subRequest.path, result.status), Severity.INFORMATIONAL,
+						new AuditElement(dn, "completeBatchRequest", String.valueOf(subRequest.path)));
+				results.add(result);
+			}
+			return new ResponseEntity<List<SubResponse>>(results, HttpStatus.OK);
+		} catch (Exception exception) {
+			String error = String.format("Error handling batch for user %s: %s", gatewayUtil.getPrincipalName(user),
+					exception.getMessage());
+			LOGGER.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Determines why a request within a batch may not be dispatched.
+	 * 
+	 * @param subRequest
+	 *            The request within the batch
+	 * @param path
+	 *            The normalized path and query of the request
+	 * @return The reason the request is rejected, or null if it may be dispatched
+	 */
+	private String getRejection(SubRequest subRequest, String path) {
+		if ((subRequest == null) || (subRequest.method == null) || !METHODS.contains(subRequest.method.toUpperCase()) || (path == null)) {
+			return String.format("Each request must have a method of %s, and a path beginning with /.", METHODS);
+		}
+		String handlerPath = getHandlerPath(path);
+		if (handlerPath == null) {
+			return String.format("The path %s is not valid.", subRequest.path);
+		}
+		if (handlerPath.startsWith(BATCH_PATH)) {
+			return "Batches may not be nested.";
+		}
+		if (IdempotencyFilter.isSubmission(subRequest.method, handlerPath)) {
+			return String.format("%s %s must be requested on its own, so that it may be made idempotent.", subRequest.method.toUpperCase(),
+					handlerPath);
+		}
+		for (String streamingPath : STREAMING_PATHS) {
+			if (handlerPath.equals(streamingPath) || handlerPath.startsWith(streamingPath + "/")) {
+				return String.format("Files may not be sent or received within a batch; %s must be requested on its own.", handlerPath);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Normalizes the path of a request within a batch, removing repeated slashes and resolving any . or .. segments.
+	 * 
+	 * @return The normalized path and query, or null if the path does not begin with /
+	 */
+	private static String normalizePath(String pathAndQuery) {
+		if ((pathAndQuery == null) || !pathAndQuery.startsWith("/")) {
+			return null;
+		}
+		int queryStart = pathAndQuery.indexOf('?');
+		String path = queryStart == -1 ? pathAndQuery : pathAndQuery.substring(0, queryStart);
+		String query = queryStart == -1 ? "" : pathAndQuery.substring(queryStart);
+		return StringUtils.cleanPath(path.replaceAll("/{2,}", "/")) + query;
+	}
+
+	/**
+	 * Gets the path that the Gateway's controllers are matched against for a normalized path: decoded, without its
+	 * query, path parameters or trailing slash.
+	 * 
+	 * @return The path, or null if it is not valid
+	 */
+	private static String getHandlerPath(String pathAndQuery) {
+		int queryStart = pathAndQuery.indexOf('?');
+		String path = queryStart == -1 ? pathAndQuery : pathAndQuery.substring(0, queryStart);
+		try {
+			path = UriUtils.decode(path.replaceAll(";[^/]*", ""), StandardCharsets.UTF_8.name());
+		} catch (IllegalArgumentException | UnsupportedEncodingException exception) {
+			LOGGER.debug(String.format("Could not decode batch request path %s", path), exception);
+			return null;
+		}
+		path = StringUtils.cleanPath(path.replaceAll("/{2,}", "/"));
+		if (!path.startsWith("/") || path.startsWith("/..")) {
+			return null;
+		}
+		return (path.length() > 1) && path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+	}
+
+	/**
+	 * Creates the servlet request to dispatch for a request within a batch.
+	 */
+	private BatchServletRequest createServletRequest(SubRequest subRequest, String path, HttpServletRequest request, Principal user)
+			throws IOException {
+		byte[] body = ((subRequest.body == null) || subRequest.body.isNull()) ? null : objectMapper.writeValueAsBytes(subRequest.body);
+		return new BatchServletRequest(request, user, subRequest.method, path, body);
+	}
+
+	/**
+	 * Waits on the dispatch of a single request within a batch.
+	 */
+	private SubResponse getDispatchResult(SubRequest subRequest, Future<SubResponse> dispatch) {
+		try {
+			return dispatch.get();
+		} catch (ExecutionException exception) {
+			String error = String.format("Error handling batch request %s %s: %s", subRequest.method, subRequest.path,
+					exception.getCause().getMessage());
+			LOGGER.error(error, exception.getCause());
+			return new SubResponse(HttpStatus.INTERNAL_SERVER_ERROR.value(), new ErrorResponse(error, "Gateway"));
+		} catch (InterruptedException exception) {
+			LOGGER.error("Interrupted while handling batch.", exception);
+			Thread.currentThread().interrupt();
+			return new SubResponse(HttpStatus.INTERNAL_SERVER_ERROR.value(),
+					new ErrorResponse(String.format("Handling batch request %s %s was interrupted.", subRequest.method, subRequest.path),
+							"Gateway"));
+		}
+	}
+
+	/**
+	 * Reads the captured response to a request within a batch. JSON bodies are returned as JSON, and any other body as
+	 * text.
+	 */
+	private SubResponse getSubResponse(BatchServletResponse servletResponse) {
+		if (servletResponse.isTooLarge()) {
+			return new SubResponse(HttpStatus.BAD_REQUEST.value(), new ErrorResponse(
+					String.format("The response is larger than the %s bytes allowed within a batch; it must be requested on its own.",
+							RESPONSE_MAX),
+					"Gateway"));
+		}
+		byte[] body = servletResponse.getBody();
+		if (body.length == 0) {
+			return new SubResponse(servletResponse.getStatus(),
+					servletResponse.getErrorMessage() == null ? null : new ErrorResponse(servletResponse.getErrorMessage(), "Gateway"));
+		}
+		try {
+			return new SubResponse(servletResponse.getStatus(), objectMapper.readTree(body));
+		} catch (IOException exception) {
+			LOGGER.debug("Batch response body is not JSON; returning as text.", exception);
+			return new SubResponse(servletResponse.getStatus(), new String(body, StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * A single request within a batch.
+	 */
+	public static class SubRequest {
+		public String method;
+		public String path;
+		public JsonNode body;
+
+		public SubRequest() {
+			// Default constructor for deserialization
+		}
+
+		public SubRequest(String method, String path, JsonNode body) {
+			this.method = method;
+			this.path = path;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * The response to a single request within a batch.
+	 */
+	public static class SubResponse {
+		public int status;
+		public Object body;
+
+		public SubResponse() {
+			// Default constructor for deserialization
+		}
+
+		public SubResponse(int status, Object body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+}
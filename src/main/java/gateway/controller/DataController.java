@@ -15,10 +15,28 @@
  **/
 package gateway.controller;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -29,6 +47,8 @@ import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -36,26 +56,40 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
-import org.springframework.web.bind.annotation.RequestPart;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestTemplate;
-import org.springframework.web.multipart.MultipartFile;
 
 import com.amazonaws.AmazonClientException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import exception.InvalidInputException;
+import gateway.controller.util.FieldProjection;
 import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.IngestStagingArea;
+import gateway.controller.util.MetadataCache;
 import gateway.controller.util.PiazzaRestController;
+import gateway.controller.util.TransferBudget;
+import gateway.controller.util.UploadSession;
+import gateway.controller.util.UploadSessionManager;
 import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiImplicitParam;
+import io.swagger.annotations.ApiImplicitParams;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
+import model.data.DataType;
 import model.data.FileRepresentation;
+import model.data.location.FileLocation;
+import model.data.location.S3FileStore;
+import model.data.type.GeoJsonDataType;
+import model.data.type.RasterDataType;
+import model.data.type.ShapefileDataType;
 import model.job.metadata.ResourceMetadata;
 import model.job.type.IngestJob;
 import model.logger.AuditElement;
@@ -74,7 +108,7 @@ import util.PiazzaLogger;
  * REST controller serving end points that are related to Piazza data, such as loading or accessing spatial data.
  * 
  * @author Patrick.Doody
- *
+ * 
  */
 @CrossOrigin(origins = "*", maxAge = 3600)
 @Api
@@ -83,6 +117,14 @@ public class DataController extends PiazzaRestController {
 	@Autowired
 	private GatewayUtil gatewayUtil;
 	@Autowired
+	private UploadSessionManager uploadSessionManager;
+	@Autowired
+	private IngestStagingArea ingestStagingArea;
+	@Autowired
+	private TransferBudget transferBudget;
+	@Autowired
+	private MetadataCache metadataCache;
+	@Autowired
 	private PiazzaLogger logger;
 	@Value("${search.url}")
 	private String SEARCH_URL;
@@ -94,12 +136,29 @@ public class DataController extends PiazzaRestController {
 	private String ACCESS_URL;
 	@Value("${SPACE}")
 	private String SPACE;
+	@Value("${download.redirect.enabled}")
+	private boolean DOWNLOAD_REDIRECT_ENABLED;
+	@Value("${download.redirect.ttl}")
+	private long DOWNLOAD_REDIRECT_TTL;
+	@Value("${archive.batch.size}")
+	private int ARCHIVE_BATCH_SIZE;
+	@Value("${job.batch.max}")
+	private int BATCH_MAX;
+	@Value("${multiget.max}")
+	private int MULTIGET_MAX;
 
 	private static final String DEFAULT_PAGE_SIZE = "10";
 	private static final String DEFAULT_PAGE = "0";
 	private static final String DEFAULT_ORDER = "desc";
 	private static final String DEFAULT_SORTBY = "metadata.createdOn";
 	private static final String DEFAULT_SORTBY_ES = "dataResource.metadata.createdOn"; // schema for Elasticsearch
+	private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+	private static final String CHECKSUM_MD5_HEADER = "X-Checksum-MD5";
+	private static final String CHECKSUM_SHA256_HEADER = "X-Checksum-SHA256";
+	private static final String[] FORWARDED_REQUEST_HEADERS = { HttpHeaders.RANGE, HttpHeaders.IF_RANGE };
+	private static final String[] FORWARDED_RESPONSE_HEADERS = { HttpHeaders.CONTENT_TYPE, HttpHeaders.CONTENT_LENGTH,
+			HttpHeaders.CONTENT_DISPOSITION, HttpHeaders.CONTENT_RANGE, HttpHeaders.ACCEPT_RANGES, HttpHeaders.ETAG,
+			HttpHeaders.LAST_MODIFIED };
 	@Autowired
 	private RestTemplate restTemplate;
 
@@ -110,6 +169,8 @@ public class DataController extends PiazzaRestController {
 	 * 
 	 * @see http://pz-swagger/#!/Data/get_data
 	 * 
+	 * @param fields
+	 *            The fields of each Data Resource to return, or null for all fields
 	 * @param user
 	 *            The user making the request
 	 * @return The list of results, with pagination information included. ErrorResponse if something goes wrong.
@@ -129,6 +190,7 @@ public class DataController extends PiazzaRestController {
 			@ApiParam(value = "Indicates ascending or descending order.") @RequestParam(value = "order", required = false, defaultValue = DEFAULT_ORDER) String order,
 			@ApiParam(value = "The data field to sort by.") @RequestParam(value = "sortBy", required = false, defaultValue = DEFAULT_SORTBY) String sortBy,
 			@ApiParam(value = "Filter for the username that published the service.") @RequestParam(value = "createdBy", required = false) String createdBy,
+			@ApiParam(value = "Comma-separated list of the fields of each result to return, such as \"dataId,metadata.name\". All fields are returned if not specified.") @RequestParam(value = "fields", required = false) String fields,
 			Principal user) {
 		try {
 			// Log the request
@@ -144,6 +206,12 @@ public class DataController extends PiazzaRestController {
 					|| (perPage != null && (validationError = gatewayUtil.validateInput("perPage", perPage)) != null)) {
 				return new ResponseEntity<PiazzaResponse>(new ErrorResponse(validationError, "Gateway"), HttpStatus.BAD_REQUEST);
 			}
+			FieldProjection projection;
+			try {
+				projection = FieldProjection.parse(fields);
+			} catch (InvalidInputException exception) {
+				return new ResponseEntity<PiazzaResponse>(new ErrorResponse(exception.getMessage(), "Gateway"), HttpStatus.BAD_REQUEST);
+			}
 
 			// Proxy the request to Pz-Access
 			String url = String.format("%s/%s?page=%s&perPage=%s", ACCESS_URL, "data", page, perPage);
@@ -166,8 +234,10 @@ public class DataController extends PiazzaRestController {
 				url = String.format("%s&createdByJobId=%s", url, createdByJobId);
 			}
 			try {
-				ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(
-						restTemplate.getForEntity(url, DataResourceListResponse.class).getBody(), HttpStatus.OK);
+				// Only the selected fields are read from the upstream response, if any are specified
+				PiazzaResponse dataList = projection != null ? restTemplate.execute(url, HttpMethod.GET, null, projection)
+						: restTemplate.getForEntity(url, DataResourceListResponse.class).getBody();
+				ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(dataList, HttpStatus.OK);
 				logger.log(String.format("User %s successfully retrieved Data List.", userName), Severity.INFORMATIONAL,
 						new AuditElement(dn, "successDataList", ""));
 				return response;
@@ -206,8 +276,59 @@ public class DataController extends PiazzaRestController {
 			@ApiParam(value = "The number of results to be returned per query.") @RequestParam(value = "perPage", required = false, defaultValue = DEFAULT_PAGE_SIZE) Integer perPage,
 			@ApiParam(value = "Indicates ascending or descending order.") @RequestParam(value = "order", required = false, defaultValue = DEFAULT_ORDER) String order,
 			@ApiParam(value = "The data field to sort by.") @RequestParam(value = "sortBy", required = false) String sortBy,
+			@ApiParam(value = "Comma-separated list of the fields of each result to return, such as \"dataId,metadata.name\". All fields are returned if not specified.") @RequestParam(value = "fields", required = false) String fields,
 			Principal user) {
-		return getData(keyword, createdByJobId, page, perPage, order, sortBy, gatewayUtil.getPrincipalName(user), user);
+		return getData(keyword, createdByJobId, page, perPage, order, sortBy, gatewayUtil.getPrincipalName(user), fields, user);
+	}
+
+	/**
+	 * Gets the metadata for a number of Data items at once, such as when rendering a list. Duplicate Ids are only
+	 * fetched once, and Data items not in the Gateway's metadata cache are fetched in parallel.
+	 * 
+	 * @param ids
+	 *            The comma-separated Ids of the Data items
+	 * @param user
+	 *            The user submitting the request
+	 * @return The metadata, or an error, for each distinct Id; or an ErrorResponse if the request is invalid.
+	 */
+	@RequestMapping(value = "/data", method = RequestMethod.GET, params = "ids", produces = MediaType.APPLICATION_JSON_VALUE)
+	@ApiOperation(value = "Get Metadata for multiple Data items", notes = "Fetches the metadata for each of the comma-separated Ids. The response is keyed by Id; each value is either the metadata, or an Error for that Id.", tags = "Data")
+	@ApiResponses(value = {
+			@ApiResponse(code = 200, message = "The metadata, or an Error, for each Id.", response = DataResourceResponse.class, responseContainer = "Map"),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity<?> getDataBatch(
+			@ApiParam(value = "The comma-separated Ids of the Data items to fetch.", required = true) @RequestParam(value = "ids") String ids,
+			Principal user) {
+		try {
+			// Log the request
+			String userName = gatewayUtil.getPrincipalName(user);
+			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			List<String> idList = MetadataCache.parseIds(ids);
+			if ((idList.isEmpty()) || (idList.size() > MULTIGET_MAX)) {
+				return new ResponseEntity<PiazzaResponse>(
+						new ErrorResponse(String.format("Between 1 and %s Ids must be specified.", MULTIGET_MAX), "Gateway"),
+						HttpStatus.BAD_REQUEST);
+			}
+			try {
+				MetadataCache.validateIds(idList);
+			} catch (InvalidInputException exception) {
+				return new ResponseEntity<PiazzaResponse>(new ErrorResponse(exception.getMessage(), "Gateway"), HttpStatus.BAD_REQUEST);
+			}
+			logger.log(String.format("User %s requested metadata for %s Data items.", userName, idList.size()), Severity.INFORMATIONAL,
+					new AuditElement(dn, "requestGetDataBatch", ""));
+			Map<String, PiazzaResponse> results = metadataCache.getAll("data", idList, String.format("%s/%s/%%s", ACCESS_URL, "data"), DataResourceResponse.class);
+			logger.log(String.format("User %s retrieved metadata for %s Data items.", userName, results.size()), Severity.INFORMATIONAL,
+					new AuditElement(dn, "successGetDataBatch", ""));
+			return new ResponseEntity<Map<String, PiazzaResponse>>(results, HttpStatus.OK);
+		} catch (Exception exception) {
+			String error = String.format("Error fetching metadata for Data items %s by user %s: %s", ids, gatewayUtil.getPrincipalName(user),
+					exception.getMessage());
+			LOGGER.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
 	}
 
 	/**
@@ -262,64 +383,191 @@ public class DataController extends PiazzaRestController {
 		}
 	}
 
+	/**
+	 * Processes a batch of requests to Ingest data, such as when registering many externally hosted data sets. Every
+	 * Ingest Job is validated before any are forwarded; Job Ids for the valid Jobs are then allocated together, and
+	 * the Jobs are forwarded to the Job Manager concurrently. Each Job in the batch succeeds or fails independently.
+	 * 
+	 * @param jobs
+	 *            The Ingest Jobs, each describing the data to be ingested
+	 * @param user
+	 *            The user submitting the request
+	 * @return A list containing either the Job Id, or the error, for each Job in the same order as the input.
+	 */
+	@RequestMapping(value = "/data/batch", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ResponseStatus(HttpStatus.CREATED)
+	@ApiOperation(value = "Load a batch of Data into Piazza", notes = "Loads each Data item in the list into the Piazza Core metadata holdings, as with the /data endpoint. Results are returned in the same order as the input.", tags = "Data")
+	@ApiResponses(value = {
+			@ApiResponse(code = 201, message = "The Job Id for each Load, or an Error for each Load that could not be submitted.", response = JobResponse.class, responseContainer = "List"),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity<?> ingestDataBatch(
+			@ApiParam(value = "The description, location, and metadata for each Data item to be loaded into Piazza.", required = true, name = "body") @RequestBody List<IngestJob> jobs,
+			Principal user) {
+		try {
+			// Log the request
+			String userName = gatewayUtil.getPrincipalName(user);
+			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			if ((jobs == null) || (jobs.isEmpty()) || (jobs.size() > BATCH_MAX)) {
+				return new ResponseEntity<PiazzaResponse>(
+						new ErrorResponse(String.format("The batch must contain between 1 and %s Jobs.", BATCH_MAX), "Gateway"),
+						HttpStatus.BAD_REQUEST);
+			}
+			logger.log(String.format("User %s requested Batch Data Load of %s Jobs.", userName, jobs.size()), Severity.INFORMATIONAL,
+					new AuditElement(dn, "requestDataLoadBatch", ""));
+
+			// Validate every Job before forwarding any
+			PiazzaResponse[] results = new PiazzaResponse[jobs.size()];
+			List<PiazzaJobRequest> requests = new ArrayList<PiazzaJobRequest>();
+			List<Integer> requestIndexes = new ArrayList<Integer>();
+			for (int i = 0; i < jobs.size(); i++) {
+				IngestJob job = jobs.get(i);
+				if ((job == null) || (job.getData() == null) || (job.getData().getDataType() == null)) {
+					results[i] = new ErrorResponse("A Data Resource with a Data Type must be specified for each Job.", "Gateway");
+					continue;
+				}
+				// Ensure the user isn't trying to hack a dataId into their request.
+				job.getData().setDataId(null);
+				PiazzaJobRequest request = new PiazzaJobRequest();
+				request.jobType = job;
+				request.createdBy = userName;
+				requests.add(request);
+				requestIndexes.add(i);
+			}
+
+			// Forward all of the valid Jobs and place their results back in order
+			if (!requests.isEmpty()) {
+				List<PiazzaResponse> responses = gatewayUtil.sendJobRequests(requests);
+				for (int i = 0; i < responses.size(); i++) {
+					results[requestIndexes.get(i)] = responses.get(i);
+				}
+			}
+
+			logger.log(String.format("User %s Sent Batch Data Load of %s Jobs, %s of which were accepted.", userName, jobs.size(),
+					requests.size()), Severity.INFORMATIONAL, new AuditElement(dn, "completeDataLoadBatch", ""));
+			return new ResponseEntity<List<PiazzaResponse>>(Arrays.asList(results), HttpStatus.CREATED);
+		} catch (Exception exception) {
+			String error = String.format("Error Loading Data Batch for user %s: %s", gatewayUtil.getPrincipalName(user),
+					exception.getMessage());
+			LOGGER.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
 	/**
 	 * Processes the request to Ingest data as a file.
+	 * <p>
+	 * The multipart request is parsed as a stream rather than being spooled to disk by the servlet container. The
+	 * `data` part must precede the `file` part, so that the Job can be validated before any bytes of the file are read.
+	 * The file part is then streamed directly into S3.
+	 * </p>
+	 * <p>
+	 * Clients may send the expected MD5 and SHA-256 checksums of the file as headers. The file is rejected if it does
+	 * not match them.
+	 * </p>
+	 * <p>
+	 * If asynchronous ingest is enabled, the file is instead written to the local staging area and the Job Id is
+	 * returned immediately. The file is pushed to S3 and the Job submitted in the background, and any failure is
+	 * reported in the status of the Job. If the staging area is full, the request is rejected with a 503.
+	 * </p>
 	 * 
 	 * @see http://pz-swagger/#!/Data/post_data_file
 	 * 
-	 * @param job
-	 *            The ingest job, describing the data to be ingested param file The file bytes
+	 * @param request
+	 *            The multipart servlet request, containing the `data` part describing the ingest job, followed by the
+	 *            `file` part containing the file bytes
 	 * @param user
 	 *            The user submitting the request
 	 * @return The response containing the Job Id, or containing the appropriate ErrorResponse
 	 */
 	@RequestMapping(value = "/data/file", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
 	@ResponseStatus(HttpStatus.CREATED)
-	@ApiOperation(value = "Load a Data File into Piazza", notes = "Loads a local user Data file into Piazza. This functions the same as /data endpoint, but a file is specified instead of a URI.", tags = "Data")
+	@ApiOperation(value = "Load a Data File into Piazza", notes = "Loads a local user Data file into Piazza. This functions the same as /data endpoint, but a file is specified instead of a URI. The data part must be sent before the file part.", tags = "Data")
+	@ApiImplicitParams({
+			@ApiImplicitParam(name = "data", value = "The description, location, and metadata for the Data to be loaded into Piazza. This is the identical model to the LoadJob as specified in the body of the /data request. It is only noted as a string type here because of a Swagger deficiency.", required = true, dataType = "string", paramType = "form"),
+			@ApiImplicitParam(name = "file", value = "The file to be uploaded.", required = true, dataType = "file", paramType = "form"),
+			@ApiImplicitParam(name = CHECKSUM_MD5_HEADER, value = "The hex MD5 checksum of the file, to verify it was received intact.", required = false, dataType = "string", paramType = "header"),
+			@ApiImplicitParam(name = CHECKSUM_SHA256_HEADER, value = "The hex SHA-256 checksum of the file, to verify it was received intact.", required = false, dataType = "string", paramType = "header") })
 	@ApiResponses(value = {
 			@ApiResponse(code = 201, message = "The Id of the Job created to handle the Loading of the Data.", response = JobResponse.class),
 			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
 			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
-			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
-	public ResponseEntity<PiazzaResponse> ingestDataFile(
-			@ApiParam(value = "The description, location, and metadata for the Data to be loaded into Piazza. This is the identical model to the LoadJob as specified in the body of the /data request. It is only noted as a string type here because of a Swagger deficiency.", required = true) @Valid @RequestPart String data,
-			@ApiParam(value = "The file to be uploaded.", required = true) @RequestPart final MultipartFile file, Principal user) {
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class),
+			@ApiResponse(code = 503, message = "The Gateway is too busy with other transfers, or the staging area for uploads is full", response = ErrorResponse.class) })
+	public ResponseEntity<PiazzaResponse> ingestDataFile(HttpServletRequest servletRequest, Principal user) {
+		TransferBudget.Permit permit = null;
 		try {
-			IngestJob job;
+			IngestJob job = null;
+			String jobId = null;
+			String fileName = null;
+			boolean fileUploaded = false;
+			boolean fileStaged = false;
 			String userName = gatewayUtil.getPrincipalName(user);
 			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
-			try {
-				// Serialize the JSON payload of the multipart request
-				job = new ObjectMapper().readValue(data, IngestJob.class);
-			} catch (Exception exception) {
-				String error = String.format("Incorrect JSON passed through the `data` parameter. Please verify input. Error: %s",
-						exception.getMessage());
-				LOGGER.error(error, exception);
-				return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.BAD_REQUEST);
+			permit = transferBudget.acquire(userName, servletRequest.getContentLengthLong());
+			if (permit == null) {
+				return getTransferRejectedResponse(userName, servletRequest.getContentLengthLong());
+			}
+			if (!ServletFileUpload.isMultipartContent(servletRequest)) {
+				throw new InvalidInputException("Request must be multipart/form-data.");
+			}
+			FileItemIterator parts = new ServletFileUpload().getItemIterator(servletRequest);
+			while (parts.hasNext() && !fileUploaded) {
+				FileItemStream part = parts.next();
+				if ("data".equals(part.getFieldName())) {
+					try {
+						// Serialize the JSON payload of the multipart request
+						job = new ObjectMapper().readValue(part.openStream(), IngestJob.class);
+					} catch (Exception exception) {
+						String error = String.format("Incorrect JSON passed through the `data` parameter. Please verify input. Error: %s",
+								exception.getMessage());
+						LOGGER.error(error, exception);
+						return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.BAD_REQUEST);
+					}
+					validateFileJob(job);
+				} else if ("file".equals(part.getFieldName()) && !part.isFormField()) {
+					if (job == null) {
+						throw new InvalidInputException("The `data` part must be sent before the `file` part.");
+					}
+					fileName = part.getName();
+					// Log the request
+					logger.log(
+							String.format("User %s requested Data Load Job of type %s with file: %s", userName,
+									job.getData().getDataType().getClass().getName(), fileName),
+							Severity.INFORMATIONAL, new AuditElement(dn, "requestLoadFile", fileName));
+					jobId = gatewayUtil.getUuid();
+					long contentLength = servletRequest.getContentLengthLong();
+					if (ingestStagingArea.isEnabled() && (contentLength >= 0)) {
+						// Stage the file locally, and finish the ingest in the background. The whole request is
+						// reserved, since the size of the file part is not known until it has been read.
+						if (!ingestStagingArea.reserve(contentLength)) {
+							LOGGER.info(String.format("Rejected upload of %s bytes from user %s; staging area is full.", contentLength, userName));
+							return new ResponseEntity<PiazzaResponse>(
+									new ErrorResponse("The Gateway is busy loading other files. Please try again later.", "Gateway"),
+									HttpStatus.SERVICE_UNAVAILABLE);
+						}
+						ingestStagingArea.stage(jobId, userName, job, fileName, part.openStream(), servletRequest.getHeader(CHECKSUM_MD5_HEADER),
+								servletRequest.getHeader(CHECKSUM_SHA256_HEADER), contentLength);
+						fileStaged = true;
+					} else {
+						// Stream the file to S3.
+						job = gatewayUtil.pushS3File(jobId, job, fileName, part.openStream(), servletRequest.getHeader(CHECKSUM_MD5_HEADER),
+								servletRequest.getHeader(CHECKSUM_SHA256_HEADER));
+					}
+					fileUploaded = true;
+				}
 			}
-			// Ensure the user isn't trying to hack a dataId into their request.
-			job.getData().setDataId(null);
 			// Ensure the file was uploaded. This is required.
-			if (file == null) {
+			if (!fileUploaded) {
 				throw new InvalidInputException("File not specified in request.");
 			}
-			// Log the request
-			logger.log(
-					String.format("User %s requested Data Load Job of type %s with file: %s", userName,
-							job.getData().getDataType().getClass().getName(), file.getOriginalFilename()),
-					Severity.INFORMATIONAL, new AuditElement(dn, "requestLoadFile", file.getOriginalFilename()));
-
-			// Validate the Job inputs to ensure we are able to process the file
-			// and attach it to the job metadata.
-			if (job.getHost() == false) {
-				throw new InvalidInputException("Host parameter must be set to true when loading a file.");
-			} else if (job.getData().getDataType() instanceof FileRepresentation == false) {
-				throw new InvalidInputException("The uploaded file cannot be attached to the specified Data Type: "
-						+ job.getData().getDataType().getClass().getName());
-			}
-			// Send the file to S3.
-			String jobId = gatewayUtil.getUuid();
-			job = gatewayUtil.pushS3File(jobId, job, file);
+			if (fileStaged) {
+				logger.log(String.format("User %s staged File %s for Job %s", userName, fileName, jobId), Severity.INFORMATIONAL,
+						new AuditElement(dn, "stagedLoadFile", jobId));
+				return new ResponseEntity<PiazzaResponse>(new JobResponse(jobId), HttpStatus.CREATED);
+			}
 			// Create the Request to send to Kafka
 			PiazzaJobRequest request = new PiazzaJobRequest();
 			request.jobType = job;
@@ -328,7 +576,7 @@ public class DataController extends PiazzaRestController {
 
 			// Return the Job Id of the newly created Job
 			ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(new JobResponse(jobId), HttpStatus.CREATED);
-			logger.log(String.format("User %s successfully Loaded File %s for Job %s", userName, file.getOriginalFilename(), jobId),
+			logger.log(String.format("User %s successfully Loaded File %s for Job %s", userName, fileName, jobId),
 					Severity.INFORMATIONAL, new AuditElement(dn, "successLoadFile", jobId));
 			return response;
 		} catch (AmazonClientException amazonException) {
@@ -350,6 +598,533 @@ public class DataController extends PiazzaRestController {
 			LOGGER.error(error, exception);
 			logger.log(error, Severity.ERROR);
 			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.INTERNAL_SERVER_ERROR);
+		} finally {
+			if (permit != null) {
+				permit.release();
+			}
+		}
+	}
+
+	/**
+	 * Loads every file in a zip archive into Piazza, creating one Data Load Job per file.
+	 * <p>
+	 * The archive is read as a stream, and each file is sent to S3 as it is read, so the archive is never held in
+	 * memory or on disk. The Ingest Job for each file is created from the `data` part, which serves as a template for
+	 * the metadata of every file; the Data Type of each file is determined by its extension. Job Requests are forwarded
+	 * in batches, with each batch sent while the files of the next batch are being read.
+	 * </p>
+	 * 
+	 * @param servletRequest
+	 *            The multipart request, containing a `data` part with the template Ingest Job, followed by a `file`
+	 *            part containing the zip archive
+	 * @param user
+	 *            The user submitting the request
+	 * @return One response per file in the archive, in order. Each is either a JobResponse containing the Job Id, or an
+	 *         ErrorResponse describing why that file could not be loaded. Or an ErrorResponse if the archive could not
+	 *         be read at all.
+	 */
+	@RequestMapping(value = "/data/archive", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ResponseStatus(HttpStatus.CREATED)
+	@ApiOperation(value = "Load a Zip Archive of Data Files into Piazza", notes = "Loads every file in a zip archive into Piazza as its own Data item. Files ending in .tif or .tiff are loaded as Raster, .geojson or .json as GeoJSON, and .zip as a zipped Shapefile. The data part is used as the template for every file, and must be sent before the file part.", tags = "Data")
+	@ApiImplicitParams({
+			@ApiImplicitParam(name = "data", value = "The template LoadJob used for every file in the archive. The name of the Data is set to the name of the file if not specified, and the Data Type is ignored.", required = true, dataType = "string", paramType = "form"),
+			@ApiImplicitParam(name = "file", value = "The zip archive to be uploaded.", required = true, dataType = "file", paramType = "form") })
+	@ApiResponses(value = {
+			@ApiResponse(code = 201, message = "One Job Id, or Error, per file in the archive.", response = JobResponse.class, responseContainer = "List"),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class),
+			@ApiResponse(code = 503, message = "The Gateway is too busy with other transfers", response = ErrorResponse.class) })
+	public ResponseEntity<?> ingestDataArchive(HttpServletRequest servletRequest, Principal user) {
+		TransferBudget.Permit permit = null;
+		try {
+			String template = null;
+			String userName = gatewayUtil.getPrincipalName(user);
+			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			permit = transferBudget.acquire(userName, servletRequest.getContentLengthLong());
+			if (permit == null) {
+				return getTransferRejectedResponse(userName, servletRequest.getContentLengthLong());
+			}
+			if (!ServletFileUpload.isMultipartContent(servletRequest)) {
+				throw new InvalidInputException("Request must be multipart/form-data.");
+			}
+			FileItemIterator parts = new ServletFileUpload().getItemIterator(servletRequest);
+			while (parts.hasNext()) {
+				FileItemStream part = parts.next();
+				if ("data".equals(part.getFieldName())) {
+					template = IOUtils.toString(part.openStream(), "UTF-8");
+					IngestJob job = readArchiveTemplate(template);
+					if (!Boolean.TRUE.equals(job.getHost())) {
+						throw new InvalidInputException("Host parameter must be set to true when loading a file.");
+					}
+				} else if ("file".equals(part.getFieldName()) && !part.isFormField()) {
+					if (template == null) {
+						throw new InvalidInputException("The `data` part must be sent before the `file` part.");
+					}
+					logger.log(String.format("User %s requested Data Load of archive %s", userName, part.getName()), Severity.INFORMATIONAL,
+							new AuditElement(dn, "requestLoadArchive", part.getName()));
+					List<PiazzaResponse> results = loadArchive(template, userName, new ZipInputStream(part.openStream()));
+					logger.log(String.format("User %s Loaded archive %s containing %s files", userName, part.getName(), results.size()),
+							Severity.INFORMATIONAL, new AuditElement(dn, "successLoadArchive", part.getName()));
+					return new ResponseEntity<List<PiazzaResponse>>(results, HttpStatus.CREATED);
+				}
+			}
+			throw new InvalidInputException("File not specified in request.");
+		} catch (InvalidInputException invalidInputException) {
+			String error = String.format("Invalid Inputs for Loading Data Archive for user %s: %s", gatewayUtil.getPrincipalName(user),
+					invalidInputException.getMessage());
+			LOGGER.error(error, invalidInputException);
+			logger.log(error, Severity.INFORMATIONAL);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.BAD_REQUEST);
+		} catch (Exception exception) {
+			String error = String.format("Error Loading Data Archive for user %s: %s", gatewayUtil.getPrincipalName(user),
+					exception.getMessage());
+			LOGGER.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.INTERNAL_SERVER_ERROR);
+		} finally {
+			if (permit != null) {
+				permit.release();
+			}
+		}
+	}
+
+	/**
+	 * Sends each file of a zip archive to S3 and forwards its Ingest Job. Job Requests are forwarded in batches; a
+	 * batch is only waited on once the files of the following batch have been sent, so that at most two batches are
+	 * outstanding at any time.
+	 * <p>
+	 * If the archive cannot be read to its end, then the failure is reported in place of the unreadable file, and the
+	 * Job Requests of the files that were read are still forwarded and returned.
+	 * </p>
+	 * 
+	 * @param template
+	 *            The JSON of the template Ingest Job
+	 * @param userName
+	 *            The user loading the archive
+	 * @param zip
+	 *            The archive stream
+	 * @return One response per file in the archive, in order
+	 */
+	private List<PiazzaResponse> loadArchive(String template, String userName, ZipInputStream zip) throws Exception {
+		List<PiazzaResponse> results = new ArrayList<PiazzaResponse>();
+		List<PiazzaJobRequest> batch = new ArrayList<PiazzaJobRequest>();
+		List<String> batchJobIds = new ArrayList<String>();
+		List<Integer> batchIndexes = new ArrayList<Integer>();
+		List<Future<String>> pending = null;
+		List<String> pendingJobIds = null;
+		List<Integer> pendingIndexes = null;
+		ZipEntry entry;
+		while ((entry = getNextArchiveEntry(zip, results)) != null) {
+			if (entry.isDirectory()) {
+				continue;
+			}
+			String fileName = entry.getName().substring(entry.getName().lastIndexOf('/') + 1);
+			DataType dataType = getArchiveDataType(fileName);
+			if (dataType == null) {
+				results.add(new ErrorResponse(String.format("File %s in the archive is not of a supported Data Type.", entry.getName()),
+						"Gateway"));
+				continue;
+			}
+			IngestJob job = readArchiveTemplate(template);
+			job.getData().setDataType(dataType);
+			if (job.getData().getMetadata() == null) {
+				job.getData().setMetadata(new ResourceMetadata());
+			}
+			if (job.getData().getMetadata().getName() == null) {
+				job.getData().getMetadata().setName(fileName);
+			}
+			String jobId = gatewayUtil.getUuid();
+			try {
+				// The archive stream must stay open for the files that follow
+				gatewayUtil.pushS3File(jobId, job, fileName, new CloseShieldInputStream(zip));
+			} catch (AmazonClientException | InvalidInputException exception) {
+				LOGGER.error(String.format("Error sending archived file %s to S3", entry.getName()), exception);
+				results.add(new ErrorResponse(String.format("File %s in the archive could not be loaded: %s", entry.getName(),
+						exception.getMessage()), "Gateway"));
+				continue;
+			} catch (IOException exception) {
+				// Nothing past a corrupt file can be read, but the files before it have already been sent
+				LOGGER.error(String.format("Error reading archived file %s", entry.getName()), exception);
+				results.add(new ErrorResponse(String.format("File %s in the archive could not be read: %s", entry.getName(),
+						exception.getMessage()), "Gateway"));
+				break;
+			}
+			PiazzaJobRequest request = new PiazzaJobRequest();
+			request.jobType = job;
+			request.createdBy = userName;
+			batch.add(request);
+			batchJobIds.add(jobId);
+			batchIndexes.add(results.size());
+			results.add(null);
+			if (batch.size() >= ARCHIVE_BATCH_SIZE) {
+				if (pending != null) {
+					collectArchiveResults(results, gatewayUtil.awaitJobRequests(pending, pendingJobIds), pendingIndexes);
+				}
+				pending = gatewayUtil.submitJobRequests(batch, batchJobIds);
+				pendingJobIds = batchJobIds;
+				pendingIndexes = batchIndexes;
+				batch = new ArrayList<PiazzaJobRequest>();
+				batchJobIds = new ArrayList<String>();
+				batchIndexes = new ArrayList<Integer>();
+			}
+		}
+		if (pending != null) {
+			collectArchiveResults(results, gatewayUtil.awaitJobRequests(pending, pendingJobIds), pendingIndexes);
+		}
+		if (!batch.isEmpty()) {
+			collectArchiveResults(results, gatewayUtil.awaitJobRequests(gatewayUtil.submitJobRequests(batch, batchJobIds), batchJobIds),
+					batchIndexes);
+		}
+		return results;
+	}
+
+	/**
+	 * Reads the next file of an archive. If the archive is corrupt, then the failure is added to the results in place of
+	 * the rest of the archive.
+	 * 
+	 * @return The next entry, or null if there are no more entries that can be read
+	 */
+	private ZipEntry getNextArchiveEntry(ZipInputStream zip, List<PiazzaResponse> results) {
+		try {
+			return zip.getNextEntry();
+		} catch (IOException exception) {
+			LOGGER.error("Error reading the next file of an archive", exception);
+			results.add(new ErrorResponse(String.format("The rest of the archive could not be read: %s", exception.getMessage()),
+					"Gateway"));
+			return null;
+		}
+	}
+
+	private void collectArchiveResults(List<PiazzaResponse> results, List<PiazzaResponse> responses, List<Integer> indexes) {
+		for (int i = 0; i < responses.size(); i++) {
+			results.set(indexes.get(i), responses.get(i));
+		}
+	}
+
+	/**
+	 * Reads a fresh copy of the template Ingest Job for a file in an archive.
+	 */
+	private IngestJob readArchiveTemplate(String template) throws InvalidInputException {
+		IngestJob job;
+		try {
+			job = new ObjectMapper().readValue(template, IngestJob.class);
+		} catch (IOException exception) {
+			throw new InvalidInputException(
+					String.format("Incorrect JSON passed through the `data` parameter. Please verify input. Error: %s", exception.getMessage()));
+		}
+		if (job.getData() == null) {
+			throw new InvalidInputException("The `data` parameter must contain a Data Resource.");
+		}
+		// Ensure the user isn't trying to hack a dataId into their request.
+		job.getData().setDataId(null);
+		return job;
+	}
+
+	/**
+	 * Determines the Data Type of a file in an archive from its extension.
+	 * 
+	 * @param fileName
+	 *            The name of the file
+	 * @return The Data Type, or null if the file is not of a supported type
+	 */
+	private DataType getArchiveDataType(String fileName) {
+		String name = fileName.toLowerCase();
+		if (name.endsWith(".tif") || name.endsWith(".tiff")) {
+			return new RasterDataType();
+		} else if (name.endsWith(".geojson") || name.endsWith(".json")) {
+			return new GeoJsonDataType();
+		} else if (name.endsWith(".zip")) {
+			return new ShapefileDataType();
+		}
+		return null;
+	}
+
+	/**
+	 * Creates a resumable upload session for a large Data file. The file is then sent in chunks using
+	 * {@link #uploadChunk}, and the session is completed into a Data Load Job using {@link #completeUploadSession}.
+	 * 
+	 * @param fileName
+	 *            The name of the file to be uploaded
+	 * @param size
+	 *            The total size of the file, in bytes
+	 * @param user
+	 *            The user submitting the request
+	 * @return The status of the new session, including the chunk size the file must be sent in, or an ErrorResponse.
+	 */
+	@RequestMapping(value = "/data/upload", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ResponseStatus(HttpStatus.CREATED)
+	@ApiOperation(value = "Create an Upload Session", notes = "Creates a resumable upload session for a large Data file. Every chunk of the file except the last must be exactly the chunk size returned by this call.", tags = "Data")
+	@ApiResponses(value = { @ApiResponse(code = 201, message = "The status of the new Upload Session."),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity<?> createUploadSession(
+			@ApiParam(value = "The name of the file to be uploaded.", required = true) @RequestParam(value = "fileName", required = true) String fileName,
+			@ApiParam(value = "The total size of the file, in bytes.", required = true) @RequestParam(value = "size", required = true) Long size,
+			Principal user) {
+		try {
+			String userName = gatewayUtil.getPrincipalName(user);
+			if (size <= 0) {
+				return new ResponseEntity<PiazzaResponse>(new ErrorResponse("The file size must be greater than zero.", "Gateway"),
+						HttpStatus.BAD_REQUEST);
+			}
+			UploadSession session = uploadSessionManager.createSession(userName, fileName, size);
+			return new ResponseEntity<Map<String, Object>>(session.toStatus(), HttpStatus.CREATED);
+		} catch (Exception exception) {
+			String error = String.format("Error creating Upload Session for user %s: %s", gatewayUtil.getPrincipalName(user),
+					exception.getMessage());
+			LOGGER.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Creates a direct upload session for a Data file. Instead of sending the file through the Gateway, the client PUTs
+	 * it to the pre-signed S3 URL in the response, and then completes the session using {@link #completeUploadSession}.
+	 * 
+	 * @param fileName
+	 *            The name of the file to be uploaded
+	 * @param user
+	 *            The user submitting the request
+	 * @return The status of the new session, including the pre-signed URL and the headers that must be sent with it, or
+	 *         an ErrorResponse.
+	 */
+	@RequestMapping(value = "/data/upload/direct", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ResponseStatus(HttpStatus.CREATED)
+	@ApiOperation(value = "Create a Direct Upload Session", notes = "Creates an Upload Session whose file is sent straight to S3. The file must be PUT to the returned uploadUrl, with the returned uploadHeaders, before the session is completed.", tags = "Data")
+	@ApiResponses(value = { @ApiResponse(code = 201, message = "The status of the new Upload Session, including the pre-signed upload URL."),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity<?> createDirectUploadSession(
+			@ApiParam(value = "The name of the file to be uploaded.", required = true) @RequestParam(value = "fileName", required = true) String fileName,
+			Principal user) {
+		try {
+			UploadSession session = uploadSessionManager.createDirectSession(gatewayUtil.getPrincipalName(user), fileName);
+			return new ResponseEntity<Map<String, Object>>(uploadSessionManager.getDirectUploadStatus(session), HttpStatus.CREATED);
+		} catch (Exception exception) {
+			String error = String.format("Error creating direct Upload Session for user %s: %s", gatewayUtil.getPrincipalName(user),
+					exception.getMessage());
+			LOGGER.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Gets the status of an upload session, including the committed offset that the next chunk should be sent from. For
+	 * a direct session, this includes the pre-signed upload URL.
+	 * 
+	 * @param sessionId
+	 *            The Id of the session
+	 * @param user
+	 *            The user submitting the request
+	 * @return The status of the session, or an ErrorResponse.
+	 */
+	@RequestMapping(value = "/data/upload/{sessionId}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ApiOperation(value = "Get Upload Session Status", notes = "Gets the status of an Upload Session, including the committed offset from which the upload should resume.", tags = "Data")
+	@ApiResponses(value = { @ApiResponse(code = 200, message = "The status of the Upload Session."),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 404, message = "Not Found", response = ErrorResponse.class) })
+	public ResponseEntity<?> getUploadSession(
+			@ApiParam(value = "The Id of the Upload Session.", required = true) @PathVariable(value = "sessionId") String sessionId,
+			Principal user) {
+		UploadSession session = getUploadSession(sessionId, gatewayUtil.getPrincipalName(user));
+		if (session == null) {
+			return new ResponseEntity<PiazzaResponse>(
+					new ErrorResponse(String.format("Upload Session %s was not found or has expired.", sessionId), "Gateway"),
+					HttpStatus.NOT_FOUND);
+		}
+		if (session.isDirect()) {
+			return new ResponseEntity<Map<String, Object>>(uploadSessionManager.getDirectUploadStatus(session), HttpStatus.OK);
+		}
+		return new ResponseEntity<Map<String, Object>>(session.toStatus(), HttpStatus.OK);
+	}
+
+	/**
+	 * Uploads the next chunk of a file in an upload session. The body of the request is the raw bytes of the chunk.
+	 * 
+	 * @param sessionId
+	 *            The Id of the session
+	 * @param offset
+	 *            The offset of this chunk within the file. This must equal the committed offset of the session.
+	 * @param user
+	 *            The user submitting the request
+	 * @param request
+	 *            The servlet request, containing the bytes of the chunk
+	 * @return The updated status of the session, or an ErrorResponse.
+	 */
+	@RequestMapping(value = "/data/upload/{sessionId}", method = RequestMethod.PUT, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ApiOperation(value = "Upload a Chunk", notes = "Uploads the next chunk of the file in an Upload Session. The request body is the raw bytes of the chunk, and the Content-Length header is required.", tags = "Data")
+	@ApiResponses(value = { @ApiResponse(code = 200, message = "The updated status of the Upload Session."),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 404, message = "Not Found", response = ErrorResponse.class),
+			@ApiResponse(code = 409, message = "The offset does not match the committed offset of the session.", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class),
+			@ApiResponse(code = 503, message = "The Gateway is too busy with other transfers", response = ErrorResponse.class) })
+	public ResponseEntity<?> uploadChunk(
+			@ApiParam(value = "The Id of the Upload Session.", required = true) @PathVariable(value = "sessionId") String sessionId,
+			@ApiParam(value = "The offset of this chunk within the file.", required = true) @RequestParam(value = "offset", required = true) Long offset,
+			Principal user, HttpServletRequest request) {
+		UploadSession session = getUploadSession(sessionId, gatewayUtil.getPrincipalName(user));
+		if (session == null) {
+			return new ResponseEntity<PiazzaResponse>(
+					new ErrorResponse(String.format("Upload Session %s was not found or has expired.", sessionId), "Gateway"),
+					HttpStatus.NOT_FOUND);
+		}
+		TransferBudget.Permit permit = null;
+		try {
+			if (request.getContentLengthLong() < 0) {
+				throw new InvalidInputException("The Content-Length header is required.");
+			}
+			permit = transferBudget.acquire(session.getUserName(), request.getContentLengthLong());
+			if (permit == null) {
+				return getTransferRejectedResponse(session.getUserName(), request.getContentLengthLong());
+			}
+			uploadSessionManager.uploadChunk(session, offset, request.getContentLengthLong(), request.getInputStream());
+			return new ResponseEntity<Map<String, Object>>(session.toStatus(), HttpStatus.OK);
+		} catch (InvalidInputException invalidInputException) {
+			LOGGER.info(String.format("Rejected chunk for Upload Session %s: %s", sessionId, invalidInputException.getMessage()));
+			HttpStatus status = offset.longValue() != session.getCommittedOffset() ? HttpStatus.CONFLICT : HttpStatus.BAD_REQUEST;
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(invalidInputException.getMessage(), "Gateway"), status);
+		} catch (Exception exception) {
+			String error = String.format("Error uploading chunk at offset %s for Upload Session %s: %s", offset, sessionId,
+					exception.getMessage());
+			LOGGER.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.INTERNAL_SERVER_ERROR);
+		} finally {
+			if (permit != null) {
+				permit.release();
+			}
+		}
+	}
+
+	/**
+	 * Completes an upload session whose file has been fully received, and loads the file into Piazza. For a direct
+	 * session, the file must have been PUT to its pre-signed URL.
+	 * 
+	 * @param sessionId
+	 *            The Id of the session
+	 * @param job
+	 *            The Ingest Job, describing the data to be ingested. This is the same as the `data` part of the
+	 *            /data/file request.
+	 * @param user
+	 *            The user submitting the request
+	 * @return The response containing the Job Id, or containing the appropriate ErrorResponse
+	 */
+	@RequestMapping(value = "/data/upload/{sessionId}/complete", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ResponseStatus(HttpStatus.CREATED)
+	@ApiOperation(value = "Complete an Upload Session", notes = "Completes an Upload Session whose file has been fully received, and loads the file into Piazza. This functions the same as the /data/file endpoint.", tags = "Data")
+	@ApiResponses(value = {
+			@ApiResponse(code = 201, message = "The Id of the Job created to handle the Loading of the Data.", response = JobResponse.class),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 404, message = "Not Found", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity<PiazzaResponse> completeUploadSession(
+			@ApiParam(value = "The Id of the Upload Session.", required = true) @PathVariable(value = "sessionId") String sessionId,
+			@ApiParam(name = "data", value = "The description, location, and metadata for the Data to be loaded into Piazza.", required = true) @Valid @RequestBody IngestJob job,
+			Principal user) {
+		String userName = gatewayUtil.getPrincipalName(user);
+		UploadSession session = getUploadSession(sessionId, userName);
+		if (session == null) {
+			return new ResponseEntity<PiazzaResponse>(
+					new ErrorResponse(String.format("Upload Session %s was not found or has expired.", sessionId), "Gateway"),
+					HttpStatus.NOT_FOUND);
+		}
+		try {
+			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			validateFileJob(job);
+			S3FileStore location = uploadSessionManager.completeSession(session);
+			((FileRepresentation) job.getData().getDataType()).setLocation(location);
+			PiazzaJobRequest request = new PiazzaJobRequest();
+			request.jobType = job;
+			request.createdBy = userName;
+			String jobId = gatewayUtil.sendJobRequest(request, session.getJobId());
+			logger.log(String.format("User %s successfully Loaded File %s for Job %s from Upload Session %s", userName,
+					session.getFileName(), jobId, sessionId), Severity.INFORMATIONAL, new AuditElement(dn, "successLoadFile", jobId));
+			return new ResponseEntity<PiazzaResponse>(new JobResponse(jobId), HttpStatus.CREATED);
+		} catch (InvalidInputException invalidInputException) {
+			String error = String.format("Invalid Inputs for completing Upload Session %s: %s", sessionId,
+					invalidInputException.getMessage());
+			LOGGER.error(error, invalidInputException);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.BAD_REQUEST);
+		} catch (Exception exception) {
+			String error = String.format("Error completing Upload Session %s for user %s: %s", sessionId, userName, exception.getMessage());
+			LOGGER.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Cancels an upload session, discarding any chunks already received.
+	 * 
+	 * @param sessionId
+	 *            The Id of the session
+	 * @param user
+	 *            The user submitting the request
+	 * @return SuccessResponse if the session was cancelled, or an ErrorResponse.
+	 */
+	@RequestMapping(value = "/data/upload/{sessionId}", method = RequestMethod.DELETE, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ApiOperation(value = "Cancel an Upload Session", notes = "Cancels an Upload Session, discarding any chunks already received.", tags = "Data")
+	@ApiResponses(value = { @ApiResponse(code = 200, message = "Confirmation of cancellation.", response = SuccessResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 404, message = "Not Found", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity<PiazzaResponse> deleteUploadSession(
+			@ApiParam(value = "The Id of the Upload Session.", required = true) @PathVariable(value = "sessionId") String sessionId,
+			Principal user) {
+		UploadSession session = getUploadSession(sessionId, gatewayUtil.getPrincipalName(user));
+		if (session == null) {
+			return new ResponseEntity<PiazzaResponse>(
+					new ErrorResponse(String.format("Upload Session %s was not found or has expired.", sessionId), "Gateway"),
+					HttpStatus.NOT_FOUND);
+		}
+		try {
+			uploadSessionManager.abortSession(session);
+			return new ResponseEntity<PiazzaResponse>(
+					new SuccessResponse(String.format("Upload Session %s was cancelled successfully", sessionId), "Gateway"), HttpStatus.OK);
+		} catch (Exception exception) {
+			String error = String.format("Error cancelling Upload Session %s: %s", sessionId, exception.getMessage());
+			LOGGER.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Gets an upload session, ensuring it belongs to the requesting user.
+	 * 
+	 * @return The session, or null if it does not exist or belongs to another user.
+	 */
+	private UploadSession getUploadSession(String sessionId, String userName) {
+		UploadSession session = uploadSessionManager.getSession(sessionId);
+		if ((session == null) || !session.getUserName().equals(userName)) {
+			return null;
+		}
+		return session;
+	}
+
+	/**
+	 * Validates that an Ingest Job is able to have a hosted file attached to it.
+	 * 
+	 * @param job
+	 *            The Ingest Job
+	 */
+	private void validateFileJob(IngestJob job) throws InvalidInputException {
+		// Ensure the user isn't trying to hack a dataId into their request.
+		job.getData().setDataId(null);
+		// Validate the Job inputs to ensure we are able to process the file
+		// and attach it to the job metadata.
+		if (job.getHost() == false) {
+			throw new InvalidInputException("Host parameter must be set to true when loading a file.");
+		} else if (job.getData().getDataType() instanceof FileRepresentation == false) {
+			throw new InvalidInputException(
+					"The uploaded file cannot be attached to the specified Data Type: " + job.getData().getDataType().getClass().getName());
 		}
 	}
 
@@ -431,6 +1206,7 @@ public class DataController extends PiazzaRestController {
 				ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(restTemplate
 						.exchange(String.format("%s/%s/%s", INGEST_URL, "data", dataId), HttpMethod.DELETE, null, SuccessResponse.class)
 						.getBody(), HttpStatus.OK);
+				metadataCache.invalidate("data", dataId);
 				logger.log(String.format("User %s successfully deleted Data Id %s", userName, dataId), Severity.INFORMATIONAL,
 						new AuditElement(dn, "successDeleteData", dataId));
 				return response;
@@ -481,6 +1257,7 @@ public class DataController extends PiazzaRestController {
 				ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(restTemplate
 						.postForEntity(String.format("%s/%s/%s", INGEST_URL, "data", dataId), metadata, SuccessResponse.class).getBody(),
 						HttpStatus.OK);
+				metadataCache.invalidate("data", dataId);
 				logger.log(String.format("User %s successfully Updated of Metadata for %s.", userName, dataId), Severity.INFORMATIONAL,
 						new AuditElement(dn, "successUpdateDataMetadata", dataId));
 				return response;
@@ -560,28 +1337,49 @@ public class DataController extends PiazzaRestController {
 
 	/**
 	 * Downloads the bytes of a file that is stored within Piazza.
+	 * <p>
+	 * The file is streamed from Access to the client in fixed-size chunks, so it is never held in memory in its
+	 * entirety. Range and If-Range headers are forwarded to Access, so clients may resume or parallelize downloads.
+	 * </p>
+	 * <p>
+	 * If download redirects are enabled and the file is hosted in the Piazza S3 bucket, the client is instead
+	 * redirected to a short-lived pre-signed S3 URL, so the Gateway is not in the data path at all.
+	 * </p>
 	 * 
 	 * @see http://pz-swagger/#!/Data/get_file_dataId
 	 * 
 	 * @param dataId
 	 *            The Id of the Data to download
+	 * @param fileName
+	 *            The name the file should be saved as
+	 * @param proxy
+	 *            True to always stream the file through the Gateway, rather than redirecting to S3
 	 * @param user
 	 *            The user submitting the request
-	 * @return The bytes of the file as a download, or an Error if the file cannot be retrieved.
+	 * @param request
+	 *            The servlet request, used to read any Range headers
+	 * @param response
+	 *            The servlet response that the file is streamed to
+	 * @return Null if the file was streamed to the response, or an Error if the file cannot be retrieved.
 	 */
 	@RequestMapping(value = "/file/{dataId}", method = RequestMethod.GET)
-	@ApiOperation(value = "Download Data File", notes = "Gets the Bytes of Data loaded into Piazza. Only works for Data that is stored internally by Piazza.", tags = "Data")
+	@ApiOperation(value = "Download Data File", notes = "Gets the Bytes of Data loaded into Piazza. Only works for Data that is stored internally by Piazza. Supports the Range and If-Range headers. Hosted files may be served by a redirect to S3.", tags = "Data")
 	@ApiResponses(value = { @ApiResponse(code = 200, message = "The downloaded data file, byte array.", response = Byte[].class),
+			@ApiResponse(code = 206, message = "The requested range of the data file, byte array.", response = Byte[].class),
+			@ApiResponse(code = 302, message = "A redirect to a pre-signed S3 URL for the data file."),
 			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
 			@ApiResponse(code = 404, message = "Not Found", response = ErrorResponse.class),
-			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+			@ApiResponse(code = 416, message = "Requested Range Not Satisfiable", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class),
+			@ApiResponse(code = 503, message = "The Gateway is too busy with other transfers", response = ErrorResponse.class) })
 	public ResponseEntity<?> getFile(
 			@ApiParam(value = "The Id of the Data to download.", required = true) @PathVariable(value = "dataId") String dataId,
 			@ApiParam(value = "Specify the name of the file that the user wishes to retrieve the data as. This will set the content-disposition header.") @RequestParam(value = "fileName", required = false) String fileName,
-			Principal user) {
+			@ApiParam(value = "True to stream the file through the Gateway instead of redirecting to S3.") @RequestParam(value = "proxy", required = false, defaultValue = "false") Boolean proxy,
+			Principal user, final HttpServletRequest request, final HttpServletResponse response) {
 		try {
 			// Log the request
-			String userName = gatewayUtil.getPrincipalName(user);
+			final String userName = gatewayUtil.getPrincipalName(user);
 			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
 			logger.log(String.format("User %s requested file download for Data %s", gatewayUtil.getPrincipalName(user), dataId),
 					Severity.INFORMATIONAL, new AuditElement(dn, "requestDownloadFile", dataId));
@@ -593,13 +1391,49 @@ public class DataController extends PiazzaRestController {
 				url = String.format("%s?fileName=%s", url, fileName);
 			}
 
-			// Proxy the request to Ingest
+			// Proxy the request to Access
 			try {
-				// Stream the bytes back
-				ResponseEntity<byte[]> response = restTemplate.getForEntity(url, byte[].class);
-				logger.log(String.format("User %s successfully downloaded file download for Data %s", gatewayUtil.getPrincipalName(user),
-						dataId), Severity.INFORMATIONAL, new AuditElement(dn, "successDownloadFile", dataId));
-				return response;
+				// Send the user straight to S3 if possible
+				if (DOWNLOAD_REDIRECT_ENABLED && !proxy.booleanValue()) {
+					URL redirect = getDownloadRedirect(dataId, fileName);
+					if (redirect != null) {
+						logger.log(String.format("User %s redirected to S3 to download file for Data %s", userName, dataId),
+								Severity.INFORMATIONAL, new AuditElement(dn, "successDownloadFile", dataId));
+						HttpHeaders headers = new HttpHeaders();
+						headers.setLocation(redirect.toURI());
+						return new ResponseEntity<PiazzaResponse>(headers, HttpStatus.FOUND);
+					}
+				}
+				// Stream the bytes back. The size of the download is not known until Access responds, so it is admitted with
+				// an estimate before Access is called, and adjusted once known.
+				final TransferBudget.Permit permit = transferBudget.acquire(userName, -1);
+				if (permit == null) {
+					return getTransferRejectedResponse(userName, -1);
+				}
+				Long bytes;
+				try {
+					bytes = restTemplate.execute(url, HttpMethod.GET, new RequestCallback() {
+						@Override
+						public void doWithRequest(ClientHttpRequest accessRequest) throws IOException {
+							for (String header : FORWARDED_REQUEST_HEADERS) {
+								if (request.getHeader(header) != null) {
+									accessRequest.getHeaders().set(header, request.getHeader(header));
+								}
+							}
+						}
+					}, new ResponseExtractor<Long>() {
+						@Override
+						public Long extractData(ClientHttpResponse accessResponse) throws IOException {
+							permit.resize(accessResponse.getHeaders().getContentLength());
+							return streamResponse(accessResponse, response);
+						}
+					});
+				} finally {
+					permit.release();
+				}
+				logger.log(String.format("User %s successfully downloaded %s bytes of file for Data %s", userName, bytes, dataId),
+						Severity.INFORMATIONAL, new AuditElement(dn, "successDownloadFile", dataId));
+				return null;
 			} catch (HttpClientErrorException | HttpServerErrorException hee) {
 				LOGGER.error("Error Downloading File.", hee);
 				return new ResponseEntity<PiazzaResponse>(gatewayUtil.getErrorResponse(hee.getResponseBodyAsString()), hee.getStatusCode());
@@ -609,7 +1443,87 @@ public class DataController extends PiazzaRestController {
 					exception.getMessage());
 			LOGGER.error(error, exception);
 			logger.log(error, Severity.INFORMATIONAL);
+			if (response.isCommitted()) {
+				// Part of the file has already been sent; the client will see a truncated download.
+				return null;
+			}
 			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.INTERNAL_SERVER_ERROR);
 		}
 	}
+
+	/**
+	 * Gets the response for a transfer that could not be admitted by the Transfer Budget.
+	 * 
+	 * @param userName
+	 *            The user making the transfer
+	 * @param bytes
+	 *            The size of the transfer, or a negative number if not known
+	 * @return The 503 Error response
+	 */
+	private ResponseEntity<PiazzaResponse> getTransferRejectedResponse(String userName, long bytes) {
+		LOGGER.info(String.format("Rejected transfer of %s bytes for user %s; transfer budget exhausted.", bytes, userName));
+		return new ResponseEntity<PiazzaResponse>(
+				new ErrorResponse("The Gateway is busy with other file transfers. Please try again later.", "Gateway"),
+				HttpStatus.SERVICE_UNAVAILABLE);
+	}
+
+	/**
+	 * Gets a pre-signed S3 URL for downloading the file of a Data item.
+	 * 
+	 * @param dataId
+	 *            The Id of the Data
+	 * @param fileName
+	 *            The name the file should be saved as
+	 * @return The URL, or null if the file is not hosted in S3, must be streamed through the Gateway, or the URL could
+	 *         not be generated
+	 */
+	private URL getDownloadRedirect(String dataId, String fileName) {
+		try {
+			DataResourceResponse metadata = restTemplate
+					.getForEntity(String.format("%s/%s/%s", ACCESS_URL, "data", dataId), DataResourceResponse.class).getBody();
+			if ((metadata == null) || (metadata.data == null) || !(metadata.data.getDataType() instanceof FileRepresentation)) {
+				return null;
+			}
+			FileLocation location = ((FileRepresentation) metadata.data.getDataType()).getLocation();
+			if (!(location instanceof S3FileStore)) {
+				return null;
+			}
+			return gatewayUtil.getPresignedDownloadUrl((S3FileStore) location, fileName, DOWNLOAD_REDIRECT_TTL);
+		} catch (Exception exception) {
+			// The file can still be streamed through the Gateway
+			LOGGER.warn(String.format("Could not generate a download redirect for Data %s; streaming it instead.", dataId), exception);
+			return null;
+		}
+	}
+
+	/**
+	 * Copies the status, relevant headers, and body of a response from Access to the servlet response. The body is
+	 * copied in fixed-size chunks.
+	 * 
+	 * @param accessResponse
+	 *            The response from Access
+	 * @param response
+	 *            The servlet response
+	 * @return The number of bytes copied
+	 */
+	private long streamResponse(ClientHttpResponse accessResponse, HttpServletResponse response) throws IOException {
+		response.setStatus(accessResponse.getRawStatusCode());
+		HttpHeaders headers = accessResponse.getHeaders();
+		for (String header : FORWARDED_RESPONSE_HEADERS) {
+			if (headers.getFirst(header) != null) {
+				response.setHeader(header, headers.getFirst(header));
+			}
+		}
+		long total = 0;
+		byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+		InputStream input = accessResponse.getBody();
+		OutputStream output = response.getOutputStream();
+		int read;
+		while ((read = input.read(buffer)) != -1) {
+			output.write(buffer, 0, read);
+			total += read;
+		}
+		output.flush();
+		return total;
+	}
 }
@@ -16,6 +16,8 @@
 package gateway.controller;
 
 import java.security.Principal;
+import java.util.List;
+import java.util.Map;
 
 import javax.validation.Valid;
 
@@ -40,7 +42,9 @@ import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
 import org.springframework.web.client.RestTemplate;
 
+import exception.InvalidInputException;
 import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.MetadataCache;
 import gateway.controller.util.PiazzaRestController;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -79,6 +83,10 @@ public class DeploymentController extends PiazzaRestController {
 	private String ACCESS_URL;
 	@Value("${SPACE}")
 	private String SPACE;
+	@Value("${multiget.max}")
+	private int MULTIGET_MAX;
+	@Autowired
+	private MetadataCache metadataCache;
 
 	@Autowired
 	private RestTemplate restTemplate;
@@ -208,6 +216,56 @@ public class DeploymentController extends PiazzaRestController {
 		}
 	}
 
+	/**
+	 * Gets the metadata for a number of Deployments at once, such as when rendering a list. Duplicate Ids are only
+	 * fetched once, and Deployments not in the Gateway's metadata cache are fetched in parallel.
+	 * 
+	 * @param ids
+	 *            The comma-separated Ids of the Deployments
+	 * @param user
+	 *            The user submitting the request
+	 * @return The metadata, or an error, for each distinct Id; or an ErrorResponse if the request is invalid.
+	 */
+	@RequestMapping(value = "/deployment", method = RequestMethod.GET, params = "ids", produces = MediaType.APPLICATION_JSON_VALUE)
+	@ApiOperation(value = "Get Metadata for multiple Deployments", notes = "Fetches the metadata for each of the comma-separated Ids. The response is keyed by Id; each value is either the metadata, or an Error for that Id.", tags = "Deployment")
+	@ApiResponses(value = {
+			@ApiResponse(code = 200, message = "The metadata, or an Error, for each Id.", response = DeploymentResponse.class, responseContainer = "Map"),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity<?> getDeploymentBatch(
+			@ApiParam(value = "The comma-separated Ids of the Deployments to fetch.", required = true) @RequestParam(value = "ids") String ids,
+			Principal user) {
+		try {
+			// Log the request
+			String userName = gatewayUtil.getPrincipalName(user);
+			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			List<String> idList = MetadataCache.parseIds(ids);
+			if ((idList.isEmpty()) || (idList.size() > MULTIGET_MAX)) {
+				return new ResponseEntity<PiazzaResponse>(
+						new ErrorResponse(String.format("Between 1 and %s Ids must be specified.", MULTIGET_MAX), "Gateway"),
+						HttpStatus.BAD_REQUEST);
+			}
+			try {
+				MetadataCache.validateIds(idList);
+			} catch (InvalidInputException exception) {
+				return new ResponseEntity<PiazzaResponse>(new ErrorResponse(exception.getMessage(), "Gateway"), HttpStatus.BAD_REQUEST);
+			}
+			logger.log(String.format("User %s requested metadata for %s Deployments.", userName, idList.size()), Severity.INFORMATIONAL,
+					new AuditElement(dn, "requestGetDeploymentBatch", ""));
+			Map<String, PiazzaResponse> results = metadataCache.getAll("deployment", idList, String.format("%s/%s/%%s", ACCESS_URL, "deployment"), DeploymentResponse.class);
+			logger.log(String.format("User %s retrieved metadata for %s Deployments.", userName, results.size()), Severity.INFORMATIONAL,
+					new AuditElement(dn, "successGetDeploymentBatch", ""));
+			return new ResponseEntity<Map<String, PiazzaResponse>>(results, HttpStatus.OK);
+		} catch (Exception exception) {
+			String error = String.format("Error fetching metadata for Deployments %s by user %s: %s", ids, gatewayUtil.getPrincipalName(user),
+					exception.getMessage());
+			LOGGER.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
 	/**
 	 * Gets Deployment information for an active deployment, including URL and Data Id.
 	 * 
@@ -289,6 +347,7 @@ public class DeploymentController extends PiazzaRestController {
 						restTemplate.exchange(String.format("%s/%s/%s", ACCESS_URL, "deployment", deploymentId), HttpMethod.DELETE, null,
 								SuccessResponse.class).getBody(),
 						HttpStatus.OK);
+				metadataCache.invalidate("deployment", deploymentId);
 				logger.log(String.format("User %s successfully deleted for Deployment %s", userName, deploymentId), Severity.INFORMATIONAL,
 						new AuditElement(dn, "successDeleteDeployment", deploymentId));
 				return response;
@@ -16,10 +16,19 @@
 package gateway.controller;
 
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 import javax.validation.Valid;
 
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -42,7 +51,11 @@ import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
 import org.springframework.web.client.RestTemplate;
 
+import exception.InvalidInputException;
+import gateway.controller.util.ExpandedJobStatusResponse;
 import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.IngestStagingArea;
+import gateway.controller.util.MetadataCache;
 import gateway.controller.util.PiazzaRestController;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -50,13 +63,16 @@ import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 import messaging.job.JobMessageFactory;
+import model.job.Job;
 import model.job.metadata.ResourceMetadata;
+import model.job.result.type.DataResult;
 import model.job.type.AbortJob;
 import model.job.type.ExecuteServiceJob;
 import model.job.type.RepeatJob;
 import model.logger.AuditElement;
 import model.logger.Severity;
 import model.request.PiazzaJobRequest;
+import model.response.DataResourceResponse;
 import model.response.ErrorResponse;
 import model.response.JobErrorResponse;
 import model.response.JobResponse;
@@ -65,6 +81,7 @@ import model.response.PiazzaResponse;
 import model.response.ServiceResponse;
 import model.response.SuccessResponse;
 import model.service.metadata.Service;
+import model.status.StatusUpdate;
 import util.PiazzaLogger;
 
 /**
@@ -84,14 +101,27 @@ public class JobController extends PiazzaRestController {
 	private PiazzaLogger logger;
 	@Autowired
 	private ServiceController serviceController;
+	@Autowired
+	private IngestStagingArea ingestStagingArea;
+	@Autowired
+	private MetadataCache metadataCache;
 	@Value("${jobmanager.url}")
 	private String JOBMANAGER_URL;
+	@Value("${access.url}")
+	private String ACCESS_URL;
+	@Value("${servicecontroller.url}")
+	private String SERVICECONTROLLER_URL;
 	@Value("${SPACE}")
 	private String SPACE;
+	@Value("${job.batch.max}")
+	private int BATCH_MAX;
+	@Value("${job.status.cache.ttl}")
+	private long JOB_STATUS_CACHE_TTL;
 
 	@Autowired
 	private RestTemplate restTemplate;
 
+	private static final List<String> EXPANSIONS = Arrays.asList("data", "service");
 	private final static Logger LOGGER = LoggerFactory.getLogger(JobController.class);
 
 	/**
@@ -101,6 +131,9 @@ public class JobController extends PiazzaRestController {
 	 * 
 	 * @param jobId
 	 *            The Id of the Job.
+	 * @param expand
+	 *            Comma-separated list of the resources referenced by the Job to include in the response: "data" for the
+	 *            Data produced by the Job, and "service" for the Service it executed. Optional.
 	 * @param user
 	 *            User information
 	 * @return Contains Job Status, or an appropriate Error.
@@ -113,18 +146,32 @@ public class JobController extends PiazzaRestController {
 			@ApiResponse(code = 404, message = "Not Found", response = ErrorResponse.class),
 			@ApiResponse(code = 500, message = "Internal Error", response = JobErrorResponse.class) })
 	public ResponseEntity<PiazzaResponse> getJobStatus(
-			@ApiParam(value = "Id of the Job to Fetch", required = true) @PathVariable(value = "jobId") String jobId, Principal user) {
+			@ApiParam(value = "Id of the Job to Fetch", required = true) @PathVariable(value = "jobId") String jobId,
+			@ApiParam(value = "Comma-separated list of resources referenced by the Job to include in the response.", allowableValues = "data,service", allowMultiple = true) @RequestParam(value = "expand", required = false) String expand,
+			Principal user) {
 		try {
 			// Log the request
 			String userName = gatewayUtil.getPrincipalName(user);
 			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
 			logger.log(String.format("User %s requested Job Status for %s.", userName, jobId), Severity.INFORMATIONAL,
 					new AuditElement(dn, "requestFetchJob", jobId));
+			List<String> expansions = expand == null ? new ArrayList<String>() : MetadataCache.parseIds(expand);
+			if (!EXPANSIONS.containsAll(expansions)) {
+				return new ResponseEntity<PiazzaResponse>(
+						new ErrorResponse(String.format("Only %s may be expanded.", EXPANSIONS), "Gateway"), HttpStatus.BAD_REQUEST);
+			}
+			// Jobs for files still being staged are not yet known to the Job Manager
+			Job stagedJob = ingestStagingArea.getJob(jobId);
+			if (stagedJob != null) {
+				return new ResponseEntity<PiazzaResponse>(
+						expansions.isEmpty() ? new JobStatusResponse(stagedJob) : expandJob(stagedJob, expansions), HttpStatus.OK);
+			}
 			// Proxy the request to the Job Manager
 			try {
-				ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(restTemplate
-						.getForEntity(String.format("%s/%s/%s", JOBMANAGER_URL, "job", jobId), JobStatusResponse.class).getBody(),
-						HttpStatus.OK);
+				JobStatusResponse status = restTemplate
+						.getForEntity(String.format("%s/%s/%s", JOBMANAGER_URL, "job", jobId), JobStatusResponse.class).getBody();
+				ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(
+						expansions.isEmpty() ? status : expandJob(status.data, expansions), HttpStatus.OK);
 				logger.log(String.format("User %s fetched Job Status for %s.", userName, jobId), Severity.INFORMATIONAL,
 						new AuditElement(dn, "completeFetchJob", jobId));
 				return response;
@@ -140,6 +187,107 @@ public class JobController extends PiazzaRestController {
 		}
 	}
 
+	/**
+	 * Builds the Status of a Job along with the requested resources that it refers to. The resources are fetched
+	 * concurrently, and taken from the Gateway's cache where possible. A resource which the Job does not refer to, such
+	 * as the Data of a Job which has not yet completed, is omitted.
+	 */
+	private JobStatusResponse expandJob(Job job, List<String> expansions) {
+		ExpandedJobStatusResponse response = new ExpandedJobStatusResponse(job);
+		Map<String, MetadataCache.Lookup> lookups = new LinkedHashMap<String, MetadataCache.Lookup>();
+		if (expansions.contains("data") && (job.result instanceof DataResult) && (((DataResult) job.result).getDataId() != null)) {
+			lookups.put("data", metadataCache.lookup("data", ((DataResult) job.result).getDataId(),
+					String.format("%s/%s/%%s", ACCESS_URL, "data"), DataResourceResponse.class));
+		}
+		if (expansions.contains("service") && (job.jobType instanceof ExecuteServiceJob) && (((ExecuteServiceJob) job.jobType).data != null)) {
+			lookups.put("service", metadataCache.lookup("service", ((ExecuteServiceJob) job.jobType).data.getServiceId(),
+					String.format("%s/%s/%%s", SERVICECONTROLLER_URL, "service"), ServiceResponse.class));
+		}
+		for (Map.Entry<String, MetadataCache.Lookup> lookup : lookups.entrySet()) {
+			response.expanded.put(lookup.getKey(), lookup.getValue().get());
+		}
+		return response;
+	}
+
+	/**
+	 * Returns the Status of a number of Jobs at once, such as for a dashboard tracking many running Jobs. The status of
+	 * a Job which has finished can no longer change, so finished Jobs are served from the Gateway's cache; the status
+	 * of every other Job is fetched from the Job Manager, in parallel.
+	 * 
+	 * @param jobIds
+	 *            The Ids of the Jobs
+	 * @param user
+	 *            User information
+	 * @return The Job Status, or an Error, for each distinct Job Id; or an ErrorResponse if the request is invalid.
+	 */
+	@RequestMapping(value = "/job/status", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ApiOperation(value = "Get Status of multiple Jobs", notes = "Gets the Status for each of a list of Piazza Jobs. The response is keyed by Job Id; each value is either the Job Status, or an Error for that Job.", tags = "Job")
+	@ApiResponses(value = {
+			@ApiResponse(code = 200, message = "The Job Status, or an Error, for each Job Id.", response = JobStatusResponse.class, responseContainer = "Map"),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity<?> getJobStatuses(
+			@ApiParam(value = "The list of Job Ids.", required = true, name = "body") @RequestBody List<String> jobIds, Principal user) {
+		try {
+			// Log the request
+			String userName = gatewayUtil.getPrincipalName(user);
+			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			if ((jobIds == null) || (jobIds.isEmpty()) || (jobIds.size() > BATCH_MAX)) {
+				return new ResponseEntity<PiazzaResponse>(
+						new ErrorResponse(String.format("Between 1 and %s Job Ids must be specified.", BATCH_MAX), "Gateway"),
+						HttpStatus.BAD_REQUEST);
+			}
+			try {
+				MetadataCache.validateIds(jobIds);
+			} catch (InvalidInputException exception) {
+				return new ResponseEntity<PiazzaResponse>(new ErrorResponse(exception.getMessage(), "Gateway"), HttpStatus.BAD_REQUEST);
+			}
+			logger.log(String.format("User %s requested Job Status for %s Jobs.", userName, jobIds.size()), Severity.INFORMATIONAL,
+					new AuditElement(dn, "requestFetchJobs", ""));
+
+			// Jobs for files still being staged are not yet known to the Job Manager
+			Map<String, PiazzaResponse> results = new LinkedHashMap<String, PiazzaResponse>();
+			List<String> managedJobIds = new ArrayList<String>();
+			for (String jobId : new LinkedHashSet<String>(jobIds)) {
+				Job stagedJob = ingestStagingArea.getJob(jobId);
+				results.put(jobId, stagedJob != null ? new JobStatusResponse(stagedJob) : null);
+				if (stagedJob == null) {
+					managedJobIds.add(jobId);
+				}
+			}
+			if (!managedJobIds.isEmpty()) {
+				results.putAll(metadataCache.getAll("job", managedJobIds, String.format("%s/%s/%%s", JOBMANAGER_URL, "job"),
+						JobStatusResponse.class, new MetadataCache.ExpiryPolicy() {
+							@Override
+							public long getTtlSeconds(PiazzaResponse response) {
+								return isFinished(((JobStatusResponse) response).data) ? JOB_STATUS_CACHE_TTL : 0;
+							}
+						}));
+			}
+
+			logger.log(String.format("User %s fetched Job Status for %s Jobs.", userName, results.size()), Severity.INFORMATIONAL,
+					new AuditElement(dn, "completeFetchJobs", ""));
+			return new ResponseEntity<Map<String, PiazzaResponse>>(results, HttpStatus.OK);
+		} catch (Exception exception) {
+			String error = String.format("Error requesting Job Status for Jobs %s: %s", jobIds, exception.getMessage());
+			LOGGER.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Determines if a Job has finished, such that its status can no longer change.
+	 */
+	private boolean isFinished(Job job) {
+		if ((job == null) || (job.status == null)) {
+			return false;
+		}
+		return job.status.equals(StatusUpdate.STATUS_SUCCESS) || job.status.equals(StatusUpdate.STATUS_ERROR)
+				|| job.status.equals(StatusUpdate.STATUS_FAIL) || job.status.equals(StatusUpdate.STATUS_CANCELLED);
+	}
+
 	/**
 	 * Cancels a running Job, specified by it's Job Id.
 	 * 
@@ -176,11 +324,10 @@ public class JobController extends PiazzaRestController {
 
 			// Send the message through Kafka to delete the Job. This message
 			// will get picked up by whatever component is running the Job.
+			// The acknowledgement is awaited after the Job Manager has been
+			// updated, so that both happen in parallel.
 			ProducerRecord<String, String> abortMessage = JobMessageFactory.getAbortJobMessage(request, gatewayUtil.getUuid(), SPACE);
-			gatewayUtil.sendKafkaMessage(abortMessage);
-
-			logger.log(String.format("User %s cancelled Job %s", userName, jobId), Severity.INFORMATIONAL,
-					new AuditElement(dn, "completeJobCancelRequest", jobId));
+			Future<RecordMetadata> abortAcknowledgement = gatewayUtil.sendKafkaMessageAsync(abortMessage);
 
 			// Proxy the request to the Job Manager, where the Job Table will be
 			// updated.
@@ -188,9 +335,13 @@ public class JobController extends PiazzaRestController {
 			headers.setContentType(MediaType.APPLICATION_JSON);
 			HttpEntity<PiazzaJobRequest> entity = new HttpEntity<PiazzaJobRequest>(request, headers);
 			try {
-				return new ResponseEntity<PiazzaResponse>(restTemplate
+				ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(restTemplate
 						.postForEntity(String.format("%s/%s", JOBMANAGER_URL, "abort"), entity, SuccessResponse.class).getBody(),
 						HttpStatus.OK);
+				abortAcknowledgement.get();
+				logger.log(String.format("User %s cancelled Job %s", userName, jobId), Severity.INFORMATIONAL,
+						new AuditElement(dn, "completeJobCancelRequest", jobId));
+				return response;
 			} catch (HttpClientErrorException | HttpServerErrorException hee) {
 				LOGGER.error("Error Requesting Job Cancellation", hee);
 				return new ResponseEntity<PiazzaResponse>(gatewayUtil.getErrorResponse(hee.getResponseBodyAsString()), hee.getStatusCode());
@@ -290,20 +441,9 @@ public class JobController extends PiazzaRestController {
 					Severity.INFORMATIONAL, new AuditElement(dn, "requestExecuteService", job.data.getServiceId()));
 
 			// Check that Service is not offline or unavailable
-			try {
-				Service service = ((ServiceResponse) serviceController.getService(job.data.getServiceId(), user).getBody()).data;
-				if ((service != null) && (service.getResourceMetadata() != null)
-						&& ResourceMetadata.STATUS_TYPE.OFFLINE.toString().equals(service.getResourceMetadata().getAvailability())) {
-					return new ResponseEntity<PiazzaResponse>(
-							new ErrorResponse("Cannot Execute Service with Service Availability set as Offline.", "Gateway"),
-							HttpStatus.BAD_REQUEST);
-				}
-			} catch (Exception exception) {
-				String error = String.format(
-						"Attempted to check Service Availability for %s but received an error %s. Continued with Job Request.",
-						job.getData().getServiceId(), exception.getMessage());
-				logger.log(error, Severity.WARNING);
-				LOGGER.error(error, exception);
+			String availabilityError = checkServiceAvailability(job.data.getServiceId(), user);
+			if (availabilityError != null) {
+				return new ResponseEntity<PiazzaResponse>(new ErrorResponse(availabilityError, "Gateway"), HttpStatus.BAD_REQUEST);
 			}
 
 			// Create the Request to send to the Job Manager.
@@ -325,4 +465,113 @@ public class JobController extends PiazzaRestController {
 			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.INTERNAL_SERVER_ERROR);
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Executes a batch of jobs with the Piazza service controller. Job Ids for the batch are allocated together, Service
+	 * availability is checked once per distinct Service, and the Jobs are then forwarded to the Job Manager
+	 * concurrently. Each Job in the batch succeeds or fails independently.
+	 * 
+	 * @param jobs
+	 *            The list of jobs to execute
+	 * @param user
+	 *            The user executing the Jobs
+	 * @return A list containing either the Job Id, or the error, for each Job in the same order as the input.
+	 */
+	@RequestMapping(value = { "/job/batch" }, method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ResponseStatus(HttpStatus.CREATED)
+	@ApiOperation(value = "Executes a batch of registered Services", notes = "Creates a Piazza Job for each entry in the list, to execute a registered service in the system with the specified parameters. Results are returned in the same order as the input.", tags = {
+			"Job", "Service" })
+	@ApiResponses(value = {
+			@ApiResponse(code = 201, message = "The Job Id for each execution of a Service, or an Error for each Job that could not be submitted.", response = JobResponse.class, responseContainer = "List"),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity<?> executeServiceBatch(
+			@ApiParam(value = "The list of Payloads that describe the Services to be executed, and the inputs for each service.", required = true, name = "body") @RequestBody List<ExecuteServiceJob> jobs,
+			Principal user) {
+		try {
+			// Log the request
+			String userName = gatewayUtil.getPrincipalName(user);
+			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			if ((jobs == null) || (jobs.isEmpty()) || (jobs.size() > BATCH_MAX)) {
+				return new ResponseEntity<PiazzaResponse>(
+						new ErrorResponse(String.format("The batch must contain between 1 and %s Jobs.", BATCH_MAX), "Gateway"),
+						HttpStatus.BAD_REQUEST);
+			}
+			logger.log(String.format("User %s requested Batch Execute of %s Jobs.", userName, jobs.size()), Severity.INFORMATIONAL,
+					new AuditElement(dn, "requestExecuteServiceBatch", ""));
+
+			// Check the availability of each distinct Service only once
+			Map<String, String> availabilityErrors = new HashMap<String, String>();
+			PiazzaResponse[] results = new PiazzaResponse[jobs.size()];
+			List<PiazzaJobRequest> requests = new ArrayList<PiazzaJobRequest>();
+			List<Integer> requestIndexes = new ArrayList<Integer>();
+			for (int i = 0; i < jobs.size(); i++) {
+				ExecuteServiceJob job = jobs.get(i);
+				if ((job == null) || (job.data == null) || (job.data.getServiceId() == null)) {
+					results[i] = new ErrorResponse("A Service Id must be specified for each Job.", "Gateway");
+					continue;
+				}
+				String serviceId = job.data.getServiceId();
+				if (!availabilityErrors.containsKey(serviceId)) {
+					availabilityErrors.put(serviceId, checkServiceAvailability(serviceId, user));
+				}
+				if (availabilityErrors.get(serviceId) != null) {
+					results[i] = new ErrorResponse(availabilityErrors.get(serviceId), "Gateway");
+					continue;
+				}
+				// Create the Request to send to the Job Manager.
+				PiazzaJobRequest request = new PiazzaJobRequest();
+				request.jobType = job;
+				request.createdBy = userName;
+				requests.add(request);
+				requestIndexes.add(i);
+			}
+
+			// Forward all of the valid Jobs and place their results back in order
+			if (!requests.isEmpty()) {
+				List<PiazzaResponse> responses = gatewayUtil.sendJobRequests(requests);
+				for (int i = 0; i < responses.size(); i++) {
+					results[requestIndexes.get(i)] = responses.get(i);
+				}
+			}
+
+			logger.log(String.format("User %s Sent Batch Execute of %s Jobs, %s of which were accepted.", userName, jobs.size(),
+					requests.size()), Severity.INFORMATIONAL, new AuditElement(dn, "completeExecuteServiceBatch", ""));
+			return new ResponseEntity<List<PiazzaResponse>>(Arrays.asList(results), HttpStatus.CREATED);
+		} catch (Exception exception) {
+			String error = String.format("Error Executing Batch for user %s: %s", gatewayUtil.getPrincipalName(user),
+					exception.getMessage());
+			LOGGER.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Checks that a Service is not marked as Offline before a Job is executed against it. If the availability cannot be
+	 * determined, then the Job is allowed to proceed.
+	 * 
+	 * @param serviceId
+	 *            The Id of the Service
+	 * @param user
+	 *            The user executing the Job
+	 * @return The error message if the Service cannot be executed, or null if it can.
+	 */
+	private String checkServiceAvailability(String serviceId, Principal user) {
+		try {
+			Service service = ((ServiceResponse) serviceController.getService(serviceId, user).getBody()).data;
+			if ((service != null) && (service.getResourceMetadata() != null)
+					&& ResourceMetadata.STATUS_TYPE.OFFLINE.toString().equals(service.getResourceMetadata().getAvailability())) {
+				return "Cannot Execute Service with Service Availability set as Offline.";
+			}
+		} catch (Exception exception) {
+			String error = String.format(
+					"Attempted to check Service Availability for %s but received an error %s. Continued with Job Request.", serviceId,
+					exception.getMessage());
+			logger.log(error, Severity.WARNING);
+			LOGGER.error(error, exception);
+		}
+		return null;
+	}
+}
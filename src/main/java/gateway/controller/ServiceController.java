@@ -17,6 +17,7 @@ package gateway.controller;
 
 import java.security.Principal;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.validation.Valid;
@@ -45,7 +46,10 @@ import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
 import org.springframework.web.client.RestTemplate;
 
+import exception.InvalidInputException;
+import gateway.controller.util.FieldProjection;
 import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.MetadataCache;
 import gateway.controller.util.PiazzaRestController;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -89,6 +93,10 @@ public class ServiceController extends PiazzaRestController {
 	private String SEARCH_URL;
 	@Value("${search.service.endpoint}")
 	private String SEARCH_ENDPOINT;
+	@Value("${multiget.max}")
+	private int MULTIGET_MAX;
+	@Autowired
+	private MetadataCache metadataCache;
 
 	@Autowired
 	private RestTemplate restTemplate;
@@ -161,6 +169,56 @@ public class ServiceController extends PiazzaRestController {
 		}
 	}
 
+	/**
+	 * Gets the metadata for a number of Services at once, such as when rendering a list. Duplicate Ids are only
+	 * fetched once, and Services not in the Gateway's metadata cache are fetched in parallel.
+	 * 
+	 * @param ids
+	 *            The comma-separated Ids of the Services
+	 * @param user
+	 *            The user submitting the request
+	 * @return The metadata, or an error, for each distinct Id; or an ErrorResponse if the request is invalid.
+	 */
+	@RequestMapping(value = "/service", method = RequestMethod.GET, params = "ids", produces = MediaType.APPLICATION_JSON_VALUE)
+	@ApiOperation(value = "Get Metadata for multiple Services", notes = "Fetches the metadata for each of the comma-separated Ids. The response is keyed by Id; each value is either the metadata, or an Error for that Id.", tags = "Service")
+	@ApiResponses(value = {
+			@ApiResponse(code = 200, message = "The metadata, or an Error, for each Id.", response = ServiceResponse.class, responseContainer = "Map"),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity<?> getServiceBatch(
+			@ApiParam(value = "The comma-separated Ids of the Services to fetch.", required = true) @RequestParam(value = "ids") String ids,
+			Principal user) {
+		try {
+			// Log the request
+			String userName = gatewayUtil.getPrincipalName(user);
+			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			List<String> idList = MetadataCache.parseIds(ids);
+			if ((idList.isEmpty()) || (idList.size() > MULTIGET_MAX)) {
+				return new ResponseEntity<PiazzaResponse>(
+						new ErrorResponse(String.format("Between 1 and %s Ids must be specified.", MULTIGET_MAX), "Gateway"),
+						HttpStatus.BAD_REQUEST);
+			}
+			try {
+				MetadataCache.validateIds(idList);
+			} catch (InvalidInputException exception) {
+				return new ResponseEntity<PiazzaResponse>(new ErrorResponse(exception.getMessage(), "Gateway"), HttpStatus.BAD_REQUEST);
+			}
+			logger.log(String.format("User %s requested metadata for %s Services.", userName, idList.size()), Severity.INFORMATIONAL,
+					new AuditElement(dn, "requestGetServiceBatch", ""));
+			Map<String, PiazzaResponse> results = metadataCache.getAll("service", idList, String.format("%s/%s/%%s", SERVICECONTROLLER_URL, "service"), ServiceResponse.class);
+			logger.log(String.format("User %s retrieved metadata for %s Services.", userName, results.size()), Severity.INFORMATIONAL,
+					new AuditElement(dn, "successGetServiceBatch", ""));
+			return new ResponseEntity<Map<String, PiazzaResponse>>(results, HttpStatus.OK);
+		} catch (Exception exception) {
+			String error = String.format("Error fetching metadata for Services %s by user %s: %s", ids, gatewayUtil.getPrincipalName(user),
+					exception.getMessage());
+			LOGGER.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, "Gateway"), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
 	/**
 	 * Gets the metadata for a single service.
 	 * 
@@ -242,6 +300,7 @@ public class ServiceController extends PiazzaRestController {
 			try {
 				ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(
 						restTemplate.exchange(url, HttpMethod.DELETE, null, SuccessResponse.class).getBody(), HttpStatus.OK);
+				metadataCache.invalidate("service", serviceId);
 				logger.log(String.format("User %s has Deleted Service %s", userName, serviceId), Severity.INFORMATIONAL,
 						new AuditElement(dn, "completeServiceDelete", serviceId));
 				return response;
@@ -299,6 +358,7 @@ public class ServiceController extends PiazzaRestController {
 						restTemplate.exchange(String.format("%s/%s/%s", SERVICECONTROLLER_URL, "service", serviceId), HttpMethod.PUT,
 								request, SuccessResponse.class).getBody(),
 						HttpStatus.OK);
+				metadataCache.invalidate("service", serviceId);
 				logger.log(String.format("User %s has Updated Service %s", userName, serviceId), Severity.INFORMATIONAL,
 						new AuditElement(dn, "completeUpdateService", serviceId));
 				return response;
@@ -329,6 +389,8 @@ public class ServiceController extends PiazzaRestController {
 	 *            The keywords to search on
 	 * @param createdBy
 	 *            Filter services created by a certain user
+	 * @param fields
+	 *            The fields of each service to return, or null for all fields
 	 * @param user
 	 *            The user submitting the request
 	 * @return The list of services; or an error.
@@ -347,6 +409,7 @@ public class ServiceController extends PiazzaRestController {
 			@ApiParam(value = "Filter for the user name that published the service.") @RequestParam(value = "createdBy", required = false) String createdBy,
 			@ApiParam(value = "Indicates ascending or descending order.") @RequestParam(value = "order", required = false, defaultValue = DEFAULT_ORDER) String order,
 			@ApiParam(value = "The data field to sort by.") @RequestParam(value = "sortBy", required = false, defaultValue = DEFAULT_SORTBY) String sortBy,
+			@ApiParam(value = "Comma-separated list of the fields of each result to return, such as \"serviceId,resourceMetadata.name\". All fields are returned if not specified.") @RequestParam(value = "fields", required = false) String fields,
 			Principal user) {
 		try {
 			// Log the request
@@ -362,6 +425,12 @@ public class ServiceController extends PiazzaRestController {
 					|| (perPage != null && (validationError = gatewayUtil.validateInput("perPage", perPage)) != null)) {
 				return new ResponseEntity<PiazzaResponse>(new ErrorResponse(validationError, "Gateway"), HttpStatus.BAD_REQUEST);
 			}
+			FieldProjection projection;
+			try {
+				projection = FieldProjection.parse(fields);
+			} catch (InvalidInputException exception) {
+				return new ResponseEntity<PiazzaResponse>(new ErrorResponse(exception.getMessage(), "Gateway"), HttpStatus.BAD_REQUEST);
+			}
 
 			// Proxy the request to the Service Controller
 			String url = String.format("%s/%s?page=%s&perPage=%s", SERVICECONTROLLER_URL, "service", page, perPage);
@@ -381,8 +450,10 @@ public class ServiceController extends PiazzaRestController {
 				url = String.format("%s&sortBy=%s", url, sortBy);
 			}
 			try {
-				ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(
-						restTemplate.getForEntity(url, ServiceListResponse.class).getBody(), HttpStatus.OK);
+				// Only the selected fields are read from the upstream response, if any are specified
+				PiazzaResponse serviceList = projection != null ? restTemplate.execute(url, HttpMethod.GET, null, projection)
+						: restTemplate.getForEntity(url, ServiceListResponse.class).getBody();
+				ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(serviceList, HttpStatus.OK);
 				logger.log(String.format("User %s Retrieved Service List.", userName), Severity.INFORMATIONAL,
 						new AuditElement(dn, "completeServiceList", ""));
 				return response;
@@ -410,6 +481,8 @@ public class ServiceController extends PiazzaRestController {
 	 *            The keywords to search on
 	 * @param createdBy
 	 *            Filter services created by a certain user
+	 * @param fields
+	 *            The fields of each service to return, or null for all fields
 	 * @param user
 	 *            The user submitting the request
 	 * @return The list of services; or an error.
@@ -427,8 +500,9 @@ public class ServiceController extends PiazzaRestController {
 			@ApiParam(value = "The number of results to be returned per query.") @RequestParam(value = "perPage", required = false, defaultValue = DEFAULT_PAGE_SIZE) Integer perPage,
 			@ApiParam(value = "Indicates ascending or descending order.") @RequestParam(value = "order", required = false, defaultValue = "asc") String order,
 			@ApiParam(value = "The data field to sort by.") @RequestParam(value = "sortBy", required = false) String sortBy,
+			@ApiParam(value = "Comma-separated list of the fields of each result to return, such as \"serviceId,resourceMetadata.name\". All fields are returned if not specified.") @RequestParam(value = "fields", required = false) String fields,
 			Principal user) {
-		return getServices(keyword, page, perPage, gatewayUtil.getPrincipalName(user), order, sortBy, user);
+		return getServices(keyword, page, perPage, gatewayUtil.getPrincipalName(user), order, sortBy, fields, user);
 	}
 
 	/**
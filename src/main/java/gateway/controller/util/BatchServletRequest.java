@@ -0,0 +1,266 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+/**
+ * A single request within a batch, dispatched in-process to the Gateway's own controllers. The request shares the
+ * authentication of the batch request it belongs to, but has its own method, path, query parameters, JSON body and
+ * request attributes, so that the requests of a batch may be handled concurrently.
+ */
+public class BatchServletRequest extends HttpServletRequestWrapper {
+	private final String method;
+	private final String path;
+	private final String queryString;
+	private final byte[] body;
+	private final Principal principal;
+	private final Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+	private final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+	private final Map<String, String> headers = new HashMap<String, String>();
+
+	/**
+	 * @param batchRequest
+	 *            The batch request this request belongs to
+	 * @param principal
+	 *            The authenticated user of the batch request
+	 * @param method
+	 *            The HTTP method of this request
+	 * @param pathAndQuery
+	 *            The path of this request, relative to the Gateway, with an optional query string
+	 * @param body
+	 *            The JSON body of this request, or null if it has none
+	 */
+	public BatchServletRequest(HttpServletRequest batchRequest, Principal principal, String method, String pathAndQuery, byte[] body)
+			throws UnsupportedEncodingException {
+		super(batchRequest);
+		this.method = method.toUpperCase();
+		this.principal = principal;
+		this.body = body == null ? new byte[0] : body;
+		int queryStart = pathAndQuery.indexOf('?');
+		path = queryStart == -1 ? pathAndQuery : pathAndQuery.substring(0, queryStart);
+		queryString = queryStart == -1 ? null : pathAndQuery.substring(queryStart + 1);
+		parseParameters();
+		headers.put(HttpHeaders.ACCEPT.toLowerCase(), MediaType.APPLICATION_JSON_VALUE);
+		if (body != null) {
+			headers.put(HttpHeaders.CONTENT_TYPE.toLowerCase(), MediaType.APPLICATION_JSON_UTF8_VALUE);
+			headers.put(HttpHeaders.CONTENT_LENGTH.toLowerCase(), String.valueOf(body.length));
+		}
+	}
+
+	private void parseParameters() throws UnsupportedEncodingException {
+		if (queryString == null) {
+			return;
+		}
+		Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+		for (String pair : queryString.split("&")) {
+			if (pair.isEmpty()) {
+				continue;
+			}
+			int equals = pair.indexOf('=');
+			String name = URLDecoder.decode(equals == -1 ? pair : pair.substring(0, equals), "UTF-8");
+			String value = equals == -1 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+			if (!values.containsKey(name)) {
+				values.put(name, new ArrayList<String>());
+			}
+			values.get(name).add(value);
+		}
+		for (Map.Entry<String, List<String>> value : values.entrySet()) {
+			parameters.put(value.getKey(), value.getValue().toArray(new String[value.getValue().size()]));
+		}
+	}
+
+	@Override
+	public String getMethod() {
+		return method;
+	}
+
+	@Override
+	public String getRequestURI() {
+		return getContextPath() + path;
+	}
+
+	@Override
+	public StringBuffer getRequestURL() {
+		return new StringBuffer(String.format("%s://%s:%s%s", getScheme(), getServerName(), getServerPort(), getRequestURI()));
+	}
+
+	@Override
+	public String getServletPath() {
+		return path;
+	}
+
+	@Override
+	public String getPathInfo() {
+		return null;
+	}
+
+	@Override
+	public String getPathTranslated() {
+		return null;
+	}
+
+	@Override
+	public String getQueryString() {
+		return queryString;
+	}
+
+	@Override
+	public String getParameter(String name) {
+		String[] values = parameters.get(name);
+		return values == null ? null : values[0];
+	}
+
+	@Override
+	public Map<String, String[]> getParameterMap() {
+		return Collections.unmodifiableMap(parameters);
+	}
+
+	@Override
+	public Enumeration<String> getParameterNames() {
+		return Collections.enumeration(parameters.keySet());
+	}
+
+	@Override
+	public String[] getParameterValues(String name) {
+		return parameters.get(name);
+	}
+
+	@Override
+	public Principal getUserPrincipal() {
+		return principal;
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	@Override
+	public Enumeration<String> getAttributeNames() {
+		return Collections.enumeration(attributes.keySet());
+	}
+
+	@Override
+	public void setAttribute(String name, Object value) {
+		if (value == null) {
+			attributes.remove(name);
+		} else {
+			attributes.put(name, value);
+		}
+	}
+
+	@Override
+	public void removeAttribute(String name) {
+		attributes.remove(name);
+	}
+
+	@Override
+	public String getHeader(String name) {
+		String header = headers.get(name.toLowerCase());
+		return header != null ? header : super.getHeader(name);
+	}
+
+	@Override
+	public Enumeration<String> getHeaders(String name) {
+		String header = headers.get(name.toLowerCase());
+		return header != null ? Collections.enumeration(Arrays.asList(header)) : super.getHeaders(name);
+	}
+
+	@Override
+	public String getContentType() {
+		return headers.get(HttpHeaders.CONTENT_TYPE.toLowerCase());
+	}
+
+	@Override
+	public int getContentLength() {
+		return body.length;
+	}
+
+	@Override
+	public long getContentLengthLong() {
+		return body.length;
+	}
+
+	@Override
+	public String getCharacterEncoding() {
+		return StandardCharsets.UTF_8.name();
+	}
+
+	@Override
+	public ServletInputStream getInputStream() {
+		final ByteArrayInputStream inputStream = new ByteArrayInputStream(body);
+		return new ServletInputStream() {
+			@Override
+			public int read() {
+				return inputStream.read();
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) {
+				return inputStream.read(buffer, offset, length);
+			}
+
+			@Override
+			public boolean isFinished() {
+				return inputStream.available() == 0;
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setReadListener(ReadListener readListener) {
+				throw new UnsupportedOperationException("Requests within a batch are read synchronously.");
+			}
+		};
+	}
+
+	@Override
+	public BufferedReader getReader() {
+		return new BufferedReader(new InputStreamReader(getInputStream(), StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public boolean isAsyncSupported() {
+		return false;
+	}
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Captures the response to a single request within a batch, so that it can be returned as part of the batch response.
+ * Nothing is written to the response of the batch request itself. The captured body is limited in size; once the limit
+ * is reached, further writes fail and the response is marked as too large.
+ */
+public class BatchServletResponse extends HttpServletResponseWrapper {
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	private final int maxBodySize;
+	private boolean tooLarge;
+	private final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+	private int status = SC_OK;
+	private String errorMessage;
+	private PrintWriter writer;
+	private ServletOutputStream outputStream;
+
+	/**
+	 * @param batchResponse
+	 *            The response to the batch request
+	 * @param maxBodySize
+	 *            The largest body that may be captured, in bytes
+	 */
+	public BatchServletResponse(HttpServletResponse batchResponse, int maxBodySize) {
+		super(batchResponse);
+		this.maxBodySize = maxBodySize;
+	}
+
+	/**
+	 * @return The body written by the handler of the request
+	 */
+	public byte[] getBody() {
+		if (writer != null) {
+			writer.flush();
+		}
+		return body.toByteArray();
+	}
+
+	/**
+	 * @return True if the handler of the request wrote a larger body than may be captured
+	 */
+	public boolean isTooLarge() {
+		return tooLarge;
+	}
+
+	/**
+	 * @return The message of the error sent by the handler of the request, if any
+	 */
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	@Override
+	public int getStatus() {
+		return status;
+	}
+
+	@Override
+	public void setStatus(int status) {
+		this.status = status;
+	}
+
+	@Override
+	@Deprecated
+	public void setStatus(int status, String message) {
+		this.status = status;
+	}
+
+	@Override
+	public void sendError(int status) {
+		this.status = status;
+	}
+
+	@Override
+	public void sendError(int status, String message) {
+		this.status = status;
+		errorMessage = message;
+	}
+
+	@Override
+	public void sendRedirect(String location) {
+		status = SC_FOUND;
+		setHeader(HttpHeaders.LOCATION, location);
+	}
+
+	@Override
+	public void addCookie(Cookie cookie) {
+		// Cookies of requests within a batch are not returned
+	}
+
+	@Override
+	public boolean containsHeader(String name) {
+		return headers.containsKey(name.toLowerCase());
+	}
+
+	@Override
+	public String getHeader(String name) {
+		List<String> values = headers.get(name.toLowerCase());
+		return values == null ? null : values.get(0);
+	}
+
+	@Override
+	public Collection<String> getHeaders(String name) {
+		List<String> values = headers.get(name.toLowerCase());
+		return values == null ? new ArrayList<String>() : new ArrayList<String>(values);
+	}
+
+	@Override
+	public Collection<String> getHeaderNames() {
+		return new ArrayList<String>(headers.keySet());
+	}
+
+	@Override
+	public void setHeader(String name, String value) {
+		headers.remove(name.toLowerCase());
+		addHeader(name, value);
+	}
+
+	@Override
+	public void addHeader(String name, String value) {
+		if (!headers.containsKey(name.toLowerCase())) {
+			headers.put(name.toLowerCase(), new ArrayList<String>());
+		}
+		headers.get(name.toLowerCase()).add(value);
+	}
+
+	@Override
+	public void setIntHeader(String name, int value) {
+		setHeader(name, String.valueOf(value));
+	}
+
+	@Override
+	public void addIntHeader(String name, int value) {
+		addHeader(name, String.valueOf(value));
+	}
+
+	@Override
+	public void setDateHeader(String name, long date) {
+		setHeader(name, String.valueOf(date));
+	}
+
+	@Override
+	public void addDateHeader(String name, long date) {
+		addHeader(name, String.valueOf(date));
+	}
+
+	@Override
+	public String getContentType() {
+		return getHeader(HttpHeaders.CONTENT_TYPE);
+	}
+
+	@Override
+	public void setContentType(String type) {
+		setHeader(HttpHeaders.CONTENT_TYPE, type);
+	}
+
+	@Override
+	public void setContentLength(int length) {
+		setIntHeader(HttpHeaders.CONTENT_LENGTH, length);
+	}
+
+	@Override
+	public void setContentLengthLong(long length) {
+		setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(length));
+	}
+
+	@Override
+	public String getCharacterEncoding() {
+		return StandardCharsets.UTF_8.name();
+	}
+
+	@Override
+	public void setCharacterEncoding(String charset) {
+		// Bodies are always captured as UTF-8
+	}
+
+	@Override
+	public void setLocale(Locale locale) {
+		// The locale of the batch response is not changed by its requests
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() {
+		if (outputStream == null) {
+			outputStream = new ServletOutputStream() {
+				@Override
+				public void write(int value) throws IOException {
+					checkSize(1);
+					body.write(value);
+				}
+
+				@Override
+				public void write(byte[] buffer, int offset, int length) throws IOException {
+					checkSize(length);
+					body.write(buffer, offset, length);
+				}
+
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+
+				@Override
+				public void setWriteListener(WriteListener writeListener) {
+					throw new UnsupportedOperationException("Requests within a batch are written synchronously.");
+				}
+			};
+		}
+		return outputStream;
+	}
+
+	/**
+	 * Fails a write that would take the captured body over its limit. A handler writing through the writer does not
+	 * see the failure, so the response is also marked as too large.
+	 */
+	private void checkSize(int length) throws IOException {
+		if (tooLarge || (body.size() + length > maxBodySize)) {
+			tooLarge = true;
+			throw new IOException(String.format("The response is larger than the %s bytes allowed within a batch.", maxBodySize));
+		}
+	}
+
+	@Override
+	public PrintWriter getWriter() {
+		if (writer == null) {
+			writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), StandardCharsets.UTF_8));
+		}
+		return writer;
+	}
+
+	@Override
+	public void setBufferSize(int size) {
+		// The whole body is buffered
+	}
+
+	@Override
+	public int getBufferSize() {
+		return body.size();
+	}
+
+	@Override
+	public void flushBuffer() {
+		if (writer != null) {
+			writer.flush();
+		}
+	}
+
+	@Override
+	public boolean isCommitted() {
+		return false;
+	}
+
+	@Override
+	public void reset() {
+		resetBuffer();
+		headers.clear();
+		status = SC_OK;
+	}
+
+	@Override
+	public void resetBuffer() {
+		if (writer != null) {
+			writer.flush();
+		}
+		body.reset();
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import exception.InvalidInputException;
+
+/**
+ * Computes the MD5 and SHA-256 checksums of a stream as it is read, so that a file can be hashed while it is being
+ * uploaded without a second pass over its bytes. Checksums are available as lowercase hex once the stream has been
+ * read to the end.
+ */
+public class ChecksumInputStream extends FilterInputStream {
+	private final MessageDigest md5;
+	private final MessageDigest sha256;
+	private final String expectedMd5;
+	private final String expectedSha256;
+	private String md5Hex;
+	private String sha256Hex;
+
+	/**
+	 * @param inputStream
+	 *            The stream to compute checksums for
+	 * @param expectedMd5
+	 *            The hex MD5 checksum that the stream must match, or null if not known
+	 * @param expectedSha256
+	 *            The hex SHA-256 checksum that the stream must match, or null if not known
+	 */
+	public ChecksumInputStream(InputStream inputStream, String expectedMd5, String expectedSha256) {
+		super(inputStream);
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException exception) {
+			// Every Java platform is required to support both algorithms
+			throw new IllegalStateException(exception);
+		}
+		this.expectedMd5 = expectedMd5;
+		this.expectedSha256 = expectedSha256;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int next = super.read();
+		if (next != -1) {
+			md5.update((byte) next);
+			sha256.update((byte) next);
+		}
+		return next;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		int read = super.read(buffer, offset, length);
+		if (read > 0) {
+			md5.update(buffer, offset, read);
+			sha256.update(buffer, offset, read);
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long count) throws IOException {
+		// Skipped bytes would be missing from the checksums, so they are read instead
+		byte[] buffer = new byte[(int) Math.min(count, 8192)];
+		long skipped = 0;
+		int read;
+		while ((skipped < count) && ((read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped))) != -1)) {
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Gets the MD5 checksum of the bytes read. Once called, no more bytes may be read.
+	 * 
+	 * @return The lowercase hex checksum
+	 */
+	public String getMd5() {
+		if (md5Hex == null) {
+			md5Hex = toHex(md5.digest());
+		}
+		return md5Hex;
+	}
+
+	/**
+	 * Gets the SHA-256 checksum of the bytes read. Once called, no more bytes may be read.
+	 * 
+	 * @return The lowercase hex checksum
+	 */
+	public String getSha256() {
+		if (sha256Hex == null) {
+			sha256Hex = toHex(sha256.digest());
+		}
+		return sha256Hex;
+	}
+
+	/**
+	 * Verifies the checksums of the bytes read against those supplied by the client, if any.
+	 * 
+	 * @throws InvalidInputException
+	 *             If a supplied checksum does not match
+	 */
+	public void verify() throws InvalidInputException {
+		if ((expectedMd5 != null) && !expectedMd5.equalsIgnoreCase(getMd5())) {
+			throw new InvalidInputException(String.format("The MD5 checksum of the file %s does not match the supplied checksum %s.",
+					getMd5(), expectedMd5));
+		}
+		if ((expectedSha256 != null) && !expectedSha256.equalsIgnoreCase(getSha256())) {
+			throw new InvalidInputException(String.format("The SHA-256 checksum of the file %s does not match the supplied checksum %s.",
+					getSha256(), expectedSha256));
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte value : bytes) {
+			hex.append(Character.forDigit((value >> 4) & 0xF, 16)).append(Character.forDigit(value & 0xF, 16));
+		}
+		return hex.toString();
+	}
+}
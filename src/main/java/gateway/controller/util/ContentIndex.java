@@ -0,0 +1,338 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Index of hosted files by the SHA-256 checksum of their content, used to avoid sending the same file to S3 more than
+ * once. A repeated upload is copied within S3 from the indexed object to its own key, so no two Data Resources share an
+ * object. The index is held in memory, and backed by a memory-mapped file so that it survives a restart of the Gateway.
+ * <p>
+ * Each record in the file is laid out as a 4-byte key length, a 1-byte status, the 32-byte checksum, the 8-byte size
+ * of the file, and the S3 key. As with the Job Outbox, the length is written last so that a partially written record
+ * is treated as the end of the file. Removed entries are only marked as such, and their space is reclaimed when the
+ * file fills up, by copying the live records to a new file that atomically replaces the old one.
+ * </p>
+ */
+@Component
+public class ContentIndex {
+	@Value("${dedupe.enabled}")
+	private boolean DEDUPE_ENABLED;
+	@Value("${dedupe.file}")
+	private String INDEX_FILE;
+	@Value("${dedupe.size}")
+	private int INDEX_SIZE;
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(ContentIndex.class);
+	private static final int CHECKSUM_SIZE = 32;
+	private static final int HEADER_SIZE = 4 + 1 + CHECKSUM_SIZE + 8;
+	private static final byte STATUS_LIVE = 0;
+	private static final byte STATUS_REMOVED = 1;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+	private int writePosition;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	// Statistics
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+	private final AtomicLong compactionCount = new AtomicLong();
+
+	/**
+	 * Maps the index file and loads its entries into memory.
+	 */
+	@PostConstruct
+	public void init() throws IOException {
+		if (!DEDUPE_ENABLED) {
+			return;
+		}
+		file = new RandomAccessFile(INDEX_FILE, "rw");
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(file.length(), INDEX_SIZE));
+		load();
+	}
+
+	@PreDestroy
+	public void cleanup() throws IOException {
+		if (file != null) {
+			synchronized (this) {
+				buffer.force();
+			}
+			file.close();
+		}
+	}
+
+	/**
+	 * Determines if uploads should be deduplicated against the index.
+	 * 
+	 * @return True if the index is enabled
+	 */
+	public boolean isEnabled() {
+		return DEDUPE_ENABLED;
+	}
+
+	/**
+	 * Finds a hosted file with the specified content.
+	 * 
+	 * @param sha256
+	 *            The hex SHA-256 checksum of the content
+	 * @return The indexed file, or null if no file with this content is known
+	 */
+	public Entry find(String sha256) {
+		return entries.get(sha256);
+	}
+
+	/**
+	 * Records that a file with the specified content has been stored in S3. If the index file is full even after
+	 * compaction, then the file is not indexed.
+	 * 
+	 * @param sha256
+	 *            The hex SHA-256 checksum of the content
+	 * @param key
+	 *            The S3 key of the file
+	 * @param size
+	 *            The size of the file, in bytes
+	 */
+	public void add(String sha256, String key, long size) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		synchronized (this) {
+			if (entries.containsKey(sha256)) {
+				return;
+			}
+			if (!hasRoom(keyBytes.length)) {
+				compact();
+				if (!hasRoom(keyBytes.length)) {
+					LOGGER.warn(String.format("Content Index is full; %s will not be deduplicated.", key));
+					return;
+				}
+			}
+			int offset = writePosition;
+			buffer.position(offset + 4);
+			buffer.put(STATUS_LIVE);
+			buffer.put(fromHex(sha256));
+			buffer.putLong(size);
+			buffer.put(keyBytes);
+			// Terminate the index after this record before the record's length makes it visible
+			writePosition = offset + HEADER_SIZE + keyBytes.length;
+			if (writePosition + 4 <= buffer.capacity()) {
+				buffer.putInt(writePosition, 0);
+			}
+			buffer.putInt(offset, keyBytes.length);
+			buffer.force();
+			entries.put(sha256, new Entry(offset, key, size));
+		}
+	}
+
+	/**
+	 * Removes a file from the index, such as when it is found to no longer exist in S3.
+	 * 
+	 * @param sha256
+	 *            The hex SHA-256 checksum of the content
+	 */
+	public void remove(String sha256) {
+		synchronized (this) {
+			Entry entry = entries.remove(sha256);
+			if (entry != null) {
+				buffer.put(entry.offset + 4, STATUS_REMOVED);
+			}
+		}
+	}
+
+	/**
+	 * Records that an upload was deduplicated against an indexed file.
+	 * 
+	 * @param size
+	 *            The number of bytes that did not need to be stored
+	 */
+	public void recordHit(long size) {
+		hitCount.incrementAndGet();
+		bytesSaved.addAndGet(size);
+	}
+
+	/**
+	 * Gets the current statistics of the index, for administrative reporting.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("Enabled", DEDUPE_ENABLED);
+		stats.put("Entries", entries.size());
+		synchronized (this) {
+			stats.put("Bytes Used", writePosition);
+		}
+		stats.put("Capacity", buffer == null ? 0 : buffer.capacity());
+		stats.put("Hits", hitCount.get());
+		stats.put("Bytes Saved", bytesSaved.get());
+		stats.put("Compactions", compactionCount.get());
+		return stats;
+	}
+
+	/**
+	 * Reads all live records in the index file into memory. Must only be called on startup.
+	 */
+	private void load() {
+		int position = 0;
+		while (position + HEADER_SIZE <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if ((length <= 0) || (position + HEADER_SIZE + length > buffer.capacity())) {
+				break;
+			}
+			if (buffer.get(position + 4) == STATUS_LIVE) {
+				byte[] checksum = new byte[CHECKSUM_SIZE];
+				byte[] keyBytes = new byte[length];
+				buffer.position(position + 5);
+				buffer.get(checksum);
+				long size = buffer.getLong();
+				buffer.get(keyBytes);
+				entries.put(toHex(checksum), new Entry(position, new String(keyBytes, StandardCharsets.UTF_8), size));
+			}
+			position += HEADER_SIZE + length;
+		}
+		writePosition = position;
+	}
+
+	/**
+	 * Copies all live records to the start of a new file, which then atomically replaces the index file, reclaiming
+	 * the space used by removed records. The existing file is never modified, so a crash during compaction leaves
+	 * either the old or the new file intact. Must be called while holding the lock.
+	 */
+	private void compact() {
+		List<Entry> live = new ArrayList<Entry>(entries.values());
+		// Keep the records in the order they were added
+		Collections.sort(live, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry first, Entry second) {
+				return Integer.compare(first.offset, second.offset);
+			}
+		});
+		Path compactPath = Paths.get(INDEX_FILE + ".compact");
+		RandomAccessFile compactFile = null;
+		try {
+			Files.deleteIfExists(compactPath);
+			compactFile = new RandomAccessFile(compactPath.toFile(), "rw");
+			MappedByteBuffer compactBuffer = compactFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, buffer.capacity());
+			int[] offsets = new int[live.size()];
+			int position = 0;
+			for (int index = 0; index < live.size(); index++) {
+				Entry entry = live.get(index);
+				byte[] record = new byte[HEADER_SIZE + buffer.getInt(entry.offset)];
+				buffer.position(entry.offset);
+				buffer.get(record);
+				compactBuffer.position(position);
+				compactBuffer.put(record);
+				offsets[index] = position;
+				position += record.length;
+			}
+			if (position + 4 <= compactBuffer.capacity()) {
+				compactBuffer.putInt(position, 0);
+			}
+			compactBuffer.force();
+			Files.move(compactPath, Paths.get(INDEX_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+			// The new file is now the index
+			file.close();
+			file = compactFile;
+			buffer = compactBuffer;
+			for (int index = 0; index < live.size(); index++) {
+				live.get(index).offset = offsets[index];
+			}
+			writePosition = position;
+			compactionCount.incrementAndGet();
+		} catch (IOException exception) {
+			LOGGER.error("Could not compact the Content Index; keeping the existing file.", exception);
+			if (compactFile != null) {
+				try {
+					compactFile.close();
+				} catch (IOException closeException) {
+					LOGGER.error("Could not close the compacted Content Index file.", closeException);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Determines if there is room to append a record with a key of the specified length. Must be called while holding
+	 * the lock.
+	 */
+	private boolean hasRoom(int length) {
+		return writePosition + HEADER_SIZE + length <= buffer.capacity();
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return bytes;
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte value : bytes) {
+			hex.append(Character.forDigit((value >> 4) & 0xF, 16)).append(Character.forDigit(value & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * A hosted file in the index.
+	 */
+	public static class Entry {
+		private int offset;
+		private final String key;
+		private final long size;
+
+		private Entry(int offset, String key, long size) {
+			this.offset = offset;
+			this.key = key;
+			this.size = size;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public long getSize() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import model.job.Job;
+import model.response.JobStatusResponse;
+import model.response.PiazzaResponse;
+
+/**
+ * The Status of a Job, along with the resources that the Job refers to, such as the Data it produced or the Service it
+ * executed. Each expanded resource is keyed by the name it was requested with, and is either the metadata of the
+ * resource or an Error describing why it could not be fetched.
+ */
+public class ExpandedJobStatusResponse extends JobStatusResponse {
+	public Map<String, PiazzaResponse> expanded = new LinkedHashMap<String, PiazzaResponse>();
+
+	public ExpandedJobStatusResponse() {
+		super();
+	}
+
+	public ExpandedJobStatusResponse(Job job) {
+		super(job);
+	}
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.ResponseExtractor;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+
+import exception.InvalidInputException;
+import model.response.PiazzaResponse;
+
+/**
+ * Projects a proxied list response down to a selected set of fields, so that clients which need only a few fields of
+ * each item are not sent the full metadata. Fields are given as a comma-separated list of dot-separated paths within
+ * each item of the response's "data" list, such as "dataId,metadata.name". Arrays are transparent to paths. Every
+ * other field of the response, such as its pagination, is passed through unchanged.
+ * <p>
+ * The upstream body is filtered token by token as it is read, so the full response is never deserialized.
+ * </p>
+ */
+public class FieldProjection implements ResponseExtractor<PiazzaResponse> {
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final String DATA_FIELD = "data";
+
+	private final Node root = new Node();
+
+	private FieldProjection() {
+	}
+
+	/**
+	 * Parses the fields to project a response to.
+	 * 
+	 * @param fields
+	 *            Comma-separated list of dot-separated field paths, or null
+	 * @return The projection, or null if no fields were specified
+	 * @throws InvalidInputException
+	 *             If a path is malformed
+	 */
+	public static FieldProjection parse(String fields) throws InvalidInputException {
+		if ((fields == null) || fields.trim().isEmpty()) {
+			return null;
+		}
+		FieldProjection projection = new FieldProjection();
+		for (String path : fields.split(",")) {
+			Node node = projection.root;
+			for (String name : path.trim().split("\\.", -1)) {
+				if (name.trim().isEmpty()) {
+					throw new InvalidInputException(String.format("The field %s is not a valid field path.", path.trim()));
+				}
+				Node child = node.children.get(name.trim());
+				if (child == null) {
+					child = new Node();
+					node.children.put(name.trim(), child);
+				}
+				node = child;
+			}
+		}
+		return projection;
+	}
+
+	@Override
+	public PiazzaResponse extractData(ClientHttpResponse response) throws IOException {
+		ByteArrayOutputStream projected = new ByteArrayOutputStream();
+		project(response.getBody(), projected);
+		return new ProjectedResponse(projected.toByteArray());
+	}
+
+	/**
+	 * Copies a list response from one stream to another, keeping only the selected fields of each item.
+	 * 
+	 * @param inputStream
+	 *            The full response
+	 * @param outputStream
+	 *            The stream to write the projected response to
+	 */
+	public void project(InputStream inputStream, OutputStream outputStream) throws IOException {
+		try (JsonParser parser = JSON_FACTORY.createParser(inputStream);
+				JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				// Not a list response; pass it through
+				if (parser.getCurrentToken() != null) {
+					generator.copyCurrentStructure(parser);
+				}
+				return;
+			}
+			generator.writeStartObject();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				generator.writeFieldName(name);
+				parser.nextToken();
+				if (DATA_FIELD.equals(name)) {
+					copyValue(parser, generator, root);
+				} else {
+					generator.copyCurrentStructure(parser);
+				}
+			}
+			generator.writeEndObject();
+		}
+	}
+
+	/**
+	 * Copies the value at the parser's current token, keeping only the fields selected by the node. A node with no
+	 * children selects the whole value.
+	 */
+	private void copyValue(JsonParser parser, JsonGenerator generator, Node node) throws IOException {
+		JsonToken token = parser.getCurrentToken();
+		if (node.children.isEmpty() || ((token != JsonToken.START_OBJECT) && (token != JsonToken.START_ARRAY))) {
+			generator.copyCurrentStructure(parser);
+		} else if (token == JsonToken.START_ARRAY) {
+			generator.writeStartArray();
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				copyValue(parser, generator, node);
+			}
+			generator.writeEndArray();
+		} else {
+			generator.writeStartObject();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				Node child = node.children.get(parser.getCurrentName());
+				if (child != null) {
+					generator.writeFieldName(parser.getCurrentName());
+					parser.nextToken();
+					copyValue(parser, generator, child);
+				} else {
+					parser.nextToken();
+					parser.skipChildren();
+				}
+			}
+			generator.writeEndObject();
+		}
+	}
+
+	/**
+	 * A field path segment, and the segments selected beneath it.
+	 */
+	private static class Node {
+		private final Map<String, Node> children = new HashMap<String, Node>();
+	}
+
+	/**
+	 * A response which has already been serialized by projecting the upstream response, and is written out as-is.
+	 */
+	public static class ProjectedResponse extends PiazzaResponse implements JsonSerializable {
+		private final byte[] json;
+
+		private ProjectedResponse(byte[] json) {
+			this.json = json;
+		}
+
+		@Override
+		public void serialize(JsonGenerator generator, SerializerProvider serializers) throws IOException {
+			generator.writeRawValue(new String(json, StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public void serializeWithType(JsonGenerator generator, SerializerProvider serializers, TypeSerializer typeSerializer)
+				throws IOException {
+			// The type of the response is carried over from the upstream response
+			serialize(generator, serializers);
+		}
+
+		@Override
+		public String toString() {
+			return new String(json, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Idempotency Store held in memory and backed by a file, so that responses survive a restart of the Gateway. Each
+ * stored response is appended to the file as a line of JSON. The file is rewritten with only the live responses on
+ * startup, and whenever it has grown to twice the size of the store.
+ */
+public class FileIdempotencyStore extends InMemoryIdempotencyStore {
+	private final File file;
+	private final int maxSize;
+	// Records must each be written on a single line, so the Gateway's indenting mapper is not used
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private BufferedWriter writer;
+	private int recordCount;
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(FileIdempotencyStore.class);
+
+	/**
+	 * @param maxSize
+	 *            The maximum number of responses to hold
+	 * @param file
+	 *            The file to back the store with
+	 */
+	public FileIdempotencyStore(int maxSize, String file) {
+		super(maxSize);
+		this.maxSize = maxSize;
+		this.file = new File(file);
+	}
+
+	/**
+	 * Loads the unexpired responses in the file into memory.
+	 */
+	@PostConstruct
+	public synchronized void init() throws IOException {
+		if (file.exists()) {
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					load(line);
+				}
+			}
+		}
+		rewrite();
+	}
+
+	@PreDestroy
+	public synchronized void cleanup() throws IOException {
+		if (writer != null) {
+			writer.close();
+		}
+	}
+
+	@Override
+	public synchronized void put(String key, StoredResponse response) {
+		super.put(key, response);
+		try {
+			if (recordCount >= maxSize * 2) {
+				rewrite();
+			} else {
+				append(key, response);
+			}
+		} catch (IOException exception) {
+			// The response is still held in memory, and will be written when the file is next rewritten
+			LOGGER.error(String.format("Could not write Idempotency Key %s to %s", key, file), exception);
+		}
+	}
+
+	private void load(String line) {
+		try {
+			Record record = objectMapper.readValue(line, Record.class);
+			if (record.response.expiresOn > System.currentTimeMillis()) {
+				super.put(record.key, record.response);
+			}
+		} catch (IOException exception) {
+			// A partially written last line is expected if the Gateway stopped while writing it
+			LOGGER.warn(String.format("Skipping unreadable Idempotency Store record in %s", file), exception);
+		}
+	}
+
+	private void append(String key, StoredResponse response) throws IOException {
+		writer.write(objectMapper.writeValueAsString(new Record(key, response)));
+		writer.newLine();
+		writer.flush();
+		recordCount++;
+	}
+
+	/**
+	 * Replaces the file with one containing only the unexpired responses held in memory. Must be called while holding
+	 * the lock.
+	 */
+	private void rewrite() throws IOException {
+		if (writer != null) {
+			writer.close();
+		}
+		File temporary = new File(file.getPath() + ".tmp");
+		recordCount = 0;
+		try (BufferedWriter rewriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), StandardCharsets.UTF_8))) {
+			for (Map.Entry<String, StoredResponse> response : getResponses().entrySet()) {
+				if (response.getValue().expiresOn > System.currentTimeMillis()) {
+					rewriter.write(objectMapper.writeValueAsString(new Record(response.getKey(), response.getValue())));
+					rewriter.newLine();
+					recordCount++;
+				}
+			}
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * A single line of the file.
+	 */
+	public static class Record {
+		public String key;
+		public StoredResponse response;
+
+		public Record() {
+			// Default constructor for deserialization
+		}
+
+		public Record(String key, StoredResponse response) {
+			this.key = key;
+			this.response = response;
+		}
+	}
+}
@@ -15,15 +15,44 @@
  **/
 package gateway.controller.util;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.serialization.StringSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -35,27 +64,40 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestTemplate;
-import org.springframework.web.multipart.MultipartFile;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.HttpMethod;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.AmazonS3EncryptionClient;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
 import com.amazonaws.services.s3.model.CryptoConfiguration;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.KMSEncryptionMaterialsProvider;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.ResponseHeaderOverrides;
+import com.amazonaws.services.s3.model.SSEAwsKeyManagementParams;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import exception.InvalidInputException;
 import exception.PiazzaJobException;
 import gateway.auth.PiazzaAuthenticationToken;
-import messaging.job.KafkaClientFactory;
+import messaging.job.JobMessageFactory;
 import model.data.FileRepresentation;
-import model.data.location.FileLocation;
 import model.data.location.S3FileStore;
+import model.job.metadata.ResourceMetadata;
 import model.job.type.IngestJob;
 import model.logger.AuditElement;
 import model.logger.Severity;
@@ -64,25 +106,32 @@ import model.response.ErrorResponse;
 import model.response.JobResponse;
 import model.response.PiazzaResponse;
 import util.PiazzaLogger;
-import util.UUIDFactory;
 
 /**
  * Utility class that defines common procedures for handling requests, responses, and brokered end points to internal
  * Piazza components.
  * 
  * @author Patrick.Doody
- *
+ * 
  */
 @Component
 public class GatewayUtil {
 	@Autowired
 	private ObjectMapper objectMapper;
 	@Autowired
-	private UUIDFactory uuidFactory;
+	private UuidPool uuidPool;
 	@Autowired
 	private PiazzaLogger logger;
 	@Autowired
 	private RestTemplate restTemplate;
+	@Autowired
+	private ExecutorService upstreamExecutor;
+	@Autowired
+	private JobOutbox jobOutbox;
+	@Autowired
+	private ContentIndex contentIndex;
+	@Autowired
+	private ExecutorService s3UploadExecutor;
 
 	@Value("${vcap.services.pz-kafka.credentials.host}")
 	private String KAFKA_HOSTS;
@@ -96,33 +145,103 @@ public class GatewayUtil {
 	private String AMAZONS3_BUCKET_NAME;
 	@Value("${jobmanager.url}")
 	private String JOBMANAGER_URL;
+	@Value("${jobrequest.transport}")
+	private String JOB_REQUEST_TRANSPORT;
+	@Value("${SPACE}")
+	private String SPACE;
+	@Value("${kafka.producer.acks}")
+	private String KAFKA_ACKS;
+	@Value("${kafka.producer.linger.ms}")
+	private int KAFKA_LINGER_MS;
+	@Value("${kafka.producer.batch.size}")
+	private int KAFKA_BATCH_SIZE;
+	@Value("${kafka.producer.compression.type}")
+	private String KAFKA_COMPRESSION_TYPE;
 	@Value("${vcap.services.pz-blobstore.credentials.encryption_key}")
 	private String S3_KMS_CMK_ID;
+	@Value("${s3.endpoint}")
+	private String AMAZONS3_ENDPOINT;
+	@Value("${s3.upload.part.size}")
+	private int S3_PART_SIZE;
+	@Value("${s3.upload.concurrency}")
+	private int S3_UPLOAD_CONCURRENCY;
+	@Value("${s3.upload.retries}")
+	private int S3_UPLOAD_RETRIES;
 
 	private final static Logger LOGGER = LoggerFactory.getLogger(GatewayUtil.class);
+	/**
+	 * The smallest part size that S3 accepts for all but the last part of a multipart upload.
+	 */
+	private static final int S3_MIN_PART_SIZE = 5 * 1024 * 1024;
+	/**
+	 * The size the buffer for the first part of an upload starts at. It grows as needed, up to the part size.
+	 */
+	private static final int S3_INITIAL_BUFFER_SIZE = 64 * 1024;
+	/**
+	 * The characters other than letters and digits that may appear unencoded in an RFC 5987 parameter value.
+	 */
+	private static final String RFC_5987_ATTR_CHARS = "!#$&+-.^_`|~";
+	private static final long S3_RETRY_BACKOFF_MILLIS = 200;
+	/**
+	 * The largest object that S3 can copy in a single request.
+	 */
+	private static final long S3_MAX_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+	/**
+	 * Keys for the checksums of a hosted file, in both the S3 object metadata and the Data Resource metadata.
+	 */
+	public static final String MD5_METADATA_KEY = "md5";
+	public static final String SHA256_METADATA_KEY = "sha256";
 
 	private Producer<String, String> producer;
 	private AmazonS3 s3Client;
+	private AmazonS3 directS3Client;
+	private SSEAwsKeyManagementParams serverSideEncryption;
+
+	// Kafka acknowledgement statistics
+	private final AtomicLong kafkaAcknowledged = new AtomicLong();
+	private final AtomicLong kafkaFailed = new AtomicLong();
+	private final AtomicLong kafkaAckNanos = new AtomicLong();
+	private final AtomicLong kafkaMaxAckNanos = new AtomicLong();
 
 	/**
 	 * Initializing the Kafka Producer on Controller startup.
 	 */
 	@PostConstruct
 	public void init() {
-		// Kafka Producer.
-		producer = KafkaClientFactory.getProducer(KAFKA_HOSTS);
+		// Kafka Producer. Messages are batched and compressed by the Producer, so callers should prefer the asynchronous
+		// send where they are able to do other work before the acknowledgement is needed.
+		Properties properties = new Properties();
+		properties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, KAFKA_HOSTS);
+		properties.put(ProducerConfig.ACKS_CONFIG, KAFKA_ACKS);
+		properties.put(ProducerConfig.LINGER_MS_CONFIG, KAFKA_LINGER_MS);
+		properties.put(ProducerConfig.BATCH_SIZE_CONFIG, KAFKA_BATCH_SIZE);
+		properties.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, KAFKA_COMPRESSION_TYPE);
+		producer = new KafkaProducer<String, String>(properties, new StringSerializer(), new StringSerializer());
 		logger.log("Connecting to Kafka Cluster", Severity.INFORMATIONAL,
 				new AuditElement("gateway", "connectedToKafkaCluster", KAFKA_HOSTS));
 		// Connect to S3 Bucket. Only apply credentials if they are present.
 		if ((AMAZONS3_ACCESS_KEY.isEmpty()) && (AMAZONS3_PRIVATE_KEY.isEmpty())) {
 			s3Client = new AmazonS3Client();
+			directS3Client = s3Client;
 		} else {
 			BasicAWSCredentials credentials = new BasicAWSCredentials(AMAZONS3_ACCESS_KEY, AMAZONS3_PRIVATE_KEY);
 			// Set up encryption using the KMS CMK Key
 			KMSEncryptionMaterialsProvider materialProvider = new KMSEncryptionMaterialsProvider(S3_KMS_CMK_ID);
 			s3Client = new AmazonS3EncryptionClient(credentials, materialProvider,
 					new CryptoConfiguration().withKmsRegion(Regions.US_EAST_1)).withRegion(Region.getRegion(Regions.US_EAST_1));
+			// Objects that cannot be encrypted client-side are encrypted by S3 with the same KMS CMK Key
+			directS3Client = new AmazonS3Client(credentials).withRegion(Region.getRegion(Regions.US_EAST_1));
+			serverSideEncryption = new SSEAwsKeyManagementParams(S3_KMS_CMK_ID);
+		}
+		// Point at an S3-compatible store instead of AWS, if one is configured
+		if (!AMAZONS3_ENDPOINT.isEmpty()) {
+			for (AmazonS3 client : Arrays.asList(s3Client, directS3Client)) {
+				client.setEndpoint(AMAZONS3_ENDPOINT);
+				client.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(true));
+			}
 		}
+		// Parts must meet the S3 minimum, and be a multiple of 16 bytes for the encryption client
+		S3_PART_SIZE = Math.max(S3_PART_SIZE, S3_MIN_PART_SIZE) & ~0xF;
 	}
 
 	@PreDestroy
@@ -132,7 +251,17 @@ public class GatewayUtil {
 
 	/**
 	 * Sends a Job Request to the Job Manager. This will generate a Job Id and return it once the Job Manager has
-	 * indexed the Job into its database.
+	 * accepted the Job.
+	 * <p>
+	 * If the Job Request transport is "http", then the request is POSTed to the Job Manager, which returns once it has
+	 * indexed the Job into its database. If the transport is "kafka", then the request is published to the Request-Job
+	 * topic, keyed by Job Id, and this returns as soon as Kafka has acknowledged the message. The Job Manager will index
+	 * the Job when it consumes the message.
+	 * </p>
+	 * <p>
+	 * If the Job Outbox is enabled, then the request is instead written to the outbox and this returns immediately. The
+	 * outbox forwards the request using the configured transport in the background.
+	 * </p>
 	 * 
 	 * @param request
 	 *            The Job Request
@@ -144,23 +273,17 @@ public class GatewayUtil {
 			if (jobId == null) {
 				jobId = getUuid();
 			}
-			// Send the message to Job Manager
-			HttpHeaders headers = new HttpHeaders();
-			headers.setContentType(MediaType.APPLICATION_JSON);
-			HttpEntity<PiazzaJobRequest> entity = new HttpEntity<PiazzaJobRequest>(request, headers);
 			// Log this request
 			logger.log(
 					String.format("Forwarding Job %s for user %s with Type %s", jobId, request.createdBy,
 							request.jobType.getClass().getSimpleName()),
 					Severity.INFORMATIONAL, new AuditElement(request.createdBy, "requestJob", jobId));
-			ResponseEntity<PiazzaResponse> jobResponse = restTemplate
-					.postForEntity(String.format("%s/%s?jobId=%s", JOBMANAGER_URL, "requestJob", jobId), entity, PiazzaResponse.class);
-			// Check if the response was an error.
-			if (jobResponse.getBody() instanceof ErrorResponse) {
-				throw new PiazzaJobException(((ErrorResponse) jobResponse.getBody()).message);
+			// If the outbox is enabled, then the Job is acknowledged once it is durably queued
+			if (jobOutbox.isEnabled()) {
+				jobOutbox.append(request, jobId);
+				return jobId;
 			}
-			// Return the Job Id from the response.
-			return ((JobResponse) jobResponse.getBody()).data.getJobId();
+			return forwardJobRequest(request, jobId);
 		} catch (Exception exception) {
 			String error = String.format("Error with Job Manager when Requesting New Piazza Job: %s", exception.getMessage());
 			LOGGER.error(error, exception);
@@ -171,6 +294,130 @@ public class GatewayUtil {
 		}
 	}
 
+	/**
+	 * Forwards a Job Request to the Job Manager using the configured transport, bypassing the outbox.
+	 * 
+	 * @param request
+	 *            The Job Request
+	 * @param jobId
+	 *            The Job Id
+	 * @return The Job Id
+	 */
+	public String forwardJobRequest(PiazzaJobRequest request, String jobId) throws Exception {
+		if ("kafka".equalsIgnoreCase(JOB_REQUEST_TRANSPORT)) {
+			return publishJobRequest(request, jobId);
+		} else {
+			return postJobRequest(request, jobId);
+		}
+	}
+
+	/**
+	 * Sends a Job Request to the Job Manager over HTTP, and blocks until the Job Manager has indexed the Job.
+	 * 
+	 * @param request
+	 *            The Job Request
+	 * @param jobId
+	 *            The Job Id
+	 * @return The Job Id, as returned by the Job Manager
+	 */
+	private String postJobRequest(PiazzaJobRequest request, String jobId) throws PiazzaJobException {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		HttpEntity<PiazzaJobRequest> entity = new HttpEntity<PiazzaJobRequest>(request, headers);
+		ResponseEntity<PiazzaResponse> jobResponse = restTemplate
+				.postForEntity(String.format("%s/%s?jobId=%s", JOBMANAGER_URL, "requestJob", jobId), entity, PiazzaResponse.class);
+		// Check if the response was an error.
+		if (jobResponse.getBody() instanceof ErrorResponse) {
+			throw new PiazzaJobException(((ErrorResponse) jobResponse.getBody()).message);
+		}
+		// Return the Job Id from the response.
+		return ((JobResponse) jobResponse.getBody()).data.getJobId();
+	}
+
+	/**
+	 * Publishes a Job Request to the Request-Job Kafka topic, keyed by Job Id, and blocks until Kafka has acknowledged
+	 * the message.
+	 * 
+	 * @param request
+	 *            The Job Request
+	 * @param jobId
+	 *            The Job Id
+	 * @return The Job Id
+	 */
+	private String publishJobRequest(PiazzaJobRequest request, String jobId)
+			throws IOException, InterruptedException, ExecutionException {
+		ProducerRecord<String, String> message = JobMessageFactory.getRequestJobMessage(request, jobId, SPACE);
+		sendKafkaMessage(message);
+		return jobId;
+	}
+
+	/**
+	 * Sends a batch of Job Requests to the Job Manager. Job Ids for the entire batch are allocated up front in a single
+	 * call, and the requests are then forwarded to the Job Manager concurrently. A failure of one request does not
+	 * affect the others.
+	 * 
+	 * @param requests
+	 *            The Job Requests
+	 * @return One response per request, in the same order as the input. Each is either a JobResponse containing the
+	 *         Job Id, or an ErrorResponse describing why that particular request failed.
+	 */
+	public List<PiazzaResponse> sendJobRequests(List<PiazzaJobRequest> requests) throws PiazzaJobException {
+		List<String> jobIds = getUuids(requests.size());
+		// Forward all requests, and only then wait on the results
+		return awaitJobRequests(submitJobRequests(requests, jobIds), jobIds);
+	}
+
+	/**
+	 * Begins forwarding a batch of Job Requests, whose Job Ids have already been allocated, to the Job Manager
+	 * concurrently. This returns without waiting, so that the caller can prepare the next batch in the meantime.
+	 * 
+	 * @param requests
+	 *            The Job Requests
+	 * @param jobIds
+	 *            The Job Id of each request, in the same order
+	 * @return The pending result of each request, to be passed to {@link #awaitJobRequests(List, List)}
+	 */
+	public List<Future<String>> submitJobRequests(List<PiazzaJobRequest> requests, List<String> jobIds) {
+		List<Future<String>> submissions = new ArrayList<Future<String>>(requests.size());
+		for (int i = 0; i < requests.size(); i++) {
+			final PiazzaJobRequest request = requests.get(i);
+			final String jobId = jobIds.get(i);
+			submissions.add(upstreamExecutor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return sendJobRequest(request, jobId);
+				}
+			}));
+		}
+		return submissions;
+	}
+
+	/**
+	 * Waits on a batch of Job Requests begun by {@link #submitJobRequests(List, List)}.
+	 * 
+	 * @param submissions
+	 *            The pending results
+	 * @param jobIds
+	 *            The Job Id of each request, in the same order
+	 * @return One response per request, in the same order. Each is either a JobResponse containing the Job Id, or an
+	 *         ErrorResponse describing why that particular request failed.
+	 */
+	public List<PiazzaResponse> awaitJobRequests(List<Future<String>> submissions, List<String> jobIds) {
+		List<PiazzaResponse> responses = new ArrayList<PiazzaResponse>(submissions.size());
+		for (int i = 0; i < submissions.size(); i++) {
+			try {
+				responses.add(new JobResponse(submissions.get(i).get()));
+			} catch (ExecutionException exception) {
+				responses.add(new ErrorResponse(exception.getCause().getMessage(), "Gateway"));
+			} catch (InterruptedException exception) {
+				LOGGER.error("Interrupted while waiting on Batch Job Requests.", exception);
+				Thread.currentThread().interrupt();
+				responses.add(new ErrorResponse(String.format("Job Request %s was interrupted.", jobIds.get(i)), "Gateway"));
+			}
+		}
+		return responses;
+	}
+
 	/**
 	 * Sends a message to Kafka. This will additionally invoke .get() on the message sent, which will block until the
 	 * acknowledgement from Kafka has been received that the message entered the Kafka queue.
@@ -181,22 +428,87 @@ public class GatewayUtil {
 	 *             Any exceptions encountered with the send.
 	 */
 	public void sendKafkaMessage(ProducerRecord<String, String> message) throws InterruptedException, ExecutionException {
-		producer.send(message).get();
+		sendKafkaMessageAsync(message).get();
 	}
 
 	/**
-	 * Gets a UUID from the Piazza UUID Factory.
+	 * Sends a message to Kafka without waiting for the acknowledgement. The message is batched with other pending
+	 * messages by the Producer. Callers that require delivery should invoke .get() on the returned Future once they have
+	 * no other work left to do.
+	 * 
+	 * @param message
+	 *            The message to send.
+	 * @return Future that completes when Kafka has acknowledged the message, or fails if the send failed.
+	 */
+	public Future<RecordMetadata> sendKafkaMessageAsync(ProducerRecord<String, String> message) {
+		final long start = System.nanoTime();
+		return producer.send(message, new Callback() {
+			@Override
+			public void onCompletion(RecordMetadata metadata, Exception exception) {
+				if (exception != null) {
+					kafkaFailed.incrementAndGet();
+					LOGGER.error("Kafka did not acknowledge message.", exception);
+					return;
+				}
+				long elapsed = System.nanoTime() - start;
+				kafkaAcknowledged.incrementAndGet();
+				kafkaAckNanos.addAndGet(elapsed);
+				long max = kafkaMaxAckNanos.get();
+				while ((elapsed > max) && !kafkaMaxAckNanos.compareAndSet(max, elapsed)) {
+					max = kafkaMaxAckNanos.get();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Gets the current statistics of the Kafka Producer, for administrative reporting.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getKafkaStatistics() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		for (Map.Entry<MetricName, ? extends Metric> metric : producer.metrics().entrySet()) {
+			if ("producer-metrics".equals(metric.getKey().group())) {
+				switch (metric.getKey().name()) {
+				case "record-send-rate":
+				case "batch-size-avg":
+				case "batch-size-max":
+				case "record-queue-time-avg":
+				case "request-latency-avg":
+				case "compression-rate-avg":
+				case "record-error-rate":
+					stats.put(metric.getKey().name(), metric.getValue().value());
+					break;
+				}
+			}
+		}
+		long acknowledged = kafkaAcknowledged.get();
+		stats.put("acknowledged", acknowledged);
+		stats.put("failed", kafkaFailed.get());
+		stats.put("ack-latency-avg-ms", acknowledged == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(kafkaAckNanos.get() / acknowledged));
+		stats.put("ack-latency-max-ms", TimeUnit.NANOSECONDS.toMillis(kafkaMaxAckNanos.get()));
+		return stats;
+	}
+
+	/**
+	 * Gets a UUID from the local UUID Pool, which is prefetched from the Piazza UUID Service.
 	 * 
 	 * @return UUID
 	 */
 	public String getUuid() throws PiazzaJobException {
-		try {
-			return uuidFactory.getUUID();
-		} catch (Exception exception) {
-			String error = String.format("Could not connect to UUID Service for UUID: %s", exception.getMessage());
-			LOGGER.error(error, exception);
-			throw new PiazzaJobException(error);
-		}
+		return uuidPool.getUuid();
+	}
+
+	/**
+	 * Gets a number of UUIDs at once, such as for a batch of Jobs.
+	 * 
+	 * @param count
+	 *            The number of UUIDs to get
+	 * @return The list of UUIDs
+	 */
+	public List<String> getUuids(int count) throws PiazzaJobException {
+		return uuidPool.getUuids(count);
 	}
 
 	/**
@@ -231,32 +543,435 @@ public class GatewayUtil {
 	 * Handles the uploaded file from the data/file endpoint. This will push the file to S3, and then modify the content
 	 * of the job to reference the new S3 location of the file. This push will encrypt the file locally and push the
 	 * encrypted bytes - This process uses KMS encryption.
+	 * <p>
+	 * The length of the stream does not need to be known in advance. Files smaller than a single part are sent in one
+	 * request; larger files are sent as an S3 multipart upload, one part at a time, so that only a single part is held
+	 * in memory.
+	 * </p>
+	 * <p>
+	 * The MD5 and SHA-256 checksums of the file are computed as it streams through, and are stored both in the S3
+	 * object metadata and in the metadata of the Data Resource. If the client supplied checksums, then a file that does
+	 * not match them is rejected and is not kept in S3.
+	 * </p>
+	 * <p>
+	 * If content deduplication is enabled and a file with the same SHA-256 checksum is already hosted, then the file is
+	 * not sent to S3 again; the existing object is copied within S3 to the file's own key instead.
+	 * </p>
 	 * 
 	 * @param jobId
 	 *            The Id of the Job, used for generating a unique S3 bucket file name.
 	 * @param job
 	 *            The ingest job, containing the DataResource metadata
-	 * @param file
-	 *            The file to be uploaded
+	 * @param fileName
+	 *            The name of the uploaded file
+	 * @param inputStream
+	 *            The stream of file bytes to be uploaded
+	 * @param expectedMd5
+	 *            The hex MD5 checksum supplied by the client, or null
+	 * @param expectedSha256
+	 *            The hex SHA-256 checksum supplied by the client, or null
 	 * @return The modified job, with the location of the S3 file added to the metadata
 	 */
-	public IngestJob pushS3File(String jobId, IngestJob job, MultipartFile file)
-			throws AmazonServiceException, AmazonClientException, IOException {
-		// The content length must be specified.
-		ObjectMetadata metadata = new ObjectMetadata();
-		metadata.setContentLength(file.getSize());
+	public IngestJob pushS3File(String jobId, IngestJob job, String fileName, InputStream inputStream, String expectedMd5,
+			String expectedSha256) throws AmazonServiceException, AmazonClientException, IOException, InvalidInputException {
 		// Send the file to S3. The key corresponds with the S3 file name.
-		String fileKey = String.format("%s-%s", jobId, file.getOriginalFilename());
-		s3Client.putObject(AMAZONS3_BUCKET_NAME, fileKey, file.getInputStream(), metadata);
+		String fileKey = String.format("%s-%s", jobId, fileName);
+		ChecksumInputStream stream = new ChecksumInputStream(inputStream, expectedMd5, expectedSha256);
+		S3FileStore fileLocation = uploadS3Object(fileKey, stream);
 		// Note the S3 file path in the Ingest Job.
 		// Attach the file to the FileLocation object
-		FileLocation fileLocation = new S3FileStore(AMAZONS3_BUCKET_NAME, fileKey, file.getSize(), AMAZONS3_DOMAIN);
 		((FileRepresentation) job.getData().getDataType()).setLocation(fileLocation);
-		logger.log(String.format("S3 File for Job %s Persisted to %s:%s", jobId, AMAZONS3_BUCKET_NAME, fileKey), Severity.INFORMATIONAL,
-				new AuditElement(jobId, "persistS3File", fileKey));
+		// Record the checksums alongside the rest of the Data Resource metadata
+		if (job.getData().getMetadata() == null) {
+			job.getData().setMetadata(new ResourceMetadata());
+		}
+		if (job.getData().getMetadata().getMetadata() == null) {
+			job.getData().getMetadata().setMetadata(new HashMap<String, String>());
+		}
+		job.getData().getMetadata().getMetadata().put(MD5_METADATA_KEY, stream.getMd5());
+		job.getData().getMetadata().getMetadata().put(SHA256_METADATA_KEY, stream.getSha256());
+		logger.log(String.format("S3 File for Job %s Persisted to %s:%s", jobId, AMAZONS3_BUCKET_NAME, fileLocation.getFileName()),
+				Severity.INFORMATIONAL, new AuditElement(jobId, "persistS3File", fileLocation.getFileName()));
 		return job;
 	}
 
+	/**
+	 * Handles the uploaded file from the data/file endpoint, without checking it against client checksums.
+	 * 
+	 * @see #pushS3File(String, IngestJob, String, InputStream, String, String)
+	 */
+	public IngestJob pushS3File(String jobId, IngestJob job, String fileName, InputStream inputStream)
+			throws AmazonServiceException, AmazonClientException, IOException, InvalidInputException {
+		return pushS3File(jobId, job, fileName, inputStream, null, null);
+	}
+
+	/**
+	 * Uploads a stream of unknown length to S3.
+	 * <p>
+	 * If the stream is larger than a single part, then it is sent as a multipart upload. Parts are read from the stream
+	 * in order and sent in parallel on the S3 upload executor, with at most the configured number of parts in flight
+	 * for this upload. Each part is retried on failure; if a part ultimately fails, then the multipart upload is
+	 * aborted so that S3 does not retain the parts that were sent.
+	 * </p>
+	 * <p>
+	 * The encryption client must send parts serially and in order, so uploads through it have a concurrency of one and
+	 * rely on the client's own retries.
+	 * </p>
+	 * <p>
+	 * The checksums of the stream are verified before the object is created in S3, and are added to its metadata. The
+	 * metadata of a multipart upload is fixed when it begins, so once it completes the checksums are added by copying
+	 * the object onto itself within S3.
+	 * </p>
+	 * <p>
+	 * A single-part file that is already hosted is detected once the whole stream has been read, and is then copied
+	 * within S3 instead of being sent. The parts of a multipart upload have already been sent by the time the whole
+	 * stream is read, so it is always completed.
+	 * </p>
+	 * 
+	 * @param fileKey
+	 *            The S3 key of the object
+	 * @param checksumStream
+	 *            The stream of bytes
+	 * @return The location of the uploaded object
+	 */
+	private S3FileStore uploadS3Object(final String fileKey, ChecksumInputStream checksumStream) throws IOException, InvalidInputException {
+		PushbackInputStream stream = new PushbackInputStream(checksumStream, 1);
+		// Grow the buffer for the first part as it fills, so that small files do not allocate a whole part
+		byte[] buffer = new byte[Math.min(S3_INITIAL_BUFFER_SIZE, S3_PART_SIZE)];
+		int length = readPart(stream, buffer, 0);
+		while ((length == buffer.length) && (buffer.length < S3_PART_SIZE)) {
+			buffer = Arrays.copyOf(buffer, (int) Math.min((long) buffer.length * 2, S3_PART_SIZE));
+			length = readPart(stream, buffer, length);
+		}
+		boolean lastPart = isEndOfStream(stream);
+		if (lastPart) {
+			// The whole file fits in a single part, so the content length is known.
+			checksumStream.verify();
+			S3FileStore duplicate = copyDuplicate(checksumStream, fileKey, length);
+			if (duplicate != null) {
+				return duplicate;
+			}
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(length);
+			addChecksumMetadata(metadata, checksumStream);
+			s3Client.putObject(AMAZONS3_BUCKET_NAME, fileKey, new ByteArrayInputStream(buffer, 0, length), metadata);
+			return indexContent(checksumStream, fileKey, length);
+		}
+		boolean encrypted = s3Client instanceof AmazonS3EncryptionClient;
+		final int concurrency = encrypted ? 1 : S3_UPLOAD_CONCURRENCY;
+		final int retries = encrypted ? 0 : S3_UPLOAD_RETRIES;
+		final String uploadId = s3Client
+				.initiateMultipartUpload(new InitiateMultipartUploadRequest(AMAZONS3_BUCKET_NAME, fileKey)).getUploadId();
+		// Buffers are recycled once their part is sent, which bounds the memory used by this upload.
+		final BlockingQueue<byte[]> freeBuffers = new LinkedBlockingQueue<byte[]>();
+		int allocatedBuffers = 1;
+		List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+		List<Future<PartETag>> inFlightParts = new LinkedList<Future<PartETag>>();
+		long fileSize = 0;
+		try {
+			for (int partNumber = 1;; partNumber++) {
+				Future<PartETag> part = s3UploadExecutor
+						.submit(new PartUpload(fileKey, uploadId, partNumber, buffer, length, lastPart, retries, freeBuffers));
+				parts.add(part);
+				inFlightParts.add(part);
+				fileSize += length;
+				if (lastPart) {
+					break;
+				}
+				// Wait for a free buffer before reading the next part, unless more may be allocated. There is one buffer
+				// per part in flight.
+				buffer = freeBuffers.poll();
+				if (buffer == null) {
+					if (allocatedBuffers < concurrency) {
+						buffer = new byte[S3_PART_SIZE];
+						allocatedBuffers++;
+					} else {
+						buffer = freeBuffers.take();
+					}
+				}
+				// Stop reading early if a part has already failed
+				for (Iterator<Future<PartETag>> iterator = inFlightParts.iterator(); iterator.hasNext();) {
+					Future<PartETag> inFlightPart = iterator.next();
+					if (inFlightPart.isDone()) {
+						inFlightPart.get();
+						iterator.remove();
+					}
+				}
+				length = readPart(stream, buffer, 0);
+				lastPart = isEndOfStream(stream);
+			}
+			List<PartETag> partETags = new ArrayList<PartETag>();
+			for (Future<PartETag> part : parts) {
+				partETags.add(part.get());
+			}
+			checksumStream.verify();
+			s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(AMAZONS3_BUCKET_NAME, fileKey, uploadId, partETags));
+		} catch (Exception exception) {
+			for (Future<PartETag> part : inFlightParts) {
+				part.cancel(true);
+			}
+			try {
+				s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(AMAZONS3_BUCKET_NAME, fileKey, uploadId));
+			} catch (AmazonClientException abortException) {
+				LOGGER.warn(String.format("Could not abort failed S3 upload %s", fileKey), abortException);
+			}
+			Throwable cause = (exception instanceof ExecutionException) ? exception.getCause() : exception;
+			if (cause instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(String.format("Upload of %s was interrupted.", fileKey));
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof AmazonClientException) {
+				throw (AmazonClientException) cause;
+			} else if (cause instanceof InvalidInputException) {
+				throw (InvalidInputException) cause;
+			}
+			throw new AmazonClientException(String.format("Upload of %s failed: %s", fileKey, cause.getMessage()), cause);
+		}
+		// Replace the metadata of the completed object, keeping any encryption metadata set by the client. The copy is
+		// done by S3, so the bytes of the file are not sent again.
+		ObjectMetadata existing = s3Client.getObjectMetadata(AMAZONS3_BUCKET_NAME, fileKey);
+		if (existing.getContentLength() <= S3_MAX_COPY_SIZE) {
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setUserMetadata(new HashMap<String, String>(existing.getUserMetadata()));
+			addChecksumMetadata(metadata, checksumStream);
+			s3Client.copyObject(new CopyObjectRequest(AMAZONS3_BUCKET_NAME, fileKey, AMAZONS3_BUCKET_NAME, fileKey).withNewObjectMetadata(metadata));
+		} else {
+			LOGGER.info(String.format("S3 object %s is too large to copy; checksums are only recorded in the Data metadata.", fileKey));
+		}
+		return indexContent(checksumStream, fileKey, fileSize);
+	}
+
+	/**
+	 * Stores an upload by copying an existing hosted file with the same content to the upload's own key. The copy is
+	 * done by S3, so the bytes of the upload are not sent again. Every Data Resource still has its own object, so
+	 * deleting one does not affect any other. Index entries whose object no longer exists in S3 are removed.
+	 * 
+	 * @param checksumStream
+	 *            The fully read and verified stream of the upload
+	 * @param fileKey
+	 *            The S3 key of the upload
+	 * @param size
+	 *            The size of the upload
+	 * @return The location of the copy, or null if the upload must be stored
+	 */
+	private S3FileStore copyDuplicate(ChecksumInputStream checksumStream, String fileKey, long size) {
+		if (!contentIndex.isEnabled()) {
+			return null;
+		}
+		ContentIndex.Entry entry = contentIndex.find(checksumStream.getSha256());
+		if (entry == null) {
+			return null;
+		}
+		ObjectMetadata existing;
+		try {
+			existing = s3Client.getObjectMetadata(AMAZONS3_BUCKET_NAME, entry.getKey());
+		} catch (AmazonS3Exception exception) {
+			if (exception.getStatusCode() == 404) {
+				contentIndex.remove(checksumStream.getSha256());
+				return null;
+			}
+			throw exception;
+		}
+		// Keep any encryption metadata of the existing object, which its bytes cannot be read without
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setUserMetadata(new HashMap<String, String>(existing.getUserMetadata()));
+		addChecksumMetadata(metadata, checksumStream);
+		s3Client.copyObject(new CopyObjectRequest(AMAZONS3_BUCKET_NAME, entry.getKey(), AMAZONS3_BUCKET_NAME, fileKey).withNewObjectMetadata(metadata));
+		contentIndex.recordHit(size);
+		return new S3FileStore(AMAZONS3_BUCKET_NAME, fileKey, size, AMAZONS3_DOMAIN);
+	}
+
+	/**
+	 * Adds a newly stored file to the content index, if deduplication is enabled.
+	 * 
+	 * @return The location of the stored file
+	 */
+	private S3FileStore indexContent(ChecksumInputStream checksumStream, String fileKey, long size) {
+		if (contentIndex.isEnabled()) {
+			contentIndex.add(checksumStream.getSha256(), fileKey, size);
+		}
+		return new S3FileStore(AMAZONS3_BUCKET_NAME, fileKey, size, AMAZONS3_DOMAIN);
+	}
+
+	/**
+	 * Adds the checksums of a fully read stream to the user metadata of an S3 object.
+	 */
+	private void addChecksumMetadata(ObjectMetadata metadata, ChecksumInputStream checksumStream) {
+		metadata.addUserMetadata(MD5_METADATA_KEY, checksumStream.getMd5());
+		metadata.addUserMetadata(SHA256_METADATA_KEY, checksumStream.getSha256());
+	}
+
+	/**
+	 * Sends a single part of a multipart upload to S3, retrying on failure. The buffer holding the part is returned to
+	 * the pool of free buffers once the part is sent, whether or not it succeeded.
+	 */
+	private class PartUpload implements Callable<PartETag> {
+		private final String fileKey;
+		private final String uploadId;
+		private final int partNumber;
+		private final byte[] buffer;
+		private final int length;
+		private final boolean lastPart;
+		private final int retries;
+		private final BlockingQueue<byte[]> freeBuffers;
+
+		private PartUpload(String fileKey, String uploadId, int partNumber, byte[] buffer, int length, boolean lastPart, int retries,
+				BlockingQueue<byte[]> freeBuffers) {
+			this.fileKey = fileKey;
+			this.uploadId = uploadId;
+			this.partNumber = partNumber;
+			this.buffer = buffer;
+			this.length = length;
+			this.lastPart = lastPart;
+			this.retries = retries;
+			this.freeBuffers = freeBuffers;
+		}
+
+		@Override
+		public PartETag call() throws Exception {
+			try {
+				for (int attempt = 0;; attempt++) {
+					try {
+						UploadPartRequest part = new UploadPartRequest().withBucketName(AMAZONS3_BUCKET_NAME).withKey(fileKey)
+								.withUploadId(uploadId).withPartNumber(partNumber).withInputStream(new ByteArrayInputStream(buffer, 0, length))
+								.withPartSize(length);
+						// The encryption client must be told which part is the last
+						part.setLastPart(lastPart);
+						return s3Client.uploadPart(part).getPartETag();
+					} catch (AmazonClientException exception) {
+						if (attempt >= retries) {
+							throw exception;
+						}
+						LOGGER.warn(String.format("Part %s of S3 upload %s failed on attempt %s; retrying: %s", partNumber, fileKey, attempt + 1,
+								exception.getMessage()));
+						Thread.sleep(S3_RETRY_BACKOFF_MILLIS << attempt);
+					}
+				}
+			} finally {
+				freeBuffers.offer(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Reads from the stream until the buffer is full or the stream has ended.
+	 * 
+	 * @param offset
+	 *            The number of bytes already in the buffer
+	 * @return The number of bytes in the buffer
+	 */
+	private int readPart(InputStream stream, byte[] buffer, int offset) throws IOException {
+		int length = offset;
+		int read;
+		while ((length < buffer.length) && ((read = stream.read(buffer, length, buffer.length - length)) != -1)) {
+			length += read;
+		}
+		return length;
+	}
+
+	/**
+	 * Determines if there are no more bytes left in the stream.
+	 */
+	private boolean isEndOfStream(PushbackInputStream stream) throws IOException {
+		int next = stream.read();
+		if (next == -1) {
+			return true;
+		}
+		stream.unread(next);
+		return false;
+	}
+
+	/**
+	 * Generates a pre-signed URL that downloads a hosted file directly from S3. Files that were encrypted client-side
+	 * can only be decrypted by the Gateway, so no URL is generated for them.
+	 * 
+	 * @param location
+	 *            The S3 location of the file
+	 * @param fileName
+	 *            The file name the download should be saved as, or null to leave the Content-Disposition unset
+	 * @param expirySeconds
+	 *            How long the URL remains valid
+	 * @return The pre-signed URL, or null if the file must be streamed through the Gateway
+	 */
+	public URL getPresignedDownloadUrl(S3FileStore location, String fileName, long expirySeconds) {
+		if (!AMAZONS3_BUCKET_NAME.equals(location.getBucketName())) {
+			return null;
+		}
+		Map<String, String> userMetadata = directS3Client.getObjectMetadata(AMAZONS3_BUCKET_NAME, location.getFileName())
+				.getUserMetadata();
+		if (userMetadata.containsKey(Headers.CRYPTO_KEY) || userMetadata.containsKey(Headers.CRYPTO_KEY_V2)) {
+			return null;
+		}
+		GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(AMAZONS3_BUCKET_NAME, location.getFileName(), HttpMethod.GET);
+		request.setExpiration(new Date(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expirySeconds)));
+		if ((fileName != null) && !fileName.isEmpty()) {
+			request.setResponseHeaders(new ResponseHeaderOverrides().withContentDisposition(getContentDisposition(fileName)));
+		}
+		return directS3Client.generatePresignedUrl(request);
+	}
+
+	/**
+	 * Gets the Content-Disposition header that saves a download as the specified file name. The name is quoted, with
+	 * any quotes and backslashes escaped. A name that is not plain ASCII is also given in UTF-8 as an RFC 5987
+	 * filename* parameter, with an ASCII approximation as the filename parameter for older clients.
+	 * 
+	 * @param fileName
+	 *            The name the download should be saved as
+	 * @return The Content-Disposition header value
+	 */
+	public static String getContentDisposition(String fileName) {
+		StringBuilder asciiName = new StringBuilder();
+		boolean ascii = true;
+		for (int i = 0; i < fileName.length(); i++) {
+			char character = fileName.charAt(i);
+			if ((character < 0x20) || (character >= 0x7F)) {
+				ascii = false;
+				asciiName.append('_');
+			} else {
+				if ((character == '"') || (character == '\\')) {
+					asciiName.append('\\');
+				}
+				asciiName.append(character);
+			}
+		}
+		String disposition = String.format("attachment; filename=\"%s\"", asciiName);
+		if (ascii) {
+			return disposition;
+		}
+		StringBuilder encodedName = new StringBuilder();
+		for (byte value : fileName.getBytes(StandardCharsets.UTF_8)) {
+			char character = (char) (value & 0xFF);
+			if (((character >= 'a') && (character <= 'z')) || ((character >= 'A') && (character <= 'Z'))
+					|| ((character >= '0') && (character <= '9')) || (RFC_5987_ATTR_CHARS.indexOf(character) != -1)) {
+				encodedName.append(character);
+			} else {
+				encodedName.append(String.format("%%%02X", value & 0xFF));
+			}
+		}
+		return String.format("%s; filename*=UTF-8''%s", disposition, encodedName);
+	}
+
+	/**
+	 * Gets the S3 client for operations that cannot use client-side encryption, such as pre-signed URLs and multipart
+	 * uploads that span several requests. Objects written with this client must request server-side encryption using
+	 * {@link #getServerSideEncryption()}.
+	 * 
+	 * @return The S3 client
+	 */
+	public AmazonS3 getDirectS3Client() {
+		return directS3Client;
+	}
+
+	/**
+	 * Gets the server-side encryption parameters for objects written with the direct S3 client.
+	 * 
+	 * @return The KMS encryption parameters, or null if the bucket is not configured for encryption.
+	 */
+	public SSEAwsKeyManagementParams getServerSideEncryption() {
+		return serverSideEncryption;
+	}
+
 	/**
 	 * Validates Pagination Inputs for List requests
 	 * 
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import model.response.ErrorResponse;
+
+/**
+ * Filter that makes the submission of Jobs and Data safe to retry. A client may send an Idempotency-Key header with a
+ * submission; the response to the first request with that key is stored, and any later request by the same user with
+ * the same key is answered with the stored response instead of being submitted again. A request made while another
+ * with the same key is still being handled waits for it to complete, and is then answered with its response.
+ * <p>
+ * Only successful responses and client errors that would be repeated on retry are stored. Server errors, and client
+ * errors that depend on the state of the Gateway at the time, such as 429 Too Many Requests from the rate limits, are
+ * not stored, so that the request may be retried. The store holding the responses is pluggable; see
+ * {@link IdempotencyStore}.
+ * </p>
+ */
+@Component
+public class IdempotencyFilter extends OncePerRequestFilter {
+	@Autowired
+	private IdempotencyStore idempotencyStore;
+	@Autowired
+	private GatewayUtil gatewayUtil;
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Value("${idempotency.ttl}")
+	private long TTL_SECONDS;
+	@Value("${idempotency.wait}")
+	private long MAX_WAIT_MILLIS;
+
+	public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+	public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+	private static final List<String> PATHS = Arrays.asList("/job", "/data", "/data/file", "/deployment");
+	private static final int MAX_KEY_LENGTH = 255;
+	// Client errors which may not be repeated if the same request is retried later
+	private static final List<Integer> TRANSIENT_STATUSES = Arrays.asList(HttpStatus.UNAUTHORIZED.value(), HttpStatus.FORBIDDEN.value(),
+			HttpStatus.REQUEST_TIMEOUT.value(), HttpStatus.CONFLICT.value(), HttpStatus.LOCKED.value(),
+			HttpStatus.TOO_MANY_REQUESTS.value());
+
+	private final Map<String, CountDownLatch> inFlight = new ConcurrentHashMap<String, CountDownLatch>();
+
+	// Statistics
+	private final AtomicLong replayCount = new AtomicLong();
+	private final AtomicLong collapseCount = new AtomicLong();
+
+	@Override
+	protected boolean shouldNotFilter(HttpServletRequest request) {
+		return !isSubmission(request.getMethod(), getPath(request)) || (request.getHeader(IDEMPOTENCY_KEY_HEADER) == null);
+	}
+
+	/**
+	 * Determines if a request is a submission that may be made idempotent with an Idempotency-Key.
+	 * 
+	 * @param method
+	 *            The HTTP method of the request
+	 * @param path
+	 *            The path of the request, relative to the Gateway
+	 * @return True if the request is handled by this filter when it has an Idempotency-Key
+	 */
+	public static boolean isSubmission(String method, String path) {
+		return "POST".equalsIgnoreCase(method) && PATHS.contains(path);
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+			throws ServletException, IOException {
+		String idempotencyKey = request.getHeader(IDEMPOTENCY_KEY_HEADER);
+		if (idempotencyKey.isEmpty() || (idempotencyKey.length() > MAX_KEY_LENGTH)) {
+			sendError(response, HttpStatus.BAD_REQUEST,
+					String.format("The %s header must be between 1 and %s characters.", IDEMPOTENCY_KEY_HEADER, MAX_KEY_LENGTH));
+			return;
+		}
+		String path = getPath(request);
+		String key = String.format("%s/%s", gatewayUtil.getPrincipalName(request.getUserPrincipal()), idempotencyKey);
+
+		// Replay the stored response, or wait for a request with the same key that is still in flight
+		CountDownLatch completion = new CountDownLatch(1);
+		while (true) {
+			IdempotencyStore.StoredResponse stored = idempotencyStore.get(key);
+			if (stored != null) {
+				replay(stored, path, response);
+				return;
+			}
+			CountDownLatch existing = inFlight.putIfAbsent(key, completion);
+			if (existing == null) {
+				break;
+			}
+			collapseCount.incrementAndGet();
+			try {
+				if (!existing.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+					sendError(response, HttpStatus.CONFLICT,
+							String.format("A request with %s %s is still in progress.", IDEMPOTENCY_KEY_HEADER, idempotencyKey));
+					return;
+				}
+			} catch (InterruptedException exception) {
+				Thread.currentThread().interrupt();
+				throw new ServletException(exception);
+			}
+		}
+
+		// Handle the request, keeping its response
+		try {
+			ContentCachingResponseWrapper responseWrapper = new ContentCachingResponseWrapper(response);
+			filterChain.doFilter(request, responseWrapper);
+			if (isStorable(responseWrapper.getStatus())) {
+				idempotencyStore.put(key, new IdempotencyStore.StoredResponse(path, responseWrapper.getStatus(), responseWrapper.getContentType(),
+						responseWrapper.getContentAsByteArray(), System.currentTimeMillis() + TTL_SECONDS * 1000));
+			}
+			responseWrapper.copyBodyToResponse();
+		} finally {
+			inFlight.remove(key);
+			completion.countDown();
+		}
+	}
+
+	/**
+	 * Gets the current statistics of the filter and its store, for administrative reporting.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = idempotencyStore.getStatistics();
+		stats.put("In Flight", inFlight.size());
+		stats.put("Replayed", replayCount.get());
+		stats.put("Collapsed", collapseCount.get());
+		return stats;
+	}
+
+	/**
+	 * Determines if a response with the specified status should be replayed to retries of the request.
+	 */
+	private static boolean isStorable(int status) {
+		HttpStatus.Series series = HttpStatus.Series.valueOf(status);
+		return (series == HttpStatus.Series.SUCCESSFUL)
+				|| ((series == HttpStatus.Series.CLIENT_ERROR) && !TRANSIENT_STATUSES.contains(status));
+	}
+
+	private void replay(IdempotencyStore.StoredResponse stored, String path, HttpServletResponse response) throws IOException {
+		if (!path.equals(stored.path)) {
+			sendError(response, HttpStatus.UNPROCESSABLE_ENTITY,
+					String.format("The %s has already been used for a request to %s.", IDEMPOTENCY_KEY_HEADER, stored.path));
+			return;
+		}
+		replayCount.incrementAndGet();
+		response.setStatus(stored.status);
+		if (stored.contentType != null) {
+			response.setContentType(stored.contentType);
+		}
+		response.setHeader(REPLAYED_HEADER, "true");
+		response.setContentLength(stored.body.length);
+		response.getOutputStream().write(stored.body);
+	}
+
+	private void sendError(HttpServletResponse response, HttpStatus status, String message) throws IOException {
+		response.setStatus(status.value());
+		response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+		objectMapper.writeValue(response.getOutputStream(), new ErrorResponse(message, "Gateway"));
+	}
+
+	private static String getPath(HttpServletRequest request) {
+		return request.getRequestURI().substring(request.getContextPath().length());
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.Map;
+
+/**
+ * Storage for the responses to requests made with an Idempotency-Key, so that a retried request can be answered with
+ * the original response instead of being handled again.
+ */
+public interface IdempotencyStore {
+	/**
+	 * Gets the stored response for a key.
+	 * 
+	 * @param key
+	 *            The key, scoped to the user who made the request
+	 * @return The response, or null if there is none or it has expired
+	 */
+	StoredResponse get(String key);
+
+	/**
+	 * Stores the response for a key, replacing any previous response.
+	 * 
+	 * @param key
+	 *            The key, scoped to the user who made the request
+	 * @param response
+	 *            The response
+	 */
+	void put(String key, StoredResponse response);
+
+	/**
+	 * Gets the current statistics of the store, for administrative reporting.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	Map<String, Object> getStatistics();
+
+	/**
+	 * A response returned to a request made with an Idempotency-Key.
+	 */
+	public static class StoredResponse {
+		public String path;
+		public int status;
+		public String contentType;
+		public byte[] body;
+		public long expiresOn;
+
+		public StoredResponse() {
+			// Default constructor for deserialization
+		}
+
+		public StoredResponse(String path, int status, String contentType, byte[] body, long expiresOn) {
+			this.path = path;
+			this.status = status;
+			this.contentType = contentType;
+			this.body = body;
+			this.expiresOn = expiresOn;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Idempotency Store held in memory. The number of responses held is bounded, and the least recently used responses are
+ * evicted first. Responses are lost when the Gateway restarts.
+ */
+public class InMemoryIdempotencyStore implements IdempotencyStore {
+	private final int maxSize;
+	private final Map<String, StoredResponse> responses;
+
+	/**
+	 * @param maxSize
+	 *            The maximum number of responses to hold
+	 */
+	public InMemoryIdempotencyStore(final int maxSize) {
+		this.maxSize = maxSize;
+		responses = new LinkedHashMap<String, StoredResponse>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, StoredResponse> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	@Override
+	public synchronized StoredResponse get(String key) {
+		StoredResponse response = responses.get(key);
+		if ((response != null) && (response.expiresOn <= System.currentTimeMillis())) {
+			responses.remove(key);
+			return null;
+		}
+		return response;
+	}
+
+	@Override
+	public synchronized void put(String key, StoredResponse response) {
+		responses.put(key, response);
+	}
+
+	@Override
+	public synchronized Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("Entries", responses.size());
+		stats.put("Capacity", maxSize);
+		return stats;
+	}
+
+	/**
+	 * Gets all responses currently held, in order from least to most recently used. Must be called while holding the
+	 * lock.
+	 */
+	protected Map<String, StoredResponse> getResponses() {
+		return responses;
+	}
+}
@@ -0,0 +1,360 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import messaging.job.JobMessageFactory;
+import model.job.Job;
+import model.job.result.type.ErrorResult;
+import model.job.type.IngestJob;
+import model.logger.AuditElement;
+import model.logger.Severity;
+import model.request.PiazzaJobRequest;
+import model.status.StatusUpdate;
+import util.PiazzaLogger;
+
+/**
+ * Local staging area for asynchronous file ingest. When enabled, an uploaded file is written to local disk and the
+ * client receives its Job Id immediately; the file is then pushed to S3 and its Ingest Job submitted on a background
+ * executor.
+ * <p>
+ * The total size of staged files is bounded by a byte budget. Space is reserved using the declared length of the
+ * request before any of the file is read, so that uploads which would exceed the budget can be turned away up front.
+ * Each staged file is stored next to a small JSON record of its Ingest Job, so that uploads accepted before a restart
+ * are still processed after it.
+ * </p>
+ * <p>
+ * Until the Job has been submitted, its status is reported from here: Pending while it is staged, or Error if the
+ * upload could not be completed. Because this status is only known to this instance, and only the most recent failures
+ * are kept, a failure is also sent to the Job Manager as an Error status update for the Job Id.
+ * </p>
+ */
+@Component
+public class IngestStagingArea {
+	@Autowired
+	private GatewayUtil gatewayUtil;
+	@Autowired
+	private ObjectMapper objectMapper;
+	@Autowired
+	private PiazzaLogger logger;
+
+	@Value("${SPACE}")
+	private String SPACE;
+	@Value("${ingest.async.enabled}")
+	private boolean ASYNC_ENABLED;
+	@Value("${ingest.staging.dir}")
+	private String STAGING_DIRECTORY;
+	@Value("${ingest.staging.budget}")
+	private long STAGING_BUDGET;
+	@Value("${ingest.staging.threads}")
+	private int STAGING_THREADS;
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(IngestStagingArea.class);
+	private static final int MAX_FAILED_JOBS = 1000;
+
+	private File stagingDirectory;
+	private ExecutorService stagingExecutor;
+	private final AtomicLong stagedBytes = new AtomicLong();
+	private final Map<String, Job> pendingJobs = new ConcurrentHashMap<String, Job>();
+	/**
+	 * Jobs that failed before they could be submitted. Only the most recent failures are kept.
+	 */
+	private final Map<String, Job> failedJobs = Collections.synchronizedMap(new LinkedHashMap<String, Job>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Job> eldest) {
+			return size() > MAX_FAILED_JOBS;
+		}
+	});
+
+	// Statistics
+	private final AtomicLong acceptedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong submittedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	/**
+	 * Starts the background executor, and resumes any uploads that were staged before a restart.
+	 */
+	@PostConstruct
+	public void init() throws IOException {
+		if (!ASYNC_ENABLED) {
+			return;
+		}
+		stagingDirectory = new File(STAGING_DIRECTORY);
+		if (!stagingDirectory.isDirectory() && !stagingDirectory.mkdirs()) {
+			throw new IOException(String.format("Could not create Ingest staging directory %s", stagingDirectory.getAbsolutePath()));
+		}
+		stagingExecutor = Executors.newFixedThreadPool(STAGING_THREADS);
+		File[] files = stagingDirectory.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			if (file.getName().endsWith(".json")) {
+				String jobId = file.getName().substring(0, file.getName().length() - ".json".length());
+				try {
+					JsonNode record = objectMapper.readTree(file);
+					File dataFile = getDataFile(jobId);
+					stagedBytes.addAndGet(dataFile.length());
+					schedule(jobId, record.get("userName").asText(), dataFile.length());
+				} catch (IOException exception) {
+					LOGGER.error(String.format("Discarding unreadable staged Ingest %s", file.getName()), exception);
+					deleteFiles(jobId);
+				}
+			}
+		}
+		if (!pendingJobs.isEmpty()) {
+			logger.log(String.format("Resuming %s staged Ingest Jobs.", pendingJobs.size()), Severity.INFORMATIONAL);
+		}
+	}
+
+	@PreDestroy
+	public void cleanup() throws InterruptedException {
+		if (stagingExecutor != null) {
+			// Staged files remain on disk, and are resumed on the next start
+			stagingExecutor.shutdownNow();
+			stagingExecutor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Determines if file ingest should be accepted asynchronously.
+	 * 
+	 * @return True if the staging area is enabled
+	 */
+	public boolean isEnabled() {
+		return ASYNC_ENABLED;
+	}
+
+	/**
+	 * Reserves space in the staging area for an upload, if it fits within the byte budget.
+	 * 
+	 * @param bytes
+	 *            The number of bytes to reserve
+	 * @return True if the space was reserved, false if the staging area is full
+	 */
+	public boolean reserve(long bytes) {
+		while (true) {
+			long current = stagedBytes.get();
+			if (current + bytes > STAGING_BUDGET) {
+				rejectedCount.incrementAndGet();
+				return false;
+			}
+			if (stagedBytes.compareAndSet(current, current + bytes)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Writes an uploaded file to the staging area, and schedules it to be pushed to S3 and its Ingest Job submitted.
+	 * Space must have been reserved for the upload using {@link #reserve(long)}; the reservation is adjusted to the
+	 * actual size of the file once it has been written.
+	 * 
+	 * @param jobId
+	 *            The Job Id assigned to the upload
+	 * @param userName
+	 *            The user submitting the upload
+	 * @param job
+	 *            The Ingest Job describing the file
+	 * @param fileName
+	 *            The name of the uploaded file
+	 * @param stream
+	 *            The bytes of the file
+	 * @param expectedMd5
+	 *            The hex MD5 checksum supplied by the client, or null
+	 * @param expectedSha256
+	 *            The hex SHA-256 checksum supplied by the client, or null
+	 * @param reservedBytes
+	 *            The number of bytes reserved for the upload
+	 */
+	public void stage(String jobId, String userName, IngestJob job, String fileName, InputStream stream, String expectedMd5,
+			String expectedSha256, long reservedBytes) throws IOException {
+		long size;
+		try {
+			File dataFile = getDataFile(jobId);
+			size = Files.copy(stream, dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			ObjectNode record = objectMapper.createObjectNode();
+			record.put("userName", userName);
+			record.put("fileName", fileName);
+			record.put("md5", expectedMd5);
+			record.put("sha256", expectedSha256);
+			record.set("job", objectMapper.valueToTree(job));
+			File temporary = new File(stagingDirectory, jobId + ".tmp");
+			objectMapper.writeValue(temporary, record);
+			Files.move(temporary.toPath(), getRecordFile(jobId).toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException exception) {
+			deleteFiles(jobId);
+			stagedBytes.addAndGet(-reservedBytes);
+			throw exception;
+		}
+		stagedBytes.addAndGet(size - reservedBytes);
+		acceptedCount.incrementAndGet();
+		schedule(jobId, userName, size);
+	}
+
+	/**
+	 * Gets the status of a Job that has not yet been submitted to the Job Manager.
+	 * 
+	 * @param jobId
+	 *            The Job Id
+	 * @return The Job, or null if the Job is not staged here
+	 */
+	public Job getJob(String jobId) {
+		Job job = pendingJobs.get(jobId);
+		return job != null ? job : failedJobs.get(jobId);
+	}
+
+	/**
+	 * Gets the current statistics of the staging area, for administrative reporting.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("Enabled", ASYNC_ENABLED);
+		stats.put("Pending", pendingJobs.size());
+		stats.put("Staged Bytes", stagedBytes.get());
+		stats.put("Budget", STAGING_BUDGET);
+		stats.put("Accepted", acceptedCount.get());
+		stats.put("Rejected", rejectedCount.get());
+		stats.put("Submitted", submittedCount.get());
+		stats.put("Failed", failedCount.get());
+		return stats;
+	}
+
+	/**
+	 * Marks a staged upload as pending, and queues it for processing.
+	 */
+	private void schedule(final String jobId, String userName, final long size) {
+		Job job = new Job();
+		job.setJobId(jobId);
+		job.createdBy = userName;
+		job.createdOn = new DateTime();
+		job.status = StatusUpdate.STATUS_PENDING;
+		pendingJobs.put(jobId, job);
+		stagingExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				process(jobId, size);
+			}
+		});
+	}
+
+	/**
+	 * Pushes a staged file to S3 and submits its Ingest Job. The staged files are removed whether or not this
+	 * succeeds, unless the Gateway is shutting down.
+	 */
+	private void process(String jobId, long size) {
+		try {
+			JsonNode record = objectMapper.readTree(getRecordFile(jobId));
+			IngestJob job = objectMapper.treeToValue(record.get("job"), IngestJob.class);
+			String userName = record.get("userName").asText();
+			try (InputStream stream = new FileInputStream(getDataFile(jobId))) {
+				job = gatewayUtil.pushS3File(jobId, job, record.get("fileName").asText(), stream, getText(record, "md5"),
+						getText(record, "sha256"));
+			}
+			PiazzaJobRequest request = new PiazzaJobRequest();
+			request.jobType = job;
+			request.createdBy = userName;
+			gatewayUtil.sendJobRequest(request, jobId);
+			submittedCount.incrementAndGet();
+			logger.log(String.format("Submitted staged Ingest Job %s", jobId), Severity.INFORMATIONAL,
+					new AuditElement(userName, "successLoadFile", jobId));
+		} catch (Exception exception) {
+			if (Thread.currentThread().isInterrupted()) {
+				// Shutting down; leave the staged files to be resumed on the next start
+				return;
+			}
+			String error = String.format("Error loading staged file for Job %s: %s", jobId, exception.getMessage());
+			LOGGER.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			Job failed = pendingJobs.get(jobId);
+			failed.status = StatusUpdate.STATUS_ERROR;
+			failed.result = new ErrorResult("The uploaded file could not be loaded.", exception.getMessage());
+			failedJobs.put(jobId, failed);
+			failedCount.incrementAndGet();
+			sendErrorStatus(jobId, failed);
+		}
+		pendingJobs.remove(jobId);
+		deleteFiles(jobId);
+		stagedBytes.addAndGet(-size);
+	}
+
+	/**
+	 * Sends the Error status of a Job that failed before it could be submitted to the Job Manager, so that the failure
+	 * is reported no matter which Gateway instance is asked for the status of the Job.
+	 */
+	private void sendErrorStatus(String jobId, Job failed) {
+		StatusUpdate statusUpdate = new StatusUpdate(StatusUpdate.STATUS_ERROR);
+		statusUpdate.setResult(failed.result);
+		try {
+			gatewayUtil.sendKafkaMessage(JobMessageFactory.getUpdateStatusMessage(jobId, statusUpdate, SPACE));
+		} catch (Exception exception) {
+			LOGGER.error(String.format("Could not send the Error status of staged Job %s to the Job Manager", jobId), exception);
+		}
+	}
+
+	private String getText(JsonNode record, String field) {
+		return record.hasNonNull(field) ? record.get(field).asText() : null;
+	}
+
+	private void deleteFiles(String jobId) {
+		try {
+			Files.deleteIfExists(getDataFile(jobId).toPath());
+			Files.deleteIfExists(getRecordFile(jobId).toPath());
+		} catch (IOException exception) {
+			LOGGER.warn(String.format("Could not delete staged files for Job %s", jobId), exception);
+		}
+	}
+
+	private File getDataFile(String jobId) {
+		return new File(stagingDirectory, jobId + ".dat");
+	}
+
+	private File getRecordFile(String jobId) {
+		return new File(stagingDirectory, jobId + ".json");
+	}
+}
@@ -0,0 +1,499 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.kafka.common.errors.ApiException;
+import org.apache.kafka.common.errors.RetriableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import exception.PiazzaJobException;
+import model.logger.AuditElement;
+import model.logger.Severity;
+import model.request.PiazzaJobRequest;
+import util.PiazzaLogger;
+
+/**
+ * Durable outbox for Job Requests. When enabled, Job Requests are appended to a memory-mapped file and acknowledged to
+ * the client immediately, and a background drainer forwards them to the Job Manager. This keeps Job submission
+ * available while the Job Manager (or Kafka) is unreachable.
+ * <p>
+ * Each record in the file is laid out as a 4-byte payload length, a 1-byte status, and the JSON payload containing the
+ * Job Id and the Job Request. The length is written last, so a record that was only partially written before a crash
+ * is treated as the end of the file. The space of forwarded records is reclaimed by copying the pending records to a
+ * new file that atomically replaces the old one. Records that are still pending on startup are replayed. Because the Job Id is
+ * assigned before the record is written, a replayed record always carries the same Job Id as the original.
+ * </p>
+ * <p>
+ * Requests are forwarded in order for each user: if one request for a user fails, then the later requests for that
+ * user wait for the next pass. Requests for other users are not held up.
+ * </p>
+ * <p>
+ * Only failures that may succeed on a later pass, such as the Job Manager or Kafka being unreachable, are retried. A
+ * request that the Job Manager rejects outright is dead-lettered instead: its record is marked as failed, and the
+ * failure is logged against its Job Id, so that it does not hold up the later requests of the same user.
+ * </p>
+ */
+@Component
+public class JobOutbox {
+	@Autowired
+	private GatewayUtil gatewayUtil;
+	@Autowired
+	private ObjectMapper objectMapper;
+	@Autowired
+	private PiazzaLogger logger;
+	@Autowired
+	private ExecutorService upstreamExecutor;
+
+	@Value("${outbox.enabled}")
+	private boolean OUTBOX_ENABLED;
+	@Value("${outbox.file}")
+	private String OUTBOX_FILE;
+	@Value("${outbox.size}")
+	private int OUTBOX_SIZE;
+	@Value("${outbox.interval}")
+	private long DRAIN_INTERVAL;
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(JobOutbox.class);
+	private static final int HEADER_SIZE = 5;
+	private static final byte STATUS_PENDING = 0;
+	private static final byte STATUS_FORWARDED = 1;
+	private static final byte STATUS_FAILED = 2;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+	private int writePosition;
+	private final List<Entry> pending = new ArrayList<Entry>();
+	private ScheduledExecutorService drainExecutor;
+	private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+	// Statistics
+	private final AtomicLong appendCount = new AtomicLong();
+	private final AtomicLong forwardCount = new AtomicLong();
+	private final AtomicLong forwardFailures = new AtomicLong();
+	private final AtomicLong deadLetterCount = new AtomicLong();
+	private final AtomicLong compactionCount = new AtomicLong();
+
+	/**
+	 * Maps the outbox file, loads any records left pending from a previous run, and starts the drainer.
+	 */
+	@PostConstruct
+	public void init() throws IOException {
+		if (!OUTBOX_ENABLED) {
+			return;
+		}
+		file = new RandomAccessFile(OUTBOX_FILE, "rw");
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(file.length(), OUTBOX_SIZE));
+		load();
+		if (!pending.isEmpty()) {
+			logger.log(String.format("Replaying %s pending Job Requests from the Job Outbox.", pending.size()), Severity.INFORMATIONAL);
+		}
+		drainExecutor = Executors.newSingleThreadScheduledExecutor();
+		drainExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				scheduleDrain();
+			}
+		}, 0, DRAIN_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void cleanup() throws IOException {
+		if (drainExecutor != null) {
+			drainExecutor.shutdownNow();
+		}
+		if (file != null) {
+			synchronized (this) {
+				buffer.force();
+			}
+			file.close();
+		}
+	}
+
+	/**
+	 * Determines if Job Requests should be written to the outbox rather than forwarded directly.
+	 * 
+	 * @return True if the outbox is enabled
+	 */
+	public boolean isEnabled() {
+		return OUTBOX_ENABLED;
+	}
+
+	/**
+	 * Durably appends a Job Request to the outbox. Once this returns, the Job Request will be forwarded to the Job
+	 * Manager even if the Gateway restarts.
+	 * 
+	 * @param request
+	 *            The Job Request
+	 * @param jobId
+	 *            The Job Id assigned to the request
+	 */
+	public void append(PiazzaJobRequest request, String jobId) throws PiazzaJobException {
+		byte[] payload;
+		try {
+			ObjectNode record = objectMapper.createObjectNode();
+			record.put("jobId", jobId);
+			record.set("request", objectMapper.valueToTree(request));
+			payload = objectMapper.writeValueAsBytes(record);
+		} catch (Exception exception) {
+			throw new PiazzaJobException(String.format("Could not serialize Job Request %s: %s", jobId, exception.getMessage()));
+		}
+		synchronized (this) {
+			if (!hasRoom(payload.length)) {
+				compact();
+				if (!hasRoom(payload.length)) {
+					throw new PiazzaJobException("The Job Outbox is full. Please try again later.");
+				}
+			}
+			int offset = writePosition;
+			buffer.position(offset + HEADER_SIZE);
+			buffer.put(payload);
+			buffer.put(offset + 4, STATUS_PENDING);
+			// Terminate the log after this record before the record's length makes it visible
+			writePosition = offset + HEADER_SIZE + payload.length;
+			if (writePosition + 4 <= buffer.capacity()) {
+				buffer.putInt(writePosition, 0);
+			}
+			buffer.putInt(offset, payload.length);
+			buffer.force();
+			pending.add(new Entry(offset, payload.length, jobId, request));
+		}
+		appendCount.incrementAndGet();
+		scheduleDrain();
+	}
+
+	/**
+	 * Forwards all pending Job Requests to the Job Manager. Each user's requests are forwarded in order on the upstream
+	 * executor; a failure stops that user's requests until the next pass.
+	 */
+	public void drain() {
+		Map<String, List<Entry>> entriesByUser = new LinkedHashMap<String, List<Entry>>();
+		synchronized (this) {
+			for (Entry entry : pending) {
+				List<Entry> entries = entriesByUser.get(entry.request.createdBy);
+				if (entries == null) {
+					entries = new ArrayList<Entry>();
+					entriesByUser.put(entry.request.createdBy, entries);
+				}
+				entries.add(entry);
+			}
+		}
+		List<Future<?>> forwards = new ArrayList<Future<?>>();
+		for (final List<Entry> entries : entriesByUser.values()) {
+			forwards.add(upstreamExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					forward(entries);
+				}
+			}));
+		}
+		for (Future<?> forward : forwards) {
+			try {
+				forward.get();
+			} catch (ExecutionException exception) {
+				LOGGER.error("Error draining Job Outbox.", exception);
+			} catch (InterruptedException exception) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		synchronized (this) {
+			reclaim();
+		}
+	}
+
+	/**
+	 * Gets the current statistics of the outbox, for administrative reporting.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("Enabled", OUTBOX_ENABLED);
+		synchronized (this) {
+			stats.put("Pending", pending.size());
+			stats.put("Bytes Used", writePosition);
+		}
+		stats.put("Capacity", buffer == null ? 0 : buffer.capacity());
+		stats.put("Appended", appendCount.get());
+		stats.put("Forwarded", forwardCount.get());
+		stats.put("Forward Failures", forwardFailures.get());
+		stats.put("Dead Letters", deadLetterCount.get());
+		stats.put("Compactions", compactionCount.get());
+		return stats;
+	}
+
+	/**
+	 * Forwards one user's Job Requests in order, stopping at the first failure that may be retried.
+	 * 
+	 * @param entries
+	 *            The pending entries for a single user, in the order they were appended
+	 */
+	private void forward(List<Entry> entries) {
+		for (Entry entry : entries) {
+			try {
+				gatewayUtil.forwardJobRequest(entry.request, entry.jobId);
+			} catch (Exception exception) {
+				forwardFailures.incrementAndGet();
+				if (isPermanentFailure(exception)) {
+					deadLetter(entry, exception);
+					continue;
+				}
+				LOGGER.warn(String.format("Could not forward Job %s from the Job Outbox; will retry: %s", entry.jobId,
+						exception.getMessage()), exception);
+				return;
+			}
+			synchronized (this) {
+				buffer.put(entry.offset + 4, STATUS_FORWARDED);
+				// Persist the status, so that a restart does not forward the request again
+				buffer.force();
+				pending.remove(entry);
+			}
+			forwardCount.incrementAndGet();
+			logger.log(String.format("Forwarded Job %s from the Job Outbox", entry.jobId), Severity.INFORMATIONAL,
+					new AuditElement(entry.request.createdBy, "forwardedOutboxJob", entry.jobId));
+		}
+	}
+
+	/**
+	 * Marks a Job Request that can never be forwarded as failed, so that it is neither retried nor replayed, and logs
+	 * the failure against its Job Id.
+	 * 
+	 * @param entry
+	 *            The rejected entry
+	 * @param exception
+	 *            The reason the Job Request was rejected
+	 */
+	private void deadLetter(Entry entry, Exception exception) {
+		synchronized (this) {
+			buffer.put(entry.offset + 4, STATUS_FAILED);
+			buffer.force();
+			pending.remove(entry);
+		}
+		deadLetterCount.incrementAndGet();
+		LOGGER.error(String.format("Job %s from the Job Outbox was rejected and will not be retried.", entry.jobId), exception);
+		logger.log(String.format("Job Request at Gateway failed for Job %s: %s", entry.jobId, exception.getMessage()), Severity.ERROR,
+				new AuditElement(entry.request.createdBy, "failedRequestJob", entry.jobId));
+	}
+
+	/**
+	 * Determines if a failure to forward a Job Request would recur on every attempt. The Job Manager rejecting the
+	 * request, a request that cannot be serialized, and a non-retriable Kafka error are permanent; anything else, such
+	 * as a connection failure or a server error, may succeed on a later pass.
+	 * 
+	 * @param exception
+	 *            The failure
+	 * @return True if the Job Request should not be retried
+	 */
+	private static boolean isPermanentFailure(Exception exception) {
+		if (exception instanceof HttpClientErrorException) {
+			HttpStatus status = ((HttpClientErrorException) exception).getStatusCode();
+			return (status != HttpStatus.REQUEST_TIMEOUT) && (status != HttpStatus.TOO_MANY_REQUESTS);
+		}
+		if ((exception instanceof PiazzaJobException) || (exception instanceof JsonProcessingException)) {
+			return true;
+		}
+		Throwable cause = exception instanceof ExecutionException ? exception.getCause() : exception;
+		return (cause instanceof ApiException) && !(cause instanceof RetriableException);
+	}
+
+	/**
+	 * Queues a drain of the outbox on the background thread, unless one is already queued.
+	 */
+	private void scheduleDrain() {
+		if (drainScheduled.compareAndSet(false, true)) {
+			drainExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						drain();
+					} finally {
+						drainScheduled.set(false);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Reads all records in the outbox file, collecting those that are still pending. Must only be called on startup.
+	 */
+	private void load() {
+		int position = 0;
+		while (position + HEADER_SIZE <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if ((length <= 0) || (position + HEADER_SIZE + length > buffer.capacity())) {
+				break;
+			}
+			if (buffer.get(position + 4) == STATUS_PENDING) {
+				byte[] payload = new byte[length];
+				buffer.position(position + HEADER_SIZE);
+				buffer.get(payload);
+				try {
+					JsonNode record = objectMapper.readTree(payload);
+					PiazzaJobRequest request = objectMapper.treeToValue(record.get("request"), PiazzaJobRequest.class);
+					pending.add(new Entry(position, length, record.get("jobId").asText(), request));
+				} catch (Exception exception) {
+					// Do not block the outbox on a record that can never be forwarded
+					LOGGER.error(String.format("Discarding unreadable Job Outbox record at offset %s", position), exception);
+					buffer.put(position + 4, STATUS_FAILED);
+				}
+			}
+			position += HEADER_SIZE + length;
+		}
+		writePosition = position;
+		reclaim();
+	}
+
+	/**
+	 * Reclaims the space used by forwarded records, if it is worth doing. When nothing is pending the log is simply
+	 * truncated; otherwise it is compacted once forwarded records take up more than half of the file. Must be called
+	 * while holding the lock.
+	 */
+	private void reclaim() {
+		if (pending.isEmpty()) {
+			if (writePosition > 0) {
+				// Every record is forwarded, so a torn write here cannot lose a pending record
+				buffer.putInt(0, 0);
+				buffer.force();
+				writePosition = 0;
+			}
+		} else if (writePosition - getPendingBytes() > buffer.capacity() / 2) {
+			compact();
+		}
+	}
+
+	/**
+	 * Copies all pending records to the start of a new file, which then atomically replaces the outbox file. The
+	 * existing file is never modified, so a crash during compaction leaves either the old or the new file intact. Must
+	 * be called while holding the lock.
+	 */
+	private void compact() {
+		Path compactPath = Paths.get(OUTBOX_FILE + ".compact");
+		RandomAccessFile compactFile = null;
+		try {
+			Files.deleteIfExists(compactPath);
+			compactFile = new RandomAccessFile(compactPath.toFile(), "rw");
+			MappedByteBuffer compactBuffer = compactFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, buffer.capacity());
+			int[] offsets = new int[pending.size()];
+			int position = 0;
+			for (int index = 0; index < pending.size(); index++) {
+				Entry entry = pending.get(index);
+				byte[] record = new byte[HEADER_SIZE + entry.length];
+				buffer.position(entry.offset);
+				buffer.get(record);
+				compactBuffer.position(position);
+				compactBuffer.put(record);
+				offsets[index] = position;
+				position += record.length;
+			}
+			if (position + 4 <= compactBuffer.capacity()) {
+				compactBuffer.putInt(position, 0);
+			}
+			compactBuffer.force();
+			Files.move(compactPath, Paths.get(OUTBOX_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+			// The new file is now the outbox
+			file.close();
+			file = compactFile;
+			buffer = compactBuffer;
+			for (int index = 0; index < pending.size(); index++) {
+				pending.get(index).offset = offsets[index];
+			}
+			writePosition = position;
+			compactionCount.incrementAndGet();
+		} catch (IOException exception) {
+			LOGGER.error("Could not compact the Job Outbox; keeping the existing file.", exception);
+			if (compactFile != null) {
+				try {
+					compactFile.close();
+				} catch (IOException closeException) {
+					LOGGER.error("Could not close the compacted Job Outbox file.", closeException);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of bytes taken up by pending records. Must be called while holding the lock.
+	 */
+	private int getPendingBytes() {
+		int bytes = 0;
+		for (Entry entry : pending) {
+			bytes += HEADER_SIZE + entry.length;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Determines if there is room to append a payload of the specified length. Must be called while holding the lock.
+	 */
+	private boolean hasRoom(int length) {
+		return writePosition + HEADER_SIZE + length <= buffer.capacity();
+	}
+
+	/**
+	 * A pending record in the outbox.
+	 */
+	private static class Entry {
+		private int offset;
+		private final int length;
+		private final String jobId;
+		private final PiazzaJobRequest request;
+
+		private Entry(int offset, int length, String jobId, PiazzaJobRequest request) {
+			this.offset = offset;
+			this.length = length;
+			this.jobId = jobId;
+			this.request = request;
+		}
+	}
+}
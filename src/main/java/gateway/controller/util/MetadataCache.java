@@ -0,0 +1,379 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import exception.InvalidInputException;
+import model.response.ErrorResponse;
+import model.response.PiazzaResponse;
+
+/**
+ * Short-lived cache of the metadata of Piazza resources, such as Data, Services and Deployments, used to serve
+ * multi-get requests. Resources not in the cache are fetched from their owning component in parallel, on a dedicated
+ * pool of threads which bounds the number of concurrent fetches across all requests.
+ * <p>
+ * Entries expire after a short time, since the resources may be changed through other Gateway instances. Changes made
+ * through this Gateway invalidate the cached entry immediately. Callers may instead supply an {@link ExpiryPolicy} to
+ * decide how long each response is cached, such as to cache only resources which can no longer change.
+ * </p>
+ */
+@Component
+public class MetadataCache {
+	@Autowired
+	private RestTemplate restTemplate;
+	@Autowired
+	private GatewayUtil gatewayUtil;
+
+	@Value("${metadata.cache.ttl}")
+	private long CACHE_TTL_SECONDS;
+	@Value("${metadata.cache.size}")
+	private int CACHE_SIZE;
+	@Value("${multiget.threads}")
+	private int FETCH_THREADS;
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(MetadataCache.class);
+	private static final char[] INVALID_ID_CHARACTERS = { '/', '\\', '?', '#', '%' };
+
+	private ExecutorService fetchExecutor;
+	private Map<String, CachedResponse> cache;
+	private final ExpiryPolicy defaultExpiryPolicy = new ExpiryPolicy() {
+		@Override
+		public long getTtlSeconds(PiazzaResponse response) {
+			return CACHE_TTL_SECONDS;
+		}
+	};
+
+	// Statistics
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	@PostConstruct
+	public void init() {
+		// Fetches run as the requesting user, so that upstream calls are audited and fair-queued under that user
+		fetchExecutor = new DelegatingSecurityContextExecutorService(Executors.newFixedThreadPool(FETCH_THREADS));
+		cache = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+				return size() > CACHE_SIZE;
+			}
+		};
+	}
+
+	@PreDestroy
+	public void cleanup() {
+		fetchExecutor.shutdownNow();
+	}
+
+	/**
+	 * Gets the metadata of a number of resources of the same type. Duplicate Ids are only fetched once. Each resource
+	 * is taken from the cache if present, and otherwise fetched from the specified URL.
+	 * 
+	 * @param type
+	 *            The type of resource, such as "data", used to separate the Ids of different types in the cache
+	 * @param ids
+	 *            The Ids of the resources
+	 * @param urlFormat
+	 *            The URL to fetch a single resource from, with a %s placeholder for its Id
+	 * @param responseType
+	 *            The type of the response to a single fetch
+	 * @return The response for each distinct Id, in the order first requested. Each is either the metadata of the
+	 *         resource, or an ErrorResponse describing why it could not be fetched.
+	 */
+	public Map<String, PiazzaResponse> getAll(String type, Collection<String> ids, String urlFormat,
+			Class<? extends PiazzaResponse> responseType) {
+		return getAll(type, ids, urlFormat, responseType, defaultExpiryPolicy);
+	}
+
+	/**
+	 * Gets the metadata of a number of resources of the same type, caching each fetched resource for as long as the
+	 * specified policy allows.
+	 * 
+	 * @see #getAll(String, Collection, String, Class)
+	 * 
+	 * @param expiryPolicy
+	 *            Decides how long each successfully fetched resource is cached
+	 */
+	public Map<String, PiazzaResponse> getAll(String type, Collection<String> ids, String urlFormat,
+			Class<? extends PiazzaResponse> responseType, ExpiryPolicy expiryPolicy) {
+		Map<String, Lookup> lookups = new LinkedHashMap<String, Lookup>();
+		for (String id : new LinkedHashSet<String>(ids)) {
+			lookups.put(id, lookup(type, id, urlFormat, responseType, expiryPolicy));
+		}
+		// Wait on the fetches only once all have been started
+		Map<String, PiazzaResponse> results = new LinkedHashMap<String, PiazzaResponse>();
+		for (Map.Entry<String, Lookup> lookup : lookups.entrySet()) {
+			results.put(lookup.getKey(), lookup.getValue().get());
+		}
+		return results;
+	}
+
+	/**
+	 * Starts looking up the metadata of a single resource, without waiting for it to be fetched. This allows resources
+	 * of different types to be fetched concurrently.
+	 * 
+	 * @param type
+	 *            The type of resource, such as "data"
+	 * @param id
+	 *            The Id of the resource
+	 * @param urlFormat
+	 *            The URL to fetch the resource from, with a %s placeholder for its Id
+	 * @param responseType
+	 *            The type of the response to the fetch
+	 * @return The lookup, which is completed by calling {@link Lookup#get()}
+	 */
+	public Lookup lookup(String type, String id, String urlFormat, Class<? extends PiazzaResponse> responseType) {
+		return lookup(type, id, urlFormat, responseType, defaultExpiryPolicy);
+	}
+
+	private Lookup lookup(String type, final String id, final String urlFormat, final Class<? extends PiazzaResponse> responseType,
+			ExpiryPolicy expiryPolicy) {
+		if (!isValidId(id)) {
+			return new Lookup(type, id, new ErrorResponse(String.format("%s is not a valid %s Id.", id, type), "Gateway"), null,
+					expiryPolicy);
+		}
+		PiazzaResponse cached = get(type, id);
+		if (cached != null) {
+			return new Lookup(type, id, cached, null, expiryPolicy);
+		}
+		Future<PiazzaResponse> fetch = fetchExecutor.submit(new Callable<PiazzaResponse>() {
+			@Override
+			public PiazzaResponse call() throws Exception {
+				return restTemplate.getForEntity(getUrl(urlFormat, id), responseType).getBody();
+			}
+		});
+		return new Lookup(type, id, null, fetch, expiryPolicy);
+	}
+
+	/**
+	 * Removes a resource from the cache, such as when it has been updated or deleted.
+	 * 
+	 * @param type
+	 *            The type of resource
+	 * @param id
+	 *            The Id of the resource
+	 */
+	public void invalidate(String type, String id) {
+		synchronized (cache) {
+			cache.remove(getKey(type, id));
+		}
+	}
+
+	/**
+	 * Gets the current statistics of the cache, for administrative reporting.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		synchronized (cache) {
+			stats.put("Entries", cache.size());
+		}
+		stats.put("Hits", hitCount.get());
+		stats.put("Misses", missCount.get());
+		return stats;
+	}
+
+	private PiazzaResponse get(String type, String id) {
+		synchronized (cache) {
+			CachedResponse cached = cache.get(getKey(type, id));
+			if ((cached != null) && (cached.expiresOn > System.currentTimeMillis())) {
+				hitCount.incrementAndGet();
+				return cached.response;
+			}
+		}
+		missCount.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Waits on the fetch of a single resource, caching the result if it succeeded.
+	 */
+	private PiazzaResponse getFetchResult(String type, String id, Future<PiazzaResponse> fetch, ExpiryPolicy expiryPolicy) {
+		try {
+			PiazzaResponse response = fetch.get();
+			long ttlSeconds = ((response != null) && !(response instanceof ErrorResponse)) ? expiryPolicy.getTtlSeconds(response) : 0;
+			if (ttlSeconds > 0) {
+				synchronized (cache) {
+					cache.put(getKey(type, id), new CachedResponse(response, System.currentTimeMillis() + ttlSeconds * 1000));
+				}
+			}
+			return response;
+		} catch (ExecutionException exception) {
+			Throwable cause = exception.getCause();
+			if (cause instanceof HttpClientErrorException) {
+				return gatewayUtil.getErrorResponse(((HttpClientErrorException) cause).getResponseBodyAsString());
+			} else if (cause instanceof HttpServerErrorException) {
+				return gatewayUtil.getErrorResponse(((HttpServerErrorException) cause).getResponseBodyAsString());
+			}
+			LOGGER.error(String.format("Error fetching %s %s", type, id), cause);
+			return new ErrorResponse(String.format("Error fetching %s %s: %s", type, id, cause.getMessage()), "Gateway");
+		} catch (InterruptedException exception) {
+			LOGGER.error(String.format("Interrupted while fetching %s %s", type, id), exception);
+			Thread.currentThread().interrupt();
+			return new ErrorResponse(String.format("Fetching %s %s was interrupted.", type, id), "Gateway");
+		}
+	}
+
+	/**
+	 * Builds the URL to fetch a resource from, with its Id encoded as a single path segment.
+	 */
+	private static URI getUrl(String urlFormat, String id) {
+		return UriComponentsBuilder.fromHttpUrl(String.format(urlFormat, "{id}")).buildAndExpand(id).encode().toUri();
+	}
+
+	private static String getKey(String type, String id) {
+		return String.format("%s/%s", type, id);
+	}
+
+	/**
+	 * Determines if an Id may be used as a single segment of the path to a resource. Ids which could change the path
+	 * or query of the request made to the owning component are not valid.
+	 * 
+	 * @param id
+	 *            The Id of the resource
+	 * @return True if the Id is valid
+	 */
+	public static boolean isValidId(String id) {
+		if ((id == null) || id.isEmpty() || ".".equals(id) || "..".equals(id)) {
+			return false;
+		}
+		for (char character : INVALID_ID_CHARACTERS) {
+			if (id.indexOf(character) != -1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks that every Id of a request may be used to fetch a resource.
+	 * 
+	 * @param ids
+	 *            The Ids requested
+	 * @throws InvalidInputException
+	 *             If any Id is not valid
+	 */
+	public static void validateIds(Collection<String> ids) throws InvalidInputException {
+		for (String id : ids) {
+			if (!isValidId(id)) {
+				throw new InvalidInputException(String.format("%s is not a valid Id.", id));
+			}
+		}
+	}
+
+	/**
+	 * Parses a comma-separated list of Ids, ignoring blank entries.
+	 * 
+	 * @param ids
+	 *            The comma-separated Ids
+	 * @return The list of Ids
+	 */
+	public static List<String> parseIds(String ids) {
+		List<String> parsed = new ArrayList<String>();
+		for (String id : ids.split(",")) {
+			if (!id.trim().isEmpty()) {
+				parsed.add(id.trim());
+			}
+		}
+		return parsed;
+	}
+
+	/**
+	 * Decides how long a fetched response may be cached.
+	 */
+	public interface ExpiryPolicy {
+		/**
+		 * @param response
+		 *            The fetched response
+		 * @return The number of seconds to cache the response for, or zero if it must not be cached
+		 */
+		long getTtlSeconds(PiazzaResponse response);
+	}
+
+	/**
+	 * The lookup of a single resource, which may still be being fetched.
+	 */
+	public class Lookup {
+		private final String type;
+		private final String id;
+		private final Future<PiazzaResponse> fetch;
+		private final ExpiryPolicy expiryPolicy;
+		private PiazzaResponse response;
+
+		private Lookup(String type, String id, PiazzaResponse response, Future<PiazzaResponse> fetch, ExpiryPolicy expiryPolicy) {
+			this.type = type;
+			this.id = id;
+			this.response = response;
+			this.fetch = fetch;
+			this.expiryPolicy = expiryPolicy;
+		}
+
+		/**
+		 * Waits for the resource to be fetched, if it was not cached.
+		 * 
+		 * @return The metadata of the resource, or an ErrorResponse describing why it could not be fetched
+		 */
+		public PiazzaResponse get() {
+			if (response == null) {
+				response = getFetchResult(type, id, fetch, expiryPolicy);
+			}
+			return response;
+		}
+	}
+
+	/**
+	 * A cached response, and the time it expires.
+	 */
+	private static class CachedResponse {
+		private final PiazzaResponse response;
+		private final long expiresOn;
+
+		private CachedResponse(PiazzaResponse response, long expiresOn) {
+			this.response = response;
+			this.expiresOn = expiresOn;
+		}
+	}
+}
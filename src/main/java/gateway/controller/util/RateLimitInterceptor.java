@@ -0,0 +1,85 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import gateway.auth.PiazzaAuthenticationToken;
+import model.response.ErrorResponse;
+
+/**
+ * Applies the {@link RateLimiter} to every request handled by the Gateway's controllers, including each request within
+ * a batch. Requests are limited per authenticated user, or per client address if unauthenticated. Every limited
+ * response carries the limit and the number of requests remaining; a request over the limit is answered with 429 Too
+ * Many Requests and the number of seconds to wait before retrying.
+ */
+@Component
+public class RateLimitInterceptor extends HandlerInterceptorAdapter {
+	@Autowired
+	private RateLimiter rateLimiter;
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	public static final String LIMIT_HEADER = "X-RateLimit-Limit";
+	public static final String REMAINING_HEADER = "X-RateLimit-Remaining";
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+		if (!rateLimiter.isEnabled()) {
+			return true;
+		}
+		RateLimiter.RouteClass routeClass = RateLimiter.RouteClass.classify(request.getMethod(), request.getServletPath());
+		long result = rateLimiter.tryAcquire(getKey(request), routeClass);
+		response.setHeader(LIMIT_HEADER, rateLimiter.getLimitHeader(routeClass));
+		response.setHeader(REMAINING_HEADER, rateLimiter.getRemainingHeader(routeClass, Math.max(result, 0)));
+		if (result >= 0) {
+			return true;
+		}
+		long retrySeconds = Math.max(1, (-result + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+		response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retrySeconds));
+		response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+		response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+		objectMapper.writeValue(response.getOutputStream(), new ErrorResponse(
+				String.format("Too many %s requests. Please retry after %s seconds.", routeClass.name().toLowerCase(), retrySeconds),
+				"Gateway"));
+		return false;
+	}
+
+	/**
+	 * Gets the key the request is limited under: the name of the authenticated user, or the address of the client.
+	 */
+	private static String getKey(HttpServletRequest request) {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		if (authentication instanceof PiazzaAuthenticationToken) {
+			return authentication.getName();
+		}
+		return request.getRemoteAddr();
+	}
+}
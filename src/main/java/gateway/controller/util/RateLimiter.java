@@ -0,0 +1,277 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Per-user rate limits on requests to the Gateway. Each user has a token bucket for every class of route, so that a
+ * user polling for tasks or uploading files does not use up the allowance for ordinary reads and writes. A bucket
+ * refills at a steady rate up to its burst size, and each request takes one token.
+ * <p>
+ * Buckets are kept as a single theoretical arrival time, updated with compare-and-set, so checks from many threads
+ * never block one another and checking a request for a user already seen allocates nothing. Buckets which have been
+ * idle long enough to have refilled completely are indistinguishable from new ones, and are periodically evicted.
+ * </p>
+ */
+@Component
+public class RateLimiter {
+	@Value("${rate.limit.enabled}")
+	private boolean ENABLED;
+	@Value("${rate.limit.read.rate}")
+	private double READ_RATE;
+	@Value("${rate.limit.read.burst}")
+	private int READ_BURST;
+	@Value("${rate.limit.write.rate}")
+	private double WRITE_RATE;
+	@Value("${rate.limit.write.burst}")
+	private int WRITE_BURST;
+	@Value("${rate.limit.upload.rate}")
+	private double UPLOAD_RATE;
+	@Value("${rate.limit.upload.burst}")
+	private int UPLOAD_BURST;
+	@Value("${rate.limit.poll.rate}")
+	private double POLL_RATE;
+	@Value("${rate.limit.poll.burst}")
+	private int POLL_BURST;
+	@Value("${rate.limit.idle}")
+	private long IDLE_SECONDS;
+
+	private final ConcurrentHashMap<String, Bucket[]> buckets = new ConcurrentHashMap<String, Bucket[]>();
+	private final long[] intervalNanos = new long[RouteClass.COUNT];
+	private final long[] toleranceNanos = new long[RouteClass.COUNT];
+	private final String[] limitHeaders = new String[RouteClass.COUNT];
+	private final String[][] remainingHeaders = new String[RouteClass.COUNT][];
+	private ScheduledExecutorService evictionExecutor;
+
+	// Statistics
+	private final LongAdder[] allowedCounts = new LongAdder[RouteClass.COUNT];
+	private final LongAdder[] rejectedCounts = new LongAdder[RouteClass.COUNT];
+	private final AtomicLong evictedCount = new AtomicLong();
+
+	/**
+	 * Computes the refill interval of each class of route, and starts evicting idle buckets.
+	 */
+	@PostConstruct
+	public void init() {
+		configure(RouteClass.READ, READ_RATE, READ_BURST);
+		configure(RouteClass.WRITE, WRITE_RATE, WRITE_BURST);
+		configure(RouteClass.UPLOAD, UPLOAD_RATE, UPLOAD_BURST);
+		configure(RouteClass.POLL, POLL_RATE, POLL_BURST);
+		if (!ENABLED) {
+			return;
+		}
+		evictionExecutor = Executors.newSingleThreadScheduledExecutor();
+		evictionExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdle();
+			}
+		}, IDLE_SECONDS, IDLE_SECONDS, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void cleanup() {
+		if (evictionExecutor != null) {
+			evictionExecutor.shutdownNow();
+		}
+	}
+
+	private void configure(RouteClass routeClass, double rate, int burst) {
+		int index = routeClass.ordinal();
+		intervalNanos[index] = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		toleranceNanos[index] = intervalNanos[index] * (burst - 1);
+		limitHeaders[index] = String.valueOf(burst);
+		remainingHeaders[index] = new String[burst];
+		for (int remaining = 0; remaining < burst; remaining++) {
+			remainingHeaders[index][remaining] = String.valueOf(remaining);
+		}
+		allowedCounts[index] = new LongAdder();
+		rejectedCounts[index] = new LongAdder();
+	}
+
+	/**
+	 * Determines if rate limits are applied to requests.
+	 * 
+	 * @return True if rate limits are enabled
+	 */
+	public boolean isEnabled() {
+		return ENABLED;
+	}
+
+	/**
+	 * Takes a token for a request from the user's bucket for its class of route.
+	 * 
+	 * @param key
+	 *            The user making the request
+	 * @param routeClass
+	 *            The class of route requested
+	 * @return If the request is allowed, the number of tokens left in the bucket, which is zero or more. If the request
+	 *         is not allowed, the negated number of nanoseconds until a token will be available.
+	 */
+	public long tryAcquire(String key, RouteClass routeClass) {
+		int index = routeClass.ordinal();
+		long now = System.nanoTime();
+		Bucket bucket = getBuckets(key, now)[index];
+		long interval = intervalNanos[index];
+		long tolerance = toleranceNanos[index];
+		while (true) {
+			long arrival = bucket.get();
+			long start = arrival - now < 0 ? now : arrival;
+			long ahead = start - now;
+			if (ahead > tolerance) {
+				rejectedCounts[index].increment();
+				return -(ahead - tolerance);
+			}
+			if (bucket.compareAndSet(arrival, start + interval)) {
+				allowedCounts[index].increment();
+				return (tolerance - ahead) / interval;
+			}
+		}
+	}
+
+	/**
+	 * Gets the buckets of a user, creating them if this is the first request from the user since they were last evicted.
+	 */
+	private Bucket[] getBuckets(String key, long now) {
+		Bucket[] userBuckets = buckets.get(key);
+		if (userBuckets == null) {
+			Bucket[] created = new Bucket[RouteClass.COUNT];
+			for (int index = 0; index < created.length; index++) {
+				created[index] = new Bucket(now);
+			}
+			userBuckets = buckets.putIfAbsent(key, created);
+			if (userBuckets == null) {
+				userBuckets = created;
+			}
+		}
+		return userBuckets;
+	}
+
+	/**
+	 * Removes the buckets of users who have been idle long enough for all of their buckets to have refilled. A request
+	 * racing with the eviction of its buckets may take its token from the evicted copy, which is harmless since that
+	 * bucket was full.
+	 */
+	public void evictIdle() {
+		long now = System.nanoTime();
+		long idleNanos = TimeUnit.SECONDS.toNanos(IDLE_SECONDS);
+		for (Map.Entry<String, Bucket[]> entry : buckets.entrySet()) {
+			boolean idle = true;
+			for (Bucket bucket : entry.getValue()) {
+				if (now - bucket.get() < idleNanos) {
+					idle = false;
+					break;
+				}
+			}
+			if (idle && buckets.remove(entry.getKey(), entry.getValue())) {
+				evictedCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return The value of the limit header for a class of route, which is its burst size
+	 */
+	public String getLimitHeader(RouteClass routeClass) {
+		return limitHeaders[routeClass.ordinal()];
+	}
+
+	/**
+	 * @return The value of the remaining header for a number of tokens left in a bucket of a class of route
+	 */
+	public String getRemainingHeader(RouteClass routeClass, long remaining) {
+		String[] headers = remainingHeaders[routeClass.ordinal()];
+		return remaining < headers.length ? headers[(int) remaining] : String.valueOf(remaining);
+	}
+
+	/**
+	 * Gets the current statistics of the rate limits, for administrative reporting.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("Enabled", ENABLED);
+		stats.put("Users", buckets.size());
+		stats.put("Evicted", evictedCount.get());
+		for (RouteClass routeClass : RouteClass.values()) {
+			Map<String, Object> classStats = new HashMap<String, Object>();
+			classStats.put("Limit", limitHeaders[routeClass.ordinal()]);
+			classStats.put("Allowed", allowedCounts[routeClass.ordinal()].sum());
+			classStats.put("Rejected", rejectedCounts[routeClass.ordinal()].sum());
+			stats.put(routeClass.name(), classStats);
+		}
+		return stats;
+	}
+
+	/**
+	 * The classes of route which are limited separately.
+	 */
+	public enum RouteClass {
+		READ, WRITE, UPLOAD, POLL;
+
+		private static final int COUNT = values().length;
+
+		/**
+		 * Classifies a request by its method and path, relative to the Gateway.
+		 * 
+		 * @param method
+		 *            The HTTP method of the request
+		 * @param path
+		 *            The path of the request
+		 * @return The class of route
+		 */
+		public static RouteClass classify(String method, String path) {
+			if ("GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method)) {
+				return READ;
+			}
+			if ("POST".equals(method) && path.startsWith("/service/") && path.endsWith("/task")) {
+				return POLL;
+			}
+			if (("POST".equals(method) && ("/data/file".equals(path) || "/data/archive".equals(path) || path.startsWith("/data/upload")))
+					|| ("PUT".equals(method) && path.startsWith("/data/upload/"))) {
+				return UPLOAD;
+			}
+			return WRITE;
+		}
+	}
+
+	/**
+	 * The theoretical arrival time of the next request at a bucket. The bucket is full when this is in the past, and
+	 * each request pushes it forward by one refill interval.
+	 */
+	private static class Bucket extends AtomicLong {
+		private static final long serialVersionUID = 1L;
+
+		private Bucket(long arrival) {
+			super(arrival);
+		}
+	}
+}
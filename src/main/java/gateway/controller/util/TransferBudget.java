@@ -0,0 +1,191 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Admission control for file uploads and downloads passing through the Gateway. Each transfer must acquire a permit
+ * for its size before any of its bytes are read, and releases it when it completes. A transfer of unknown size is
+ * admitted with an estimate, and its permit resized once the size is known. The total size of transfers in
+ * flight is bounded by a global budget, and the share of any one user by a smaller per-user budget, so that a single
+ * user cannot starve everyone else.
+ * <p>
+ * A transfer that does not fit waits for others to complete, up to a configured time, and is then rejected. A
+ * transfer larger than a budget is admitted only when it has that budget to itself.
+ * </p>
+ */
+@Component
+public class TransferBudget {
+	@Value("${transfer.budget.total}")
+	private long TOTAL_BUDGET;
+	@Value("${transfer.budget.user}")
+	private long USER_BUDGET;
+	@Value("${transfer.budget.wait}")
+	private long MAX_WAIT_MILLIS;
+	@Value("${transfer.budget.unknown.size}")
+	private long UNKNOWN_SIZE;
+
+	private long inFlightBytes;
+	private final Map<String, UserUsage> users = new HashMap<String, UserUsage>();
+
+	// Statistics
+	private long admittedCount;
+	private long rejectedCount;
+
+	/**
+	 * Acquires a permit for a transfer, waiting if the transfer does not currently fit within the budgets.
+	 * 
+	 * @param userName
+	 *            The user making the transfer
+	 * @param bytes
+	 *            The size of the transfer, or a negative number if it is not known
+	 * @return The permit, which must be released when the transfer completes; or null if the transfer could not be
+	 *         admitted within the maximum wait time
+	 */
+	public Permit acquire(String userName, long bytes) throws InterruptedException {
+		long size = bytes < 0 ? UNKNOWN_SIZE : bytes;
+		long start = System.currentTimeMillis();
+		long deadline = start + MAX_WAIT_MILLIS;
+		synchronized (this) {
+			UserUsage usage = users.get(String.valueOf(userName));
+			if (usage == null) {
+				usage = new UserUsage();
+				users.put(String.valueOf(userName), usage);
+			}
+			while (!fits(usage, size)) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					usage.rejectedCount++;
+					rejectedCount++;
+					return null;
+				}
+				wait(remaining);
+			}
+			inFlightBytes += size;
+			usage.inFlightBytes += size;
+			usage.admittedCount++;
+			usage.queueTimeMillis += System.currentTimeMillis() - start;
+			admittedCount++;
+			return new Permit(usage, size);
+		}
+	}
+
+	/**
+	 * Gets the current statistics of the budget, for administrative reporting.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public synchronized Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("In Flight Bytes", inFlightBytes);
+		stats.put("Budget", TOTAL_BUDGET);
+		stats.put("User Budget", USER_BUDGET);
+		stats.put("Admitted", admittedCount);
+		stats.put("Rejected", rejectedCount);
+		Map<String, Object> userStats = new HashMap<String, Object>();
+		for (Map.Entry<String, UserUsage> user : users.entrySet()) {
+			Map<String, Object> usage = new HashMap<String, Object>();
+			usage.put("In Flight Bytes", user.getValue().inFlightBytes);
+			usage.put("Admitted", user.getValue().admittedCount);
+			usage.put("Rejected", user.getValue().rejectedCount);
+			usage.put("Queue Time Millis", user.getValue().queueTimeMillis);
+			userStats.put(user.getKey(), usage);
+		}
+		stats.put("Users", userStats);
+		return stats;
+	}
+
+	/**
+	 * Determines if a transfer fits within both budgets. Must be called while holding the lock.
+	 */
+	private boolean fits(UserUsage usage, long size) {
+		boolean fitsTotal = (inFlightBytes == 0) || (inFlightBytes + size <= TOTAL_BUDGET);
+		boolean fitsUser = (usage.inFlightBytes == 0) || (usage.inFlightBytes + size <= USER_BUDGET);
+		return fitsTotal && fitsUser;
+	}
+
+	private synchronized void release(UserUsage usage, long size) {
+		inFlightBytes -= size;
+		usage.inFlightBytes -= size;
+		notifyAll();
+	}
+
+	private synchronized void resize(UserUsage usage, long change) {
+		inFlightBytes += change;
+		usage.inFlightBytes += change;
+		if (change < 0) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Usage of the budget by a single user.
+	 */
+	private static class UserUsage {
+		private long inFlightBytes;
+		private long admittedCount;
+		private long rejectedCount;
+		private long queueTimeMillis;
+	}
+
+	/**
+	 * Permission for a single transfer to proceed.
+	 */
+	public class Permit {
+		private final UserUsage usage;
+		private long size;
+		private boolean released;
+
+		private Permit(UserUsage usage, long size) {
+			this.usage = usage;
+			this.size = size;
+		}
+
+		/**
+		 * Changes the size of this transfer once it is known, such as for a download admitted before its size could be
+		 * read. The transfer has already been admitted, so a larger size is counted against the budgets without
+		 * waiting.
+		 * 
+		 * @param bytes
+		 *            The size of the transfer, or a negative number if it is still not known
+		 */
+		public void resize(long bytes) {
+			synchronized (TransferBudget.this) {
+				if (!released && (bytes >= 0)) {
+					TransferBudget.this.resize(usage, bytes - size);
+					size = bytes;
+				}
+			}
+		}
+
+		/**
+		 * Returns the bytes of this transfer to the budget. Releasing a permit more than once has no effect.
+		 */
+		public void release() {
+			synchronized (TransferBudget.this) {
+				if (!released) {
+					released = true;
+					TransferBudget.this.release(usage, size);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State of a resumable, chunked upload of a Data file. Each chunk of the upload is sent to S3 as one part of a
+ * multipart upload, so the only state kept by the Gateway is the committed offset and the ETag of each part.
+ * <p>
+ * A direct session has no chunks. The client instead PUTs the whole file to S3 using a pre-signed URL, and the
+ * Gateway only verifies that the object exists when the session is completed.
+ * </p>
+ */
+public class UploadSession {
+	private String sessionId;
+	private String jobId;
+	private String userName;
+	private String fileName;
+	private String fileKey;
+	private String uploadId;
+	private long size;
+	private long chunkSize;
+	private long committedOffset;
+	private long expiresOn;
+	private boolean direct;
+	private List<String> partETags = new ArrayList<String>();
+
+	public UploadSession() {
+		// For serialization
+	}
+
+	public UploadSession(String sessionId, String jobId, String userName, String fileName, String fileKey, String uploadId, long size,
+			long chunkSize) {
+		this.sessionId = sessionId;
+		this.jobId = jobId;
+		this.userName = userName;
+		this.fileName = fileName;
+		this.fileKey = fileKey;
+		this.uploadId = uploadId;
+		this.size = size;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Gets the publicly visible status of the session, excluding the S3 upload details.
+	 * 
+	 * @return Map of status fields
+	 */
+	public Map<String, Object> toStatus() {
+		Map<String, Object> status = new HashMap<String, Object>();
+		status.put("sessionId", sessionId);
+		status.put("fileName", fileName);
+		status.put("size", size);
+		status.put("chunkSize", chunkSize);
+		status.put("committedOffset", committedOffset);
+		status.put("expiresOn", expiresOn);
+		status.put("direct", direct);
+		return status;
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	public void setSessionId(String sessionId) {
+		this.sessionId = sessionId;
+	}
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	public void setJobId(String jobId) {
+		this.jobId = jobId;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public void setUserName(String userName) {
+		this.userName = userName;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public void setFileName(String fileName) {
+		this.fileName = fileName;
+	}
+
+	public String getFileKey() {
+		return fileKey;
+	}
+
+	public void setFileKey(String fileKey) {
+		this.fileKey = fileKey;
+	}
+
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	public void setUploadId(String uploadId) {
+		this.uploadId = uploadId;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public long getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(long chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public long getCommittedOffset() {
+		return committedOffset;
+	}
+
+	public void setCommittedOffset(long committedOffset) {
+		this.committedOffset = committedOffset;
+	}
+
+	public long getExpiresOn() {
+		return expiresOn;
+	}
+
+	public void setExpiresOn(long expiresOn) {
+		this.expiresOn = expiresOn;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	public void setDirect(boolean direct) {
+		this.direct = direct;
+	}
+
+	public List<String> getPartETags() {
+		return partETags;
+	}
+
+	public void setPartETags(List<String> partETags) {
+		this.partETags = partETags;
+	}
+}
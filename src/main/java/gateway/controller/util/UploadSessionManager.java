@@ -0,0 +1,442 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.SSEAlgorithm;
+import com.amazonaws.services.s3.model.SSEAwsKeyManagementParams;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import exception.InvalidInputException;
+import exception.PiazzaJobException;
+import model.data.location.S3FileStore;
+import model.logger.AuditElement;
+import model.logger.Severity;
+import util.PiazzaLogger;
+
+/**
+ * Manages resumable upload sessions for large Data files. A session is created with the declared size of the file,
+ * the client sends the file in fixed-size chunks, and the session is then completed into an Ingest Job. Each chunk is
+ * streamed directly to S3 as one part of a multipart upload.
+ * <p>
+ * Direct sessions bypass the Gateway entirely: the client is given a pre-signed S3 URL to PUT the file to, and the
+ * session is completed once the object exists in the bucket.
+ * </p>
+ * <p>
+ * Sessions are persisted as small JSON files so that they survive a restart of the Gateway, and sessions that see no
+ * activity for the configured time to live are aborted.
+ * </p>
+ */
+@Component
+public class UploadSessionManager {
+	@Autowired
+	private GatewayUtil gatewayUtil;
+	@Autowired
+	private ObjectMapper objectMapper;
+	@Autowired
+	private PiazzaLogger logger;
+
+	@Value("${vcap.services.pz-blobstore.credentials.bucket}")
+	private String AMAZONS3_BUCKET_NAME;
+	@Value("${s3.domain}")
+	private String AMAZONS3_DOMAIN;
+	@Value("${s3.upload.part.size}")
+	private long CHUNK_SIZE;
+	@Value("${upload.session.dir}")
+	private String SESSION_DIRECTORY;
+	@Value("${upload.session.ttl}")
+	private long SESSION_TTL_SECONDS;
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(UploadSessionManager.class);
+	/**
+	 * The smallest part size that S3 accepts for all but the last part of a multipart upload.
+	 */
+	private static final long MIN_CHUNK_SIZE = 5 * 1024 * 1024;
+
+	private final Map<String, UploadSession> sessions = new ConcurrentHashMap<String, UploadSession>();
+	private File sessionDirectory;
+	private ScheduledExecutorService expiryExecutor;
+
+	// Statistics
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong completedCount = new AtomicLong();
+	private final AtomicLong expiredCount = new AtomicLong();
+
+	/**
+	 * Loads the sessions persisted by a previous run, and begins checking for expired sessions.
+	 */
+	@PostConstruct
+	public void init() throws IOException {
+		CHUNK_SIZE = Math.max(CHUNK_SIZE, MIN_CHUNK_SIZE);
+		sessionDirectory = new File(SESSION_DIRECTORY);
+		if (!sessionDirectory.isDirectory() && !sessionDirectory.mkdirs()) {
+			throw new IOException(String.format("Could not create Upload Session directory %s", sessionDirectory.getAbsolutePath()));
+		}
+		File[] files = sessionDirectory.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			if (file.getName().endsWith(".json")) {
+				try {
+					UploadSession session = objectMapper.readValue(file, UploadSession.class);
+					sessions.put(session.getSessionId(), session);
+				} catch (IOException exception) {
+					LOGGER.error(String.format("Discarding unreadable Upload Session %s", file.getName()), exception);
+					Files.deleteIfExists(file.toPath());
+				}
+			}
+		}
+		expiryExecutor = Executors.newSingleThreadScheduledExecutor();
+		expiryExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				expireSessions();
+			}
+		}, 0, 60, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void cleanup() {
+		if (expiryExecutor != null) {
+			expiryExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Creates a new upload session. This allocates the Job Id that the Data will eventually be ingested under, and
+	 * begins the S3 multipart upload.
+	 * 
+	 * @param userName
+	 *            The user creating the session
+	 * @param fileName
+	 *            The name of the file being uploaded
+	 * @param size
+	 *            The total size of the file, in bytes
+	 * @return The new session
+	 */
+	public UploadSession createSession(String userName, String fileName, long size) throws PiazzaJobException, IOException {
+		String jobId = gatewayUtil.getUuid();
+		String fileKey = String.format("%s-%s", jobId, fileName);
+		InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(AMAZONS3_BUCKET_NAME, fileKey);
+		request.setSSEAwsKeyManagementParams(gatewayUtil.getServerSideEncryption());
+		String uploadId = gatewayUtil.getDirectS3Client().initiateMultipartUpload(request).getUploadId();
+		UploadSession session = new UploadSession(UUID.randomUUID().toString(), jobId, userName, fileName, fileKey, uploadId, size,
+				CHUNK_SIZE);
+		synchronized (session) {
+			touch(session);
+			persist(session);
+		}
+		sessions.put(session.getSessionId(), session);
+		createdCount.incrementAndGet();
+		logger.log(String.format("User %s created Upload Session %s for file %s of %s bytes", userName, session.getSessionId(), fileName,
+				size), Severity.INFORMATIONAL, new AuditElement(userName, "createUploadSession", session.getSessionId()));
+		return session;
+	}
+
+	/**
+	 * Creates a new direct upload session. This allocates the Job Id that the Data will eventually be ingested under,
+	 * but the file itself is sent by the client straight to S3 using the URL from {@link #getDirectUploadStatus}.
+	 * 
+	 * @param userName
+	 *            The user creating the session
+	 * @param fileName
+	 *            The name of the file being uploaded
+	 * @return The new session
+	 */
+	public UploadSession createDirectSession(String userName, String fileName) throws PiazzaJobException, IOException {
+		String jobId = gatewayUtil.getUuid();
+		String fileKey = String.format("%s-%s", jobId, fileName);
+		UploadSession session = new UploadSession(UUID.randomUUID().toString(), jobId, userName, fileName, fileKey, null, 0, 0);
+		session.setDirect(true);
+		synchronized (session) {
+			touch(session);
+			persist(session);
+		}
+		sessions.put(session.getSessionId(), session);
+		createdCount.incrementAndGet();
+		logger.log(String.format("User %s created direct Upload Session %s for file %s", userName, session.getSessionId(), fileName),
+				Severity.INFORMATIONAL, new AuditElement(userName, "createUploadSession", session.getSessionId()));
+		return session;
+	}
+
+	/**
+	 * Gets the status of a direct upload session, along with the pre-signed URL and headers the client must use to PUT
+	 * the file to S3. The URL is valid until the session expires.
+	 * 
+	 * @param session
+	 *            The direct upload session
+	 * @return Map of status fields, including "uploadUrl" and "uploadHeaders"
+	 */
+	public Map<String, Object> getDirectUploadStatus(UploadSession session) {
+		GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(AMAZONS3_BUCKET_NAME, session.getFileKey(), HttpMethod.PUT);
+		request.setExpiration(new Date(session.getExpiresOn()));
+		Map<String, String> headers = new HashMap<String, String>();
+		SSEAwsKeyManagementParams serverSideEncryption = gatewayUtil.getServerSideEncryption();
+		if (serverSideEncryption != null) {
+			// The encryption headers are part of the signature, so the client must send them exactly
+			request.setSSEAlgorithm(SSEAlgorithm.KMS);
+			request.setKmsCmkId(serverSideEncryption.getAwsKmsKeyId());
+			headers.put(Headers.SERVER_SIDE_ENCRYPTION, SSEAlgorithm.KMS.getAlgorithm());
+			headers.put(Headers.SERVER_SIDE_ENCRYPTION_AWS_KMS_KEYID, serverSideEncryption.getAwsKmsKeyId());
+		}
+		URL url = gatewayUtil.getDirectS3Client().generatePresignedUrl(request);
+		Map<String, Object> status = session.toStatus();
+		status.put("uploadUrl", url.toString());
+		status.put("uploadHeaders", headers);
+		return status;
+	}
+
+	/**
+	 * Gets an upload session.
+	 * 
+	 * @param sessionId
+	 *            The Id of the session
+	 * @return The session, or null if it does not exist or has expired.
+	 */
+	public UploadSession getSession(String sessionId) {
+		return sessions.get(sessionId);
+	}
+
+	/**
+	 * Streams a chunk of the file to S3, as the next part of the multipart upload. Chunks must be sent in order, and
+	 * every chunk but the last must be exactly the chunk size of the session.
+	 * 
+	 * @param session
+	 *            The upload session
+	 * @param offset
+	 *            The offset of the chunk within the file. This must equal the committed offset of the session.
+	 * @param length
+	 *            The length of the chunk
+	 * @param stream
+	 *            The bytes of the chunk
+	 * @return The updated session
+	 */
+	public UploadSession uploadChunk(UploadSession session, long offset, long length, InputStream stream)
+			throws InvalidInputException, IOException {
+		synchronized (session) {
+			if (!sessions.containsKey(session.getSessionId())) {
+				throw new InvalidInputException(String.format("Upload Session %s has expired.", session.getSessionId()));
+			}
+			if (session.isDirect()) {
+				throw new InvalidInputException(
+						String.format("Upload Session %s is a direct upload. The file must be sent to its pre-signed URL.", session.getSessionId()));
+			}
+			if (offset != session.getCommittedOffset()) {
+				throw new InvalidInputException(
+						String.format("Chunk offset %s does not match the committed offset %s.", offset, session.getCommittedOffset()));
+			}
+			long end = offset + length;
+			if ((length <= 0) || (end > session.getSize()) || ((end < session.getSize()) && (length != session.getChunkSize()))) {
+				throw new InvalidInputException(String.format(
+						"Chunk length %s is invalid. Every chunk except the last must be %s bytes, and chunks may not extend past %s bytes.",
+						length, session.getChunkSize(), session.getSize()));
+			}
+			int partNumber = session.getPartETags().size() + 1;
+			UploadPartRequest part = new UploadPartRequest().withBucketName(AMAZONS3_BUCKET_NAME).withKey(session.getFileKey())
+					.withUploadId(session.getUploadId()).withPartNumber(partNumber).withInputStream(stream).withPartSize(length);
+			String eTag = gatewayUtil.getDirectS3Client().uploadPart(part).getETag();
+			session.getPartETags().add(eTag);
+			session.setCommittedOffset(end);
+			touch(session);
+			persist(session);
+			return session;
+		}
+	}
+
+	/**
+	 * Completes the S3 upload of a session whose file has been fully received, and ends the session. For a direct
+	 * session, this verifies that the client has uploaded the object.
+	 * 
+	 * @param session
+	 *            The upload session
+	 * @return The location of the uploaded file in S3
+	 */
+	public S3FileStore completeSession(UploadSession session) throws InvalidInputException, IOException {
+		synchronized (session) {
+			if (!sessions.containsKey(session.getSessionId())) {
+				throw new InvalidInputException(String.format("Upload Session %s has expired.", session.getSessionId()));
+			}
+			long size;
+			if (session.isDirect()) {
+				size = getUploadedSize(session);
+			} else {
+				if (session.getCommittedOffset() != session.getSize()) {
+					throw new InvalidInputException(String.format("Upload Session %s has only received %s of %s bytes.",
+							session.getSessionId(), session.getCommittedOffset(), session.getSize()));
+				}
+				List<PartETag> partETags = new ArrayList<PartETag>();
+				for (int i = 0; i < session.getPartETags().size(); i++) {
+					partETags.add(new PartETag(i + 1, session.getPartETags().get(i)));
+				}
+				gatewayUtil.getDirectS3Client().completeMultipartUpload(
+						new CompleteMultipartUploadRequest(AMAZONS3_BUCKET_NAME, session.getFileKey(), session.getUploadId(), partETags));
+				size = session.getSize();
+			}
+			remove(session);
+			completedCount.incrementAndGet();
+			return new S3FileStore(AMAZONS3_BUCKET_NAME, session.getFileKey(), size, AMAZONS3_DOMAIN);
+		}
+	}
+
+	/**
+	 * Ends a session without completing it, discarding any chunks already sent to S3.
+	 * 
+	 * @param session
+	 *            The upload session
+	 */
+	public void abortSession(UploadSession session) throws IOException {
+		abort(session);
+	}
+
+	/**
+	 * Gets the current statistics of upload sessions, for administrative reporting.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("Active", sessions.size());
+		stats.put("Created", createdCount.get());
+		stats.put("Completed", completedCount.get());
+		stats.put("Expired", expiredCount.get());
+		return stats;
+	}
+
+	/**
+	 * Aborts all sessions that have passed their expiration time.
+	 */
+	public void expireSessions() {
+		long now = System.currentTimeMillis();
+		for (UploadSession session : sessions.values()) {
+			if (session.getExpiresOn() < now) {
+				try {
+					if (!abort(session)) {
+						continue;
+					}
+					expiredCount.incrementAndGet();
+					logger.log(String.format("Upload Session %s expired", session.getSessionId()), Severity.INFORMATIONAL,
+							new AuditElement(session.getUserName(), "expireUploadSession", session.getSessionId()));
+				} catch (Exception exception) {
+					LOGGER.error(String.format("Could not expire Upload Session %s", session.getSessionId()), exception);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Aborts the S3 upload of a session and removes it, unless it has already ended.
+	 * 
+	 * @return True if the session was active and has been aborted
+	 */
+	private boolean abort(UploadSession session) throws IOException {
+		synchronized (session) {
+			if (!sessions.containsKey(session.getSessionId())) {
+				return false;
+			}
+			try {
+				if (session.isDirect()) {
+					gatewayUtil.getDirectS3Client().deleteObject(AMAZONS3_BUCKET_NAME, session.getFileKey());
+				} else {
+					gatewayUtil.getDirectS3Client().abortMultipartUpload(
+							new AbortMultipartUploadRequest(AMAZONS3_BUCKET_NAME, session.getFileKey(), session.getUploadId()));
+				}
+			} catch (Exception exception) {
+				LOGGER.warn(String.format("Could not abort S3 upload for Upload Session %s", session.getSessionId()), exception);
+			}
+			remove(session);
+			return true;
+		}
+	}
+
+	/**
+	 * Gets the size of the object that the client of a direct session has uploaded to S3.
+	 * 
+	 * @return The size of the object, in bytes
+	 */
+	private long getUploadedSize(UploadSession session) throws InvalidInputException {
+		try {
+			return gatewayUtil.getDirectS3Client().getObjectMetadata(AMAZONS3_BUCKET_NAME, session.getFileKey()).getContentLength();
+		} catch (AmazonS3Exception exception) {
+			if (exception.getStatusCode() == 404) {
+				throw new InvalidInputException(
+						String.format("The file for Upload Session %s has not been uploaded to S3.", session.getSessionId()));
+			}
+			throw exception;
+		}
+	}
+
+	/**
+	 * Extends the expiration of a session following activity on it. Must be called while holding the session lock.
+	 */
+	private void touch(UploadSession session) {
+		session.setExpiresOn(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(SESSION_TTL_SECONDS));
+	}
+
+	/**
+	 * Writes the state of a session to disk, replacing the previous state atomically. Must be called while holding the
+	 * session lock.
+	 */
+	private void persist(UploadSession session) throws IOException {
+		File temporary = new File(sessionDirectory, session.getSessionId() + ".tmp");
+		objectMapper.writeValue(temporary, session);
+		Files.move(temporary.toPath(), getFile(session).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Removes a session from memory and from disk. Must be called while holding the session lock.
+	 */
+	private void remove(UploadSession session) throws IOException {
+		sessions.remove(session.getSessionId());
+		Files.deleteIfExists(getFile(session).toPath());
+	}
+
+	private File getFile(UploadSession session) {
+		return new File(sessionDirectory, session.getSessionId() + ".json");
+	}
+}
@@ -0,0 +1,453 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpServerErrorException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import model.response.ErrorResponse;
+
+/**
+ * Fair scheduling of the Gateway's calls to internal Piazza components, so that one user flooding a component, such
+ * as with searches, does not make every other user's calls to it wait behind theirs. Each upstream component has a
+ * limit on the number of calls in flight; once it is reached, further calls wait in a queue per user, and the queues
+ * are served by deficit round robin. A user's weight sets the number of calls served from their queue on each turn,
+ * so every user with calls waiting is served in proportion to their weight, however many calls they have queued.
+ * <p>
+ * A call holds its place in the limit until its response has been closed, so that streamed responses are counted for
+ * as long as they are being read. Calls made off a request thread with no authenticated user are queued together. A
+ * call which waits longer than the configured time is failed with 503 Service Unavailable. The queues of users who
+ * have been idle for a while are periodically evicted.
+ * </p>
+ */
+@Component
+public class UpstreamScheduler implements ClientHttpRequestInterceptor {
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Value("${fair.queue.enabled}")
+	private boolean ENABLED;
+	@Value("${fair.queue.concurrency}")
+	private int CONCURRENCY;
+	@Value("${fair.queue.wait}")
+	private long MAX_WAIT_MILLIS;
+	@Value("${fair.queue.weights}")
+	private String WEIGHTS;
+	@Value("${fair.queue.idle}")
+	private long IDLE_SECONDS;
+
+	private static final String SYSTEM_USER = "Gateway";
+	private static final double DEFAULT_WEIGHT = 1;
+
+	private final Map<String, Double> weights = new HashMap<String, Double>();
+	private final Map<String, Upstream> upstreams = new HashMap<String, Upstream>();
+	private ScheduledExecutorService evictionExecutor;
+
+	// Statistics
+	private final AtomicLong evictedCount = new AtomicLong();
+
+	/**
+	 * Parses the weights of users, given as a comma-separated list of user:weight pairs, and starts evicting the queues
+	 * of idle users.
+	 */
+	@PostConstruct
+	public void init() {
+		for (String pair : WEIGHTS.split(",")) {
+			if (pair.trim().isEmpty()) {
+				continue;
+			}
+			int separator = pair.lastIndexOf(':');
+			double weight = separator == -1 ? 0 : Double.parseDouble(pair.substring(separator + 1).trim());
+			if (weight <= 0) {
+				throw new IllegalArgumentException(
+						String.format("The fair queue weight %s must be a user:weight pair with a positive weight.", pair));
+			}
+			weights.put(pair.substring(0, separator).trim(), weight);
+		}
+		if (!ENABLED || (evictionExecutor != null)) {
+			return;
+		}
+		evictionExecutor = Executors.newSingleThreadScheduledExecutor();
+		evictionExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdle();
+			}
+		}, IDLE_SECONDS, IDLE_SECONDS, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void cleanup() {
+		if (evictionExecutor != null) {
+			evictionExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Removes the queues of users who have no calls waiting and have not made a call for the configured idle time. A
+	 * user whose queue is evicted starts again with a new, empty queue on their next call.
+	 */
+	public void evictIdle() {
+		long idleBefore = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(IDLE_SECONDS);
+		synchronized (upstreams) {
+			for (Upstream upstream : upstreams.values()) {
+				evictedCount.addAndGet(upstream.evictIdle(idleBefore));
+			}
+		}
+	}
+
+	@Override
+	public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+		if (!ENABLED) {
+			return execution.execute(request, body);
+		}
+		Upstream upstream = getUpstream(request.getURI().getAuthority());
+		try {
+			if (!upstream.acquire(getUserName())) {
+				throw new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE, HttpStatus.SERVICE_UNAVAILABLE.getReasonPhrase(),
+						objectMapper.writeValueAsBytes(new ErrorResponse(
+								String.format("Timed out waiting for %s to accept the request.", upstream.name), "Gateway")),
+						StandardCharsets.UTF_8);
+			}
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new IOException(String.format("Interrupted while waiting to call %s.", upstream.name), exception);
+		}
+		ClientHttpResponse response;
+		try {
+			response = execution.execute(request, body);
+		} catch (IOException | RuntimeException exception) {
+			upstream.release();
+			throw exception;
+		}
+		return new ReleasingResponse(response, upstream);
+	}
+
+	/**
+	 * Gets the current statistics of the queues of each upstream component, for administrative reporting.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("Enabled", ENABLED);
+		stats.put("Concurrency", CONCURRENCY);
+		stats.put("Evicted", evictedCount.get());
+		Map<String, Object> upstreamStats = new HashMap<String, Object>();
+		synchronized (upstreams) {
+			for (Upstream upstream : upstreams.values()) {
+				upstreamStats.put(upstream.name, upstream.getStatistics());
+			}
+		}
+		stats.put("Upstreams", upstreamStats);
+		return stats;
+	}
+
+	private Upstream getUpstream(String name) {
+		synchronized (upstreams) {
+			Upstream upstream = upstreams.get(name);
+			if (upstream == null) {
+				upstream = new Upstream(name);
+				upstreams.put(name, upstream);
+			}
+			return upstream;
+		}
+	}
+
+	private static String getUserName() {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		return authentication == null ? SYSTEM_USER : authentication.getName();
+	}
+
+	/**
+	 * The calls in flight to a single upstream component, and the calls of each user waiting for one to complete.
+	 */
+	private class Upstream {
+		private final String name;
+		private final Map<String, UserQueue> queues = new HashMap<String, UserQueue>();
+		// Queues with calls waiting, in the order they will be served
+		private final Deque<UserQueue> ring = new ArrayDeque<UserQueue>();
+		private int activeCount;
+		private int queuedCount;
+
+		private Upstream(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Waits until the user may make a call to the upstream component.
+		 * 
+		 * @return True if the call may be made, or false if the maximum wait time passed first
+		 */
+		private boolean acquire(String userName) throws InterruptedException {
+			Waiter waiter;
+			synchronized (this) {
+				UserQueue queue = queues.get(userName);
+				if (queue == null) {
+					Double weight = weights.get(userName);
+					queue = new UserQueue(userName, weight == null ? DEFAULT_WEIGHT : weight);
+					queues.put(userName, queue);
+				}
+				queue.lastCallOn = System.currentTimeMillis();
+				if ((activeCount < CONCURRENCY) && ring.isEmpty()) {
+					activeCount++;
+					queue.admittedCount++;
+					return true;
+				}
+				waiter = new Waiter(queue);
+				if (queue.waiters.isEmpty()) {
+					ring.addLast(queue);
+				}
+				queue.waiters.addLast(waiter);
+				queuedCount++;
+			}
+
+			boolean granted;
+			try {
+				granted = waiter.latch.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException exception) {
+				synchronized (this) {
+					if (waiter.granted) {
+						release();
+					} else {
+						remove(waiter);
+					}
+				}
+				throw exception;
+			}
+			synchronized (this) {
+				if (!granted && !waiter.granted) {
+					remove(waiter);
+					waiter.queue.timeoutCount++;
+					return false;
+				}
+				long waitMillis = System.currentTimeMillis() - waiter.queuedOn;
+				waiter.queue.waitMillis += waitMillis;
+				waiter.queue.maxWaitMillis = Math.max(waiter.queue.maxWaitMillis, waitMillis);
+				return true;
+			}
+		}
+
+		/**
+		 * Completes a call to the upstream component, and grants its place to the next waiting call.
+		 */
+		private synchronized void release() {
+			activeCount--;
+			while (activeCount < CONCURRENCY) {
+				Waiter next = next();
+				if (next == null) {
+					return;
+				}
+				activeCount++;
+				next.queue.admittedCount++;
+				next.granted = true;
+				next.latch.countDown();
+			}
+		}
+
+		/**
+		 * Takes the next call to serve by deficit round robin. Each queue is credited its weight when its turn comes
+		 * round, and is served until the credit is used up or it is empty. Must be called while holding the lock.
+		 */
+		private Waiter next() {
+			while (!ring.isEmpty()) {
+				UserQueue queue = ring.peekFirst();
+				if (queue.deficit < 1) {
+					queue.deficit += queue.weight;
+					if (queue.deficit < 1) {
+						ring.addLast(ring.pollFirst());
+						continue;
+					}
+				}
+				Waiter waiter = queue.waiters.pollFirst();
+				queuedCount--;
+				queue.deficit--;
+				if (queue.waiters.isEmpty()) {
+					ring.pollFirst();
+					queue.deficit = 0;
+				} else if (queue.deficit < 1) {
+					ring.addLast(ring.pollFirst());
+				}
+				return waiter;
+			}
+			return null;
+		}
+
+		/**
+		 * Removes the queues of users with no calls waiting, whose last call was made before the specified time.
+		 * 
+		 * @return The number of queues removed
+		 */
+		private synchronized int evictIdle(long idleBefore) {
+			int evicted = 0;
+			Iterator<UserQueue> iterator = queues.values().iterator();
+			while (iterator.hasNext()) {
+				UserQueue queue = iterator.next();
+				if (queue.waiters.isEmpty() && (queue.lastCallOn < idleBefore)) {
+					iterator.remove();
+					evicted++;
+				}
+			}
+			return evicted;
+		}
+
+		/**
+		 * Removes a call which gave up waiting. Must be called while holding the lock.
+		 */
+		private void remove(Waiter waiter) {
+			if (waiter.queue.waiters.remove(waiter)) {
+				queuedCount--;
+				if (waiter.queue.waiters.isEmpty()) {
+					ring.remove(waiter.queue);
+					waiter.queue.deficit = 0;
+				}
+			}
+		}
+
+		private synchronized Map<String, Object> getStatistics() {
+			Map<String, Object> stats = new HashMap<String, Object>();
+			stats.put("Active", activeCount);
+			stats.put("Queued", queuedCount);
+			Map<String, Object> userStats = new HashMap<String, Object>();
+			for (UserQueue queue : queues.values()) {
+				Map<String, Object> usage = new HashMap<String, Object>();
+				usage.put("Weight", queue.weight);
+				usage.put("Queued", queue.waiters.size());
+				usage.put("Admitted", queue.admittedCount);
+				usage.put("Timed Out", queue.timeoutCount);
+				usage.put("Wait Millis", queue.waitMillis);
+				usage.put("Max Wait Millis", queue.maxWaitMillis);
+				userStats.put(queue.userName, usage);
+			}
+			stats.put("Users", userStats);
+			return stats;
+		}
+	}
+
+	/**
+	 * The calls of a single user waiting on an upstream component, and the user's usage of it.
+	 */
+	private static class UserQueue {
+		private final String userName;
+		private final double weight;
+		private final Deque<Waiter> waiters = new ArrayDeque<Waiter>();
+		private double deficit;
+		private long lastCallOn;
+		private long admittedCount;
+		private long timeoutCount;
+		private long waitMillis;
+		private long maxWaitMillis;
+
+		private UserQueue(String userName, double weight) {
+			this.userName = userName;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * A call waiting for its turn.
+	 */
+	private static class Waiter {
+		private final UserQueue queue;
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private final long queuedOn = System.currentTimeMillis();
+		private boolean granted;
+
+		private Waiter(UserQueue queue) {
+			this.queue = queue;
+		}
+	}
+
+	/**
+	 * A response which releases its call's place in the limit once it has been closed.
+	 */
+	private static class ReleasingResponse implements ClientHttpResponse {
+		private final ClientHttpResponse response;
+		private final Upstream upstream;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		private ReleasingResponse(ClientHttpResponse response, Upstream upstream) {
+			this.response = response;
+			this.upstream = upstream;
+		}
+
+		@Override
+		public InputStream getBody() throws IOException {
+			return response.getBody();
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return response.getHeaders();
+		}
+
+		@Override
+		public HttpStatus getStatusCode() throws IOException {
+			return response.getStatusCode();
+		}
+
+		@Override
+		public int getRawStatusCode() throws IOException {
+			return response.getRawStatusCode();
+		}
+
+		@Override
+		public String getStatusText() throws IOException {
+			return response.getStatusText();
+		}
+
+		@Override
+		public void close() {
+			try {
+				response.close();
+			} finally {
+				if (released.compareAndSet(false, true)) {
+					upstream.release();
+				}
+			}
+		}
+	}
+}
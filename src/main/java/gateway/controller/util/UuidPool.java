@@ -0,0 +1,289 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import exception.PiazzaJobException;
+import model.logger.Severity;
+import util.PiazzaLogger;
+import util.UUIDFactory;
+
+/**
+ * Local pool of UUIDs that are prefetched in bulk from the Piazza UUID Service, so that Job submissions do not make a
+ * round trip to that service. The pool is refilled in the background up to the high watermark whenever it drops below
+ * the low watermark. If the UUID Service cannot be reached and the pool runs dry, then time-based UUIDs are generated
+ * locally until the service recovers.
+ */
+@Component
+public class UuidPool {
+	@Autowired
+	private UUIDFactory uuidFactory;
+	@Autowired
+	private PiazzaLogger logger;
+	@Autowired
+	private RestTemplate restTemplate;
+
+	@Value("${uuid.url}")
+	private String UUIDGEN_URL;
+	@Value("${uuid.pool.low}")
+	private int POOL_LOW;
+	@Value("${uuid.pool.high}")
+	private int POOL_HIGH;
+	@Value("${uuid.pool.batch}")
+	private int FETCH_BATCH;
+	@Value("${uuid.pool.fallback}")
+	private boolean FALLBACK_ENABLED;
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(UuidPool.class);
+	/**
+	 * Number of 100-nanosecond intervals between the UUID epoch (1582-10-15) and the Unix epoch.
+	 */
+	private static final long UUID_EPOCH_OFFSET = 0x01B21DD213814000L;
+
+	private LinkedBlockingQueue<String> pool;
+	private ScheduledExecutorService refillExecutor;
+	private final AtomicBoolean refillScheduled = new AtomicBoolean(false);
+	private volatile boolean serviceAvailable = true;
+
+	// Local time-based generation state
+	private final AtomicLong lastTimestamp = new AtomicLong();
+	private final long clockSequenceAndNode;
+
+	// Statistics
+	private final AtomicLong refillCount = new AtomicLong();
+	private final AtomicLong refillFailures = new AtomicLong();
+	private final AtomicLong totalRefillMillis = new AtomicLong();
+	private volatile long lastRefillMillis;
+	private final AtomicLong fallbackCount = new AtomicLong();
+
+	public UuidPool() {
+		// Random clock sequence and random node Id, with the multicast bit set as required for non-MAC nodes.
+		SecureRandom random = new SecureRandom();
+		long clockSequence = random.nextInt(0x4000);
+		long node = (random.nextLong() & 0xFFFFFFFFFFFFL) | 0x010000000000L;
+		clockSequenceAndNode = ((clockSequence | 0x8000L) << 48) | node;
+	}
+
+	/**
+	 * Creates the pool and begins the initial fill in the background.
+	 */
+	@PostConstruct
+	public void init() {
+		pool = new LinkedBlockingQueue<String>(POOL_HIGH);
+		refillExecutor = Executors.newSingleThreadScheduledExecutor();
+		// Periodically check the watermark, so that the pool recovers on its own after a UUID Service outage.
+		refillExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				scheduleRefill();
+			}
+		}, 0, 30, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void cleanup() {
+		refillExecutor.shutdownNow();
+	}
+
+	/**
+	 * Gets a single UUID from the pool.
+	 * 
+	 * @return UUID
+	 */
+	public String getUuid() throws PiazzaJobException {
+		return getUuids(1).get(0);
+	}
+
+	/**
+	 * Gets a number of UUIDs. These are taken from the pool where possible, and any remainder is fetched from the UUID
+	 * Service in a single request. If the UUID Service is unavailable, then the remainder is generated locally.
+	 * 
+	 * @param count
+	 *            The number of UUIDs to get
+	 * @return The list of UUIDs
+	 */
+	public List<String> getUuids(int count) throws PiazzaJobException {
+		List<String> uuids = new ArrayList<String>(count);
+		pool.drainTo(uuids, count);
+		if (pool.size() < POOL_LOW) {
+			scheduleRefill();
+		}
+		if (uuids.size() < count) {
+			int remaining = count - uuids.size();
+			if (serviceAvailable || !FALLBACK_ENABLED) {
+				try {
+					uuids.addAll(fetch(remaining));
+					return uuids;
+				} catch (Exception exception) {
+					serviceAvailable = false;
+					String error = String.format("Could not connect to UUID Service for UUID: %s", exception.getMessage());
+					LOGGER.error(error, exception);
+					if (!FALLBACK_ENABLED) {
+						throw new PiazzaJobException(error);
+					}
+					logger.log("UUID Service is unreachable. Generating UUIDs locally until it recovers.", Severity.WARNING);
+				}
+			}
+			for (int i = 0; i < remaining; i++) {
+				uuids.add(generateLocalUuid());
+			}
+			fallbackCount.addAndGet(remaining);
+		}
+		return uuids;
+	}
+
+	/**
+	 * Gets the current statistics of the pool, for administrative reporting.
+	 * 
+	 * @return Map of statistic names to values
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("Depth", pool.size());
+		stats.put("Low Watermark", POOL_LOW);
+		stats.put("High Watermark", POOL_HIGH);
+		stats.put("Service Available", serviceAvailable);
+		stats.put("Refills", refillCount.get());
+		stats.put("Refill Failures", refillFailures.get());
+		stats.put("Last Refill Latency (ms)", lastRefillMillis);
+		long refills = refillCount.get();
+		stats.put("Average Refill Latency (ms)", refills == 0 ? 0 : totalRefillMillis.get() / refills);
+		stats.put("Locally Generated", fallbackCount.get());
+		return stats;
+	}
+
+	/**
+	 * Generates a time-based (version 1) UUID locally. Timestamps are strictly increasing within this process, so UUIDs
+	 * generated in the same clock tick remain unique.
+	 * 
+	 * @return The UUID
+	 */
+	public String generateLocalUuid() {
+		long now = System.currentTimeMillis() * 10000 + UUID_EPOCH_OFFSET;
+		long timestamp;
+		while (true) {
+			long last = lastTimestamp.get();
+			timestamp = Math.max(now, last + 1);
+			if (lastTimestamp.compareAndSet(last, timestamp)) {
+				break;
+			}
+		}
+		long timeLow = timestamp & 0xFFFFFFFFL;
+		long timeMid = (timestamp >>> 32) & 0xFFFFL;
+		long timeHigh = (timestamp >>> 48) & 0x0FFFL;
+		long mostSignificantBits = (timeLow << 32) | (timeMid << 16) | 0x1000L | timeHigh;
+		return new UUID(mostSignificantBits, clockSequenceAndNode).toString();
+	}
+
+	/**
+	 * Queues a refill of the pool on the background thread, unless one is already queued.
+	 */
+	private void scheduleRefill() {
+		if (refillScheduled.compareAndSet(false, true)) {
+			refillExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refill();
+					} finally {
+						refillScheduled.set(false);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Tops the pool up to the high watermark, in batches.
+	 */
+	private void refill() {
+		while (pool.remainingCapacity() > 0) {
+			int count = Math.min(FETCH_BATCH, pool.remainingCapacity());
+			long start = System.currentTimeMillis();
+			try {
+				List<String> uuids = fetch(count);
+				lastRefillMillis = System.currentTimeMillis() - start;
+				totalRefillMillis.addAndGet(lastRefillMillis);
+				refillCount.incrementAndGet();
+				for (String uuid : uuids) {
+					if (!pool.offer(uuid)) {
+						break;
+					}
+				}
+				if (!serviceAvailable) {
+					serviceAvailable = true;
+					logger.log("UUID Service is reachable again. Resuming UUID prefetching.", Severity.INFORMATIONAL);
+				}
+			} catch (Exception exception) {
+				refillFailures.incrementAndGet();
+				serviceAvailable = false;
+				LOGGER.error(String.format("Could not refill UUID Pool: %s", exception.getMessage()), exception);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Fetches UUIDs from the UUID Service, using a single bulk request where possible.
+	 * 
+	 * @param count
+	 *            The number of UUIDs to fetch
+	 * @return The list of UUIDs
+	 */
+	private List<String> fetch(int count) throws Exception {
+		List<String> uuids = new ArrayList<String>(count);
+		if (count > 1) {
+			try {
+				JsonNode response = restTemplate.postForObject(String.format("%s/%s?count=%s", UUIDGEN_URL, "uuids", count), null,
+						JsonNode.class);
+				for (JsonNode uuid : response.get("data")) {
+					uuids.add(uuid.asText());
+				}
+			} catch (Exception exception) {
+				LOGGER.warn(String.format("Could not get %s UUIDs in bulk; requesting individually: %s", count, exception.getMessage()),
+						exception);
+			}
+		}
+		while (uuids.size() < count) {
+			uuids.add(uuidFactory.getUUID());
+		}
+		return uuids.subList(0, count);
+	}
+}
@@ -20,10 +20,22 @@ import static org.junit.Assert.assertTrue;
 import java.util.Map;
 
 import gateway.controller.AdminController;
+import gateway.controller.util.ContentIndex;
+import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.IdempotencyFilter;
+import gateway.controller.util.IngestStagingArea;
+import gateway.controller.util.JobOutbox;
+import gateway.controller.util.MetadataCache;
+import gateway.controller.util.RateLimiter;
+import gateway.controller.util.TransferBudget;
+import gateway.controller.util.UploadSessionManager;
+import gateway.controller.util.UpstreamScheduler;
+import gateway.controller.util.UuidPool;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InjectMocks;
+import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.springframework.http.ResponseEntity;
 
@@ -34,6 +46,28 @@ import org.springframework.http.ResponseEntity;
  *
  */
 public class AdminTests {
+	@Mock
+	private UuidPool uuidPool;
+	@Mock
+	private GatewayUtil gatewayUtil;
+	@Mock
+	private JobOutbox jobOutbox;
+	@Mock
+	private UploadSessionManager uploadSessionManager;
+	@Mock
+	private ContentIndex contentIndex;
+	@Mock
+	private IngestStagingArea ingestStagingArea;
+	@Mock
+	private TransferBudget transferBudget;
+	@Mock
+	private MetadataCache metadataCache;
+	@Mock
+	private IdempotencyFilter idempotencyFilter;
+	@Mock
+	private RateLimiter rateLimiter;
+	@Mock
+	private UpstreamScheduler upstreamScheduler;
 	@InjectMocks
 	private AdminController adminController;
 
@@ -76,5 +110,16 @@ public class AdminTests {
 		assertTrue(stats.containsKey("Space"));
 		assertTrue(stats.containsKey("Space"));
 		assertTrue(stats.containsKey("Security"));
+		assertTrue(stats.containsKey("UUID Pool"));
+		assertTrue(stats.containsKey("Kafka Producer"));
+		assertTrue(stats.containsKey("Job Outbox"));
+		assertTrue(stats.containsKey("Upload Sessions"));
+		assertTrue(stats.containsKey("Content Index"));
+		assertTrue(stats.containsKey("Ingest Staging"));
+		assertTrue(stats.containsKey("Transfer Budget"));
+		assertTrue(stats.containsKey("Metadata Cache"));
+		assertTrue(stats.containsKey("Idempotency"));
+		assertTrue(stats.containsKey("Rate Limits"));
+		assertTrue(stats.containsKey("Upstream Queues"));
 	}
 }
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.management.remote.JMXPrincipal;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.DispatcherServlet;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import gateway.controller.BatchController;
+import gateway.controller.util.GatewayUtil;
+import model.response.ErrorResponse;
+import util.PiazzaLogger;
+
+/**
+ * Tests the Batch controller.
+ */
+public class BatchTests {
+	@Mock
+	private PiazzaLogger logger;
+	@Mock
+	private GatewayUtil gatewayUtil;
+	@Mock
+	private DispatcherServlet dispatcherServlet;
+	@InjectMocks
+	private BatchController batchController;
+
+	private ExecutorService batchExecutor;
+	private Principal user;
+
+	/**
+	 * Initialize mock objects.
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		batchExecutor = Executors.newFixedThreadPool(4);
+		ReflectionTestUtils.setField(batchController, "batchExecutor", batchExecutor);
+		ReflectionTestUtils.setField(batchController, "objectMapper", new ObjectMapper());
+		ReflectionTestUtils.setField(batchController, "BATCH_MAX", 10);
+		ReflectionTestUtils.setField(batchController, "RESPONSE_MAX", 1024);
+		user = new JMXPrincipal("Test User");
+	}
+
+	@After
+	public void cleanup() {
+		batchExecutor.shutdownNow();
+	}
+
+	/**
+	 * Test POST /batch
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testBatch() throws Exception {
+		// Mock. Each request is answered with its own method, path, parameters and body.
+		Mockito.doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				HttpServletRequest request = (HttpServletRequest) invocation.getArguments()[0];
+				HttpServletResponse response = (HttpServletResponse) invocation.getArguments()[1];
+				if (request.getServletPath().equals("/missing")) {
+					response.sendError(404, "Not Found");
+					return null;
+				}
+				response.setStatus(request.getMethod().equals("POST") ? 201 : 200);
+				response.getWriter().write(String.format("{\"path\":\"%s\",\"page\":\"%s\",\"user\":\"%s\",\"body\":%s}",
+						request.getServletPath(), request.getParameter("page"), request.getUserPrincipal().getName(),
+						IOUtils.toString(request.getInputStream(), StandardCharsets.UTF_8).isEmpty() ? "null" : "true"));
+				return null;
+			}
+		}).when(dispatcherServlet).service(any(ServletRequest.class), any(ServletResponse.class));
+		List<BatchController.SubRequest> requests = Arrays.asList(new BatchController.SubRequest("GET", "/data?page=2", null),
+				new BatchController.SubRequest("POST", "/data/query", new ObjectMapper().readTree("{\"query\":{}}")),
+				new BatchController.SubRequest("GET", "/missing", null), new BatchController.SubRequest("GET", "/batch", null));
+
+		// Test
+		ResponseEntity<?> entity = batchController.executeBatch(requests, user, new MockHttpServletRequest(),
+				new MockHttpServletResponse());
+
+		// Verify. Responses are in the order requested.
+		assertTrue(entity.getStatusCode().equals(HttpStatus.OK));
+		List<BatchController.SubResponse> results = (List<BatchController.SubResponse>) entity.getBody();
+		assertEquals(4, results.size());
+		assertEquals(200, results.get(0).status);
+		assertEquals("/data", ((JsonNode) results.get(0).body).get("path").asText());
+		assertEquals("2", ((JsonNode) results.get(0).body).get("page").asText());
+		assertEquals("Test User", ((JsonNode) results.get(0).body).get("user").asText());
+		assertEquals(201, results.get(1).status);
+		assertTrue(((JsonNode) results.get(1).body).get("body").asBoolean());
+		assertEquals(404, results.get(2).status);
+		assertEquals(400, results.get(3).status);
+		Mockito.verify(dispatcherServlet, Mockito.times(3)).service(any(ServletRequest.class), any(ServletResponse.class));
+
+		// Test an empty batch
+		entity = batchController.executeBatch(new ArrayList<BatchController.SubRequest>(), user, new MockHttpServletRequest(),
+				new MockHttpServletResponse());
+		assertTrue(entity.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+	}
+
+	/**
+	 * Tests that nested batches, idempotent submissions and file transfers are rejected, however their paths are
+	 * written, and that large responses are not captured.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testBatchRejections() throws Exception {
+		// Mock a response larger than may be captured
+		Mockito.doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				HttpServletResponse response = (HttpServletResponse) invocation.getArguments()[1];
+				for (int i = 0; i < 100; i++) {
+					response.getOutputStream().write(new byte[100]);
+				}
+				return null;
+			}
+		}).when(dispatcherServlet).service(any(ServletRequest.class), any(ServletResponse.class));
+		List<BatchController.SubRequest> requests = Arrays.asList(new BatchController.SubRequest("POST", "//batch", null),
+				new BatchController.SubRequest("POST", "/data/../batch/", null), new BatchController.SubRequest("POST", "/%62atch", null),
+				new BatchController.SubRequest("post", "/job/", null), new BatchController.SubRequest("POST", "/deployment;x=1", null),
+				new BatchController.SubRequest("GET", "/file/123", null), new BatchController.SubRequest("GET", "/../data", null),
+				new BatchController.SubRequest("GET", "/data/123", null));
+
+		// Test
+		ResponseEntity<?> entity = batchController.executeBatch(requests, user, new MockHttpServletRequest(),
+				new MockHttpServletResponse());
+
+		// Verify
+		List<BatchController.SubResponse> results = (List<BatchController.SubResponse>) entity.getBody();
+		for (BatchController.SubResponse result : results) {
+			assertEquals(400, result.status);
+		}
+		assertTrue(((ErrorResponse) results.get(0).body).message.contains("nested"));
+		assertTrue(((ErrorResponse) results.get(1).body).message.contains("nested"));
+		assertTrue(((ErrorResponse) results.get(2).body).message.contains("nested"));
+		assertTrue(((ErrorResponse) results.get(3).body).message.contains("idempotent"));
+		assertTrue(((ErrorResponse) results.get(4).body).message.contains("idempotent"));
+		assertTrue(((ErrorResponse) results.get(5).body).message.contains("Files"));
+		assertTrue(((ErrorResponse) results.get(7).body).message.contains("larger than"));
+		Mockito.verify(dispatcherServlet, Mockito.times(1)).service(any(ServletRequest.class), any(ServletResponse.class));
+	}
+}
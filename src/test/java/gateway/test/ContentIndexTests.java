@@ -0,0 +1,99 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import gateway.controller.util.ContentIndex;
+
+/**
+ * Tests the Content Index used to deduplicate hosted files.
+ */
+public class ContentIndexTests {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String FIRST = "47bd29075f8b8019f0beec6d86beda7c9bf67aaf05053dcbe0b3bcb63968517f";
+	private static final String SECOND = "0000000000000000000000000000000000000000000000000000000000000001";
+	private static final String THIRD = "ffffffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff";
+
+	/**
+	 * Tests that entries and removals survive a restart.
+	 */
+	@Test
+	public void testReload() throws Exception {
+		ContentIndex index = createIndex(1024);
+		index.add(FIRST, "123456-test.tif", 100);
+		index.add(SECOND, "654321-other.tif", 200);
+		index.remove(SECOND);
+		index.cleanup();
+
+		ContentIndex restarted = createIndex(1024);
+		try {
+			assertEquals("123456-test.tif", restarted.find(FIRST).getKey());
+			assertEquals(100, restarted.find(FIRST).getSize());
+			assertTrue(restarted.find(SECOND) == null);
+		} finally {
+			restarted.cleanup();
+		}
+	}
+
+	/**
+	 * Tests that removed entries are compacted away when the index file fills up.
+	 */
+	@Test
+	public void testCompaction() throws Exception {
+		// Room for exactly two records
+		ContentIndex index = createIndex(2 * (45 + "123456-test.tif".length()));
+		try {
+			index.add(FIRST, "123456-test.tif", 100);
+			index.add(SECOND, "654321-test.tif", 200);
+			index.remove(FIRST);
+			index.add(THIRD, "999999-test.tif", 300);
+
+			// Verify
+			assertEquals(1L, index.getStatistics().get("Compactions"));
+			assertEquals("654321-test.tif", index.find(SECOND).getKey());
+			assertEquals("999999-test.tif", index.find(THIRD).getKey());
+		} finally {
+			index.cleanup();
+		}
+
+		// The compacted file reloads intact
+		ContentIndex restarted = createIndex(2 * (45 + "123456-test.tif".length()));
+		try {
+			assertEquals(2, restarted.getStatistics().get("Entries"));
+			assertEquals(300, restarted.find(THIRD).getSize());
+		} finally {
+			restarted.cleanup();
+		}
+	}
+
+	private ContentIndex createIndex(int size) throws Exception {
+		ContentIndex index = new ContentIndex();
+		ReflectionTestUtils.setField(index, "DEDUPE_ENABLED", true);
+		ReflectionTestUtils.setField(index, "INDEX_FILE", folder.getRoot().getAbsolutePath() + "/content-index.dat");
+		ReflectionTestUtils.setField(index, "INDEX_SIZE", size);
+		index.init();
+		return index;
+	}
+}
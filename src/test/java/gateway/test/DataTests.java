@@ -15,25 +15,47 @@
  **/
 package gateway.test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import gateway.controller.DataController;
 import gateway.controller.util.GatewayUtil;
-
+import gateway.controller.util.IngestStagingArea;
+import gateway.controller.util.MetadataCache;
+import gateway.controller.util.TransferBudget;
+import gateway.controller.util.UploadSession;
+import gateway.controller.util.UploadSessionManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import javax.management.remote.JMXPrincipal;
 
 import model.data.DataResource;
+import model.data.location.S3FileStore;
 import model.data.type.GeoJsonDataType;
+import model.data.type.RasterDataType;
 import model.data.type.TextDataType;
 import model.job.metadata.ResourceMetadata;
 import model.job.type.IngestJob;
@@ -46,28 +68,41 @@ import model.response.Pagination;
 import model.response.PiazzaResponse;
 import model.response.SuccessResponse;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 import util.PiazzaLogger;
 import util.UUIDFactory;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import exception.InvalidInputException;
 import exception.PiazzaJobException;
 
 /**
@@ -87,12 +122,23 @@ public class DataTests {
 	private RestTemplate restTemplate;
 	@Mock
 	private AmazonS3 s3Client;
+	@Mock
+	private UploadSessionManager uploadSessionManager;
+	@Mock
+	private IngestStagingArea ingestStagingArea;
+	@Mock
+	private TransferBudget transferBudget;
+	@Mock
+	private MetadataCache metadataCache;
 	@InjectMocks
 	private DataController dataController;
 	@Mock
 	private Producer<String, String> producer;
 
 	private Principal user;
+
+	private static final String BOUNDARY = "PiazzaBoundary";
+
 	private DataResource mockData;
 	private ErrorResponse mockError;
 
@@ -100,7 +146,7 @@ public class DataTests {
 	 * Initialize mock objects.
 	 */
 	@Before
-	public void setup() {
+	public void setup() throws Exception {
 		MockitoAnnotations.initMocks(this);
 		MockitoAnnotations.initMocks(gatewayUtil);
 
@@ -131,6 +177,9 @@ public class DataTests {
 		});
 		
 		when(gatewayUtil.getErrorResponse(anyString())).thenCallRealMethod();		
+
+		// Admit all transfers by default
+		when(transferBudget.acquire(anyString(), anyLong())).thenReturn(mock(TransferBudget.Permit.class));
 	}
 
 	/**
@@ -148,7 +197,7 @@ public class DataTests {
 				.thenReturn(new ResponseEntity<DataResourceListResponse>(mockResponse, HttpStatus.OK));
 
 		// Get the data
-		ResponseEntity<PiazzaResponse> entity = dataController.getData(null, null, 0, 10, null, "asc", null, user);
+		ResponseEntity<PiazzaResponse> entity = dataController.getData(null, null, 0, 10, null, "asc", null, null, user);
 		PiazzaResponse response = entity.getBody();
 
 		// Verify the results
@@ -163,7 +212,7 @@ public class DataTests {
 			.thenThrow(new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR));
 
 		// Get the data
-		entity = dataController.getData(null, null, 0, 10, null, "asc", null, user);
+		entity = dataController.getData(null, null, 0, 10, null, "asc", null, null, user);
 		response = entity.getBody();
 
 		// Verify that a proper exception was thrown.
@@ -214,14 +263,14 @@ public class DataTests {
 		IngestJob mockJob = new IngestJob();
 		mockJob.data = mockData;
 		mockJob.host = false; // This will cause a failure initially
-		MockMultipartFile file = new MockMultipartFile("test.tif", "Content".getBytes());
+		byte[] file = "Content".getBytes();
 
 		// Generate a UUID that we can reproduce.
 		when(gatewayUtil.sendJobRequest(any(PiazzaJobRequest.class), anyString())).thenReturn("123456");
 
 		// Test the request
 		ResponseEntity<PiazzaResponse> entity = dataController
-				.ingestDataFile(new ObjectMapper().writeValueAsString(mockJob), file, user);
+				.ingestDataFile(mockMultipartRequest(new ObjectMapper().writeValueAsString(mockJob), file, true), user);
 		PiazzaResponse response = entity.getBody();
 
 		// Verify the results. This request should fail since the host flag is
@@ -230,7 +279,7 @@ public class DataTests {
 
 		mockJob.host = true;
 		// Resubmit the Job. Now it should fail because it is a TextResource.
-		entity = dataController.ingestDataFile(new ObjectMapper().writeValueAsString(mockJob), file, user);
+		entity = dataController.ingestDataFile(mockMultipartRequest(new ObjectMapper().writeValueAsString(mockJob), file, true), user);
 		response = entity.getBody();
 
 		assertTrue(response instanceof ErrorResponse == true);
@@ -241,12 +290,336 @@ public class DataTests {
 
 		// Resubmit the Job. It should now succeed with the message successfully
 		// being sent to Kafka.
-		entity = dataController.ingestDataFile(new ObjectMapper().writeValueAsString(mockJob), file, user);
+		MockHttpServletRequest request = mockMultipartRequest(new ObjectMapper().writeValueAsString(mockJob), file, true);
+		request.addHeader("X-Checksum-SHA256", "abc");
+		entity = dataController.ingestDataFile(request, user);
 		response = entity.getBody();
 
 		assertTrue(response instanceof ErrorResponse == false);
 		assertTrue(((JobResponse) response).data.getJobId().equalsIgnoreCase("123456"));
 		assertTrue(entity.getStatusCode().equals(HttpStatus.CREATED));
+		Mockito.verify(gatewayUtil).pushS3File(anyString(), any(IngestJob.class), eq("test.tif"), any(InputStream.class), (String) isNull(),
+				eq("abc"));
+
+		// The data part must be sent before the file part.
+		entity = dataController.ingestDataFile(mockMultipartRequest(new ObjectMapper().writeValueAsString(mockJob), file, false), user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+	}
+
+	/**
+	 * Creates a multipart request for the /data/file endpoint, containing a data part and a file part.
+	 */
+	/**
+	 * Test POST /data/file with asynchronous ingest enabled
+	 */
+	@Test
+	public void testAddFileAsync() throws Exception {
+		// Mock
+		IngestJob mockJob = new IngestJob();
+		mockJob.host = true;
+		mockJob.data = new DataResource();
+		mockJob.data.dataType = new GeoJsonDataType();
+		String data = new ObjectMapper().writeValueAsString(mockJob);
+		when(gatewayUtil.getUuid()).thenReturn("123456");
+		when(gatewayUtil.getPrincipalName(user)).thenReturn("Test User");
+		when(ingestStagingArea.isEnabled()).thenReturn(true);
+		when(ingestStagingArea.reserve(anyLong())).thenReturn(false).thenReturn(true);
+
+		// Staging area is full
+		ResponseEntity<PiazzaResponse> entity = dataController.ingestDataFile(mockMultipartRequest(data, "Content".getBytes(), true), user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.SERVICE_UNAVAILABLE));
+
+		// Staged, and the Job Id returned without waiting for S3 or the Job Manager
+		entity = dataController.ingestDataFile(mockMultipartRequest(data, "Content".getBytes(), true), user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.CREATED));
+		assertEquals("123456", ((JobResponse) entity.getBody()).data.getJobId());
+		Mockito.verify(ingestStagingArea).stage(eq("123456"), eq("Test User"), any(IngestJob.class), eq("test.tif"), any(InputStream.class),
+				(String) isNull(), (String) isNull(), anyLong());
+		Mockito.verify(gatewayUtil, Mockito.never()).pushS3File(anyString(), any(IngestJob.class), anyString(), any(InputStream.class),
+				anyString(), anyString());
+		Mockito.verify(gatewayUtil, Mockito.never()).sendJobRequest(any(PiazzaJobRequest.class), anyString());
+	}
+
+	/**
+	 * Test that uploads and downloads are rejected when the Transfer Budget is exhausted
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testTransferBudget() throws Exception {
+		// Mock
+		IngestJob mockJob = new IngestJob();
+		mockJob.host = true;
+		mockJob.data = new DataResource();
+		mockJob.data.dataType = new GeoJsonDataType();
+		TransferBudget.Permit permit = mock(TransferBudget.Permit.class);
+		when(transferBudget.acquire(anyString(), anyLong())).thenReturn(null).thenReturn(permit).thenReturn(null);
+		when(restTemplate.execute(anyString(), eq(HttpMethod.GET), any(RequestCallback.class), any(ResponseExtractor.class)))
+				.thenAnswer(new Answer<Object>() {
+					@Override
+					public Object answer(InvocationOnMock invocation) throws Throwable {
+						MockClientHttpResponse accessResponse = new MockClientHttpResponse("Content".getBytes(), HttpStatus.OK);
+						accessResponse.getHeaders().set(HttpHeaders.CONTENT_LENGTH, "7");
+						return ((ResponseExtractor<Long>) invocation.getArguments()[3]).extractData(accessResponse);
+					}
+				});
+
+		// Upload rejected before the file is read
+		MockHttpServletRequest request = mockMultipartRequest(new ObjectMapper().writeValueAsString(mockJob), "Content".getBytes(), true);
+		ResponseEntity<PiazzaResponse> entity = dataController.ingestDataFile(request, user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.SERVICE_UNAVAILABLE));
+		Mockito.verify(gatewayUtil, Mockito.never()).pushS3File(anyString(), any(IngestJob.class), anyString(), any(InputStream.class),
+				anyString(), anyString());
+
+		// Upload admitted, and its permit released
+		entity = dataController.ingestDataFile(mockMultipartRequest(new ObjectMapper().writeValueAsString(mockJob), "Content".getBytes(), true),
+				user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.CREATED));
+		Mockito.verify(permit).release();
+
+		// Download rejected before Access is called, since its size is not yet known
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		ResponseEntity<?> download = dataController.getFile("123456", "test.tif", false, user, new MockHttpServletRequest(), response);
+		assertTrue(download.getStatusCode().equals(HttpStatus.SERVICE_UNAVAILABLE));
+		assertEquals(0, response.getContentAsByteArray().length);
+		Mockito.verify(transferBudget).acquire(anyString(), eq(-1L));
+		Mockito.verify(restTemplate, Mockito.never()).execute(anyString(), eq(HttpMethod.GET), any(RequestCallback.class),
+				any(ResponseExtractor.class));
+
+		// Download admitted, and its permit resized once Access reports its size
+		TransferBudget.Permit downloadPermit = mock(TransferBudget.Permit.class);
+		when(transferBudget.acquire(anyString(), anyLong())).thenReturn(downloadPermit);
+		download = dataController.getFile("123456", "test.tif", false, user, new MockHttpServletRequest(), new MockHttpServletResponse());
+		assertTrue(download == null);
+		Mockito.verify(downloadPermit).resize(7L);
+		Mockito.verify(downloadPermit).release();
+	}
+
+	private MockHttpServletRequest mockMultipartRequest(String data, byte[] file, boolean dataFirst) throws IOException {
+		StringBuilder dataPart = new StringBuilder();
+		dataPart.append("--").append(BOUNDARY).append("\r\n");
+		dataPart.append("Content-Disposition: form-data; name=\"data\"\r\n\r\n");
+		dataPart.append(data).append("\r\n");
+		ByteArrayOutputStream filePart = new ByteArrayOutputStream();
+		filePart.write(String.format("--%s\r\n", BOUNDARY).getBytes());
+		filePart.write("Content-Disposition: form-data; name=\"file\"; filename=\"test.tif\"\r\n".getBytes());
+		filePart.write("Content-Type: application/octet-stream\r\n\r\n".getBytes());
+		filePart.write(file);
+		filePart.write("\r\n".getBytes());
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if (dataFirst) {
+			body.write(dataPart.toString().getBytes());
+			body.write(filePart.toByteArray());
+		} else {
+			body.write(filePart.toByteArray());
+			body.write(dataPart.toString().getBytes());
+		}
+		body.write(String.format("--%s--\r\n", BOUNDARY).getBytes());
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/data/file");
+		request.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+		request.setContent(body.toByteArray());
+		return request;
+	}
+
+	/**
+	 * Test GET /data?ids=
+	 */
+	@Test
+	public void testGetDataBatch() throws Exception {
+		// Mock
+		ReflectionTestUtils.setField(dataController, "ACCESS_URL", "http://access");
+		ReflectionTestUtils.setField(dataController, "MULTIGET_MAX", 2);
+		Map<String, PiazzaResponse> results = new LinkedHashMap<String, PiazzaResponse>();
+		results.put("a", new DataResourceResponse(mockData));
+		results.put("b", new ErrorResponse("Not Found", "Access"));
+		when(metadataCache.getAll(eq("data"), eq(Arrays.asList("a", "b")), eq("http://access/data/%s"), eq(DataResourceResponse.class)))
+				.thenReturn(results);
+
+		// Test
+		ResponseEntity<?> entity = dataController.getDataBatch("a, b,", user);
+
+		// Verify
+		assertTrue(entity.getStatusCode().equals(HttpStatus.OK));
+		assertEquals(results, entity.getBody());
+
+		// Test too many Ids
+		entity = dataController.getDataBatch("a,b,c", user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+
+		// Test an Id which would change the path requested from Access
+		entity = dataController.getDataBatch("a,../admin", user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+	}
+
+	/**
+	 * Test POST /data/batch
+	 */
+	@Test
+	public void testAddDataBatch() throws Exception {
+		// Mock
+		ReflectionTestUtils.setField(dataController, "BATCH_MAX", 10);
+		IngestJob validJob = new IngestJob();
+		validJob.data = new DataResource();
+		validJob.data.dataId = "Injected";
+		validJob.data.dataType = new GeoJsonDataType();
+		IngestJob invalidJob = new IngestJob();
+		when(gatewayUtil.sendJobRequests(anyList())).thenReturn(
+				Arrays.<PiazzaResponse> asList(new JobResponse("job1"), new ErrorResponse("Job Manager is down", "Gateway")));
+
+		// Test
+		ResponseEntity<?> entity = dataController.ingestDataBatch(Arrays.asList(validJob, invalidJob, validJob), user);
+
+		// Verify. Results are in input order, and only valid Jobs are forwarded.
+		assertTrue(entity.getStatusCode().equals(HttpStatus.CREATED));
+		@SuppressWarnings("unchecked")
+		List<PiazzaResponse> results = (List<PiazzaResponse>) entity.getBody();
+		assertEquals("job1", ((JobResponse) results.get(0)).data.getJobId());
+		assertTrue(((ErrorResponse) results.get(1)).message.contains("Data Type"));
+		assertEquals("Job Manager is down", ((ErrorResponse) results.get(2)).message);
+		assertTrue(validJob.data.dataId == null);
+
+		// Test an empty batch
+		entity = dataController.ingestDataBatch(new ArrayList<IngestJob>(), user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+	}
+
+	/**
+	 * Test POST /data/archive
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testAddArchive() throws Exception {
+		// Mock an archive with two supported files, a directory, and an unsupported file
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(archive);
+		zip.putNextEntry(new ZipEntry("imagery/"));
+		zip.putNextEntry(new ZipEntry("imagery/scene.tif"));
+		zip.write("Raster".getBytes());
+		zip.putNextEntry(new ZipEntry("readme.txt"));
+		zip.write("Readme".getBytes());
+		zip.putNextEntry(new ZipEntry("roads.geojson"));
+		zip.write("{}".getBytes());
+		zip.close();
+		IngestJob template = new IngestJob();
+		template.host = true;
+		template.data = new DataResource();
+		ReflectionTestUtils.setField(dataController, "ARCHIVE_BATCH_SIZE", 1);
+		when(gatewayUtil.getUuid()).thenReturn("job1", "job2");
+		final List<String> pushed = new ArrayList<String>();
+		when(gatewayUtil.pushS3File(anyString(), any(IngestJob.class), anyString(), any(InputStream.class))).thenAnswer(new Answer<IngestJob>() {
+			@Override
+			public IngestJob answer(InvocationOnMock invocation) throws Throwable {
+				// Each file must be readable to its end without closing the archive
+				InputStream stream = (InputStream) invocation.getArguments()[3];
+				pushed.add(IOUtils.toString(stream));
+				stream.close();
+				return (IngestJob) invocation.getArguments()[1];
+			}
+		});
+		when(gatewayUtil.awaitJobRequests(anyList(), anyList())).thenAnswer(new Answer<List<PiazzaResponse>>() {
+			@Override
+			public List<PiazzaResponse> answer(InvocationOnMock invocation) throws Throwable {
+				List<PiazzaResponse> responses = new ArrayList<PiazzaResponse>();
+				for (String jobId : (List<String>) invocation.getArguments()[1]) {
+					responses.add(new JobResponse(jobId));
+				}
+				return responses;
+			}
+		});
+
+		// Test
+		ResponseEntity<?> entity = dataController
+				.ingestDataArchive(mockMultipartRequest(new ObjectMapper().writeValueAsString(template), archive.toByteArray(), true), user);
+
+		// Verify
+		assertTrue(entity.getStatusCode().equals(HttpStatus.CREATED));
+		List<PiazzaResponse> results = (List<PiazzaResponse>) entity.getBody();
+		assertEquals(3, results.size());
+		assertEquals("job1", ((JobResponse) results.get(0)).data.getJobId());
+		assertTrue(results.get(1) instanceof ErrorResponse);
+		assertEquals("job2", ((JobResponse) results.get(2)).data.getJobId());
+		assertEquals(Arrays.asList("Raster", "{}"), pushed);
+		ArgumentCaptor<IngestJob> jobs = ArgumentCaptor.forClass(IngestJob.class);
+		Mockito.verify(gatewayUtil, Mockito.times(2)).pushS3File(anyString(), jobs.capture(), anyString(), any(InputStream.class));
+		assertTrue(jobs.getAllValues().get(0).getData().getDataType() instanceof RasterDataType);
+		assertEquals("roads.geojson", jobs.getAllValues().get(1).getData().getMetadata().getName());
+		Mockito.verify(gatewayUtil, Mockito.times(2)).submitJobRequests(anyList(), anyList());
+
+		// The template must be sent first
+		entity = dataController.ingestDataArchive(
+				mockMultipartRequest(new ObjectMapper().writeValueAsString(template), archive.toByteArray(), false), user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+
+		// A truncated archive still returns the Jobs of the files before the corrupt one
+		archive = new ByteArrayOutputStream();
+		zip = new ZipOutputStream(archive);
+		zip.putNextEntry(new ZipEntry("scene.tif"));
+		zip.write("Raster".getBytes());
+		zip.putNextEntry(new ZipEntry("roads.geojson"));
+		byte[] content = new byte[10000];
+		new Random(0).nextBytes(content);
+		zip.write(content);
+		zip.close();
+		when(gatewayUtil.getUuid()).thenReturn("job3", "job4");
+		entity = dataController.ingestDataArchive(mockMultipartRequest(new ObjectMapper().writeValueAsString(template),
+				Arrays.copyOf(archive.toByteArray(), archive.size() - 5000), true), user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.CREATED));
+		results = (List<PiazzaResponse>) entity.getBody();
+		assertEquals(2, results.size());
+		assertEquals("job3", ((JobResponse) results.get(0)).data.getJobId());
+		assertTrue(((ErrorResponse) results.get(1)).message.contains("roads.geojson"));
+	}
+
+	/**
+	 * Test the /data/upload Upload Session endpoints
+	 */
+	@Test
+	public void testUploadSession() throws Exception {
+		// Mock
+		UploadSession session = new UploadSession("session", "123456", "Test User", "test.tif", "123456-test.tif", "upload", 100, 5242880);
+		when(gatewayUtil.getPrincipalName(user)).thenReturn("Test User");
+		when(uploadSessionManager.createSession("Test User", "test.tif", 100)).thenReturn(session);
+		when(uploadSessionManager.getSession("session")).thenReturn(session);
+		when(uploadSessionManager.uploadChunk(any(UploadSession.class), eq(50L), anyLong(), any(InputStream.class)))
+				.thenThrow(new InvalidInputException("Chunk offset 50 does not match the committed offset 0."));
+		when(uploadSessionManager.completeSession(session)).thenReturn(new S3FileStore("bucket", "123456-test.tif", 100L, "domain"));
+		when(gatewayUtil.sendJobRequest(any(PiazzaJobRequest.class), eq("123456"))).thenReturn("123456");
+
+		// Create
+		ResponseEntity<?> entity = dataController.createUploadSession("test.tif", 100L, user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.CREATED));
+		assertEquals("session", ((Map<?, ?>) entity.getBody()).get("sessionId"));
+
+		// Status for another user is not found
+		entity = dataController.getUploadSession("session", new JMXPrincipal("Another User"));
+		assertTrue(entity.getStatusCode().equals(HttpStatus.NOT_FOUND));
+
+		// Chunks at the wrong offset conflict
+		MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/data/upload/session");
+		request.setContent(new byte[50]);
+		entity = dataController.uploadChunk("session", 50L, user, request);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.CONFLICT));
+
+		// Complete
+		IngestJob mockJob = new IngestJob();
+		mockJob.host = true;
+		mockJob.data = new DataResource();
+		mockJob.data.dataType = new GeoJsonDataType();
+		ResponseEntity<PiazzaResponse> jobEntity = dataController.completeUploadSession("session", mockJob, user);
+		assertTrue(jobEntity.getStatusCode().equals(HttpStatus.CREATED));
+		assertTrue(((JobResponse) jobEntity.getBody()).data.getJobId().equals("123456"));
+		assertEquals("123456-test.tif", ((S3FileStore) ((GeoJsonDataType) mockJob.data.dataType).getLocation()).getFileName());
+
+		// Direct sessions return their pre-signed URL
+		session.setDirect(true);
+		Map<String, Object> directStatus = session.toStatus();
+		directStatus.put("uploadUrl", "https://bucket/123456-test.tif");
+		when(uploadSessionManager.createDirectSession("Test User", "test.tif")).thenReturn(session);
+		when(uploadSessionManager.getDirectUploadStatus(session)).thenReturn(directStatus);
+		entity = dataController.createDirectUploadSession("test.tif", user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.CREATED));
+		assertEquals("https://bucket/123456-test.tif", ((Map<?, ?>) entity.getBody()).get("uploadUrl"));
+		entity = dataController.getUploadSession("session", user);
+		assertEquals("https://bucket/123456-test.tif", ((Map<?, ?>) entity.getBody()).get("uploadUrl"));
 	}
 
 	/**
@@ -361,25 +734,82 @@ public class DataTests {
 	 * Test GET /file/{dataId}
 	 */
 	@Test
+	@SuppressWarnings("unchecked")
 	public void testDownload() throws Exception {
-		// Mock
-		ResponseEntity<byte[]> mockResponse = new ResponseEntity<byte[]>("Content".getBytes(), HttpStatus.OK);
-		when(restTemplate.getForEntity(anyString(), eq(byte[].class))).thenReturn(mockResponse);
+		// Mock an Access response that only honors the forwarded Range header
+		when(restTemplate.execute(anyString(), eq(HttpMethod.GET), any(RequestCallback.class), any(ResponseExtractor.class)))
+				.thenAnswer(new Answer<Object>() {
+					@Override
+					public Object answer(InvocationOnMock invocation) throws Throwable {
+						MockClientHttpRequest accessRequest = new MockClientHttpRequest();
+						((RequestCallback) invocation.getArguments()[2]).doWithRequest(accessRequest);
+						assertEquals("bytes=0-3", accessRequest.getHeaders().getFirst(HttpHeaders.RANGE));
+						MockClientHttpResponse accessResponse = new MockClientHttpResponse("Cont".getBytes(), HttpStatus.PARTIAL_CONTENT);
+						accessResponse.getHeaders().set(HttpHeaders.CONTENT_LENGTH, "4");
+						accessResponse.getHeaders().set(HttpHeaders.CONTENT_RANGE, "bytes 0-3/7");
+						accessResponse.getHeaders().set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=test.txt");
+						return ((ResponseExtractor<Long>) invocation.getArguments()[3]).extractData(accessResponse);
+					}
+				});
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader(HttpHeaders.RANGE, "bytes=0-3");
+		MockHttpServletResponse response = new MockHttpServletResponse();
 
 		// Test
-		ResponseEntity<?> entity = dataController.getFile("123456", "test.txt", user);
+		ResponseEntity<?> entity = dataController.getFile("123456", "test.txt", false, user, request, response);
 
 		// Verify
-		assertTrue(entity.getStatusCode().equals(HttpStatus.OK));
-		System.out.println(entity.getBody().toString());
+		assertTrue(entity == null);
+		assertEquals(HttpStatus.PARTIAL_CONTENT.value(), response.getStatus());
+		assertEquals("Cont", response.getContentAsString());
+		assertEquals("bytes 0-3/7", response.getHeader(HttpHeaders.CONTENT_RANGE));
+		assertEquals("attachment; filename=test.txt", response.getHeader(HttpHeaders.CONTENT_DISPOSITION));
 
 		// Test an Exception
-		when(restTemplate.getForEntity(anyString(), eq(byte[].class))).thenThrow(new RestClientException(""));
-		try {
-			entity = dataController.getFile("123456", "test.txt", user);
-		} catch (Exception exception) {
-			assertTrue(exception.getMessage().contains("Error downloading file"));
-		}
+		when(restTemplate.execute(anyString(), eq(HttpMethod.GET), any(RequestCallback.class), any(ResponseExtractor.class)))
+				.thenThrow(new RestClientException(""));
+		entity = dataController.getFile("123456", "test.txt", false, user, new MockHttpServletRequest(), new MockHttpServletResponse());
+		assertTrue(entity.getStatusCode().equals(HttpStatus.INTERNAL_SERVER_ERROR));
+		assertTrue(((ErrorResponse) entity.getBody()).message.contains("Error downloading file"));
+	}
 
+	/**
+	 * Test GET /file/{dataId} redirecting to S3
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testDownloadRedirect() throws Exception {
+		// Mock a hosted file
+		ReflectionTestUtils.setField(dataController, "DOWNLOAD_REDIRECT_ENABLED", true);
+		ReflectionTestUtils.setField(dataController, "DOWNLOAD_REDIRECT_TTL", 300L);
+		GeoJsonDataType dataType = new GeoJsonDataType();
+		dataType.setLocation(new S3FileStore("bucket", "123456-test.tif", 100L, "domain"));
+		DataResource hosted = new DataResource();
+		hosted.dataType = dataType;
+		when(restTemplate.getForEntity(anyString(), eq(DataResourceResponse.class)))
+				.thenReturn(new ResponseEntity<DataResourceResponse>(new DataResourceResponse(hosted), HttpStatus.OK));
+		when(gatewayUtil.getPresignedDownloadUrl(any(S3FileStore.class), eq("test.tif"), eq(300L)))
+				.thenReturn(new URL("https://bucket/123456-test.tif"));
+
+		// Test
+		ResponseEntity<?> entity = dataController.getFile("123456", "test.tif", false, user, new MockHttpServletRequest(),
+				new MockHttpServletResponse());
+
+		// Verify
+		assertTrue(entity.getStatusCode().equals(HttpStatus.FOUND));
+		assertEquals("https://bucket/123456-test.tif", entity.getHeaders().getLocation().toString());
+
+		// Opting out of the redirect streams the file through the Gateway instead
+		when(restTemplate.execute(anyString(), eq(HttpMethod.GET), any(RequestCallback.class), any(ResponseExtractor.class))).thenReturn(7L);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		entity = dataController.getFile("123456", "test.tif", true, user, new MockHttpServletRequest(), response);
+		assertTrue(entity == null);
+		Mockito.verify(gatewayUtil, Mockito.times(1)).getPresignedDownloadUrl(any(S3FileStore.class), anyString(), anyLong());
+
+		// A redirect that cannot be generated falls back to streaming the file
+		when(gatewayUtil.getPresignedDownloadUrl(any(S3FileStore.class), eq("test.tif"), eq(300L)))
+				.thenThrow(new AmazonClientException("S3 is down"));
+		entity = dataController.getFile("123456", "test.tif", false, user, new MockHttpServletRequest(), new MockHttpServletResponse());
+		assertTrue(entity == null);
 	}
-}
\ No newline at end of file
+}
@@ -51,6 +51,7 @@ import com.amazonaws.services.s3.AmazonS3;
 import exception.PiazzaJobException;
 import gateway.controller.DeploymentController;
 import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.MetadataCache;
 import model.data.deployment.Deployment;
 import model.job.type.AccessJob;
 import model.request.PiazzaJobRequest;
@@ -80,6 +81,8 @@ public class DeploymentTests {
 	@Mock
 	private RestTemplate restTemplate;
 	@Mock
+	private MetadataCache metadataCache;
+	@Mock
 	private AmazonS3 s3Client;
 	@InjectMocks
 	private DeploymentController deploymentController;
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import exception.InvalidInputException;
+import gateway.controller.util.FieldProjection;
+import model.response.PiazzaResponse;
+
+/**
+ * Tests the projection of list responses down to selected fields.
+ */
+public class FieldProjectionTests {
+	/**
+	 * Tests that only the selected fields of each item are kept, and that the rest of the response is unchanged.
+	 */
+	@Test
+	public void testProject() throws Exception {
+		// Mock
+		String response = "{\"type\":\"data-list\",\"data\":[{\"dataId\":\"a\",\"dataType\":{\"type\":\"raster\",\"footprint\":[[1,2],[3,4]]},"
+				+ "\"metadata\":{\"name\":\"roads\",\"description\":\"All roads\"},\"tags\":[{\"name\":\"x\",\"value\":1}]},{\"dataId\":\"b\"}],"
+				+ "\"pagination\":{\"page\":0,\"perPage\":10,\"count\":2}}";
+		FieldProjection projection = FieldProjection.parse("dataId, metadata.name,tags.name");
+
+		// Test
+		ByteArrayOutputStream projected = new ByteArrayOutputStream();
+		projection.project(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)), projected);
+
+		// Verify
+		assertEquals("{\"type\":\"data-list\",\"data\":[{\"dataId\":\"a\",\"metadata\":{\"name\":\"roads\"},\"tags\":[{\"name\":\"x\"}]},"
+				+ "{\"dataId\":\"b\"}],\"pagination\":{\"page\":0,\"perPage\":10,\"count\":2}}",
+				new String(projected.toByteArray(), StandardCharsets.UTF_8));
+
+		// The projected response is served as-is
+		PiazzaResponse extracted = projection
+				.extractData(new MockClientHttpResponse(response.getBytes(StandardCharsets.UTF_8), HttpStatus.OK));
+		assertEquals(new String(projected.toByteArray(), StandardCharsets.UTF_8), new ObjectMapper().writeValueAsString(extracted));
+	}
+
+	/**
+	 * Tests the parsing of the fields parameter.
+	 */
+	@Test(expected = InvalidInputException.class)
+	public void testParse() throws Exception {
+		assertNull(FieldProjection.parse(null));
+		assertNull(FieldProjection.parse(" "));
+		FieldProjection.parse("dataId,metadata.");
+	}
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.Principal;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.remote.JMXPrincipal;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import gateway.controller.util.FileIdempotencyStore;
+import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.IdempotencyFilter;
+import gateway.controller.util.IdempotencyStore;
+import gateway.controller.util.InMemoryIdempotencyStore;
+import gateway.controller.util.RateLimitInterceptor;
+import gateway.controller.util.RateLimiter;
+
+/**
+ * Tests the handling of submissions made with an Idempotency-Key.
+ */
+public class IdempotencyTests {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	@Mock
+	private GatewayUtil gatewayUtil;
+	@InjectMocks
+	private IdempotencyFilter idempotencyFilter;
+
+	private Principal user;
+	private AtomicInteger submissions;
+
+	/**
+	 * Initialize mock objects.
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(idempotencyFilter, "idempotencyStore", new InMemoryIdempotencyStore(10));
+		ReflectionTestUtils.setField(idempotencyFilter, "objectMapper", new ObjectMapper());
+		ReflectionTestUtils.setField(idempotencyFilter, "TTL_SECONDS", 60L);
+		ReflectionTestUtils.setField(idempotencyFilter, "MAX_WAIT_MILLIS", 5000L);
+		when(gatewayUtil.getPrincipalName(any(Principal.class))).thenCallRealMethod();
+		user = new JMXPrincipal("Test User");
+		submissions = new AtomicInteger();
+	}
+
+	/**
+	 * Tests that a retried submission is answered with the original response.
+	 */
+	@Test
+	public void testReplay() throws Exception {
+		FilterChain chain = getSubmission(null);
+
+		// Test
+		MockHttpServletResponse first = submit("/job", "key-1", chain);
+		MockHttpServletResponse retry = submit("/job", "key-1", chain);
+		MockHttpServletResponse other = submit("/job", "key-2", chain);
+		MockHttpServletResponse otherPath = submit("/data", "key-1", chain);
+
+		// Verify
+		assertEquals(201, first.getStatus());
+		assertEquals(201, retry.getStatus());
+		assertEquals(first.getContentAsString(), retry.getContentAsString());
+		assertEquals("true", retry.getHeader(IdempotencyFilter.REPLAYED_HEADER));
+		assertNull(first.getHeader(IdempotencyFilter.REPLAYED_HEADER));
+		assertEquals("{\"jobId\":\"job2\"}", other.getContentAsString());
+		assertEquals(422, otherPath.getStatus());
+		assertEquals(2, submissions.get());
+	}
+
+	/**
+	 * Tests that a submission made while another with the same key is in flight waits for its response.
+	 */
+	@Test
+	public void testConcurrentSubmission() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final FilterChain chain = getSubmission(release);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			// Test
+			Future<MockHttpServletResponse> first = executor.submit(new Callable<MockHttpServletResponse>() {
+				@Override
+				public MockHttpServletResponse call() throws Exception {
+					return submit("/data/file", "key-1", chain);
+				}
+			});
+			while (submissions.get() == 0) {
+				Thread.sleep(10);
+			}
+			Future<MockHttpServletResponse> second = executor.submit(new Callable<MockHttpServletResponse>() {
+				@Override
+				public MockHttpServletResponse call() throws Exception {
+					return submit("/data/file", "key-1", chain);
+				}
+			});
+			Thread.sleep(100);
+			release.countDown();
+
+			// Verify
+			assertEquals(first.get(5, TimeUnit.SECONDS).getContentAsString(), second.get(5, TimeUnit.SECONDS).getContentAsString());
+			assertEquals(1, submissions.get());
+			assertEquals(1L, idempotencyFilter.getStatistics().get("Collapsed"));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that a submission rejected by the rate limits is not replayed, so that it can be retried once the limit
+	 * has reset.
+	 */
+	@Test
+	public void testRateLimitedSubmission() throws Exception {
+		final RateLimitInterceptor rateLimitInterceptor = new RateLimitInterceptor();
+		ReflectionTestUtils.setField(rateLimitInterceptor, "rateLimiter", createRateLimiter());
+		ReflectionTestUtils.setField(rateLimitInterceptor, "objectMapper", new ObjectMapper());
+		final FilterChain submission = getSubmission(null);
+		FilterChain chain = new FilterChain() {
+			@Override
+			public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+				try {
+					if (rateLimitInterceptor.preHandle((HttpServletRequest) request, (HttpServletResponse) response, null)) {
+						submission.doFilter(request, response);
+					}
+				} catch (IOException | ServletException exception) {
+					throw exception;
+				} catch (Exception exception) {
+					throw new ServletException(exception);
+				}
+			}
+		};
+
+		// Test
+		MockHttpServletResponse first = submit("/job", "key-1", chain);
+		MockHttpServletResponse limited = submit("/job", "key-2", chain);
+		ReflectionTestUtils.setField(rateLimitInterceptor, "rateLimiter", createRateLimiter());
+		MockHttpServletResponse retry = submit("/job", "key-2", chain);
+
+		// Verify
+		assertEquals(201, first.getStatus());
+		assertEquals(429, limited.getStatus());
+		assertEquals(201, retry.getStatus());
+		assertNull(retry.getHeader(IdempotencyFilter.REPLAYED_HEADER));
+		assertEquals(2, submissions.get());
+	}
+
+	/**
+	 * Tests that the file-backed store keeps responses across a restart, and drops expired responses.
+	 */
+	@Test
+	public void testFileStore() throws Exception {
+		String file = new File(folder.getRoot(), "idempotency-keys.jsonl").getPath();
+		FileIdempotencyStore store = new FileIdempotencyStore(10, file);
+		store.init();
+		store.put("Test User/key-1", new IdempotencyStore.StoredResponse("/job", 201, "application/json", "{}".getBytes(), Long.MAX_VALUE));
+		store.put("Test User/key-2", new IdempotencyStore.StoredResponse("/job", 201, "application/json", "{}".getBytes(), 1));
+		store.cleanup();
+
+		// Test
+		FileIdempotencyStore restarted = new FileIdempotencyStore(10, file);
+		restarted.init();
+
+		// Verify
+		assertEquals(201, restarted.get("Test User/key-1").status);
+		assertEquals("{}", new String(restarted.get("Test User/key-1").body));
+		assertNull(restarted.get("Test User/key-2"));
+		assertEquals(1, restarted.getStatistics().get("Entries"));
+		restarted.cleanup();
+	}
+
+	/**
+	 * Creates rate limits allowing a single write request.
+	 */
+	private RateLimiter createRateLimiter() {
+		RateLimiter rateLimiter = new RateLimiter();
+		ReflectionTestUtils.setField(rateLimiter, "ENABLED", false);
+		for (RateLimiter.RouteClass routeClass : RateLimiter.RouteClass.values()) {
+			ReflectionTestUtils.setField(rateLimiter, routeClass.name() + "_RATE", 0.01);
+			ReflectionTestUtils.setField(rateLimiter, routeClass.name() + "_BURST", 1);
+		}
+		rateLimiter.init();
+		ReflectionTestUtils.setField(rateLimiter, "ENABLED", true);
+		return rateLimiter;
+	}
+
+	private MockHttpServletResponse submit(String path, String idempotencyKey, FilterChain chain) throws ServletException, IOException {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", path);
+		request.addHeader(IdempotencyFilter.IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+		request.setUserPrincipal(user);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		idempotencyFilter.doFilter(request, response, chain);
+		return response;
+	}
+
+	/**
+	 * Mocks the submission of a Job, which creates a new Job each time it is called.
+	 */
+	private FilterChain getSubmission(final CountDownLatch release) {
+		return new FilterChain() {
+			@Override
+			public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+				int jobNumber = submissions.incrementAndGet();
+				try {
+					if (release != null) {
+						release.await(5, TimeUnit.SECONDS);
+					}
+				} catch (InterruptedException exception) {
+					throw new ServletException(exception);
+				}
+				((HttpServletResponse) response).setStatus(201);
+				response.setContentType("application/json");
+				response.getWriter().write(String.format("{\"jobId\":\"job%s\"}", jobNumber));
+			}
+		};
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.IngestStagingArea;
+import model.data.DataResource;
+import model.data.type.GeoJsonDataType;
+import model.job.Job;
+import model.job.type.IngestJob;
+import model.request.PiazzaJobRequest;
+import model.status.StatusUpdate;
+import util.PiazzaLogger;
+
+/**
+ * Tests the staging area for asynchronous file ingest.
+ */
+public class IngestStagingAreaTests {
+	@Mock
+	private PiazzaLogger logger;
+	@Mock
+	private GatewayUtil gatewayUtil;
+	@InjectMocks
+	private IngestStagingArea ingestStagingArea;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Initialize mock objects.
+	 */
+	@Before
+	public void setup() throws Exception {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(ingestStagingArea, "objectMapper", new ObjectMapper());
+		ReflectionTestUtils.setField(ingestStagingArea, "ASYNC_ENABLED", true);
+		ReflectionTestUtils.setField(ingestStagingArea, "STAGING_DIRECTORY", folder.getRoot().getAbsolutePath());
+		ReflectionTestUtils.setField(ingestStagingArea, "STAGING_BUDGET", 100L);
+		ReflectionTestUtils.setField(ingestStagingArea, "STAGING_THREADS", 1);
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		ingestStagingArea.cleanup();
+	}
+
+	/**
+	 * Tests that a staged file is pushed to S3 and its Job submitted, and that its space is released.
+	 */
+	@Test
+	public void testStageAndSubmit() throws Exception {
+		// Mock
+		when(gatewayUtil.pushS3File(eq("123456"), any(IngestJob.class), eq("test.tif"), any(InputStream.class), anyString(), anyString()))
+				.thenReturn(mockJob());
+		ingestStagingArea.init();
+
+		// Test the budget, then stage a file
+		assertTrue(!ingestStagingArea.reserve(101));
+		assertTrue(ingestStagingArea.reserve(80));
+		ingestStagingArea.stage("123456", "tester", mockJob(), "test.tif", new ByteArrayInputStream("Content".getBytes()), null, null, 80);
+		awaitProcessed();
+
+		// Verify
+		Mockito.verify(gatewayUtil).sendJobRequest(any(PiazzaJobRequest.class), eq("123456"));
+		assertTrue(ingestStagingArea.getJob("123456") == null);
+		assertEquals(0L, ingestStagingArea.getStatistics().get("Staged Bytes"));
+		assertEquals(1L, ingestStagingArea.getStatistics().get("Rejected"));
+		assertEquals(0, folder.getRoot().listFiles().length);
+	}
+
+	/**
+	 * Tests that a failure to load a staged file is reported in the status of its Job.
+	 */
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void testFailure() throws Exception {
+		// Mock
+		when(gatewayUtil.pushS3File(anyString(), any(IngestJob.class), anyString(), any(InputStream.class), anyString(), anyString()))
+				.thenThrow(new RuntimeException("S3 is down"));
+		ingestStagingArea.init();
+
+		// Test
+		ingestStagingArea.reserve(10);
+		ingestStagingArea.stage("123456", "tester", mockJob(), "test.tif", new ByteArrayInputStream("Content".getBytes()), null, null, 10);
+		awaitProcessed();
+
+		// Verify
+		Job job = ingestStagingArea.getJob("123456");
+		assertEquals(StatusUpdate.STATUS_ERROR, job.status);
+		assertEquals("tester", job.createdBy);
+		Mockito.verify(gatewayUtil, Mockito.never()).sendJobRequest(any(PiazzaJobRequest.class), anyString());
+
+		// The failure is also sent to the Job Manager
+		ArgumentCaptor<ProducerRecord> status = ArgumentCaptor.forClass(ProducerRecord.class);
+		Mockito.verify(gatewayUtil).sendKafkaMessage(status.capture());
+		assertEquals("123456", status.getValue().key());
+	}
+
+	private void awaitProcessed() throws InterruptedException {
+		for (int i = 0; (i < 100) && !ingestStagingArea.getStatistics().get("Pending").equals(0); i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(0, ingestStagingArea.getStatistics().get("Pending"));
+	}
+
+	private IngestJob mockJob() {
+		IngestJob job = new IngestJob();
+		job.host = true;
+		job.data = new DataResource();
+		job.data.dataType = new GeoJsonDataType();
+		return job;
+	}
+}
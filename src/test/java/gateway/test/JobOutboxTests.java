@@ -0,0 +1,281 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.JobOutbox;
+import model.job.type.AbortJob;
+import model.logger.AuditElement;
+import model.logger.Severity;
+import model.request.PiazzaJobRequest;
+import util.PiazzaLogger;
+
+/**
+ * Tests the durable Job Outbox.
+ */
+public class JobOutboxTests {
+	@Mock
+	private PiazzaLogger logger;
+	@Mock
+	private GatewayUtil gatewayUtil;
+	@InjectMocks
+	private JobOutbox jobOutbox;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ExecutorService executor = Executors.newFixedThreadPool(4);
+
+	/**
+	 * Initialize mock objects.
+	 */
+	@Before
+	public void setup() throws Exception {
+		MockitoAnnotations.initMocks(this);
+		configure(jobOutbox);
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		jobOutbox.cleanup();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Tests that Job Requests are forwarded in the order they were appended for each user, and that a failure for one
+	 * user does not hold up another.
+	 */
+	@Test
+	public void testDrainOrdering() throws Exception {
+		// Mock
+		final List<String> forwarded = Collections.synchronizedList(new ArrayList<String>());
+		doAnswer(new Answer<String>() {
+			private boolean failed = false;
+
+			@Override
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				String jobId = (String) invocation.getArguments()[1];
+				// Fail the first request for the first user once
+				if (jobId.equals("a-1") && !failed) {
+					failed = true;
+					throw new Exception("Job Manager is down");
+				}
+				forwarded.add(jobId);
+				return jobId;
+			}
+		}).when(gatewayUtil).forwardJobRequest(any(PiazzaJobRequest.class), anyString());
+
+		// Test
+		jobOutbox.init();
+		jobOutbox.append(mockRequest("a"), "a-1");
+		jobOutbox.append(mockRequest("b"), "b-1");
+		jobOutbox.append(mockRequest("a"), "a-2");
+		jobOutbox.append(mockRequest("b"), "b-2");
+		awaitDrained(jobOutbox);
+
+		// Verify
+		assertEquals(4, forwarded.size());
+		assertTrue(forwarded.indexOf("a-1") < forwarded.indexOf("a-2"));
+		assertTrue(forwarded.indexOf("b-1") < forwarded.indexOf("b-2"));
+		assertTrue((Long) jobOutbox.getStatistics().get("Forward Failures") >= 1);
+	}
+
+	/**
+	 * Tests that a Job Request the Job Manager rejects is dead-lettered rather than retried, so that the later
+	 * requests of the same user are still forwarded, and that it is not replayed on startup.
+	 */
+	@Test
+	public void testDeadLetter() throws Exception {
+		// Mock the Job Manager rejecting a single request
+		final List<String> forwarded = Collections.synchronizedList(new ArrayList<String>());
+		doAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				String jobId = (String) invocation.getArguments()[1];
+				if (jobId.equals("a-1")) {
+					throw new HttpClientErrorException(HttpStatus.BAD_REQUEST);
+				}
+				forwarded.add(jobId);
+				return jobId;
+			}
+		}).when(gatewayUtil).forwardJobRequest(any(PiazzaJobRequest.class), anyString());
+
+		// Test
+		jobOutbox.init();
+		jobOutbox.append(mockRequest("a"), "a-1");
+		jobOutbox.append(mockRequest("a"), "a-2");
+		awaitDrained(jobOutbox);
+		jobOutbox.cleanup();
+
+		// Verify
+		assertEquals(Collections.singletonList("a-2"), forwarded);
+		assertEquals(1L, jobOutbox.getStatistics().get("Dead Letters"));
+		Mockito.verify(gatewayUtil, Mockito.times(1)).forwardJobRequest(any(PiazzaJobRequest.class), eq("a-1"));
+		Mockito.verify(logger).log(anyString(), eq(Severity.ERROR), any(AuditElement.class));
+
+		// A restart replays nothing
+		GatewayUtil recoveredUtil = Mockito.mock(GatewayUtil.class);
+		JobOutbox restarted = new JobOutbox();
+		configure(restarted);
+		ReflectionTestUtils.setField(restarted, "gatewayUtil", recoveredUtil);
+		ReflectionTestUtils.setField(restarted, "logger", logger);
+		restarted.init();
+		try {
+			assertEquals(0, restarted.getStatistics().get("Pending"));
+		} finally {
+			restarted.cleanup();
+		}
+		Mockito.verifyZeroInteractions(recoveredUtil);
+	}
+
+	/**
+	 * Tests that Job Requests left pending on shutdown are replayed with the same Job Id on startup.
+	 */
+	@Test
+	public void testReplay() throws Exception {
+		// Mock the Job Manager being down for the first run
+		when(gatewayUtil.forwardJobRequest(any(PiazzaJobRequest.class), anyString())).thenThrow(new Exception("Job Manager is down"));
+		jobOutbox.init();
+		jobOutbox.append(mockRequest("tester"), "123456");
+		jobOutbox.cleanup();
+		assertEquals(1, jobOutbox.getStatistics().get("Pending"));
+
+		// Restart against the same file, with the Job Manager back up
+		GatewayUtil recoveredUtil = Mockito.mock(GatewayUtil.class);
+		when(recoveredUtil.forwardJobRequest(any(PiazzaJobRequest.class), anyString())).thenReturn("123456");
+		JobOutbox restarted = new JobOutbox();
+		configure(restarted);
+		ReflectionTestUtils.setField(restarted, "gatewayUtil", recoveredUtil);
+		ReflectionTestUtils.setField(restarted, "logger", logger);
+		restarted.init();
+		try {
+			awaitDrained(restarted);
+		} finally {
+			restarted.cleanup();
+		}
+
+		// Verify
+		Mockito.verify(recoveredUtil).forwardJobRequest(any(PiazzaJobRequest.class), eq("123456"));
+		assertEquals(0, restarted.getStatistics().get("Bytes Used"));
+	}
+
+	/**
+	 * Tests that a full outbox is compacted into a new file, and that only the pending Job Requests are replayed from
+	 * it on startup.
+	 */
+	@Test
+	public void testCompaction() throws Exception {
+		// Mock the Job Manager rejecting a single request
+		doAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				String jobId = (String) invocation.getArguments()[1];
+				if (jobId.equals("stuck")) {
+					throw new Exception("Job Manager is down");
+				}
+				return jobId;
+			}
+		}).when(gatewayUtil).forwardJobRequest(any(PiazzaJobRequest.class), anyString());
+
+		// Fill a small outbox several times over
+		ReflectionTestUtils.setField(jobOutbox, "OUTBOX_SIZE", 2048);
+		jobOutbox.init();
+		jobOutbox.append(mockRequest("stuck user"), "stuck");
+		for (int i = 0; i < 20; i++) {
+			jobOutbox.append(mockRequest("tester"), "job-" + i);
+			for (int j = 0; j < 100 && !jobOutbox.getStatistics().get("Pending").equals(1); j++) {
+				Thread.sleep(10);
+			}
+		}
+		jobOutbox.cleanup();
+		assertTrue((Long) jobOutbox.getStatistics().get("Compactions") >= 1);
+		assertTrue(!new File(folder.getRoot(), "outbox.dat.compact").exists());
+
+		// Restart against the compacted file
+		GatewayUtil recoveredUtil = Mockito.mock(GatewayUtil.class);
+		when(recoveredUtil.forwardJobRequest(any(PiazzaJobRequest.class), anyString())).thenReturn("stuck");
+		JobOutbox restarted = new JobOutbox();
+		configure(restarted);
+		ReflectionTestUtils.setField(restarted, "OUTBOX_SIZE", 2048);
+		ReflectionTestUtils.setField(restarted, "gatewayUtil", recoveredUtil);
+		ReflectionTestUtils.setField(restarted, "logger", logger);
+		restarted.init();
+		try {
+			awaitDrained(restarted);
+		} finally {
+			restarted.cleanup();
+		}
+
+		// Verify
+		Mockito.verify(recoveredUtil).forwardJobRequest(any(PiazzaJobRequest.class), eq("stuck"));
+		Mockito.verifyNoMoreInteractions(recoveredUtil);
+	}
+
+	private void configure(JobOutbox outbox) throws Exception {
+		ReflectionTestUtils.setField(outbox, "objectMapper", new ObjectMapper());
+		ReflectionTestUtils.setField(outbox, "upstreamExecutor", executor);
+		ReflectionTestUtils.setField(outbox, "OUTBOX_ENABLED", true);
+		ReflectionTestUtils.setField(outbox, "OUTBOX_FILE", folder.getRoot().getAbsolutePath() + "/outbox.dat");
+		ReflectionTestUtils.setField(outbox, "OUTBOX_SIZE", 1024 * 1024);
+		ReflectionTestUtils.setField(outbox, "DRAIN_INTERVAL", 50L);
+	}
+
+	private void awaitDrained(JobOutbox outbox) throws InterruptedException {
+		for (int i = 0; i < 100 && !outbox.getStatistics().get("Bytes Used").equals(0); i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(0, outbox.getStatistics().get("Pending"));
+	}
+
+	private PiazzaJobRequest mockRequest(String user) {
+		PiazzaJobRequest request = new PiazzaJobRequest();
+		request.createdBy = user;
+		request.jobType = new AbortJob("123456");
+		return request;
+	}
+}
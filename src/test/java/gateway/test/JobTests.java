@@ -15,7 +15,10 @@
  **/
 package gateway.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
@@ -24,6 +27,12 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 
@@ -31,6 +40,7 @@ import javax.management.remote.JMXPrincipal;
 
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.joda.time.DateTime;
 import org.junit.Before;
 import org.junit.Test;
@@ -42,19 +52,26 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.client.HttpServerErrorException;
 import org.springframework.web.client.RestTemplate;
 
 import exception.PiazzaJobException;
 import gateway.controller.JobController;
 import gateway.controller.ServiceController;
+import gateway.controller.util.ExpandedJobStatusResponse;
 import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.IngestStagingArea;
+import gateway.controller.util.MetadataCache;
+import model.data.DataResource;
 import model.job.Job;
 import model.job.JobProgress;
 import model.job.metadata.ResourceMetadata;
+import model.job.result.type.DataResult;
 import model.job.type.ExecuteServiceJob;
 import model.job.type.RepeatJob;
 import model.request.PiazzaJobRequest;
+import model.response.DataResourceResponse;
 import model.response.ErrorResponse;
 import model.response.JobErrorResponse;
 import model.response.JobResponse;
@@ -88,6 +105,10 @@ public class JobTests {
 	@Mock
 	private ServiceController serviceController;
 	@Mock
+	private IngestStagingArea ingestStagingArea;
+	@Mock
+	private MetadataCache metadataCache;
+	@Mock
 	private Producer<String, String> producer;
 
 	private Principal user;
@@ -144,7 +165,7 @@ public class JobTests {
 		when(restTemplate.getForEntity(anyString(), eq(JobStatusResponse.class))).thenReturn(mockResponse);
 
 		// Test
-		ResponseEntity<PiazzaResponse> entity = jobController.getJobStatus("123456", user);
+		ResponseEntity<PiazzaResponse> entity = jobController.getJobStatus("123456", null, user);
 		JobStatusResponse response = (JobStatusResponse) entity.getBody();
 
 		// Verify
@@ -157,9 +178,54 @@ public class JobTests {
 		// Test Exception
 		when(restTemplate.getForEntity(anyString(), eq(JobStatusResponse.class))).thenThrow(new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR));
 
-		entity = jobController.getJobStatus("123456", user);
+		entity = jobController.getJobStatus("123456", null, user);
 		assertTrue(entity.getBody() instanceof ErrorResponse);
 		assertTrue(entity.getStatusCode().equals(HttpStatus.INTERNAL_SERVER_ERROR));
+
+		// Jobs still being staged are reported by the Gateway
+		Job stagedJob = new Job();
+		stagedJob.setJobId("654321");
+		stagedJob.status = StatusUpdate.STATUS_PENDING;
+		when(ingestStagingArea.getJob("654321")).thenReturn(stagedJob);
+		entity = jobController.getJobStatus("654321", null, user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.OK));
+		assertTrue(((JobStatusResponse) entity.getBody()).data.status.equals(StatusUpdate.STATUS_PENDING));
+		assertFalse(entity.getBody() instanceof ExpandedJobStatusResponse);
+	}
+
+	/**
+	 * Test GET /job/{jobId} with expanded resources
+	 */
+	@Test
+	public void testGetExpandedStatus() {
+		// Mock
+		ExecuteServiceJob executeJob = new ExecuteServiceJob();
+		executeJob.data = new ExecuteServiceData();
+		executeJob.data.setServiceId("654321");
+		mockJob.jobType = executeJob;
+		mockJob.result = new DataResult("789");
+		when(restTemplate.getForEntity(anyString(), eq(JobStatusResponse.class)))
+				.thenReturn(new ResponseEntity<JobStatusResponse>(new JobStatusResponse(mockJob), HttpStatus.OK));
+		MetadataCache.Lookup dataLookup = mock(MetadataCache.Lookup.class);
+		when(dataLookup.get()).thenReturn(new DataResourceResponse(new DataResource()));
+		MetadataCache.Lookup serviceLookup = mock(MetadataCache.Lookup.class);
+		when(serviceLookup.get()).thenReturn(mockError);
+		when(metadataCache.lookup(eq("data"), eq("789"), anyString(), eq(DataResourceResponse.class))).thenReturn(dataLookup);
+		when(metadataCache.lookup(eq("service"), eq("654321"), anyString(), eq(ServiceResponse.class))).thenReturn(serviceLookup);
+
+		// Test
+		ResponseEntity<PiazzaResponse> entity = jobController.getJobStatus("123456", "data,service", user);
+
+		// Verify
+		assertTrue(entity.getStatusCode().equals(HttpStatus.OK));
+		ExpandedJobStatusResponse response = (ExpandedJobStatusResponse) entity.getBody();
+		assertEquals("123456", response.data.jobId);
+		assertTrue(response.expanded.get("data") instanceof DataResourceResponse);
+		assertTrue(response.expanded.get("service") instanceof ErrorResponse);
+
+		// Test an unknown expansion
+		entity = jobController.getJobStatus("123456", "data,user", user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.BAD_REQUEST));
 	}
 
 	/**
@@ -170,6 +236,8 @@ public class JobTests {
 		// Mock
 		ResponseEntity<SuccessResponse> mockEntity = new ResponseEntity<SuccessResponse>(new SuccessResponse("Deleted", "Job Manager"), HttpStatus.OK);
 		when(restTemplate.postForEntity(anyString(), any(), eq(SuccessResponse.class))).thenReturn(mockEntity);
+		Future<RecordMetadata> acknowledgement = CompletableFuture.completedFuture(null);
+		when(gatewayUtil.sendKafkaMessageAsync(any(ProducerRecord.class))).thenReturn(acknowledgement);
 
 		// Test
 		ResponseEntity<PiazzaResponse> entity = jobController.abortJob("123456", "Not Needed", user);
@@ -244,4 +312,93 @@ public class JobTests {
 		ErrorResponse error = (ErrorResponse) entity.getBody();
 		assertTrue(error.message.contains("REST Broke"));
 	}
+
+	/**
+	 * Test POST /job/batch
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testExecuteBatch() throws Exception {
+		// Mock
+		ReflectionTestUtils.setField(jobController, "BATCH_MAX", 10);
+		ExecuteServiceJob onlineJob = new ExecuteServiceJob();
+		onlineJob.data = new ExecuteServiceData();
+		onlineJob.data.setServiceId("654321");
+		ExecuteServiceJob offlineJob = new ExecuteServiceJob();
+		offlineJob.data = new ExecuteServiceData();
+		offlineJob.data.setServiceId("offline");
+
+		ServiceResponse onlineResponse = new ServiceResponse();
+		onlineResponse.data = new Service();
+		onlineResponse.data.setResourceMetadata(new ResourceMetadata());
+		onlineResponse.data.getResourceMetadata().availability = "ONLINE";
+		ServiceResponse offlineResponse = new ServiceResponse();
+		offlineResponse.data = new Service();
+		offlineResponse.data.setResourceMetadata(new ResourceMetadata());
+		offlineResponse.data.getResourceMetadata().availability = ResourceMetadata.STATUS_TYPE.OFFLINE.toString();
+		when(serviceController.getService("654321", user)).thenReturn(new ResponseEntity<PiazzaResponse>(onlineResponse, HttpStatus.OK));
+		when(serviceController.getService("offline", user)).thenReturn(new ResponseEntity<PiazzaResponse>(offlineResponse, HttpStatus.OK));
+		when(gatewayUtil.sendJobRequests(anyListOf(PiazzaJobRequest.class))).thenAnswer(new Answer<List<PiazzaResponse>>() {
+			@Override
+			public List<PiazzaResponse> answer(InvocationOnMock invocation) throws Throwable {
+				List<PiazzaResponse> responses = new ArrayList<PiazzaResponse>();
+				for (int i = 0; i < ((List<PiazzaJobRequest>) invocation.getArguments()[0]).size(); i++) {
+					responses.add(new JobResponse("job" + i));
+				}
+				return responses;
+			}
+		});
+
+		// Test
+		ResponseEntity<?> entity = jobController.executeServiceBatch(Arrays.asList(onlineJob, offlineJob, new ExecuteServiceJob(), onlineJob),
+				user);
+
+		// Verify. Results are in input order, and availability is checked once per Service.
+		assertTrue(entity.getStatusCode().equals(HttpStatus.CREATED));
+		List<PiazzaResponse> results = (List<PiazzaResponse>) entity.getBody();
+		assertEquals(4, results.size());
+		assertEquals("job0", ((JobResponse) results.get(0)).data.getJobId());
+		assertTrue(results.get(1) instanceof ErrorResponse);
+		assertTrue(results.get(2) instanceof ErrorResponse);
+		assertEquals("job1", ((JobResponse) results.get(3)).data.getJobId());
+		Mockito.verify(serviceController, Mockito.times(1)).getService("654321", user);
+
+		// Test an empty batch
+		entity = jobController.executeServiceBatch(new ArrayList<ExecuteServiceJob>(), user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+	}
+
+	/**
+	 * Test POST /job/status
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testGetJobStatuses() {
+		// Mock
+		ReflectionTestUtils.setField(jobController, "BATCH_MAX", 10);
+		Job stagedJob = new Job();
+		stagedJob.setJobId("staged");
+		stagedJob.status = StatusUpdate.STATUS_PENDING;
+		when(ingestStagingArea.getJob("staged")).thenReturn(stagedJob);
+		Map<String, PiazzaResponse> fetched = new LinkedHashMap<String, PiazzaResponse>();
+		fetched.put("123456", new JobStatusResponse(mockJob));
+		fetched.put("missing", mockError);
+		when(metadataCache.getAll(eq("job"), eq(Arrays.asList("123456", "missing")), anyString(), eq(JobStatusResponse.class),
+				any(MetadataCache.ExpiryPolicy.class))).thenReturn(fetched);
+
+		// Test
+		ResponseEntity<?> entity = jobController.getJobStatuses(Arrays.asList("123456", "staged", "missing", "123456"), user);
+
+		// Verify. Duplicates are returned once, and staged Jobs are not fetched.
+		assertTrue(entity.getStatusCode().equals(HttpStatus.OK));
+		Map<String, PiazzaResponse> results = (Map<String, PiazzaResponse>) entity.getBody();
+		assertEquals(Arrays.asList("123456", "staged", "missing"), new ArrayList<String>(results.keySet()));
+		assertEquals(StatusUpdate.STATUS_RUNNING, ((JobStatusResponse) results.get("123456")).data.status);
+		assertEquals(StatusUpdate.STATUS_PENDING, ((JobStatusResponse) results.get("staged")).data.status);
+		assertTrue(results.get("missing") instanceof ErrorResponse);
+
+		// Test an empty request
+		entity = jobController.getJobStatuses(new ArrayList<String>(), user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+	}
 }
@@ -0,0 +1,209 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import exception.InvalidInputException;
+import gateway.auth.PiazzaAuthenticationToken;
+import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.MetadataCache;
+import model.data.DataResource;
+import model.response.DataResourceResponse;
+import model.response.ErrorResponse;
+import model.response.PiazzaResponse;
+
+/**
+ * Tests the cache of resource metadata used by multi-get requests.
+ */
+public class MetadataCacheTests {
+	@Mock
+	private RestTemplate restTemplate;
+	@Mock
+	private GatewayUtil gatewayUtil;
+	@InjectMocks
+	private MetadataCache metadataCache;
+
+	/**
+	 * Initialize mock objects.
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(metadataCache, "CACHE_TTL_SECONDS", 60L);
+		ReflectionTestUtils.setField(metadataCache, "CACHE_SIZE", 100);
+		ReflectionTestUtils.setField(metadataCache, "FETCH_THREADS", 4);
+		metadataCache.init();
+		when(gatewayUtil.getErrorResponse(anyString())).thenReturn(new ErrorResponse("Not Found", "Access"));
+	}
+
+	@After
+	public void cleanup() {
+		metadataCache.cleanup();
+	}
+
+	/**
+	 * Tests that Ids are fetched once each, that failures are reported per Id, and that successes are cached until
+	 * invalidated.
+	 */
+	@Test
+	public void testGetAll() {
+		// Mock
+		DataResource data = new DataResource();
+		data.dataId = "a";
+		when(restTemplate.getForEntity(URI.create("http://access/data/a"), DataResourceResponse.class))
+				.thenReturn(new ResponseEntity<DataResourceResponse>(new DataResourceResponse(data), HttpStatus.OK));
+		when(restTemplate.getForEntity(URI.create("http://access/data/b"), DataResourceResponse.class))
+				.thenThrow(new HttpClientErrorException(HttpStatus.NOT_FOUND));
+
+		// Test
+		Map<String, PiazzaResponse> results = metadataCache.getAll("data", Arrays.asList("b", "a", "b"), "http://access/data/%s",
+				DataResourceResponse.class);
+
+		// Verify. Results are in the order first requested.
+		assertEquals(Arrays.asList("b", "a"), Arrays.asList(results.keySet().toArray()));
+		assertTrue(results.get("b") instanceof ErrorResponse);
+		assertEquals("a", ((DataResourceResponse) results.get("a")).data.getDataId());
+		Mockito.verify(restTemplate, Mockito.times(1)).getForEntity(URI.create("http://access/data/b"), DataResourceResponse.class);
+
+		// The successful fetch is cached, but the failure is not
+		metadataCache.getAll("data", Arrays.asList("a", "b"), "http://access/data/%s", DataResourceResponse.class);
+		Mockito.verify(restTemplate, Mockito.times(1)).getForEntity(URI.create("http://access/data/a"), DataResourceResponse.class);
+		Mockito.verify(restTemplate, Mockito.times(2)).getForEntity(URI.create("http://access/data/b"), DataResourceResponse.class);
+		assertEquals(1L, metadataCache.getStatistics().get("Hits"));
+
+		// Invalidated entries are fetched again
+		metadataCache.invalidate("data", "a");
+		metadataCache.getAll("data", Arrays.asList("a"), "http://access/data/%s", DataResourceResponse.class);
+		Mockito.verify(restTemplate, Mockito.times(2)).getForEntity(URI.create("http://access/data/a"), DataResourceResponse.class);
+	}
+
+	/**
+	 * Tests that an expiry policy decides which responses are cached.
+	 */
+	@Test
+	public void testExpiryPolicy() {
+		// Mock
+		DataResource data = new DataResource();
+		data.dataId = "a";
+		when(restTemplate.getForEntity(URI.create("http://access/data/a"), DataResourceResponse.class))
+				.thenReturn(new ResponseEntity<DataResourceResponse>(new DataResourceResponse(data), HttpStatus.OK));
+		MetadataCache.ExpiryPolicy neverCache = new MetadataCache.ExpiryPolicy() {
+			@Override
+			public long getTtlSeconds(PiazzaResponse response) {
+				return 0;
+			}
+		};
+
+		// Test
+		metadataCache.getAll("data", Arrays.asList("a"), "http://access/data/%s", DataResourceResponse.class, neverCache);
+		metadataCache.getAll("data", Arrays.asList("a"), "http://access/data/%s", DataResourceResponse.class, neverCache);
+
+		// Verify
+		Mockito.verify(restTemplate, Mockito.times(2)).getForEntity(URI.create("http://access/data/a"), DataResourceResponse.class);
+		assertEquals(0, metadataCache.getStatistics().get("Entries"));
+	}
+
+	/**
+	 * Tests that Ids are encoded as a single path segment, and that Ids which could change the path are never fetched.
+	 */
+	@Test
+	public void testIds() throws Exception {
+		// Mock
+		DataResource data = new DataResource();
+		data.dataId = "a b";
+		when(restTemplate.getForEntity(URI.create("http://access/data/a%20b"), DataResourceResponse.class))
+				.thenReturn(new ResponseEntity<DataResourceResponse>(new DataResourceResponse(data), HttpStatus.OK));
+
+		// Test
+		Map<String, PiazzaResponse> results = metadataCache.getAll("data", Arrays.asList("a b", "../admin", "x?foo=bar"),
+				"http://access/data/%s", DataResourceResponse.class);
+
+		// Verify
+		assertEquals("a b", ((DataResourceResponse) results.get("a b")).data.getDataId());
+		assertTrue(results.get("../admin") instanceof ErrorResponse);
+		assertTrue(results.get("x?foo=bar") instanceof ErrorResponse);
+		Mockito.verify(restTemplate, Mockito.times(1)).getForEntity(any(URI.class), Mockito.eq(DataResourceResponse.class));
+
+		assertTrue(MetadataCache.isValidId("abc-123"));
+		assertFalse(MetadataCache.isValidId(".."));
+		assertFalse(MetadataCache.isValidId("a%2Fb"));
+		assertFalse(MetadataCache.isValidId("a#b"));
+		try {
+			MetadataCache.validateIds(Arrays.asList("a", "b/c"));
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			assertTrue(exception.getMessage().contains("b/c"));
+		}
+	}
+
+	/**
+	 * Tests that fetches are made as the requesting user, so that they are fair-queued under that user.
+	 */
+	@Test
+	public void testFetchUser() {
+		// Mock
+		final List<String> fetchUsers = new ArrayList<String>();
+		when(restTemplate.getForEntity(URI.create("http://access/data/a"), DataResourceResponse.class))
+				.thenAnswer(new Answer<ResponseEntity<DataResourceResponse>>() {
+					@Override
+					public ResponseEntity<DataResourceResponse> answer(InvocationOnMock invocation) {
+						fetchUsers.add(SecurityContextHolder.getContext().getAuthentication().getName());
+						return new ResponseEntity<DataResourceResponse>(new DataResourceResponse(new DataResource()), HttpStatus.OK);
+					}
+				});
+		SecurityContextHolder.getContext()
+				.setAuthentication(new PiazzaAuthenticationToken("Test User", null, new ArrayList<GrantedAuthority>()));
+
+		// Test
+		try {
+			metadataCache.getAll("data", Arrays.asList("a"), "http://access/data/%s", DataResourceResponse.class);
+		} finally {
+			SecurityContextHolder.clearContext();
+		}
+
+		// Verify
+		assertEquals(Arrays.asList("Test User"), fetchUsers);
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import gateway.auth.PiazzaAuthenticationToken;
+import gateway.controller.util.RateLimitInterceptor;
+import gateway.controller.util.RateLimiter;
+import gateway.controller.util.RateLimiter.RouteClass;
+
+/**
+ * Tests the per-user rate limits on requests.
+ */
+public class RateLimiterTests {
+	private RateLimiter rateLimiter;
+	private RateLimitInterceptor rateLimitInterceptor;
+
+	/**
+	 * Configure small, slow buckets so that no tokens are refilled during a test.
+	 */
+	@Before
+	public void setup() {
+		rateLimiter = new RateLimiter();
+		ReflectionTestUtils.setField(rateLimiter, "ENABLED", false);
+		ReflectionTestUtils.setField(rateLimiter, "READ_RATE", 0.01);
+		ReflectionTestUtils.setField(rateLimiter, "READ_BURST", 3);
+		ReflectionTestUtils.setField(rateLimiter, "WRITE_RATE", 0.01);
+		ReflectionTestUtils.setField(rateLimiter, "WRITE_BURST", 2);
+		ReflectionTestUtils.setField(rateLimiter, "UPLOAD_RATE", 0.01);
+		ReflectionTestUtils.setField(rateLimiter, "UPLOAD_BURST", 1);
+		ReflectionTestUtils.setField(rateLimiter, "POLL_RATE", 0.01);
+		ReflectionTestUtils.setField(rateLimiter, "POLL_BURST", 1);
+		ReflectionTestUtils.setField(rateLimiter, "IDLE_SECONDS", 0L);
+		rateLimiter.init();
+
+		rateLimitInterceptor = new RateLimitInterceptor();
+		ReflectionTestUtils.setField(rateLimitInterceptor, "rateLimiter", rateLimiter);
+		ReflectionTestUtils.setField(rateLimitInterceptor, "objectMapper", new ObjectMapper());
+	}
+
+	@After
+	public void teardown() {
+		SecurityContextHolder.clearContext();
+	}
+
+	/**
+	 * Tests that a bucket allows its burst, then rejects, and that users and classes of route are limited separately.
+	 */
+	@Test
+	public void testBuckets() {
+		assertEquals(2, rateLimiter.tryAcquire("alice", RouteClass.READ));
+		assertEquals(1, rateLimiter.tryAcquire("alice", RouteClass.READ));
+		assertEquals(0, rateLimiter.tryAcquire("alice", RouteClass.READ));
+		long rejected = rateLimiter.tryAcquire("alice", RouteClass.READ);
+		assertTrue(rejected < 0);
+		// The next token is about 100 seconds away at this rate
+		assertTrue(-rejected > 90_000_000_000L);
+
+		// Other classes and users have their own buckets
+		assertEquals(1, rateLimiter.tryAcquire("alice", RouteClass.WRITE));
+		assertEquals(2, rateLimiter.tryAcquire("bob", RouteClass.READ));
+
+		Map<String, Object> stats = rateLimiter.getStatistics();
+		assertEquals(2, stats.get("Users"));
+		@SuppressWarnings("unchecked")
+		Map<String, Object> readStats = (Map<String, Object>) stats.get("READ");
+		assertEquals(4L, readStats.get("Allowed"));
+		assertEquals(1L, readStats.get("Rejected"));
+	}
+
+	/**
+	 * Tests that only the buckets of users which have completely refilled are evicted.
+	 */
+	@Test
+	public void testEviction() throws InterruptedException {
+		assertEquals(0, rateLimiter.tryAcquire("alice", RouteClass.UPLOAD));
+		assertTrue(rateLimiter.tryAcquire("alice", RouteClass.UPLOAD) < 0);
+
+		// Alice's upload bucket is still refilling, so she is not idle
+		rateLimiter.evictIdle();
+		assertEquals(1, rateLimiter.getStatistics().get("Users"));
+
+		ReflectionTestUtils.setField(rateLimiter, "UPLOAD_RATE", 1000000.0);
+		rateLimiter.init();
+		assertEquals(0, rateLimiter.tryAcquire("bob", RouteClass.UPLOAD));
+		Thread.sleep(10);
+		rateLimiter.evictIdle();
+		assertEquals(1, rateLimiter.getStatistics().get("Users"));
+		assertEquals(1L, rateLimiter.getStatistics().get("Evicted"));
+	}
+
+	/**
+	 * Tests the classification of requests into classes of route.
+	 */
+	@Test
+	public void testClassify() {
+		assertEquals(RouteClass.READ, RouteClass.classify("GET", "/data/123"));
+		assertEquals(RouteClass.READ, RouteClass.classify("GET", "/data/upload/123"));
+		assertEquals(RouteClass.WRITE, RouteClass.classify("POST", "/job"));
+		assertEquals(RouteClass.WRITE, RouteClass.classify("DELETE", "/data/upload/123"));
+		assertEquals(RouteClass.UPLOAD, RouteClass.classify("POST", "/data/file"));
+		assertEquals(RouteClass.UPLOAD, RouteClass.classify("POST", "/data/upload"));
+		assertEquals(RouteClass.UPLOAD, RouteClass.classify("PUT", "/data/upload/123"));
+		assertEquals(RouteClass.POLL, RouteClass.classify("POST", "/service/123/task"));
+	}
+
+	/**
+	 * Tests that requests over the limit are rejected with the rate limit headers.
+	 */
+	@Test
+	public void testInterceptor() throws Exception {
+		// Disabled limits let everything through
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		assertTrue(rateLimitInterceptor.preHandle(createRequest("POST", "/job"), response, null));
+		assertEquals(null, response.getHeader(RateLimitInterceptor.LIMIT_HEADER));
+
+		ReflectionTestUtils.setField(rateLimiter, "ENABLED", true);
+		SecurityContextHolder.getContext()
+				.setAuthentication(new PiazzaAuthenticationToken("Test User", null, new ArrayList<GrantedAuthority>()));
+		response = new MockHttpServletResponse();
+		assertTrue(rateLimitInterceptor.preHandle(createRequest("POST", "/job"), response, null));
+		assertEquals("2", response.getHeader(RateLimitInterceptor.LIMIT_HEADER));
+		assertEquals("1", response.getHeader(RateLimitInterceptor.REMAINING_HEADER));
+		assertTrue(rateLimitInterceptor.preHandle(createRequest("POST", "/job"), new MockHttpServletResponse(), null));
+
+		response = new MockHttpServletResponse();
+		assertFalse(rateLimitInterceptor.preHandle(createRequest("POST", "/job"), response, null));
+		assertEquals(429, response.getStatus());
+		assertEquals("0", response.getHeader(RateLimitInterceptor.REMAINING_HEADER));
+		assertTrue(Long.parseLong(response.getHeader("Retry-After")) > 90);
+		assertTrue(response.getContentAsString().contains("Too many write requests"));
+
+		// The limit is per user
+		SecurityContextHolder.getContext()
+				.setAuthentication(new PiazzaAuthenticationToken("Other User", null, new ArrayList<GrantedAuthority>()));
+		assertTrue(rateLimitInterceptor.preHandle(createRequest("POST", "/job"), new MockHttpServletResponse(), null));
+	}
+
+	private static MockHttpServletRequest createRequest(String method, String path) {
+		MockHttpServletRequest request = new MockHttpServletRequest(method, path);
+		request.setServletPath(path);
+		return request;
+	}
+}
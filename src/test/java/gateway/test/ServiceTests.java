@@ -26,6 +26,7 @@ import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import gateway.controller.ServiceController;
 import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.MetadataCache;
 
 import java.security.Principal;
 import java.util.ArrayList;
@@ -79,6 +80,8 @@ public class ServiceTests {
 	private GatewayUtil gatewayUtil;
 	@Mock
 	private RestTemplate restTemplate;
+	@Mock
+	private MetadataCache metadataCache;
 	@InjectMocks
 	private ServiceController serviceController;
 	@Mock
@@ -242,7 +245,7 @@ public class ServiceTests {
 				.thenReturn(new ResponseEntity<ServiceListResponse>(mockResponse, HttpStatus.OK));
 
 		// Test
-		ResponseEntity<PiazzaResponse> entity = serviceController.getServices(null, 0, 10, null, null, null, user);
+		ResponseEntity<PiazzaResponse> entity = serviceController.getServices(null, 0, 10, null, null, null, null, user);
 		PiazzaResponse response = entity.getBody();
 
 		// Verify
@@ -255,7 +258,7 @@ public class ServiceTests {
 		// Test Exception
 		when(restTemplate.getForEntity(anyString(), eq(ServiceListResponse.class)))
 				.thenThrow(new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR));
-		entity = serviceController.getServices(null, 0, 10, null, null, null, user);
+		entity = serviceController.getServices(null, 0, 10, null, null, null, null, user);
 		response = entity.getBody();
 		assertTrue(response instanceof ErrorResponse);
 		assertTrue(entity.getStatusCode().equals(HttpStatus.INTERNAL_SERVER_ERROR));
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import gateway.controller.util.TransferBudget;
+
+/**
+ * Tests admission control of file transfers.
+ */
+public class TransferBudgetTests {
+	private TransferBudget transferBudget;
+
+	/**
+	 * Configure a small budget.
+	 */
+	@Before
+	public void setup() {
+		transferBudget = new TransferBudget();
+		ReflectionTestUtils.setField(transferBudget, "TOTAL_BUDGET", 100L);
+		ReflectionTestUtils.setField(transferBudget, "USER_BUDGET", 60L);
+		ReflectionTestUtils.setField(transferBudget, "MAX_WAIT_MILLIS", 0L);
+		ReflectionTestUtils.setField(transferBudget, "UNKNOWN_SIZE", 10L);
+	}
+
+	/**
+	 * Tests that transfers are rejected over the global and per-user budgets, and admitted again once released.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testBudgets() throws Exception {
+		TransferBudget.Permit first = transferBudget.acquire("alice", 50);
+		assertTrue(first != null);
+
+		// Over the per-user budget, but another user still fits
+		assertTrue(transferBudget.acquire("alice", 20) == null);
+		TransferBudget.Permit second = transferBudget.acquire("bob", 50);
+		assertTrue(second != null);
+
+		// Over the global budget
+		assertTrue(transferBudget.acquire("carol", -1) == null);
+
+		// Released permits return their bytes, only once
+		first.release();
+		first.release();
+		TransferBudget.Permit third = transferBudget.acquire("carol", -1);
+		assertTrue(third != null);
+
+		// Verify
+		Map<String, Object> stats = transferBudget.getStatistics();
+		assertEquals(60L, stats.get("In Flight Bytes"));
+		assertEquals(3L, stats.get("Admitted"));
+		assertEquals(2L, stats.get("Rejected"));
+		Map<String, Object> alice = (Map<String, Object>) ((Map<String, Object>) stats.get("Users")).get("alice");
+		assertEquals(0L, alice.get("In Flight Bytes"));
+		assertEquals(1L, alice.get("Rejected"));
+	}
+
+	/**
+	 * Tests that a transfer of unknown size is admitted with an estimate, and counted at its real size once resized.
+	 */
+	@Test
+	public void testResize() throws Exception {
+		TransferBudget.Permit download = transferBudget.acquire("alice", -1);
+		assertEquals(10L, transferBudget.getStatistics().get("In Flight Bytes"));
+
+		// A larger transfer is counted in full, and holds back others
+		download.resize(55);
+		assertEquals(55L, transferBudget.getStatistics().get("In Flight Bytes"));
+		assertTrue(transferBudget.acquire("alice", 10) == null);
+
+		// A smaller one frees up its estimate
+		download.resize(5);
+		assertTrue(transferBudget.acquire("alice", 10) != null);
+		download.release();
+		download.resize(50);
+		assertEquals(10L, transferBudget.getStatistics().get("In Flight Bytes"));
+	}
+
+	/**
+	 * Tests that a transfer waits for space, and that a transfer larger than the budget can run on its own.
+	 */
+	@Test
+	public void testWait() throws Exception {
+		ReflectionTestUtils.setField(transferBudget, "MAX_WAIT_MILLIS", 10000L);
+		final TransferBudget.Permit large = transferBudget.acquire("alice", 500);
+		assertTrue(large != null);
+
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException exception) {
+					return;
+				}
+				large.release();
+			}
+		}.start();
+
+		// Waits until the large transfer completes
+		TransferBudget.Permit waiting = transferBudget.acquire("bob", 10);
+		assertTrue(waiting != null);
+		assertEquals(10L, transferBudget.getStatistics().get("In Flight Bytes"));
+	}
+}
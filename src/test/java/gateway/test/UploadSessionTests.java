@@ -0,0 +1,227 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.SSEAwsKeyManagementParams;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import exception.InvalidInputException;
+import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.UploadSession;
+import gateway.controller.util.UploadSessionManager;
+import model.data.location.S3FileStore;
+import util.PiazzaLogger;
+
+/**
+ * Tests resumable Upload Sessions.
+ */
+public class UploadSessionTests {
+	@Mock
+	private PiazzaLogger logger;
+	@Mock
+	private GatewayUtil gatewayUtil;
+	@Mock
+	private AmazonS3 s3Client;
+	@InjectMocks
+	private UploadSessionManager uploadSessionManager;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final int CHUNK_SIZE = 5 * 1024 * 1024;
+
+	/**
+	 * Initialize mock objects.
+	 */
+	@Before
+	public void setup() throws Exception {
+		MockitoAnnotations.initMocks(this);
+		configure(uploadSessionManager);
+		when(gatewayUtil.getUuid()).thenReturn("123456");
+		when(gatewayUtil.getDirectS3Client()).thenReturn(s3Client);
+		InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+		initiateResult.setUploadId("upload");
+		when(s3Client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiateResult);
+		when(s3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(new Answer<UploadPartResult>() {
+			@Override
+			public UploadPartResult answer(InvocationOnMock invocation) throws Throwable {
+				UploadPartRequest part = (UploadPartRequest) invocation.getArguments()[0];
+				UploadPartResult result = new UploadPartResult();
+				result.setPartNumber(part.getPartNumber());
+				result.setETag("etag" + part.getPartNumber());
+				return result;
+			}
+		});
+		uploadSessionManager.init();
+	}
+
+	@After
+	public void cleanup() {
+		uploadSessionManager.cleanup();
+	}
+
+	/**
+	 * Tests uploading a file in chunks, resuming the session after a restart, and completing it.
+	 */
+	@Test
+	public void testResumeAndComplete() throws Exception {
+		long size = CHUNK_SIZE + 100;
+		UploadSession session = uploadSessionManager.createSession("tester", "test.tif", size);
+		assertEquals(CHUNK_SIZE, session.getChunkSize());
+
+		// Out of order and wrongly sized chunks are rejected
+		try {
+			uploadSessionManager.uploadChunk(session, CHUNK_SIZE, 100, new ByteArrayInputStream(new byte[100]));
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			assertEquals(0, session.getCommittedOffset());
+		}
+		try {
+			uploadSessionManager.uploadChunk(session, 0, 100, new ByteArrayInputStream(new byte[100]));
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			assertEquals(0, session.getCommittedOffset());
+		}
+
+		// Send the first chunk, then restart
+		uploadSessionManager.uploadChunk(session, 0, CHUNK_SIZE, new ByteArrayInputStream(new byte[CHUNK_SIZE]));
+		uploadSessionManager.cleanup();
+		UploadSessionManager restarted = new UploadSessionManager();
+		configure(restarted);
+		ReflectionTestUtils.setField(restarted, "gatewayUtil", gatewayUtil);
+		ReflectionTestUtils.setField(restarted, "logger", logger);
+		restarted.init();
+		try {
+			UploadSession resumed = restarted.getSession(session.getSessionId());
+			assertEquals(CHUNK_SIZE, resumed.getCommittedOffset());
+			assertEquals("tester", resumed.getUserName());
+
+			// Send the last chunk and complete
+			restarted.uploadChunk(resumed, CHUNK_SIZE, 100, new ByteArrayInputStream(new byte[100]));
+			S3FileStore location = restarted.completeSession(resumed);
+
+			// Verify
+			assertEquals("123456-test.tif", location.getFileName());
+			assertEquals(size, location.getFileSize().longValue());
+			ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+			Mockito.verify(s3Client).completeMultipartUpload(complete.capture());
+			assertEquals(2, complete.getValue().getPartETags().size());
+			assertEquals("etag2", complete.getValue().getPartETags().get(1).getETag());
+			assertTrue(restarted.getSession(session.getSessionId()) == null);
+			assertEquals(0, folder.getRoot().listFiles().length);
+		} finally {
+			restarted.cleanup();
+		}
+	}
+
+	/**
+	 * Tests that idle sessions expire, and their S3 upload is aborted.
+	 */
+	@Test
+	public void testExpiry() throws Exception {
+		ReflectionTestUtils.setField(uploadSessionManager, "SESSION_TTL_SECONDS", -1L);
+		UploadSession session = uploadSessionManager.createSession("tester", "test.tif", 100);
+
+		uploadSessionManager.expireSessions();
+
+		assertTrue(uploadSessionManager.getSession(session.getSessionId()) == null);
+		Mockito.verify(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+		assertEquals(1L, uploadSessionManager.getStatistics().get("Expired"));
+	}
+
+	/**
+	 * Tests a direct upload session, where the client uploads the file to S3 using a pre-signed URL.
+	 */
+	@Test
+	public void testDirectUpload() throws Exception {
+		// Mock
+		when(gatewayUtil.getServerSideEncryption()).thenReturn(new SSEAwsKeyManagementParams("cmk"));
+		when(s3Client.generatePresignedUrl(any(GeneratePresignedUrlRequest.class))).thenReturn(new URL("https://bucket/123456-test.tif"));
+		AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+		notFound.setStatusCode(404);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(12345);
+		when(s3Client.getObjectMetadata("bucket", "123456-test.tif")).thenThrow(notFound).thenReturn(metadata);
+
+		// Test
+		UploadSession session = uploadSessionManager.createDirectSession("tester", "test.tif");
+		Map<String, Object> status = uploadSessionManager.getDirectUploadStatus(session);
+
+		// Verify the URL is signed for the encryption headers the client is told to send
+		assertEquals("https://bucket/123456-test.tif", status.get("uploadUrl"));
+		assertEquals("cmk", ((Map<?, ?>) status.get("uploadHeaders")).get("x-amz-server-side-encryption-aws-kms-key-id"));
+		ArgumentCaptor<GeneratePresignedUrlRequest> presign = ArgumentCaptor.forClass(GeneratePresignedUrlRequest.class);
+		Mockito.verify(s3Client).generatePresignedUrl(presign.capture());
+		assertEquals("cmk", presign.getValue().getKmsCmkId());
+		assertEquals(session.getExpiresOn(), presign.getValue().getExpiration().getTime());
+
+		// Completing before the file is uploaded fails, and the session remains
+		try {
+			uploadSessionManager.completeSession(session);
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			assertTrue(uploadSessionManager.getSession(session.getSessionId()) != null);
+		}
+
+		// Complete once the file is uploaded
+		S3FileStore location = uploadSessionManager.completeSession(session);
+		assertEquals("123456-test.tif", location.getFileName());
+		assertEquals(12345L, location.getFileSize().longValue());
+		assertTrue(uploadSessionManager.getSession(session.getSessionId()) == null);
+	}
+
+	private void configure(UploadSessionManager manager) {
+		ReflectionTestUtils.setField(manager, "objectMapper", new ObjectMapper());
+		ReflectionTestUtils.setField(manager, "AMAZONS3_BUCKET_NAME", "bucket");
+		ReflectionTestUtils.setField(manager, "AMAZONS3_DOMAIN", "s3.amazonaws.com");
+		ReflectionTestUtils.setField(manager, "CHUNK_SIZE", (long) CHUNK_SIZE);
+		ReflectionTestUtils.setField(manager, "SESSION_DIRECTORY", folder.getRoot().getAbsolutePath());
+		ReflectionTestUtils.setField(manager, "SESSION_TTL_SECONDS", 3600L);
+	}
+}
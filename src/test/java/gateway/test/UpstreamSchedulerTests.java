@@ -0,0 +1,228 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpServerErrorException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import gateway.auth.PiazzaAuthenticationToken;
+import gateway.controller.util.UpstreamScheduler;
+
+/**
+ * Tests the fair scheduling of calls to upstream components.
+ */
+public class UpstreamSchedulerTests {
+	private static final String UPSTREAM = "pz-search-query:8080";
+
+	private UpstreamScheduler upstreamScheduler;
+	private List<String> executed;
+	private ClientHttpRequestExecution execution;
+
+	/**
+	 * Configure a scheduler allowing a single call in flight to each upstream.
+	 */
+	@Before
+	public void setup() {
+		upstreamScheduler = new UpstreamScheduler();
+		ReflectionTestUtils.setField(upstreamScheduler, "objectMapper", new ObjectMapper());
+		ReflectionTestUtils.setField(upstreamScheduler, "ENABLED", true);
+		ReflectionTestUtils.setField(upstreamScheduler, "CONCURRENCY", 1);
+		ReflectionTestUtils.setField(upstreamScheduler, "MAX_WAIT_MILLIS", 5000L);
+		ReflectionTestUtils.setField(upstreamScheduler, "WEIGHTS", "");
+		ReflectionTestUtils.setField(upstreamScheduler, "IDLE_SECONDS", 600L);
+		upstreamScheduler.init();
+
+		executed = Collections.synchronizedList(new ArrayList<String>());
+		execution = new ClientHttpRequestExecution() {
+			@Override
+			public ClientHttpResponse execute(HttpRequest request, byte[] body) throws IOException {
+				executed.add(SecurityContextHolder.getContext().getAuthentication().getName());
+				return new MockClientHttpResponse(new byte[0], HttpStatus.OK);
+			}
+		};
+	}
+
+	@After
+	public void teardown() {
+		upstreamScheduler.cleanup();
+		SecurityContextHolder.clearContext();
+	}
+
+	/**
+	 * Tests that a light user's call is served ahead of a heavy user's backlog, once the upstream is at its limit.
+	 */
+	@Test
+	public void testFairness() throws Exception {
+		// Hold the only place in flight
+		ClientHttpResponse holding = call("holder");
+
+		// A heavy user queues three calls, then a light user queues one
+		BlockingQueue<ClientHttpResponse> responses = new LinkedBlockingQueue<ClientHttpResponse>();
+		List<String> users = Arrays.asList("heavy", "heavy", "heavy", "light");
+		for (int index = 0; index < users.size(); index++) {
+			callInBackground(users.get(index), responses);
+			waitForQueued(index + 1);
+		}
+
+		// Each completed call lets the next through
+		holding.close();
+		for (int index = 0; index < users.size(); index++) {
+			ClientHttpResponse response = responses.poll(5, TimeUnit.SECONDS);
+			assertTrue(response != null);
+			response.close();
+		}
+		assertEquals(Arrays.asList("holder", "heavy", "light", "heavy", "heavy"), executed);
+
+		Map<String, Object> stats = getUpstreamStatistics();
+		assertEquals(0, stats.get("Active"));
+		assertEquals(0, stats.get("Queued"));
+		@SuppressWarnings("unchecked")
+		Map<String, Object> heavy = (Map<String, Object>) ((Map<String, Object>) stats.get("Users")).get("heavy");
+		assertEquals(3L, heavy.get("Admitted"));
+	}
+
+	/**
+	 * Tests that a weighted user is served as many calls per turn as their weight.
+	 */
+	@Test
+	public void testWeights() throws Exception {
+		ReflectionTestUtils.setField(upstreamScheduler, "WEIGHTS", "heavy:2");
+		upstreamScheduler.init();
+		ClientHttpResponse holding = call("holder");
+		BlockingQueue<ClientHttpResponse> responses = new LinkedBlockingQueue<ClientHttpResponse>();
+		List<String> users = Arrays.asList("heavy", "heavy", "heavy", "light", "light");
+		for (int index = 0; index < users.size(); index++) {
+			callInBackground(users.get(index), responses);
+			waitForQueued(index + 1);
+		}
+		holding.close();
+		for (int index = 0; index < users.size(); index++) {
+			responses.poll(5, TimeUnit.SECONDS).close();
+		}
+		assertEquals(Arrays.asList("holder", "heavy", "heavy", "light", "heavy", "light"), executed);
+	}
+
+	/**
+	 * Tests that a call which waits too long is failed, and gives up its place in the queue.
+	 */
+	@Test
+	public void testTimeout() throws Exception {
+		ReflectionTestUtils.setField(upstreamScheduler, "MAX_WAIT_MILLIS", 50L);
+		ClientHttpResponse holding = call("holder");
+		try {
+			call("waiting");
+			fail("The call should have timed out.");
+		} catch (HttpServerErrorException exception) {
+			assertEquals(HttpStatus.SERVICE_UNAVAILABLE, exception.getStatusCode());
+			assertTrue(exception.getResponseBodyAsString().contains("Timed out"));
+		}
+		assertEquals(0, getUpstreamStatistics().get("Queued"));
+
+		// Closing a response more than once releases its place only once
+		holding.close();
+		holding.close();
+		call("waiting");
+		assertEquals(1, getUpstreamStatistics().get("Active"));
+	}
+
+	/**
+	 * Tests that the queues of idle users are evicted, but not those of users with calls waiting.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testEviction() throws Exception {
+		ClientHttpResponse holding = call("holder");
+		BlockingQueue<ClientHttpResponse> responses = new LinkedBlockingQueue<ClientHttpResponse>();
+		callInBackground("waiting", responses);
+		waitForQueued(1);
+
+		ReflectionTestUtils.setField(upstreamScheduler, "IDLE_SECONDS", 0L);
+		Thread.sleep(5);
+		upstreamScheduler.evictIdle();
+		Map<String, Object> users = (Map<String, Object>) getUpstreamStatistics().get("Users");
+		assertEquals(Collections.singleton("waiting"), users.keySet());
+		assertEquals(1L, upstreamScheduler.getStatistics().get("Evicted"));
+
+		// The evicted user's call in flight still releases its place
+		holding.close();
+		responses.poll(5, TimeUnit.SECONDS).close();
+		Thread.sleep(5);
+		upstreamScheduler.evictIdle();
+		assertTrue(((Map<String, Object>) getUpstreamStatistics().get("Users")).isEmpty());
+		assertEquals(0, getUpstreamStatistics().get("Active"));
+	}
+
+	private ClientHttpResponse call(String userName) throws IOException {
+		SecurityContextHolder.getContext()
+				.setAuthentication(new PiazzaAuthenticationToken(userName, null, new ArrayList<GrantedAuthority>()));
+		return upstreamScheduler.intercept(new MockClientHttpRequest(HttpMethod.GET, URI.create("http://" + UPSTREAM + "/data")),
+				new byte[0], execution);
+	}
+
+	private void callInBackground(final String userName, final BlockingQueue<ClientHttpResponse> responses) {
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					responses.add(call(userName));
+				} catch (IOException exception) {
+					throw new IllegalStateException(exception);
+				}
+			}
+		}).start();
+	}
+
+	private void waitForQueued(int queued) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!Integer.valueOf(queued).equals(getUpstreamStatistics().get("Queued")) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(5);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> getUpstreamStatistics() {
+		return (Map<String, Object>) ((Map<String, Object>) upstreamScheduler.getStatistics().get("Upstreams")).get(UPSTREAM);
+	}
+}
@@ -17,19 +17,34 @@ package gateway.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.management.remote.JMXPrincipal;
 
+import org.apache.kafka.clients.producer.MockProducer;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.StringSerializer;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -38,12 +53,30 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.client.RestTemplate;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
+import exception.InvalidInputException;
+import gateway.controller.util.ContentIndex;
 import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.JobOutbox;
+import model.data.DataResource;
+import model.data.location.S3FileStore;
+import model.data.type.GeoJsonDataType;
 import model.job.type.AbortJob;
+import model.job.type.IngestJob;
 import model.request.PiazzaJobRequest;
 import model.response.JobResponse;
 import model.response.PiazzaResponse;
@@ -67,6 +100,10 @@ public class UtilTests {
 	private AmazonS3 s3Client;
 	@Mock
 	private Producer<String, String> producer;
+	@Mock
+	private JobOutbox jobOutbox;
+	@Mock
+	private ContentIndex contentIndex;
 
 	@InjectMocks
 	private GatewayUtil gatewayUtil;
@@ -119,6 +156,221 @@ public class UtilTests {
 		assertEquals(jobId, "123456");
 	}
 
+	/**
+	 * Tests sending a Job Request over the Kafka transport
+	 */
+	@Test
+	public void testKafkaJobRequest() throws Exception {
+		// Mock
+		PiazzaJobRequest mockRequest = new PiazzaJobRequest();
+		mockRequest.createdBy = "tester";
+		mockRequest.jobType = new AbortJob("123456");
+		MockProducer<String, String> mockProducer = new MockProducer<String, String>(true, new StringSerializer(),
+				new StringSerializer());
+		ReflectionTestUtils.setField(gatewayUtil, "producer", mockProducer);
+		ReflectionTestUtils.setField(gatewayUtil, "objectMapper", new ObjectMapper());
+		ReflectionTestUtils.setField(gatewayUtil, "JOB_REQUEST_TRANSPORT", "kafka");
+		ReflectionTestUtils.setField(gatewayUtil, "SPACE", "unit-test");
+
+		// Test
+		String jobId = gatewayUtil.sendJobRequest(mockRequest, "654321");
+
+		// Verify
+		assertEquals("654321", jobId);
+		assertEquals(1, mockProducer.history().size());
+		ProducerRecord<String, String> message = mockProducer.history().get(0);
+		assertEquals("Request-Job-unit-test", message.topic());
+		assertEquals("654321", message.key());
+		assertEquals("tester", new ObjectMapper().readTree(message.value()).get("createdBy").asText());
+		Mockito.verify(restTemplate, Mockito.never()).postForEntity(Mockito.anyString(), Mockito.any(),
+				Mockito.eq(PiazzaResponse.class));
+	}
+
+	/**
+	 * Tests streaming a file of unknown length to S3 as a parallel multipart upload
+	 */
+	@Test
+	public void testPushS3File() throws Exception {
+		// Mock
+		IngestJob mockJob = new IngestJob();
+		mockJob.data = new DataResource();
+		mockJob.data.dataType = new GeoJsonDataType();
+		final int partSize = 5 * 1024 * 1024;
+		ReflectionTestUtils.setField(gatewayUtil, "AMAZONS3_BUCKET_NAME", "bucket");
+		ReflectionTestUtils.setField(gatewayUtil, "s3Client", s3Client);
+		ReflectionTestUtils.setField(gatewayUtil, "S3_PART_SIZE", partSize);
+		ReflectionTestUtils.setField(gatewayUtil, "S3_UPLOAD_CONCURRENCY", 2);
+		ReflectionTestUtils.setField(gatewayUtil, "S3_UPLOAD_RETRIES", 1);
+		ReflectionTestUtils.setField(gatewayUtil, "s3UploadExecutor", Executors.newFixedThreadPool(4));
+		InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+		initiateResult.setUploadId("upload");
+		when(s3Client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiateResult);
+		final List<UploadPartRequest> parts = Collections.synchronizedList(new ArrayList<UploadPartRequest>());
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		final AtomicBoolean failedOnce = new AtomicBoolean();
+		when(s3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(new Answer<UploadPartResult>() {
+			@Override
+			public UploadPartResult answer(InvocationOnMock invocation) throws Throwable {
+				UploadPartRequest part = (UploadPartRequest) invocation.getArguments()[0];
+				int current = inFlight.incrementAndGet();
+				maxInFlight.set(Math.max(maxInFlight.get(), current));
+				try {
+					Thread.sleep(20);
+					// Fail the second part once, so that it is retried
+					if ((part.getPartNumber() == 2) && failedOnce.compareAndSet(false, true)) {
+						throw new AmazonClientException("Connection reset");
+					}
+					parts.add(part);
+					UploadPartResult result = new UploadPartResult();
+					result.setPartNumber(part.getPartNumber());
+					result.setETag("etag" + part.getPartNumber());
+					return result;
+				} finally {
+					inFlight.decrementAndGet();
+				}
+			}
+		});
+		when(s3Client.getObjectMetadata("bucket", "123456-test.tif")).thenReturn(new ObjectMetadata());
+		int fileSize = 3 * partSize + 100;
+
+		// Test
+		IngestJob job = gatewayUtil.pushS3File("123456", mockJob, "test.tif", new ByteArrayInputStream(new byte[fileSize]));
+
+		// Verify
+		assertEquals(4, parts.size());
+		assertTrue(maxInFlight.get() <= 2);
+		for (UploadPartRequest part : parts) {
+			assertEquals(part.getPartNumber() == 4 ? 100 : partSize, part.getPartSize());
+			assertEquals(part.getPartNumber() == 4, part.isLastPart());
+		}
+		ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+		Mockito.verify(s3Client).completeMultipartUpload(complete.capture());
+		assertEquals(4, complete.getValue().getPartETags().size());
+		for (int i = 0; i < 4; i++) {
+			assertEquals(i + 1, complete.getValue().getPartETags().get(i).getPartNumber());
+		}
+		S3FileStore location = (S3FileStore) ((GeoJsonDataType) job.getData().getDataType()).getLocation();
+		assertEquals("123456-test.tif", location.getFileName());
+		assertEquals(fileSize, location.getFileSize().longValue());
+		// The checksums are added to the completed object by a copy within S3
+		ArgumentCaptor<CopyObjectRequest> copy = ArgumentCaptor.forClass(CopyObjectRequest.class);
+		Mockito.verify(s3Client).copyObject(copy.capture());
+		String sha256 = copy.getValue().getNewObjectMetadata().getUserMetadata().get("sha256");
+		assertEquals(64, sha256.length());
+		assertEquals(sha256, job.getData().getMetadata().getMetadata().get("sha256"));
+
+		// Test a part that fails on every attempt; the upload must be aborted.
+		Mockito.doThrow(new AmazonClientException("S3 is down")).when(s3Client).uploadPart(any(UploadPartRequest.class));
+		try {
+			gatewayUtil.pushS3File("123456", mockJob, "test.tif", new ByteArrayInputStream(new byte[fileSize]));
+			assertTrue(false);
+		} catch (AmazonClientException exception) {
+			Mockito.verify(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+		}
+
+		// A failure to abort does not hide the failure of the upload
+		Mockito.doThrow(new AmazonClientException("Abort failed")).when(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+		try {
+			gatewayUtil.pushS3File("123456", mockJob, "test.tif", new ByteArrayInputStream(new byte[fileSize]));
+			assertTrue(false);
+		} catch (AmazonClientException exception) {
+			assertTrue(exception.getMessage().contains("S3 is down"));
+		}
+	}
+
+	/**
+	 * Tests that checksums are computed for a file as it is uploaded, and verified against those given by the client
+	 */
+	@Test
+	public void testPushS3FileChecksums() throws Exception {
+		// Mock
+		IngestJob mockJob = new IngestJob();
+		mockJob.data = new DataResource();
+		mockJob.data.dataType = new GeoJsonDataType();
+		ReflectionTestUtils.setField(gatewayUtil, "AMAZONS3_BUCKET_NAME", "bucket");
+		ReflectionTestUtils.setField(gatewayUtil, "s3Client", s3Client);
+		ReflectionTestUtils.setField(gatewayUtil, "S3_PART_SIZE", 5 * 1024 * 1024);
+		String md5 = "f15c1cae7882448b3fb0404682e17e61";
+		String sha256 = "47bd29075f8b8019f0beec6d86beda7c9bf67aaf05053dcbe0b3bcb63968517f";
+
+		// Test
+		IngestJob job = gatewayUtil.pushS3File("123456", mockJob, "test.txt", new ByteArrayInputStream("Content".getBytes()),
+				md5.toUpperCase(), sha256);
+
+		// Verify
+		ArgumentCaptor<ObjectMetadata> metadata = ArgumentCaptor.forClass(ObjectMetadata.class);
+		Mockito.verify(s3Client).putObject(eq("bucket"), eq("123456-test.txt"), any(InputStream.class), metadata.capture());
+		assertEquals(md5, metadata.getValue().getUserMetadata().get("md5"));
+		assertEquals(sha256, metadata.getValue().getUserMetadata().get("sha256"));
+		assertEquals(md5, job.getData().getMetadata().getMetadata().get("md5"));
+
+		// A file that does not match the client checksum is never stored
+		try {
+			gatewayUtil.pushS3File("123456", mockJob, "test.txt", new ByteArrayInputStream("Contents".getBytes()), null, sha256);
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			Mockito.verify(s3Client, Mockito.times(1)).putObject(anyString(), anyString(), any(InputStream.class), any(ObjectMetadata.class));
+		}
+	}
+
+	/**
+	 * Tests that a file whose content is already hosted is not stored again
+	 */
+	@Test
+	public void testPushS3FileDedupe() throws Exception {
+		// Mock
+		IngestJob mockJob = new IngestJob();
+		mockJob.data = new DataResource();
+		mockJob.data.dataType = new GeoJsonDataType();
+		ReflectionTestUtils.setField(gatewayUtil, "AMAZONS3_BUCKET_NAME", "bucket");
+		ReflectionTestUtils.setField(gatewayUtil, "s3Client", s3Client);
+		ReflectionTestUtils.setField(gatewayUtil, "S3_PART_SIZE", 5 * 1024 * 1024);
+		String sha256 = "47bd29075f8b8019f0beec6d86beda7c9bf67aaf05053dcbe0b3bcb63968517f";
+		when(contentIndex.isEnabled()).thenReturn(true);
+
+		// The first upload is stored and indexed
+		gatewayUtil.pushS3File("123456", mockJob, "test.txt", new ByteArrayInputStream("Content".getBytes()));
+		Mockito.verify(contentIndex).add(sha256, "123456-test.txt", 7);
+
+		// The second upload is copied from the first to its own key
+		ContentIndex.Entry entry = mock(ContentIndex.Entry.class);
+		when(entry.getKey()).thenReturn("123456-test.txt");
+		when(entry.getSize()).thenReturn(7L);
+		when(contentIndex.find(sha256)).thenReturn(entry);
+		when(s3Client.getObjectMetadata("bucket", "123456-test.txt")).thenReturn(new ObjectMetadata());
+		IngestJob job = gatewayUtil.pushS3File("654321", mockJob, "copy.txt", new ByteArrayInputStream("Content".getBytes()));
+
+		// Verify
+		S3FileStore location = (S3FileStore) ((GeoJsonDataType) job.getData().getDataType()).getLocation();
+		assertEquals("654321-copy.txt", location.getFileName());
+		Mockito.verify(s3Client, Mockito.times(1)).putObject(anyString(), anyString(), any(InputStream.class), any(ObjectMetadata.class));
+		ArgumentCaptor<CopyObjectRequest> copy = ArgumentCaptor.forClass(CopyObjectRequest.class);
+		Mockito.verify(s3Client).copyObject(copy.capture());
+		assertEquals("123456-test.txt", copy.getValue().getSourceKey());
+		assertEquals("654321-copy.txt", copy.getValue().getDestinationKey());
+		Mockito.verify(contentIndex).recordHit(7);
+
+		// Claiming the checksum of a hosted file does not attach it to an upload with other content
+		try {
+			gatewayUtil.pushS3File("789012", mockJob, "other.txt", new ByteArrayInputStream("Other".getBytes()), null, sha256);
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			Mockito.verify(contentIndex, Mockito.times(1)).recordHit(anyLong());
+		}
+	}
+
+	/**
+	 * Tests the Content-Disposition header for downloads
+	 */
+	@Test
+	public void testContentDisposition() {
+		assertEquals("attachment; filename=\"test.tif\"", GatewayUtil.getContentDisposition("test.tif"));
+		assertEquals("attachment; filename=\"my \\\"file\\\"; x.tif\"", GatewayUtil.getContentDisposition("my \"file\"; x.tif"));
+		assertEquals("attachment; filename=\"____ .tif\"; filename*=UTF-8''%E3%83%86%E3%82%B9%E3%83%88%0A%20.tif",
+				GatewayUtil.getContentDisposition("\u30c6\u30b9\u30c8\n .tif"));
+	}
+
 	/**
 	 * Tests input validation for Pagination parameters
 	 */
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import gateway.controller.util.UuidPool;
+import util.PiazzaLogger;
+import util.UUIDFactory;
+
+/**
+ * Tests the local UUID Pool.
+ */
+public class UuidPoolTests {
+	@Mock
+	private PiazzaLogger logger;
+	@Mock
+	private UUIDFactory uuidFactory;
+	@Mock
+	private RestTemplate restTemplate;
+	@InjectMocks
+	private UuidPool uuidPool;
+
+	/**
+	 * Initialize mock objects.
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(uuidPool, "UUIDGEN_URL", "http://uuid");
+		ReflectionTestUtils.setField(uuidPool, "POOL_LOW", 5);
+		ReflectionTestUtils.setField(uuidPool, "POOL_HIGH", 20);
+		ReflectionTestUtils.setField(uuidPool, "FETCH_BATCH", 10);
+		ReflectionTestUtils.setField(uuidPool, "FALLBACK_ENABLED", true);
+	}
+
+	@After
+	public void cleanup() {
+		uuidPool.cleanup();
+	}
+
+	/**
+	 * Tests that the pool fills in the background, and serves UUIDs from the pool.
+	 */
+	@Test
+	public void testRefill() throws Exception {
+		// Mock
+		when(uuidFactory.getUUID()).thenAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				return UUID.randomUUID().toString();
+			}
+		});
+
+		// Test
+		uuidPool.init();
+		for (int i = 0; i < 50 && !uuidPool.getStatistics().get("Depth").equals(20); i++) {
+			Thread.sleep(100);
+		}
+
+		// Verify
+		assertEquals(20, uuidPool.getStatistics().get("Depth"));
+		List<String> uuids = uuidPool.getUuids(5);
+		assertEquals(5, uuids.size());
+		assertEquals(5, new HashSet<String>(uuids).size());
+		assertEquals(0L, uuidPool.getStatistics().get("Locally Generated"));
+	}
+
+	/**
+	 * Tests that UUIDs are generated locally when the UUID Service is unreachable.
+	 */
+	@Test
+	public void testFallback() throws Exception {
+		// Mock
+		when(uuidFactory.getUUID()).thenThrow(new RuntimeException("UUID Service is down"));
+
+		// Test
+		uuidPool.init();
+		String uuid = uuidPool.getUuid();
+
+		// Verify
+		assertEquals(1, UUID.fromString(uuid).version());
+		assertTrue((Long) uuidPool.getStatistics().get("Locally Generated") >= 1);
+	}
+
+	/**
+	 * Tests that locally generated UUIDs are unique and ordered by time.
+	 */
+	@Test
+	public void testLocalGeneration() {
+		uuidPool.init();
+		Set<String> uuids = new HashSet<String>();
+		long lastTimestamp = 0;
+		for (int i = 0; i < 10000; i++) {
+			String uuid = uuidPool.generateLocalUuid();
+			uuids.add(uuid);
+			long timestamp = UUID.fromString(uuid).timestamp();
+			assertTrue(timestamp > lastTimestamp);
+			lastTimestamp = timestamp;
+		}
+		assertEquals(10000, uuids.size());
+	}
+}